@@ -0,0 +1,32 @@
+package javax.imageio;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/*
+*  Dummy implementation - does nothing
+* */
+public abstract class ImageReader {
+
+    public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
+    }
+
+    public int getWidth(int imageIndex) throws IOException {
+        return 0;
+    }
+
+    public int getHeight(int imageIndex) throws IOException {
+        return 0;
+    }
+
+    public ImageReadParam getDefaultReadParam() {
+        return new ImageReadParam();
+    }
+
+    public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
+        return null;
+    }
+
+    public void dispose() {
+    }
+}
@@ -0,0 +1,9 @@
+package javax.imageio.stream;
+
+import java.io.Closeable;
+
+/*
+*  Dummy implementation - does nothing
+* */
+public interface ImageInputStream extends Closeable {
+}
@@ -1,11 +1,15 @@
 package peergos.server;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
 
 import java.io.IOException;
+import java.util.function.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -39,6 +43,89 @@ public class AggregatedMetrics {
     public static final Counter GET_PUBLIC_KEY_CHAIN  = build("core_node_get_chain", "Total get-public-key-chain calls.");
     public static final Counter UPDATE_PUBLIC_KEY_CHAIN  = build("core_node_update_chain", "Total getupdate-public-key-chain calls.");
 
+    public static final Counter MIRROR_BLOCKS_COPIED  = build("mirror_blocks_copied", "Total blocks copied by mirroring.");
+    public static final Counter MIRROR_BYTES_COPIED  = build("mirror_bytes_copied", "Total bytes copied by mirroring.");
+    public static final Counter MIRROR_WRITERS_UPDATED  = build("mirror_writers_updated", "Total mirrored writer updates.");
+    public static final Gauge MIRROR_WRITERS_BEHIND = Gauge.build()
+            .name("mirror_writers_behind")
+            .help("Writers whose mirrored root was behind the source at the start of the last mirror pass.")
+            .register();
+    public static final Gauge MIRROR_LAST_COMPLETE = Gauge.build()
+            .name("mirror_last_complete_seconds")
+            .help("Time (unix seconds) the last complete mirror pass finished.")
+            .register();
+
+    public static final Histogram HTTP_QUEUE_TIME = Histogram.build()
+            .name("http_queue_time")
+            .labelNames("endpoint")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) requests wait for a handler thread.")
+            .register();
+    public static final Gauge HTTP_QUEUED_REQUESTS = Gauge.build()
+            .name("http_queued_requests")
+            .labelNames("endpoint")
+            .help("Requests waiting for a handler thread.")
+            .register();
+    public static final Counter HTTP_REJECTED_REQUESTS = Counter.build()
+            .name("http_rejected_requests")
+            .labelNames("endpoint")
+            .help("Total requests rejected because too many were queued.")
+            .register();
+
+    public static final Histogram HTTP_REQUEST_DURATION = Histogram.build()
+            .name("http_request_duration")
+            .labelNames("endpoint")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) to handle a request, excluding queue time.")
+            .register();
+
+    public static final Histogram STORAGE_OP_DURATION = Histogram.build()
+            .name("storage_op_duration")
+            .labelNames("layer", "op")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) for a block store operation, at each layer of the storage stack.")
+            .register();
+    public static final Counter STORAGE_OP_ERRORS = Counter.build()
+            .name("storage_op_errors")
+            .labelNames("layer", "op")
+            .help("Total failed block store operations, at each layer of the storage stack.")
+            .register();
+    public static final Counter STORAGE_CACHE_LOOKUPS = Counter.build()
+            .name("storage_cache_lookups")
+            .labelNames("cache", "result")
+            .help("Total block cache lookups, by result (hit or miss).")
+            .register();
+
+    public static final Histogram PROXY_CALL_DURATION = Histogram.build()
+            .name("proxy_call_duration")
+            .labelNames("target", "method")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) for an HTTP call to another server or the ipfs daemon.")
+            .register();
+    public static final Counter PROXY_CALL_ERRORS = Counter.build()
+            .name("proxy_call_errors")
+            .labelNames("target", "method")
+            .help("Total failed HTTP calls to another server or the ipfs daemon.")
+            .register();
+
+    public static final Histogram JDBC_STATEMENT_DURATION = Histogram.build()
+            .name("jdbc_statement_duration")
+            .labelNames("db")
+            .exponentialBuckets(0.125, 2, 20)
+            .help("Time (ms) to execute a database statement.")
+            .register();
+
+    public static final Histogram FRIEND_LOOKUP_DURATION = Histogram.build()
+            .name("friend_lookup_duration")
+            .exponentialBuckets(1, 2, 20)
+            .help("Time (ms) to look up a path in a friend's shared files, including any check for new capabilities.")
+            .register();
+
+    public static final Gauge SPACE_CHECK_BACKLOG = Gauge.build()
+            .name("space_check_backlog")
+            .help("Mutable pointer updates waiting to have their space usage calculated.")
+            .register();
+
     public static final Histogram IPFS_PRE_GC_DURATION = Histogram.build()
             .name("ipfs_pre_gc")
             .exponentialBuckets(1, 2, 20)
@@ -52,9 +139,26 @@ public class AggregatedMetrics {
 
 
 
+    private static Counter.Child counterOf(Supplier<Long> value) {
+        return new Counter.Child() {
+            @Override
+            public double get() {
+                return value.get();
+            }
+        };
+    }
+
+    /** Export the hit and miss counts of a block cache, from which the hit ratio can be derived.
+     */
+    public static void monitorCache(String name, CachingStorage cache) {
+        STORAGE_CACHE_LOOKUPS.setChild(counterOf(cache::hits), name, "hit");
+        STORAGE_CACHE_LOOKUPS.setChild(counterOf(cache::misses), name, "miss");
+    }
+
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
         HTTPServer server = new HTTPServer(address, port);
+        FriendSourcedTrieNode.setLookupTimer(millis -> FRIEND_LOOKUP_DURATION.observe(millis));
         //shutdown hook on signal
         Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop()));
     }
@@ -10,6 +10,7 @@ import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.cbor.*;
@@ -34,6 +35,7 @@ import java.net.*;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -43,6 +45,11 @@ public class Main {
     public static final Path DEFAULT_PEERGOS_DIR_PATH =
             Paths.get(System.getProperty("user.home"), ".peergos");
 
+    // This is used by initCrypto in the static initialiser below, so must be initialised before it
+    // The secretbox implementation, one of fast, jni or java, e.g. -Dpeergos.crypto.symmetric=jni
+    // The optimised pure Java one is the default, as it is faster than the native TweetNaCl, see SymmetricEncryptionBenchmark
+    private static final String SYMMETRIC_PROVIDER = System.getProperty("peergos.crypto.symmetric", "fast");
+
     static {
         PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, initCrypto().signer);
     }
@@ -123,10 +130,12 @@ public class Main {
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
                     new Command.Arg("transactions-sql-file", "The filename for the transactions datastore", false, "transactions.sql"),
+                    new Command.Arg("pki-mirror-sql-file", "The filename for the mirrored pki datastore", false, "pki-mirror.sql"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
                     new Command.Arg("mirror.node.id", "Mirror a server's data locally", false),
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
+                    new Command.Arg("mirror.parallelism", "The number of blocks to copy in parallel when mirroring", false, "16"),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
                     new Command.Arg("collect-metrics", "Export aggregated metrics", false, "false"),
                     new Command.Arg("metrics.address", "Listen address for serving aggregated metrics", false, "localhost"),
@@ -349,28 +358,70 @@ public class Main {
                     new Command.Arg("username", "Peergos username", true),
                     new Command.Arg("password", "Peergos password", true),
                     new Command.Arg("webport", "Peergos service address port", false, "8000"),
-                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos")
+                    new Command.Arg("mountPoint", "The directory to mount the Peergos filesystem in", true, "peergos"),
+                    new Command.Arg("block-cache-dir", "The directory to cache metadata blocks in, relative to PEERGOS_PATH", false, "blockcache"),
+                    new Command.Arg("block-cache-size", "The maximum size in bytes of the metadata block cache", false, "1073741824"),
+                    new Command.Arg("fuse-cache-size", "The maximum size in bytes of the file page cache", false, "104857600"),
+                    new Command.Arg("fuse-read-ahead", "The number of chunks to read ahead of sequential reads", false, "2"),
+                    new Command.Arg("fuse-sync-period", "The period in milliseconds between writing back cached writes", false, "30000"),
+                    new Command.Arg("fuse-attr-timeout", "How long in milliseconds to cache file attributes and directory entries", false, "1000")
             ).collect(Collectors.toList())
     );
     public static final Command<Boolean> SHELL = new Command<>("shell",
             "An interactive command-line-interface to a Peergos server.",
             Main::startShell,
-            Collections.emptyList()
+            Arrays.asList(
+                    new Command.Arg("block-cache-dir", "The directory to cache metadata blocks in, relative to PEERGOS_PATH", false, "blockcache"),
+                    new Command.Arg("block-cache-size", "The maximum size in bytes of the metadata block cache", false, "1073741824")
+            )
     );
 
+    /** The pool used for parallel hashing and signing. It is a holder class, so the pool is built on first use, which
+     *  is in the static initialiser of Main, whatever the order of Main's fields.
+     */
+    private static class CryptoPool {
+        // The number of threads, e.g. -Dpeergos.crypto.threads=4
+        private static final int THREADS = Integer.getInteger("peergos.crypto.threads",
+                Runtime.getRuntime().availableProcessors());
+        private static final ForkJoinPool POOL = new ForkJoinPool(THREADS);
+    }
+
     public static Crypto initCrypto() {
+        Crypto.setCryptoPool(CryptoPool.POOL);
+        Curve25519 boxer = new Curve25519.Java();
+        Hasher hasher = new FastHasher();
+        Optional<JniTweetNacl> nativeNacl;
         try {
-            JniTweetNacl nativeNacl = JniTweetNacl.build();
-            Salsa20Poly1305 symmetricProvider = new JniTweetNacl.Symmetric(nativeNacl);
-            Ed25519 signer = new JniTweetNacl.Signer(nativeNacl);
-            Curve25519 boxer = new Curve25519.Java();
-            return Crypto.initNative(symmetricProvider, signer, boxer);
+            nativeNacl = Optional.of(JniTweetNacl.build());
         } catch (Throwable t) {
-            return Crypto.initJava();
+            nativeNacl = Optional.empty();
+        }
+        Salsa20Poly1305 symmetricProvider = buildSymmetricProvider(SYMMETRIC_PROVIDER, nativeNacl);
+        Ed25519 signer = nativeNacl.<Ed25519>map(JniTweetNacl.Signer::new).orElseGet(Ed25519.Java::new);
+        return Crypto.initNative(symmetricProvider, signer, boxer, hasher);
+    }
+
+    private static Salsa20Poly1305 buildSymmetricProvider(String name, Optional<JniTweetNacl> nativeNacl) {
+        switch (name) {
+            case "fast":
+                return new FastSalsa20Poly1305();
+            case "jni":
+                if (nativeNacl.isPresent())
+                    return new JniTweetNacl.Symmetric(nativeNacl.get());
+                Logging.LOG().warning("Native TweetNaCl is unavailable, using the Java secretbox");
+                return new Salsa20Poly1305.Java();
+            case "java":
+                return new Salsa20Poly1305.Java();
+            default:
+                throw new IllegalStateException("Unknown secretbox implementation: " + name);
         }
     }
 
     public static Supplier<Connection> getDBConnector(Args a, String dbName) {
+        return MeteredConnection.wrap(dbName.replaceAll("(-sql)?-file$", ""), buildDBConnector(a, dbName));
+    }
+
+    private static Supplier<Connection> buildDBConnector(Args a, String dbName) {
         boolean usePostgres = a.getBoolean("use-postgres", false);
         HikariConfig config;
         if (usePostgres) {
@@ -452,24 +503,27 @@ public class Main {
 
             int dhtCacheEntries = 1000;
             int maxValueSizeToCache = 50 * 1024;
-            JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress, false);
-            JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress, false);
+            JavaPoster ipfsApi = new MeteredPoster("ipfs-api", ipfsApiAddress, false);
+            JavaPoster ipfsGateway = new MeteredPoster("ipfs-gateway", ipfsGatewayAddress, false);
 
             boolean usePostgres = a.getBoolean("use-postgres", false);
             SqlSupplier sqlCommands = usePostgres ?
                     new PostgresCommands() :
                     new SqliteCommands();
 
-            ContentAddressedStorage localDht;
+            ContentAddressedStorage blockStore;
             if (useIPFS) {
                 boolean enableGC = a.getBoolean("enable-gc", false);
-                ContentAddressedStorage.HTTP ipfs = new ContentAddressedStorage.HTTP(ipfsApi, false);
+                ContentAddressedStorage ipfs = new MeteredStorage("ipfs", new ContentAddressedStorage.HTTP(ipfsApi, false));
+                CachingStorage cache;
                 if (enableGC) {
                     GarbageCollector gced = new GarbageCollector(ipfs, a.getInt("gc.period.millis", 60 * 60 * 1000));
                     gced.start();
-                    localDht = new CachingStorage(gced, dhtCacheEntries, maxValueSizeToCache);
+                    cache = new CachingStorage(gced, dhtCacheEntries, maxValueSizeToCache);
                 } else
-                    localDht = new CachingStorage(ipfs, dhtCacheEntries, maxValueSizeToCache);
+                    cache = new CachingStorage(ipfs, dhtCacheEntries, maxValueSizeToCache);
+                AggregatedMetrics.monitorCache("dht", cache);
+                blockStore = cache;
             } else {
                 boolean enableGC = a.getBoolean("enable-gc", false);
                 if (enableGC)
@@ -484,11 +538,19 @@ public class Main {
                     boolean publicReads = a.getBoolean("public-s3-reads", false);
                     boolean authedReads = a.getBoolean("authed-s3-reads", false);
                     BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl);
-                    localDht = new S3BlockStorage(S3Config.build(a), Cid.decode(a.getArg("ipfs.id")),
+                    blockStore = new S3BlockStorage(S3Config.build(a), Cid.decode(a.getArg("ipfs.id")),
                             props, transactions, ipfs);
+                } else if (a.hasArg("erasure-blockstore-dirs")) {
+                    // spread blocks over several directories, e.g. one per disk, tolerating the loss of all but
+                    // erasure-data-shards of them
+                    List<Path> dirs = Arrays.stream(a.getArg("erasure-blockstore-dirs").split(","))
+                            .map(Paths::get)
+                            .collect(Collectors.toList());
+                    blockStore = new ErasureCodedStorage(dirs, a.getInt("erasure-data-shards"), transactions);
                 } else
-                    localDht = new FileContentAddressedStorage(blockstorePath(a), transactions);
+                    blockStore = new FileContentAddressedStorage(blockstorePath(a), transactions);
             }
+            MeteredStorage localDht = new MeteredStorage("local", blockStore);
 
 
             String hostname = a.getArg("domain");
@@ -505,7 +567,7 @@ public class Main {
             CoreNode core = isPkiNode ?
                     buildPkiCorenode(new PinningMutablePointers(localPointers, localDht), localDht, a) :
                     new MirrorCoreNode(new HTTPCoreNode(ipfsGateway, pkiServerNodeId), proxingMutable, localDht,
-                            peergosId, a.fromPeergosDir("pki-mirror-state-path","pki-state.cbor"));
+                            peergosId, new JdbcPkiCache(getDBConnector(a, "pki-mirror-sql-file"), sqlCommands));
 
             long defaultQuota = a.getLong("default-quota");
             long maxUsers = a.getLong("max-users");
@@ -537,10 +599,14 @@ public class Main {
 
             ContentAddressedStorage filteringDht = new WriteFilter(localDht, spaceChecker::allowWrite);
             ContentAddressedStorageProxy proxingDht = new ContentAddressedStorageProxy.HTTP(ipfsGateway);
-            ContentAddressedStorage p2pDht = new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core);
+            // the proxying layer reads blocks from the local store, so they can be streamed from it
+            ContentAddressedStorage p2pDht = new MeteredStorage("p2p",
+                    new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core), Optional.of(localDht));
 
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
-            PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
+            UserBasedBlacklist blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
+            localMutable.addListener(blacklist::accept);
+            corePropagator.addListener(blacklist::accept);
             MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
             MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
 
@@ -570,9 +636,15 @@ public class Main {
                     tlsHostname.map(host -> new UserService.TlsProperties(host, a.getArg("tls.keyfile.password")));
             int maxConnectionQueue = a.getInt("max-connection-queue", 500);
             int handlerThreads = a.getInt("handler-threads", 50);
+            // e.g. dht:200,core:20 to override the handler threads for individual endpoints
+            Map<String, Integer> endpointThreads = Arrays.stream(a.getArg("endpoint-handler-threads", "").split(","))
+                    .filter(s -> ! s.isEmpty())
+                    .map(s -> s.split(":"))
+                    .collect(Collectors.toMap(p -> p[0], p -> Integer.parseInt(p[1])));
+            int maxQueuedRequests = a.getInt("max-queued-requests", 1000);
             boolean isPublicServer = a.getBoolean("public-server", false);
             peergos.initAndStart(localAddress, tlsProps, webroot, useWebAssetCache, isPublicServer, maxConnectionQueue,
-                    handlerThreads);
+                    handlerThreads, endpointThreads, maxQueuedRequests);
             if (! isPkiNode && useIPFS) {
                 int pkiNodeSwarmPort = a.getInt("pki.node.swarm.port");
                 InetAddress pkiNodeIpAddress = InetAddress.getByName(a.getArg("pki.node.ipaddress"));
@@ -584,10 +656,11 @@ public class Main {
             if (a.hasArg("mirror.node.id")) {
                 Multihash nodeToMirrorId = Cid.decode(a.getArg("mirror.node.id"));
                 NetworkAccess localApi = NetworkAccess.buildJava(webPort).join();
+                ForkJoinPool mirrorPool = new ForkJoinPool(a.getInt("mirror.parallelism", 16));
                 new Thread(() -> {
                     while (true) {
                         try {
-                            Mirror.mirrorNode(nodeToMirrorId, localApi, rawPointers, localDht);
+                            Mirror.mirrorNode(nodeToMirrorId, localApi, rawPointers, localDht, mirrorPool);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -602,10 +675,11 @@ public class Main {
             }
             if (a.hasArg("mirror.username")) {
                 NetworkAccess localApi = NetworkAccess.buildJava(webPort).join();
+                ForkJoinPool mirrorPool = new ForkJoinPool(a.getInt("mirror.parallelism", 16));
                 new Thread(() -> {
                     while (true) {
                         try {
-                            Mirror.mirrorUser(a.getArg("mirror.username"), localApi, rawPointers, localDht);
+                            Mirror.mirrorUser(a.getArg("mirror.username"), localApi, rawPointers, localDht, mirrorPool);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -641,10 +715,13 @@ public class Main {
 
         System.out.println("\n\nPeergos mounted at " + path + "\n\n");
         try {
-            NetworkAccess network = NetworkAccess.buildJava(webPort).get();
+            BlockCache blockCache = buildBlockCache(a);
+            NetworkAccess network = NetworkAccess.buildJava(new URL("http://localhost:" + webPort + "/"), false, blockCache).get();
             Crypto crypto = Main.initCrypto();
             UserContext userContext = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
-            PeergosFS peergosFS = new PeergosFS(userContext);
+            int cacheChunks = (int) (a.getLong("fuse-cache-size", 100 * 1024 * 1024L) / Chunk.MAX_SIZE);
+            PeergosFS peergosFS = new CachingPeergosFS(userContext, cacheChunks, a.getInt("fuse-read-ahead", 2),
+                    a.getInt("fuse-sync-period", 30_000), a.getLong("fuse-attr-timeout", 1_000L));
             FuseProcess fuseProcess = new FuseProcess(peergosFS, path);
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> fuseProcess.close(), "Fuse shutdown"));
@@ -677,10 +754,15 @@ public class Main {
     }
 
     public static Boolean startShell(Args args) {
-        CLI.main(new String[]{});
+        CLI.start(buildBlockCache(args));
         return true;
     }
 
+    public static BlockCache buildBlockCache(Args a) {
+        return new FileBlockCache(a.fromPeergosDir("block-cache-dir", "blockcache"),
+                a.getLong("block-cache-size", 1024 * 1024 * 1024L));
+    }
+
     private static CoreNode buildPkiCorenode(MutablePointers mutable, ContentAddressedStorage dht, Args a) {
         try {
             Crypto crypto = initCrypto();
@@ -3,68 +3,102 @@ package peergos.server;
 import peergos.server.corenode.*;
 import peergos.server.util.*;
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
+/** Mirror the data of users on another node into local storage.
+ *
+ *  The mirrored pointer for each writer acts as a checkpoint. On each pass we only walk the part of the DAG that has
+ *  changed since the last mirrored root, and only commit the new pointer once every block reachable from it has been
+ *  copied. An interrupted pass therefore resumes from the last mirrored root of each writer.
+ */
 public class Mirror {
+    private static final int BATCH_SIZE = 64;
 
     public static void mirrorNode(Multihash nodeId,
                                   NetworkAccess mirror,
                                   JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+                                  ContentAddressedStorage targetStorage,
+                                  ForkJoinPool pool) {
         Logging.LOG().log(Level.INFO, "Mirroring data for node " + nodeId);
         List<String> allUsers = mirror.coreNode.getUsernames("").join();
-        int userCount = 0;
+        int userCount = 0, updatedWriters = 0;
+        boolean complete = true;
         for (String username : allUsers) {
             List<UserPublicKeyLink> chain = mirror.coreNode.getChain(username).join();
             if (chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId)) {
                 try {
-                    mirrorUser(username, mirror, targetPointers, targetStorage);
+                    updatedWriters += mirrorUser(username, mirror, targetPointers, targetStorage, pool);
                     userCount++;
                 } catch (Exception e) {
+                    complete = false;
                     Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
                 }
             }
         }
-        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount + " users.");
+        AggregatedMetrics.MIRROR_WRITERS_BEHIND.set(updatedWriters);
+        if (complete)
+            AggregatedMetrics.MIRROR_LAST_COMPLETE.setToCurrentTime();
+        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount
+                + " users and " + updatedWriters + " updated writers.");
     }
 
-    public static void mirrorUser(String username,
-                                  NetworkAccess source,
-                                  JdbcIpnsAndSocial targetPointers,
-                                  ContentAddressedStorage targetStorage) {
+    /**
+     *
+     * @return the number of writers which were updated
+     */
+    public static int mirrorUser(String username,
+                                 NetworkAccess source,
+                                 JdbcIpnsAndSocial targetPointers,
+                                 ContentAddressedStorage targetStorage,
+                                 ForkJoinPool pool) {
         Logging.LOG().log(Level.INFO, "Mirroring data for " + username);
         Optional<PublicKeyHash> identity = source.coreNode.getPublicKeyHash(username).join();
         if (! identity.isPresent())
-            return;
+            return 0;
         Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(username, source.coreNode, source.mutable,
                 source.dhtClient, source.hasher).join();
+        int updated = 0;
         for (PublicKeyHash ownedKey : ownedKeys) {
-            mirrorMutableSubspace(identity.get(), ownedKey, source, targetPointers, targetStorage);
+            if (mirrorMutableSubspace(identity.get(), ownedKey, source, targetPointers, targetStorage, pool))
+                updated++;
         }
         Logging.LOG().log(Level.INFO, "Finished mirroring data for " + username);
+        return updated;
     }
 
-    public static void mirrorMutableSubspace(PublicKeyHash owner,
-                                             PublicKeyHash writer,
-                                             NetworkAccess source,
-                                             JdbcIpnsAndSocial targetPointers,
-                                             ContentAddressedStorage targetStorage) {
+    /**
+     *
+     * @return whether the writer had changed since it was last mirrored
+     */
+    public static boolean mirrorMutableSubspace(PublicKeyHash owner,
+                                                PublicKeyHash writer,
+                                                NetworkAccess source,
+                                                JdbcIpnsAndSocial targetPointers,
+                                                ContentAddressedStorage targetStorage,
+                                                ForkJoinPool pool) {
         Optional<byte[]> updated = source.mutable.getPointer(owner, writer).join();
         if (! updated.isPresent()) {
             Logging.LOG().log(Level.WARNING, "Skipping unretrievable mutable pointer for: " + writer);
-            return;
+            return false;
         }
         Optional<byte[]> existing = targetPointers.getPointer(writer).join();
-        // First pin the new root, then commit updated pointer
         byte[] newPointer = updated.get();
+        if (existing.isPresent() && Arrays.equals(existing.get(), newPointer))
+            return false;
+        // First copy and pin the new root, then commit updated pointer
         MaybeMultihash existingTarget = existing.isPresent() ?
                 MutablePointers.parsePointerTarget(existing.get(), writer, source.dhtClient).join() :
                 MaybeMultihash.empty();
@@ -73,12 +107,123 @@ public class Mirror {
             // The writing key must have been deleted
             if (existingTarget.isPresent())
                 targetStorage.recursiveUnpin(owner, existingTarget.get());
-            return;
+            return true;
         }
-        if (existingTarget.isPresent())
-            targetStorage.pinUpdate(owner, existingTarget.get(), updatedTarget.get()).join();
-        else
-            targetStorage.recursivePin(owner, updatedTarget.get()).join();
+        long start = System.currentTimeMillis();
+        Pair<Long, Long> copied = IpfsTransaction.call(owner, tid -> {
+            Pair<Long, Long> diff = copyDiff(owner, writer, existingTarget, updatedTarget.get(), source.dhtClient,
+                    targetStorage, tid, pool);
+            // pin before the transaction is closed, so the new blocks are never eligible for gc
+            CompletableFuture<List<Multihash>> pinned = existingTarget.isPresent() ?
+                    targetStorage.pinUpdate(owner, existingTarget.get(), updatedTarget.get()) :
+                    targetStorage.recursivePin(owner, updatedTarget.get());
+            return pinned.thenApply(x -> diff);
+        }, targetStorage).join();
         targetPointers.setPointer(writer, existing, newPointer).join();
+        AggregatedMetrics.MIRROR_WRITERS_UPDATED.inc();
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        Logging.LOG().log(Level.INFO, "Mirrored " + copied.left + " blocks (" + copied.right + " bytes) for writer "
+                + writer + " in " + duration + "mS, " + (copied.right * 1000 / duration / 1024) + " KiB/s");
+        return true;
+    }
+
+    /** Copy every block reachable from updated, which is not reachable from existing, from source into target. All the
+     *  blocks reachable from existing must already be present in target.
+     *
+     *  At each level we pair up the changed links of the new block with those of its counterpart in the old DAG, and
+     *  skip any link which is unchanged. So only the changed part of the DAG is ever retrieved. Each level is processed
+     *  in batches, with the blocks of a batch retrieved and written in parallel on the pool, without blocking its
+     *  threads.
+     *
+     * @return the number of blocks and bytes copied
+     */
+    public static Pair<Long, Long> copyDiff(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            MaybeMultihash existing,
+                                            Multihash updated,
+                                            ContentAddressedStorage source,
+                                            ContentAddressedStorage target,
+                                            TransactionId tid,
+                                            ForkJoinPool pool) {
+        if (existing.isPresent() && existing.get().equals(updated))
+            return new Pair<>(0L, 0L);
+        long blocks = 0, bytes = 0;
+        List<Pair<Multihash, Optional<Multihash>>> level = Collections.singletonList(new Pair<>(updated, existing.toOptional()));
+        while (! level.isEmpty()) {
+            List<Pair<Multihash, Optional<Multihash>>> nextLevel = new ArrayList<>();
+            for (List<Pair<Multihash, Optional<Multihash>>> batch : ArrayOps.group(level, BATCH_SIZE)) {
+                List<CopiedBlock> copied = Futures.combineAllInOrder(batch.stream()
+                        .map(p -> CompletableFuture.supplyAsync(() -> p, pool)
+                                .thenCompose(x -> copyBlock(owner, writer, x.left, x.right, source, target, tid)))
+                        .collect(Collectors.toList())).join();
+                for (CopiedBlock block : copied) {
+                    blocks++;
+                    bytes += block.size;
+                    nextLevel.addAll(block.changedLinks);
+                }
+            }
+            AggregatedMetrics.MIRROR_BLOCKS_COPIED.inc(level.size());
+            level = nextLevel;
+        }
+        AggregatedMetrics.MIRROR_BYTES_COPIED.inc(bytes);
+        return new Pair<>(blocks, bytes);
+    }
+
+    private static class CopiedBlock {
+        public final int size;
+        public final List<Pair<Multihash, Optional<Multihash>>> changedLinks;
+
+        public CopiedBlock(int size, List<Pair<Multihash, Optional<Multihash>>> changedLinks) {
+            this.size = size;
+            this.changedLinks = changedLinks;
+        }
+    }
+
+    private static CompletableFuture<CopiedBlock> copyBlock(PublicKeyHash owner,
+                                                            PublicKeyHash writer,
+                                                            Multihash hash,
+                                                            Optional<Multihash> previous,
+                                                            ContentAddressedStorage source,
+                                                            ContentAddressedStorage target,
+                                                            TransactionId tid) {
+        boolean isRaw = hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+        return source.getRaw(hash)
+                .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Couldn't retrieve block " + hash)))
+                .thenCompose(block -> (isRaw ?
+                        target.putRaw(owner, writer, new byte[0], block, tid, x -> {}) :
+                        target.put(owner, writer, new byte[0], block, tid))
+                        .thenCompose(stored -> {
+                            if (! stored.equals(hash))
+                                throw new IllegalStateException("Mirrored block " + hash + " was stored as " + stored);
+                            if (isRaw)
+                                return Futures.of(new CopiedBlock(block.length, Collections.emptyList()));
+
+                            List<Multihash> links = CborObject.fromByteArray(block).links().stream()
+                                    .filter(h -> ! h.isIdentity())
+                                    .collect(Collectors.toList());
+                            return previous.map(target::getLinks)
+                                    .orElseGet(() -> Futures.of(Collections.emptyList()))
+                                    .thenApply(previousLinks -> new CopiedBlock(block.length, changedLinks(links, previousLinks)));
+                        }));
+    }
+
+    /** Pair up the links which have changed, in order, with those they replaced
+     */
+    private static List<Pair<Multihash, Optional<Multihash>>> changedLinks(List<Multihash> links,
+                                                                          List<Multihash> previousLinks) {
+        Set<Multihash> unchanged = new HashSet<>(previousLinks);
+        unchanged.retainAll(links);
+        List<Multihash> onlyBefore = previousLinks.stream()
+                .filter(h -> ! unchanged.contains(h))
+                .collect(Collectors.toList());
+        List<Multihash> onlyAfter = links.stream()
+                .filter(h -> ! unchanged.contains(h))
+                .distinct()
+                .collect(Collectors.toList());
+        return IntStream.range(0, onlyAfter.size())
+                .mapToObj(i -> new Pair<>(onlyAfter.get(i), i < onlyBefore.size() ?
+                        Optional.of(onlyBefore.get(i)) :
+                        Optional.<Multihash>empty()))
+                .collect(Collectors.toList());
     }
 }
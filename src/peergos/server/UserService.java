@@ -113,7 +113,9 @@ public class UserService {
                                 boolean useWebCache,
                                 boolean isPublicServer,
                                 int connectionBacklog,
-                                int handlerPoolSize) throws IOException {
+                                int handlerPoolSize,
+                                Map<String, Integer> endpointConcurrency,
+                                int maxQueuedRequests) throws IOException {
         InetAddress allInterfaces = InetAddress.getByName("::");
         if (tlsProps.isPresent())
             try {
@@ -200,25 +202,30 @@ public class UserService {
             handler = handler.withCache();
         }
 
+        // each endpoint gets its own bounded pool, so the server threads only parse and queue requests
+        Function<String, Function<HttpHandler, HttpHandler>> throttle = name -> target -> new ThrottledHandler(name,
+                target, endpointConcurrency.getOrDefault(name, handlerPoolSize), maxQueuedRequests);
         BiConsumer<String, HttpHandler> addHandler = (path, handlerFunc) -> {
             localhostServer.createContext(path, handlerFunc);
             if (tlsServer != null)
                 tlsServer.createContext(path, new HSTSHandler(handlerFunc));
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer));
-        addHandler.accept("/" + Constants.CORE_URL,
-                new CoreNodeHandler(this.coreNode, isPublicServer));
-        addHandler.accept("/" + Constants.SOCIAL_URL,
-                new SocialHandler(this.social, isPublicServer));
-        addHandler.accept("/" + Constants.MUTABLE_POINTERS_URL,
-                new MutationHandler(this.mutable, isPublicServer));
-        addHandler.accept("/" + Constants.ADMIN_URL,
-                new AdminHandler(this.controller, isPublicServer));
-        addHandler.accept("/" + Constants.SPACE_USAGE_URL,
-                new SpaceHandler(this.usage, isPublicServer));
-        addHandler.accept("/" + Constants.PUBLIC_FILES_URL, new PublicFileHandler(coreNode, mutable, storage));
-        addHandler.accept(UI_URL, handler);
+        addHandler.accept(Constants.DHT_URL, throttle.apply("dht")
+                .apply(new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer)));
+        addHandler.accept("/" + Constants.CORE_URL, throttle.apply("core")
+                .apply(new CoreNodeHandler(this.coreNode, isPublicServer)));
+        addHandler.accept("/" + Constants.SOCIAL_URL, throttle.apply("social")
+                .apply(new SocialHandler(this.social, isPublicServer)));
+        addHandler.accept("/" + Constants.MUTABLE_POINTERS_URL, throttle.apply("mutable")
+                .apply(new MutationHandler(this.mutable, isPublicServer)));
+        addHandler.accept("/" + Constants.ADMIN_URL, throttle.apply("admin")
+                .apply(new AdminHandler(this.controller, isPublicServer)));
+        addHandler.accept("/" + Constants.SPACE_USAGE_URL, throttle.apply("space")
+                .apply(new SpaceHandler(this.usage, isPublicServer)));
+        addHandler.accept("/" + Constants.PUBLIC_FILES_URL, throttle.apply("public")
+                .apply(new PublicFileHandler(coreNode, mutable, storage)));
+        addHandler.accept(UI_URL, throttle.apply("ui").apply(handler));
 
         localhostServer.setExecutor(Executors.newFixedThreadPool(handlerPoolSize));
         localhostServer.start();
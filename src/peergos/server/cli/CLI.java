@@ -14,6 +14,7 @@ import peergos.server.util.Args;
 import peergos.server.util.Logging;
 import peergos.shared.*;
 import peergos.shared.social.FollowRequestWithCipherText;
+import peergos.shared.storage.BlockCache;
 import peergos.shared.user.SocialState;
 import peergos.shared.user.UserContext;
 
@@ -547,7 +548,7 @@ public class CLI implements Runnable {
      * @return
      */
 
-    public static CLIContext buildContextFromCLI() {
+    public static CLIContext buildContextFromCLI(BlockCache blockCache) {
         Terminal terminal = buildTerminal();
 
         DefaultParser parser = new DefaultParser();
@@ -572,7 +573,7 @@ public class CLI implements Runnable {
         } catch (MalformedURLException ex) {
             writer.println("Specified server " + address + " is not valid!");
             writer.flush();
-            return buildContextFromCLI();
+            return buildContextFromCLI(blockCache);
         }
 
         writer.println("Enter username");
@@ -581,7 +582,7 @@ public class CLI implements Runnable {
         writer.println("Enter password for '" + username + "'");
         String password = reader.readLine(PROMPT, PASSWORD_MASK);
 
-        NetworkAccess networkAccess = NetworkAccess.buildJava(serverURL, serverURL.getHost().equals("localhost")).join();
+        NetworkAccess networkAccess = NetworkAccess.buildJava(serverURL, serverURL.getHost().equals("localhost"), blockCache).join();
         Consumer<String> progressConsumer =  msg -> {
             writer.println(msg);
             writer.flush();
@@ -654,10 +655,14 @@ public class CLI implements Runnable {
 
     private static Crypto CRYPTO;
 
-    public static void main(String[] args) {
+    public static void start(BlockCache blockCache) {
         CRYPTO = Main.initCrypto();
         Logging.LOG().setLevel(Level.WARNING);
-        CLIContext cliContext = buildContextFromCLI();
+        CLIContext cliContext = buildContextFromCLI(blockCache);
         new CLI(cliContext).run();
     }
+
+    public static void main(String[] args) {
+        start(Main.buildBlockCache(Args.parse(args)));
+    }
 }
@@ -53,6 +53,11 @@ public class CorenodeEventPropagator implements CoreNode {
         return target.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return target.getUsernames(prefix, limit, after);
+    }
+
     @Override
     public void close() throws IOException {
 
@@ -32,7 +32,7 @@ public class IpfsCoreNode implements CoreNode {
 
     private final Map<String, List<UserPublicKeyLink>> chains = new ConcurrentHashMap<>();
     private final Map<PublicKeyHash, String> reverseLookup = new ConcurrentHashMap<>();
-    private final List<String> usernames = new ArrayList<>();
+    private final UsernameIndex usernames = new UsernameIndex();
 
     private MaybeMultihash currentRoot;
 
@@ -60,7 +60,12 @@ public class IpfsCoreNode implements CoreNode {
      * @param newRoot The root of the new champ
      */
     private synchronized void update(MaybeMultihash newRoot) {
-        updateAllMappings(signer.publicKeyHash, currentRoot, newRoot, ipfs, chains, reverseLookup, usernames);
+        updateAllMappings(signer.publicKeyHash, currentRoot, newRoot, ipfs, (username, chain) -> {
+            PublicKeyHash owner = chain.get(chain.size() - 1).owner;
+            reverseLookup.put(owner, username);
+            chains.put(username, chain);
+            usernames.add(username);
+        });
         this.currentRoot = newRoot;
     }
 
@@ -76,14 +81,12 @@ public class IpfsCoreNode implements CoreNode {
                                          MaybeMultihash currentChampRoot,
                                          MaybeMultihash newChampRoot,
                                          ContentAddressedStorage ipfs,
-                                         Map<String, List<UserPublicKeyLink>> chains,
-                                         Map<PublicKeyHash, String> reverseLookup,
-                                         List<String> usernames) {
+                                         BiConsumer<String, List<UserPublicKeyLink>> updatedChains) {
         try {
             MaybeMultihash currentTree = getTreeRoot(currentChampRoot, ipfs);
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
             Consumer<Triple<ByteArrayWrapper, MaybeMultihash, MaybeMultihash>> consumer =
-                    t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, usernames);
+                    t -> updateMapping(t.left, t.middle, t.right, ipfs, updatedChains);
             Champ.applyToDiff(currentTree, updatedTree, 0, IpfsCoreNode::keyHash,
                     Collections.emptyList(), Collections.emptyList(),
                     consumer, ChampWrapper.BIT_WIDTH, ipfs).get();
@@ -96,9 +99,7 @@ public class IpfsCoreNode implements CoreNode {
                                      MaybeMultihash oldValue,
                                      MaybeMultihash newValue,
                                      ContentAddressedStorage ipfs,
-                                     Map<String, List<UserPublicKeyLink>> chains,
-                                     Map<PublicKeyHash, String> reverseLookup,
-                                     List<String> usernames) {
+                                     BiConsumer<String, List<UserPublicKeyLink>> updatedChains) {
         try {
             Optional<CborObject> cborOpt = ipfs.get(newValue.get()).get();
             if (!cborOpt.isPresent()) {
@@ -124,14 +125,7 @@ public class IpfsCoreNode implements CoreNode {
                 // Check legality
                 UserPublicKeyLink.merge(existingChain, updatedChain, ipfs).get();
             }
-            PublicKeyHash owner = updatedChain.get(updatedChain.size() - 1).owner;
-
-            reverseLookup.put(owner, username);
-            chains.put(username, updatedChain);
-            if (! oldValue.isPresent()) {
-                // This is a new user
-                usernames.add(username);
-            }
+            updatedChains.accept(username, updatedChain);
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
@@ -211,7 +205,12 @@ public class IpfsCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(usernames);
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix, Integer.MAX_VALUE, Optional.empty()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix, limit, after));
     }
 
     @Override
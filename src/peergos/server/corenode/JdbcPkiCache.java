@@ -0,0 +1,226 @@
+package peergos.server.corenode;
+
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A persistent, indexed copy of the pki mappings. Each user's chain is a separate row, so applying a change to the
+ *  pki only touches the rows of the users who changed, and chains are only read into memory on demand. Every owner key
+ *  in a chain is indexed, so a user can be found from any of their keys.
+ *
+ *  Recently read chains and usernames are cached in memory, so most reads don't wait for the database.
+ */
+public class JdbcPkiCache {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CACHE_SIZE = 10_000;
+
+    private static final String GET_STATE = "SELECT state FROM pkistate WHERE id = 1;";
+    private static final String INSERT_STATE = "INSERT INTO pkistate (id, state) VALUES(1, ?);";
+    private static final String UPDATE_STATE = "UPDATE pkistate SET state = ? WHERE id = 1;";
+    private static final String GET_CHAIN = "SELECT chain FROM pkichains WHERE username = ?;";
+    private static final String GET_USERNAME = "SELECT username FROM pkiowners WHERE owner = ? LIMIT 1;";
+    private static final String GET_USERNAMES = "SELECT username FROM pkichains;";
+    private static final String INSERT_CHAIN = "INSERT INTO pkichains (username, chain) VALUES(?, ?);";
+    private static final String UPDATE_CHAIN = "UPDATE pkichains SET chain = ? WHERE username = ?;";
+    private static final String DELETE_OWNERS = "DELETE FROM pkiowners WHERE username = ?;";
+    private static final String INSERT_OWNER = "INSERT INTO pkiowners (owner, username) VALUES(?, ?);";
+
+    private final Supplier<Connection> conn;
+    private final Map<String, List<UserPublicKeyLink>> chainCache = Collections.synchronizedMap(new LRUCache<>(CACHE_SIZE));
+    private final Map<PublicKeyHash, String> usernameCache = Collections.synchronizedMap(new LRUCache<>(CACHE_SIZE));
+    private volatile boolean isClosed;
+
+    public JdbcPkiCache(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createPkiMirrorTablesCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @return the serialized state which was last committed with setState, if any
+     */
+    public synchronized Optional<CborObject> getState() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET_STATE)) {
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return Optional.empty();
+            return Optional.of(CborObject.fromByteArray(rs.getBytes("state")));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public synchronized void setState(Cborable state) {
+        byte[] raw = state.serialize();
+        try (Connection conn = getConnection();
+             PreparedStatement update = conn.prepareStatement(UPDATE_STATE)) {
+            update.setBytes(1, raw);
+            if (update.executeUpdate() > 0)
+                return;
+            try (PreparedStatement insert = conn.prepareStatement(INSERT_STATE)) {
+                insert.setBytes(1, raw);
+                insert.executeUpdate();
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public Optional<List<UserPublicKeyLink>> getChain(String username) {
+        List<UserPublicKeyLink> cached = chainCache.get(username);
+        if (cached != null)
+            return Optional.of(cached);
+        Optional<List<UserPublicKeyLink>> chain = readChain(username);
+        chain.ifPresent(c -> chainCache.put(username, c));
+        return chain;
+    }
+
+    private synchronized Optional<List<UserPublicKeyLink>> readChain(String username) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET_CHAIN)) {
+            select.setString(1, username);
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return Optional.empty();
+            return Optional.of(((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("chain")))
+                    .map(UserPublicKeyLink::fromCbor));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public Optional<String> getUsername(PublicKeyHash owner) {
+        String cached = usernameCache.get(owner);
+        if (cached != null)
+            return Optional.of(cached);
+        Optional<String> username = readUsername(owner);
+        username.ifPresent(u -> usernameCache.put(owner, u));
+        return username;
+    }
+
+    private synchronized Optional<String> readUsername(PublicKeyHash owner) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET_USERNAME)) {
+            select.setString(1, owner.toString());
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return Optional.empty();
+            return Optional.of(rs.getString("username"));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public synchronized List<String> getUsernames() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET_USERNAMES)) {
+            ResultSet rs = select.executeQuery();
+            List<String> res = new ArrayList<>();
+            while (rs.next())
+                res.add(rs.getString("username"));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Insert or replace the chains of the given users in a single transaction
+     *
+     * @param chains pairs of username and chain
+     */
+    public synchronized void putChains(List<Pair<String, List<UserPublicKeyLink>>> chains) {
+        if (chains.isEmpty())
+            return;
+        try (Connection conn = getConnection();
+             PreparedStatement update = conn.prepareStatement(UPDATE_CHAIN);
+             PreparedStatement insert = conn.prepareStatement(INSERT_CHAIN);
+             PreparedStatement deleteOwners = conn.prepareStatement(DELETE_OWNERS);
+             PreparedStatement insertOwner = conn.prepareStatement(INSERT_OWNER)) {
+            conn.setAutoCommit(false);
+            try {
+                for (Pair<String, List<UserPublicKeyLink>> chain : chains) {
+                    String username = chain.left;
+                    byte[] raw = new CborObject.CborList(chain.right).serialize();
+                    update.setBytes(1, raw);
+                    update.setString(2, username);
+                    if (update.executeUpdate() == 0) {
+                        insert.setString(1, username);
+                        insert.setBytes(2, raw);
+                        insert.executeUpdate();
+                    }
+                    deleteOwners.setString(1, username);
+                    deleteOwners.executeUpdate();
+                    for (UserPublicKeyLink link : chain.right) {
+                        insertOwner.setString(1, link.owner.toString());
+                        insertOwner.setString(2, username);
+                        insertOwner.executeUpdate();
+                    }
+                }
+                conn.commit();
+                updateCaches(chains);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    private void updateCaches(List<Pair<String, List<UserPublicKeyLink>>> chains) {
+        Set<String> changed = chains.stream()
+                .map(p -> p.left)
+                .collect(Collectors.toSet());
+        synchronized (usernameCache) {
+            usernameCache.values().removeIf(changed::contains);
+        }
+        for (Pair<String, List<UserPublicKeyLink>> chain : chains)
+            chainCache.put(chain.left, chain.right);
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+    }
+}
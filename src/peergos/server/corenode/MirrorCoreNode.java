@@ -8,16 +8,23 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
-import java.io.*;
-import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
+/** A read only mirror of the pki, which proxies writes to the pki node.
+ *
+ *  The mirrored mappings are stored in a JdbcPkiCache, one row per user, and updated incrementally from the champ diff
+ *  between the last applied pki root and the current one. The last applied root is only committed after all the rows
+ *  it implies, so an interrupted update is simply re-applied from the previous root on the next attempt.
+ */
 public class MirrorCoreNode implements CoreNode {
+    private static final int UPDATE_BATCH_SIZE = 500;
 
     private final CoreNode writeTarget;
     private final MutablePointers mutable;
@@ -25,29 +32,27 @@ public class MirrorCoreNode implements CoreNode {
     private final PublicKeyHash pkiOwnerIdentity;
 
     private volatile CorenodeState state;
-    private final Path statePath;
+    private final JdbcPkiCache store;
+    private final UsernameIndex usernames;
     private volatile boolean running = true;
 
     public MirrorCoreNode(CoreNode writeTarget,
                           MutablePointers mutable,
                           ContentAddressedStorage ipfs,
                           PublicKeyHash pkiOwnerIdentity,
-                          Path statePath) {
+                          JdbcPkiCache store) {
         this.writeTarget = writeTarget;
         this.mutable = mutable;
         this.ipfs = ipfs;
         this.pkiOwnerIdentity = pkiOwnerIdentity;
-        this.statePath = statePath;
+        this.store = store;
+        this.state = store.getState()
+                .map(CorenodeState::fromCbor)
+                .orElseGet(() -> new CorenodeState(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty()));
+        // only the usernames are held in memory, for prefix searches
+        this.usernames = new UsernameIndex(store.getUsernames());
         try {
-            this.state = load(statePath);
-        } catch (IOException e) {
-            // load empty
-            this.state = CorenodeState.buildEmpty(pkiOwnerIdentity, pkiOwnerIdentity, MaybeMultihash.empty(), MaybeMultihash.empty());
-        }
-        try {
-            boolean changed = update();
-            if (changed)
-                saveState();
+            update();
         } catch (Throwable t) {
             Logging.LOG().log(Level.SEVERE, "Couldn't update mirror pki state: " + t.getMessage(), t);
         }
@@ -57,39 +62,14 @@ public class MirrorCoreNode implements CoreNode {
         private final PublicKeyHash pkiOwnerIdentity, pkiKey;
         private final MaybeMultihash pkiOwnerTarget, pkiKeyTarget;
 
-        private final Map<String, List<UserPublicKeyLink>> chains;
-        private final Map<PublicKeyHash, String> reverseLookup;
-        private final List<String> usernames;
-
         public CorenodeState(PublicKeyHash pkiOwnerIdentity,
                              PublicKeyHash pkiKey,
                              MaybeMultihash pkiOwnerTarget,
-                             MaybeMultihash pkiKeyTarget,
-                             Map<String, List<UserPublicKeyLink>> chains,
-                             Map<PublicKeyHash, String> reverseLookup,
-                             List<String> usernames) {
+                             MaybeMultihash pkiKeyTarget) {
             this.pkiOwnerIdentity = pkiOwnerIdentity;
             this.pkiKey = pkiKey;
             this.pkiOwnerTarget = pkiOwnerTarget;
             this.pkiKeyTarget = pkiKeyTarget;
-            this.chains = chains;
-            this.reverseLookup = reverseLookup;
-            this.usernames = usernames;
-        }
-
-        public static CorenodeState buildEmpty(PublicKeyHash pkiOwnerIdentity,
-                                               PublicKeyHash pkiKey,
-                                               MaybeMultihash pkiOwnerTarget,
-                                               MaybeMultihash pkiKeyTarget) {
-            return new CorenodeState(pkiOwnerIdentity, pkiKey, pkiOwnerTarget, pkiKeyTarget, new HashMap<>(),
-                    new HashMap<>(), new ArrayList<>());
-        }
-
-        public void load(CorenodeState other) {
-            chains.putAll(other.chains);
-            reverseLookup.putAll(other.reverseLookup);
-            usernames.clear();
-            usernames.addAll(other.usernames);
         }
 
         @Override
@@ -97,31 +77,8 @@ public class MirrorCoreNode implements CoreNode {
             Map<String, Cborable> res = new TreeMap<>();
             res.put("peergosKey", pkiOwnerIdentity);
             res.put("peergosTarget", pkiOwnerTarget);
-            res.put("pkiKey", pkiOwnerIdentity);
+            res.put("pkiKey", pkiKey);
             res.put("pkiTarget", pkiKeyTarget);
-
-            TreeMap<CborObject, ? extends Cborable> chainsMap = chains.entrySet()
-                .stream()
-                .collect(Collectors.toMap(
-                    e -> new CborObject.CborString(e.getKey()),
-                    e -> new CborObject.CborList(e.getValue()),
-                    (a,b) -> a,
-                    TreeMap::new
-                ));
-            res.put("chains", new CborObject.CborMap(chainsMap));
-            TreeMap<CborObject, ? extends Cborable> reverseMap = reverseLookup.entrySet()
-                .stream()
-                .collect(Collectors.toMap(
-                    e -> e.getKey().toCbor(),
-                    e -> new CborObject.CborString(e.getValue()),
-                    (a,b) -> a,
-                    TreeMap::new
-                ));
-            res.put("reverse", new CborObject.CborMap(reverseMap));
-            res.put("usernames", new CborObject.CborList(usernames.stream()
-                    .map(CborObject.CborString::new)
-                    .collect(Collectors.toList())));
-
             return CborObject.CborMap.build(res);
         }
 
@@ -131,18 +88,7 @@ public class MirrorCoreNode implements CoreNode {
             PublicKeyHash pkiKey = map.get("pkiKey", PublicKeyHash::fromCbor);
             MaybeMultihash peergosTarget = map.get("peergosTarget", MaybeMultihash::fromCbor);
             MaybeMultihash pkiTarget = map.get("pkiTarget", MaybeMultihash::fromCbor);
-
-            Function<Cborable, String> fromString = e -> ((CborObject.CborString) e).value;
-            Function<? super Cborable, List<UserPublicKeyLink>> chainParser =
-                    c -> ((CborObject.CborList) c).map(UserPublicKeyLink::fromCbor);
-            Map<String, List<UserPublicKeyLink>> chains = ((CborObject.CborMap)map.get("chains"))
-                    .getMap(fromString, chainParser);
-
-            Map<PublicKeyHash, String> reverse = ((CborObject.CborMap)map.get("reverse"))
-                    .getMap(PublicKeyHash::fromCbor, fromString);
-
-            List<String> usernames = map.getList("usernames", fromString);
-            return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget, chains, reverse, usernames);
+            return new CorenodeState(peergosKey, pkiKey, peergosTarget, pkiTarget);
         }
     }
 
@@ -152,9 +98,7 @@ public class MirrorCoreNode implements CoreNode {
             while (running) {
                 try {
                     Thread.sleep(60_000);
-                    boolean changed = update();
-                    if (changed)
-                        saveState();
+                    update();
                 } catch (Throwable t) {
                     Logging.LOG().log(Level.SEVERE, t.getMessage(), t);
                 }
@@ -162,26 +106,6 @@ public class MirrorCoreNode implements CoreNode {
         }, "Mirroring PKI node").start();
     }
 
-    private synchronized void saveState() {
-        byte[] serialized = state.toCbor().serialize();
-        Logging.LOG().info("Writing "+ serialized.length +" bytes to "+ statePath);
-        try {
-            Files.write(
-                    statePath,
-                    serialized,
-                    StandardOpenOption.CREATE);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static CorenodeState load(Path statePath) throws IOException {
-        Logging.LOG().info("Reading state from " + statePath + " which exists ? " + Files.exists(statePath) + " from cwd " + System.getProperty("cwd"));
-        byte[] data = Files.readAllBytes(statePath);
-        CborObject object = CborObject.fromByteArray(data);
-        return CorenodeState.fromCbor(object);
-    }
-
     /**
      *
      * @return whether there was a change
@@ -205,19 +129,41 @@ public class MirrorCoreNode implements CoreNode {
                     currentPkiRoot.equals(current.pkiKeyTarget))
                 return false;
 
-            Logging.LOG().info("Updating pki mirror state... Please wait. This could take a minute or two");
-            CorenodeState updated = CorenodeState.buildEmpty(peergosKey, pkiKey, newPeergosRoot, currentPkiRoot);
-            updated.load(current);
-            IpfsCoreNode.updateAllMappings(pkiKey, current.pkiKeyTarget, currentPkiRoot, ipfs, updated.chains,
-                    updated.reverseLookup, updated.usernames);
+            Logging.LOG().info("Updating pki mirror state...");
+            List<Pair<String, List<UserPublicKeyLink>>> batch = new ArrayList<>();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            AtomicInteger updatedUsers = new AtomicInteger(0);
+            IpfsCoreNode.updateAllMappings(pkiKey, current.pkiKeyTarget, currentPkiRoot, ipfs, (username, chain) -> {
+                synchronized (batch) {
+                    batch.add(new Pair<>(username, chain));
+                    if (batch.size() < UPDATE_BATCH_SIZE)
+                        return;
+                    try {
+                        store.putChains(batch);
+                        batch.forEach(p -> usernames.add(p.left));
+                        updatedUsers.addAndGet(batch.size());
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                    batch.clear();
+                }
+            });
+            if (failure.get() != null)
+                throw new IllegalStateException("Couldn't store updated pki mappings", failure.get());
+            store.putChains(batch);
+            batch.forEach(p -> usernames.add(p.left));
+            updatedUsers.addAndGet(batch.size());
+
             // pin the new pki version
             // note that these calls won't be redirected to the pki node because we are talking directly to ipfs
             if (current.pkiKeyTarget.isPresent())
                 ipfs.pinUpdate(peergosKey, current.pkiKeyTarget.get(), currentPkiRoot.get()).join();
             else
                 ipfs.recursivePin(peergosKey, currentPkiRoot.get()).join();
+            CorenodeState updated = new CorenodeState(peergosKey, pkiKey, newPeergosRoot, currentPkiRoot);
+            store.setState(updated);
             state = updated;
-            Logging.LOG().info("... finished updating pki mirror state.");
+            Logging.LOG().info("... finished updating pki mirror state, " + updatedUsers.get() + " users changed.");
             return true;
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -226,12 +172,12 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<UserPublicKeyLink>> getChain(String username) {
-        List<UserPublicKeyLink> chain = state.chains.get(username);
-        if (chain != null)
-            return CompletableFuture.completedFuture(chain);
+        Optional<List<UserPublicKeyLink>> chain = store.getChain(username);
+        if (chain.isPresent())
+            return CompletableFuture.completedFuture(chain.get());
 
         update();
-        return CompletableFuture.completedFuture(state.chains.getOrDefault(username, Collections.emptyList()));
+        return CompletableFuture.completedFuture(store.getChain(username).orElse(Collections.emptyList()));
     }
 
     @Override
@@ -241,20 +187,26 @@ public class MirrorCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<String> getUsername(PublicKeyHash key) {
-        String username = state.reverseLookup.get(key);
-        if (username != null)
-            return CompletableFuture.completedFuture(username);
+        Optional<String> username = store.getUsername(key);
+        if (username.isPresent())
+            return CompletableFuture.completedFuture(username.get());
         update();
-        return CompletableFuture.completedFuture(state.reverseLookup.get(key));
+        return CompletableFuture.completedFuture(store.getUsername(key).orElse(null));
     }
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return CompletableFuture.completedFuture(state.usernames);
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix, Integer.MAX_VALUE, Optional.empty()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return CompletableFuture.completedFuture(usernames.getByPrefix(prefix, limit, after));
     }
 
     @Override
     public void close() {
         running = false;
+        store.close();
     }
 }
@@ -0,0 +1,64 @@
+package peergos.server.corenode;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A thread safe sorted index of usernames, supporting prefix lookups with a limit and a cursor for pagination.
+ *
+ *  Usernames are never removed from the pki, so the index only grows.
+ */
+public class UsernameIndex {
+
+    private final ConcurrentSkipListSet<String> usernames = new ConcurrentSkipListSet<>();
+
+    public UsernameIndex() {}
+
+    public UsernameIndex(Collection<String> initial) {
+        usernames.addAll(initial);
+    }
+
+    /**
+     *
+     * @param username
+     * @return true if this is a new username
+     */
+    public boolean add(String username) {
+        return usernames.add(username);
+    }
+
+    public void addAll(UsernameIndex other) {
+        usernames.addAll(other.usernames);
+    }
+
+    public int size() {
+        return usernames.size();
+    }
+
+    /**
+     *
+     * @return all the usernames in sorted order
+     */
+    public List<String> getAll() {
+        return new ArrayList<>(usernames);
+    }
+
+    /**
+     *
+     * @param prefix
+     * @param limit the maximum number of usernames to return
+     * @param after if present, only return usernames that sort after this
+     * @return up to limit usernames starting with prefix in sorted order
+     */
+    public List<String> getByPrefix(String prefix, int limit, Optional<String> after) {
+        NavigableSet<String> tail = after.isPresent() && after.get().compareTo(prefix) >= 0 ?
+                usernames.tailSet(after.get(), false) :
+                usernames.tailSet(prefix, true);
+        List<String> res = new ArrayList<>();
+        for (String username : tail) {
+            if (res.size() >= limit || ! username.startsWith(prefix))
+                break;
+            res.add(username);
+        }
+        return res;
+    }
+}
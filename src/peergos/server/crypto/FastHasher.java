@@ -0,0 +1,25 @@
+package peergos.server.crypto;
+
+import peergos.shared.crypto.hash.*;
+
+import java.security.*;
+import java.util.concurrent.*;
+
+/** A Hasher which reuses a MessageDigest per thread for sha256, rather than looking one up for every hash. This lets
+ *  the JVM use its sha256 intrinsics (hardware SHA extensions where available) without the provider lookup overhead.
+ */
+public class FastHasher extends ScryptJava {
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(Hash.HASH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Override
+    public CompletableFuture<byte[]> sha256(byte[] input) {
+        return CompletableFuture.completedFuture(sha256.get().digest(input));
+    }
+}
@@ -0,0 +1,322 @@
+package peergos.server.crypto;
+
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+
+/** An optimised pure Java XSalsa20-Poly1305 secretbox, compatible with TweetNaCl.
+ *
+ *  Salsa20 keeps its state in local ints and Poly1305 uses 26 bit limbs with 64 bit products (after poly1305-donna),
+ *  compared to TweetNaCl's byte-at-a-time arithmetic. The sub key, key stream block, poly1305 key and padding are
+ *  per thread scratch buffers, so there is no allocation beyond the output array. Key material is zeroed after use.
+ */
+public class FastSalsa20Poly1305 implements Salsa20Poly1305 {
+
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+    private static final int TAG_BYTES = TweetNaCl.SECRETBOX_OVERHEAD_BYTES;
+
+    private static final class Scratch {
+        final int[] subKey = new int[8];
+        final int[] block = new int[16];
+        final byte[] polyKey = new byte[32];
+        final byte[] tag = new byte[TAG_BYTES];
+        final byte[] last = new byte[16];
+
+        void clear() {
+            Arrays.fill(subKey, 0);
+            Arrays.fill(block, 0);
+            Arrays.fill(polyKey, (byte) 0);
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    @Override
+    public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+        Scratch scratch = SCRATCH.get();
+        try {
+            hsalsa20(key, nonce, scratch.subKey);
+            int n0 = ld32(nonce, 16), n1 = ld32(nonce, 20);
+            byte[] res = new byte[TAG_BYTES + data.length];
+            salsa20Xor(scratch.subKey, n0, n1, data, 0, res, TAG_BYTES, data.length, scratch.polyKey, scratch.block);
+            poly1305(res, TAG_BYTES, data.length, scratch.polyKey, res, 0, scratch.last);
+            return res;
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    @Override
+    public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+        if (cipher.length < TAG_BYTES)
+            throw new TweetNaCl.InvalidCipherTextException();
+        Scratch scratch = SCRATCH.get();
+        try {
+            hsalsa20(key, nonce, scratch.subKey);
+            int n0 = ld32(nonce, 16), n1 = ld32(nonce, 20);
+            salsa20Xor(scratch.subKey, n0, n1, null, 0, null, 0, 0, scratch.polyKey, scratch.block);
+            byte[] tag = scratch.tag;
+            poly1305(cipher, TAG_BYTES, cipher.length - TAG_BYTES, scratch.polyKey, tag, 0, scratch.last);
+            int diff = 0;
+            for (int i=0; i < TAG_BYTES; i++)
+                diff |= tag[i] ^ cipher[i];
+            if (diff != 0)
+                throw new TweetNaCl.InvalidCipherTextException();
+            byte[] res = new byte[cipher.length - TAG_BYTES];
+            salsa20Xor(scratch.subKey, n0, n1, cipher, TAG_BYTES, res, 0, res.length, scratch.polyKey, scratch.block);
+            return res;
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    private static int ld32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static void st32(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    /**
+     *
+     * @param key
+     * @param nonce
+     * @param subKey receives the xsalsa20 sub key derived from the key and the first 16 bytes of the nonce
+     */
+    private static void hsalsa20(byte[] key, byte[] nonce, int[] subKey) {
+        int x0 = SIGMA0, x1 = ld32(key, 0), x2 = ld32(key, 4), x3 = ld32(key, 8), x4 = ld32(key, 12),
+                x5 = SIGMA1, x6 = ld32(nonce, 0), x7 = ld32(nonce, 4), x8 = ld32(nonce, 8), x9 = ld32(nonce, 12),
+                x10 = SIGMA2, x11 = ld32(key, 16), x12 = ld32(key, 20), x13 = ld32(key, 24), x14 = ld32(key, 28),
+                x15 = SIGMA3;
+        for (int i = 0; i < 10; i++) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        subKey[0] = x0;
+        subKey[1] = x5;
+        subKey[2] = x10;
+        subKey[3] = x15;
+        subKey[4] = x6;
+        subKey[5] = x7;
+        subKey[6] = x8;
+        subKey[7] = x9;
+    }
+
+    /** XOR len bytes of input with the salsa20 key stream, skipping the first 32 bytes of key stream, which are
+     *  written to polyKey instead. A null input is treated as zeros. The block array holds each block of key stream.
+     */
+    private static void salsa20Xor(int[] k, int n0, int n1,
+                                   byte[] in, int inOff,
+                                   byte[] out, int outOff, int len,
+                                   byte[] polyKey,
+                                   int[] block) {
+        final int j0 = SIGMA0, j1 = k[0], j2 = k[1], j3 = k[2], j4 = k[3], j5 = SIGMA1, j6 = n0, j7 = n1,
+                j10 = SIGMA2, j11 = k[4], j12 = k[5], j13 = k[6], j14 = k[7], j15 = SIGMA3;
+        long counter = 0;
+        int skip = 32; // the first half of the first block is the poly1305 key
+        int done = 0;
+        while (done < len || counter == 0) {
+            int j8 = (int) counter, j9 = (int) (counter >>> 32);
+            int x0 = j0, x1 = j1, x2 = j2, x3 = j3, x4 = j4, x5 = j5, x6 = j6, x7 = j7,
+                    x8 = j8, x9 = j9, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+            for (int i = 0; i < 10; i++) {
+                x4 ^= Integer.rotateLeft(x0 + x12, 7);
+                x8 ^= Integer.rotateLeft(x4 + x0, 9);
+                x12 ^= Integer.rotateLeft(x8 + x4, 13);
+                x0 ^= Integer.rotateLeft(x12 + x8, 18);
+                x9 ^= Integer.rotateLeft(x5 + x1, 7);
+                x13 ^= Integer.rotateLeft(x9 + x5, 9);
+                x1 ^= Integer.rotateLeft(x13 + x9, 13);
+                x5 ^= Integer.rotateLeft(x1 + x13, 18);
+                x14 ^= Integer.rotateLeft(x10 + x6, 7);
+                x2 ^= Integer.rotateLeft(x14 + x10, 9);
+                x6 ^= Integer.rotateLeft(x2 + x14, 13);
+                x10 ^= Integer.rotateLeft(x6 + x2, 18);
+                x3 ^= Integer.rotateLeft(x15 + x11, 7);
+                x7 ^= Integer.rotateLeft(x3 + x15, 9);
+                x11 ^= Integer.rotateLeft(x7 + x3, 13);
+                x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+                x1 ^= Integer.rotateLeft(x0 + x3, 7);
+                x2 ^= Integer.rotateLeft(x1 + x0, 9);
+                x3 ^= Integer.rotateLeft(x2 + x1, 13);
+                x0 ^= Integer.rotateLeft(x3 + x2, 18);
+                x6 ^= Integer.rotateLeft(x5 + x4, 7);
+                x7 ^= Integer.rotateLeft(x6 + x5, 9);
+                x4 ^= Integer.rotateLeft(x7 + x6, 13);
+                x5 ^= Integer.rotateLeft(x4 + x7, 18);
+                x11 ^= Integer.rotateLeft(x10 + x9, 7);
+                x8 ^= Integer.rotateLeft(x11 + x10, 9);
+                x9 ^= Integer.rotateLeft(x8 + x11, 13);
+                x10 ^= Integer.rotateLeft(x9 + x8, 18);
+                x12 ^= Integer.rotateLeft(x15 + x14, 7);
+                x13 ^= Integer.rotateLeft(x12 + x15, 9);
+                x14 ^= Integer.rotateLeft(x13 + x12, 13);
+                x15 ^= Integer.rotateLeft(x14 + x13, 18);
+            }
+            block[0] = x0 + j0;
+            block[1] = x1 + j1;
+            block[2] = x2 + j2;
+            block[3] = x3 + j3;
+            block[4] = x4 + j4;
+            block[5] = x5 + j5;
+            block[6] = x6 + j6;
+            block[7] = x7 + j7;
+            block[8] = x8 + j8;
+            block[9] = x9 + j9;
+            block[10] = x10 + j10;
+            block[11] = x11 + j11;
+            block[12] = x12 + j12;
+            block[13] = x13 + j13;
+            block[14] = x14 + j14;
+            block[15] = x15 + j15;
+
+            if (counter == 0)
+                for (int w = 0; w < 8; w++)
+                    st32(polyKey, 4 * w, block[w]);
+
+            int n = Math.min(64 - skip, len - done);
+            int start = outOff + done, inStart = inOff + done;
+            if (n == 64 && in != null) {
+                for (int w = 0; w < 16; w++) {
+                    int o = start + 4 * w, i = inStart + 4 * w;
+                    int ks = block[w];
+                    out[o] = (byte) (in[i] ^ ks);
+                    out[o + 1] = (byte) (in[i + 1] ^ (ks >>> 8));
+                    out[o + 2] = (byte) (in[i + 2] ^ (ks >>> 16));
+                    out[o + 3] = (byte) (in[i + 3] ^ (ks >>> 24));
+                }
+            } else {
+                for (int b = 0; b < n; b++) {
+                    int pos = skip + b;
+                    byte ks = (byte) (block[pos >> 2] >>> ((pos & 3) << 3));
+                    out[start + b] = (byte) ((in == null ? 0 : in[inStart + b]) ^ ks);
+                }
+            }
+            done += n;
+            skip = 0;
+            counter++;
+        }
+    }
+
+    /** Compute the poly1305 tag of len bytes of m into out, using last to pad a final partial block
+     */
+    private static void poly1305(byte[] m, int mOff, int len, byte[] key, byte[] out, int outOff, byte[] last) {
+        final int r0 = ld32(key, 0) & 0x3ffffff;
+        final int r1 = (ld32(key, 3) >>> 2) & 0x3ffff03;
+        final int r2 = (ld32(key, 6) >>> 4) & 0x3ffc0ff;
+        final int r3 = (ld32(key, 9) >>> 6) & 0x3f03fff;
+        final int r4 = (ld32(key, 12) >>> 8) & 0x00fffff;
+        final long s1 = r1 * 5L, s2 = r2 * 5L, s3 = r3 * 5L, s4 = r4 * 5L;
+
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+        int pos = mOff;
+        int end = mOff + len;
+        while (pos < end) {
+            byte[] b = m;
+            int off = pos;
+            int hibit = 1 << 24;
+            if (end - pos < 16) {
+                // pad the final partial block with a 1 then zeros
+                Arrays.fill(last, (byte) 0);
+                System.arraycopy(m, pos, last, 0, end - pos);
+                last[end - pos] = 1;
+                b = last;
+                off = 0;
+                hibit = 0;
+            }
+            h0 += ld32(b, off) & 0x3ffffff;
+            h1 += (ld32(b, off + 3) >>> 2) & 0x3ffffff;
+            h2 += (ld32(b, off + 6) >>> 4) & 0x3ffffff;
+            h3 += (ld32(b, off + 9) >>> 6) & 0x3ffffff;
+            h4 += (ld32(b, off + 12) >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26; h0 = d0 & 0x3ffffff;
+            d1 += c; c = d1 >>> 26; h1 = d1 & 0x3ffffff;
+            d2 += c; c = d2 >>> 26; h2 = d2 & 0x3ffffff;
+            d3 += c; c = d3 >>> 26; h3 = d3 & 0x3ffffff;
+            d4 += c; c = d4 >>> 26; h4 = d4 & 0x3ffffff;
+            h0 += c * 5; c = h0 >>> 26; h0 &= 0x3ffffff;
+            h1 += c;
+            pos += 16;
+        }
+
+        // fully carry h
+        long c = h1 >>> 26; h1 &= 0x3ffffff;
+        h2 += c; c = h2 >>> 26; h2 &= 0x3ffffff;
+        h3 += c; c = h3 >>> 26; h3 &= 0x3ffffff;
+        h4 += c; c = h4 >>> 26; h4 &= 0x3ffffff;
+        h0 += c * 5; c = h0 >>> 26; h0 &= 0x3ffffff;
+        h1 += c;
+
+        // compute h - p, and select it if it is non negative
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= 0x3ffffff;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= 0x3ffffff;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= 0x3ffffff;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= 0x3ffffff;
+        long g4 = h4 + c - (1L << 26);
+        long mask = (g4 >>> 63) - 1; // all ones if g4 >= 0
+        h0 = (h0 & ~mask) | (g0 & mask);
+        h1 = (h1 & ~mask) | (g1 & mask);
+        h2 = (h2 & ~mask) | (g2 & mask);
+        h3 = (h3 & ~mask) | (g3 & mask);
+        h4 = (h4 & ~mask) | (g4 & mask);
+
+        // h = h % 2^128 + s
+        long f0 = (h0 | (h1 << 26)) & 0xffffffffL;
+        long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        long f = f0 + (ld32(key, 16) & 0xffffffffL);
+        st32(out, outOff, (int) f);
+        f = f1 + (ld32(key, 20) & 0xffffffffL) + (f >>> 32);
+        st32(out, outOff + 4, (int) f);
+        f = f2 + (ld32(key, 24) & 0xffffffffL) + (f >>> 32);
+        st32(out, outOff + 8, (int) f);
+        f = f3 + (ld32(key, 28) & 0xffffffffL) + (f >>> 32);
+        st32(out, outOff + 12, (int) f);
+    }
+}
@@ -18,273 +18,581 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
+/** A page cache over PeergosFS.
+ *
+ *  Files are cached in chunk sized pages, up to a fixed number of pages across all files, evicting the least recently
+ *  used. Writes only go to the cache, and dirty pages are written back, coalescing adjacent pages into a single upload,
+ *  on flush, fsync, release, eviction, or periodically. Sequential reads trigger asynchronous loading of the following
+ *  pages.
+ *
+ *  The cache itself is guarded by a single lock, which is never held during network calls. Write back copies the dirty
+ *  ranges under the lock and uploads them outside it, serialised per file, so it only ever blocks other write backs of
+ *  the same file.
+ */
 public class CachingPeergosFS extends PeergosFS {
 	private static final Logger LOG = Logging.LOG();
 
     private static final int DEFAULT_SYNC_SLEEP = 1000*30;
-    private static final int DEFAULT_CACHE_SIZE = 1;
-    private static final boolean DEBUG = true;
+    private static final int DEFAULT_CACHE_SIZE = 20;
+    private static final int DEFAULT_READ_AHEAD = 2;
+    private static final int MAX_COALESCED_CHUNKS = 8;
+    private static final boolean DEBUG = false;
 
-    private final ConcurrentMap<String, CacheEntryHolder> entryMap;
-    private final int chunkCacheSize, syncSleep;
-//    private final Thread syncRunner;
+    // Everything below is guarded by this, which is never held while calling the network
+    private final Map<String, OpenFile> files = new HashMap<>();
+    // All cached pages, least recently used first
+    private final LinkedHashMap<Page, Page> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int chunkCacheSize, readAheadChunks;
+    private final ExecutorService loader;
+    private final ScheduledExecutorService syncRunner;
 
     public CachingPeergosFS(UserContext userContext) {
         this(userContext, DEFAULT_CACHE_SIZE, DEFAULT_SYNC_SLEEP);
     }
 
     public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int syncSleep) {
-        super(userContext);
+        this(userContext, chunkCacheSize, DEFAULT_READ_AHEAD, syncSleep, DEFAULT_STAT_CACHE_MILLIS);
+    }
 
+    /**
+     *
+     * @param chunkCacheSize The maximum number of chunks to cache, across all files
+     * @param readAheadChunks The number of chunks to load ahead of a sequential read
+     * @param syncSleep The period in milliseconds between writing back all dirty chunks
+     * @param statCacheMillis How long in milliseconds to cache file attributes and directory entries
+     */
+    public CachingPeergosFS(UserContext userContext, int chunkCacheSize, int readAheadChunks, int syncSleep, long statCacheMillis) {
+        super(userContext, statCacheMillis);
+        if (chunkCacheSize < 2)
+            throw new IllegalStateException("Chunk cache size must be at least 2!");
         this.chunkCacheSize = chunkCacheSize;
-        this.syncSleep = syncSleep;
-        this.entryMap = new ConcurrentHashMap<>();
+        this.readAheadChunks = readAheadChunks;
+        this.loader = Executors.newFixedThreadPool(Math.max(1, readAheadChunks), r -> {
+            Thread t = new Thread(r, "FUSE chunk loader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.syncRunner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "FUSE write back");
+            t.setDaemon(true);
+            return t;
+        });
+        syncRunner.scheduleWithFixedDelay(this::syncAll, syncSleep, syncSleep, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public int read(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
         try {
-            return read(s, pointer, 0, size, offset, fuseFileInfo);
+            int done = 0;
+            while (done < size) {
+                long pos = offset + done;
+                int pointerOffset = done;
+                int remaining = (int) (size - done);
+                int read = withPage(s, alignToChunkSize(pos), false, page -> {
+                    int chunkOffset = intraChunkOffset(pos);
+                    int toRead = (int) Math.min(Math.min(remaining, Chunk.MAX_SIZE - chunkOffset), page.file.size - pos);
+                    if (toRead <= 0)
+                        return 0;
+                    pointer.put(pointerOffset, page.data, chunkOffset, toRead);
+                    return toRead;
+                });
+                if (read < 0)
+                    return read;
+                if (read == 0)
+                    break;
+                done += read;
+            }
+            readAhead(s, offset, done);
+            return done;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
-        }
-    }
-
-    public int read(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
-        if (DEBUG)
-            System.out.printf("read(%s, offset=%d, size=%d)\n", s, offset, size);
-        if (!containedInOneChunk(offset, offset + size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int r1 = read(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (r1 <= 0)
-                return r1;
-            int r2 = read(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (r2 <= 0)
-                return r2;
-            return r1 + r2;
+            return -ErrorCodes.EIO();
         }
-
-        long startPos = alignToChunkSize(offset);
-        int chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
-
-        CacheEntryHolder cacheEntryHolder = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntryHolder.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.read(pointer, pointerOffset, chunkOffset, iSize));
     }
 
     @Override
     public int write(String s, Pointer pointer, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
         try {
-            return write(s, pointer, 0, size, offset, fuseFileInfo);
+            int done = 0;
+            while (done < size) {
+                long pos = offset + done;
+                int pointerOffset = done;
+                int remaining = (int) (size - done);
+                int written = withPage(s, alignToChunkSize(pos), true, page -> {
+                    int chunkOffset = intraChunkOffset(pos);
+                    int toWrite = Math.min(remaining, Chunk.MAX_SIZE - chunkOffset);
+                    pointer.get(pointerOffset, page.data, chunkOffset, toWrite);
+                    page.markDirty(chunkOffset, chunkOffset + toWrite);
+                    page.file.size = Math.max(page.file.size, pos + toWrite);
+                    return toWrite;
+                });
+                if (written < 0)
+                    return written;
+                done += written;
+            }
+            return done;
         } catch (Throwable t) {
             LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
+            return -ErrorCodes.EIO();
         }
     }
 
-    public int write(String s, Pointer pointer, int pointerOffset, @size_t long size, @off_t long offset, FuseFileInfo fuseFileInfo) {
+    @Override
+    public int lock(String s, FuseFileInfo fuseFileInfo, int i, Flock flock) {
         if (DEBUG)
-            System.out.printf("write(%s, offset=%d, size=%d)\n", s, offset, size);
-        if  (! containedInOneChunk(offset, offset+size)) {
-            long boundary = alignToChunkSize(offset + Chunk.MAX_SIZE);
-            int w1 = write(s, pointer, 0, boundary - offset, offset, fuseFileInfo);
-            if (w1 <= 0)
-                return w1;
-            int w2 = write(s, pointer, (int)(boundary - offset), size + offset - boundary, boundary, fuseFileInfo);
-            if (w2 <= 0)
-                return w2;
-            return w1 + w2;
-        }
+            System.out.printf("lock(%s)\n", s);
+        return syncAndClear(s);
+    }
 
-        long startPos  = alignToChunkSize(offset);
-        int  chunkOffset  = intraChunkOffset(offset);
-        int iSize = (int) size;
+    @Override
+    public int flush(String s, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("flush(%s)\n", s);
+        int res = sync(s);
+        if (res != 0)
+            return res;
+        return super.flush(s, fuseFileInfo);
+    }
 
-        CacheEntryHolder cacheEntry = entryMap.computeIfAbsent(s, path -> new CacheEntryHolder(new CacheEntry(path, startPos)));
-        return cacheEntry.apply(c -> c != null && c.offset == startPos, () -> new CacheEntry(s, startPos),
-                ce -> ce.write(pointer, pointerOffset, chunkOffset, iSize));
+    @Override
+    public int fsync(String s, int isDataSync, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("fsync(%s)\n", s);
+        return sync(s);
     }
 
     @Override
-    public int lock(String s, FuseFileInfo fuseFileInfo, int i, Flock flock) {
-        try {
-            if (DEBUG)
-                System.out.printf("lock(%s)\n", s);
-            CacheEntryHolder cacheEntryHolder = entryMap.get(s);
-            if (cacheEntryHolder != null)
-                cacheEntryHolder.syncAndClear();
-            return 0;
-        } catch (Throwable t) {
-            LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
-        }
+    public int release(String s, FuseFileInfo fuseFileInfo) {
+        if (DEBUG)
+            System.out.printf("release(%s)\n", s);
+        return sync(s);
     }
 
     @Override
-    public int flush(String s, FuseFileInfo fuseFileInfo) {
-        try {
-            if (DEBUG)
-                System.out.printf("flush(%s)\n", s);
-            CacheEntryHolder cacheEntry = entryMap.get(s);
-            if (cacheEntry != null) {
-                cacheEntry.sync();
-            }
-            return super.flush(s, fuseFileInfo);
-        } catch (Throwable t) {
-            LOG.log(Level.WARNING, t.getMessage(), t);
-            throw t;
-        }
+    public int unlink(String s) {
+        clear(s);
+        return super.unlink(s);
+    }
+
+    @Override
+    public int rename(String s, String s1) {
+        int res = syncAndClear(s);
+        if (res != 0)
+            return res;
+        clear(s1);
+        return super.rename(s, s1);
+    }
+
+    @Override
+    public int ftruncate(String s, @off_t long l, FuseFileInfo fuseFileInfo) {
+        int res = syncAndClear(s);
+        if (res != 0)
+            return res;
+        return super.ftruncate(s, l, fuseFileInfo);
     }
 
     @Override
     protected int annotateAttributes(String fullPath, PeergosStat peergosStat, FileStat fileStat) {
         if (DEBUG)
             System.out.printf("annotate(%s)\n", fullPath);
-        CacheEntryHolder cacheEntry = entryMap.get(fullPath);
-        Optional<PeergosStat> updatedStat = Optional.empty();
-        if (cacheEntry != null) {
-            updatedStat = cacheEntry.applyIfPresent(ce -> {
-                if (ce == null)
-                    return peergosStat;
-                long maxSize = ce.offset + ce.maxDirtyPos;
-                if (peergosStat.properties.size < maxSize) {
-                    FileProperties updated = peergosStat.properties.withSize(maxSize);
-                    return new PeergosStat(peergosStat.treeNode, updated);
-                }
-                return peergosStat;
-            });
+        long cachedSize;
+        synchronized (this) {
+            OpenFile file = files.get(fullPath);
+            cachedSize = file == null ? -1 : file.size;
         }
-        return super.annotateAttributes(fullPath, updatedStat.orElse(peergosStat), fileStat);
-    }
-
-    private boolean containedInOneChunk(long start, long end) {
-        return alignToChunkSize(start) == alignToChunkSize(end-1);
+        if (peergosStat.properties.size < cachedSize) {
+            FileProperties updated = peergosStat.properties.withSize(cachedSize);
+            peergosStat = new PeergosStat(peergosStat.treeNode, updated);
+        }
+        return super.annotateAttributes(fullPath, peergosStat, fileStat);
     }
 
     private long alignToChunkSize(long pos) {
         return Math.max(0, pos / Chunk.MAX_SIZE) * Chunk.MAX_SIZE;
     }
-    private int intraChunkOffset(long  pos) {
-        return (int) pos % Chunk.MAX_SIZE;
+
+    private int intraChunkOffset(long pos) {
+        return (int) (pos % Chunk.MAX_SIZE);
     }
 
-    private class CacheEntryHolder {
-        private CacheEntry entry;
+    /** Apply op to the cached page at pageOffset in path, loading it if necessary.
+     *
+     * @return the result of op, 0 for a read past the end of the file, or an error code if the file doesn't exist
+     */
+    private int withPage(String path, long pageOffset, boolean isWrite, Function<Page, Integer> op) {
+        while (true) {
+            CompletableFuture<Void> loading = null;
+            Integer result = null;
+            Set<OpenFile> toWriteBack = Collections.emptySet();
+            synchronized (this) {
+                OpenFile file = files.get(path);
+                if (file != null) {
+                    Page page = file.pages.get(pageOffset);
+                    if (page == null && ! isWrite && pageOffset >= file.size)
+                        return 0;
+                    if (page == null && pageOffset >= file.remoteSize) // nothing stored to load
+                        page = addPage(file, pageOffset, new byte[0]);
+                    if (page != null) {
+                        lru.get(page);
+                        result = op.apply(page);
+                        toWriteBack = evict(page);
+                    } else
+                        loading = load(file, pageOffset);
+                }
+            }
+            if (result != null) {
+                writeBackForEviction(toWriteBack);
+                return result;
+            }
+            if (loading == null) {
+                // the stat is done outside the lock, as it may go to the network
+                Optional<PeergosStat> stat = getByPath(path);
+                if (! stat.isPresent())
+                    return -ErrorCodes.ENOENT();
+                synchronized (this) {
+                    files.putIfAbsent(path, new OpenFile(path, stat.get().properties.size));
+                }
+            } else
+                loading.join();
+        }
+    }
 
-        public CacheEntryHolder(CacheEntry entry) {
-            this.entry = entry;
+    /** Write back files whose dirty pages are over the cache size, then evict them. Must not hold the lock.
+     */
+    private void writeBackForEviction(Set<OpenFile> dirty) {
+        if (dirty.isEmpty())
+            return;
+        for (OpenFile file : dirty)
+            sync(file);
+        synchronized (this) {
+            evict(null);
         }
+    }
 
-        public synchronized <A> A apply(Predicate<CacheEntry> correctChunk, Supplier<CacheEntry> supplier, Function<CacheEntry, A> func) {
-            if (!correctChunk.test(entry)) {
-                long oldOffset = entry != null ? entry.offset : -1;
-                syncAndClear();
-                setEntry(supplier.get());
-                LOG.info("Ejecting chunk from " + entry.path + " " + oldOffset + " -> "+ entry.offset);
+    /** Start loading a page in the background, unless it is already cached or loading. Must hold the lock.
+     */
+    private CompletableFuture<Void> load(OpenFile file, long pageOffset) {
+        CompletableFuture<Void> existing = file.loading.get(pageOffset);
+        if (existing != null)
+            return existing;
+        long remoteSize = file.remoteSize;
+        CompletableFuture<Void> loading = new CompletableFuture<>();
+        file.loading.put(pageOffset, loading);
+        loader.submit(() -> {
+            try {
+                byte[] data = fetch(file.path, pageOffset, remoteSize);
+                synchronized (this) {
+                    file.loading.remove(pageOffset);
+                    if (files.get(file.path) == file && ! file.pages.containsKey(pageOffset))
+                        evict(addPage(file, pageOffset, data));
+                }
+                loading.complete(null);
+            } catch (Throwable t) {
+                synchronized (this) {
+                    file.loading.remove(pageOffset);
+                }
+                loading.completeExceptionally(t);
+            }
+        });
+        return loading;
+    }
+
+    private byte[] fetch(String path, long offset, long remoteSize) {
+        if (offset >= remoteSize)
+            return new byte[0];
+        PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing: " + path));
+        if (offset >= stat.properties.size)
+            return new byte[0];
+        return read(stat, Chunk.MAX_SIZE, offset).orElseThrow(() -> new IllegalStateException("missing: " + path));
+    }
 
+    private void readAhead(String path, long offset, int read) {
+        if (readAheadChunks <= 0 || read <= 0)
+            return;
+        synchronized (this) {
+            OpenFile file = files.get(path);
+            if (file == null)
+                return;
+            boolean isSequential = offset == 0 || offset == file.nextReadOffset;
+            file.nextReadOffset = offset + read;
+            if (! isSequential)
+                return;
+            long lastPage = alignToChunkSize(offset + read - 1);
+            for (int i=1; i <= readAheadChunks; i++) {
+                long next = lastPage + (long) i * Chunk.MAX_SIZE;
+                if (next >= file.remoteSize)
+                    break;
+                if (! file.pages.containsKey(next))
+                    load(file, next);
             }
-            return func.apply(entry);
         }
+    }
 
-        public synchronized <A> Optional<A> applyIfPresent(Function<CacheEntry, A> func) {
-            if (entry != null) {
-                return Optional.of(func.apply(entry));
+    /** Cache a page. Must hold the lock.
+     */
+    private Page addPage(OpenFile file, long pageOffset, byte[] data) {
+        Page page = new Page(file, pageOffset);
+        System.arraycopy(data, 0, page.data, 0, data.length);
+        file.pages.put(pageOffset, page);
+        lru.put(page, page);
+        return page;
+    }
+
+    /** Evict the least recently used clean pages until the cache is within its size. Must hold the lock.
+     *
+     * @param keep a page which must not be evicted
+     * @return the files with dirty pages which need to be written back before they can be evicted
+     */
+    private Set<OpenFile> evict(Page keep) {
+        Set<OpenFile> toWriteBack = new LinkedHashSet<>();
+        int excess = lru.size() - chunkCacheSize;
+        Iterator<Page> leastRecent = lru.keySet().iterator();
+        while (excess > 0 && leastRecent.hasNext()) {
+            Page eldest = leastRecent.next();
+            if (eldest == keep)
+                continue;
+            if (eldest.isDirty() || eldest.writingBack > 0) {
+                toWriteBack.add(eldest.file);
+                continue;
             }
-            return Optional.empty();
+            leastRecent.remove();
+            excess--;
+            OpenFile file = eldest.file;
+            file.pages.remove(eldest.offset);
+            if ((keep == null || file != keep.file) && file.pages.isEmpty() && file.loading.isEmpty())
+                files.remove(file.path, file);
         }
+        return toWriteBack;
+    }
 
-        public synchronized void setEntry(CacheEntry entry) {
-            this.entry = entry;
+    private int sync(String path) {
+        OpenFile file;
+        synchronized (this) {
+            file = files.get(path);
         }
+        if (file == null)
+            return 0;
+        return sync(file);
+    }
 
-        public synchronized void sync() {
-            if (entry == null)
-                return;
-            if (DEBUG)
-                System.out.printf("sync(%s)\n", entry.path);
-            entry.sync();
+    private void syncAll() {
+        List<OpenFile> all;
+        synchronized (this) {
+            all = new ArrayList<>(files.values());
+        }
+        for (OpenFile file : all) {
+            try {
+                sync(file);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
         }
+    }
 
-        public synchronized void syncAndClear() {
-            if (entry == null)
-                return;
-            if (DEBUG)
-                System.out.printf("fsync(%s)\n", entry.path);
-            entry.sync();
-            entry = null;
+    /** Write back all the dirty pages of a file, in order, coalescing adjacent dirty pages. Must not hold the lock.
+     */
+    private int sync(OpenFile file) {
+        synchronized (file.writeBackLock) {
+            List<WriteBack> runs;
+            synchronized (this) {
+                runs = collectDirty(file);
+            }
+            for (int i=0; i < runs.size(); i++) {
+                int res;
+                try {
+                    res = upload(file, runs.get(i));
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                    res = -ErrorCodes.EIO();
+                }
+                synchronized (this) {
+                    if (res == 0)
+                        runs.get(i).written();
+                    else
+                        for (WriteBack failed : runs.subList(i, runs.size()))
+                            failed.failed();
+                }
+                if (res != 0)
+                    return res;
+            }
+            return 0;
         }
     }
 
-    private class CacheEntry {
-        private final String path;
-        private final byte[] data;
-        private final long offset;
-        private int maxDirtyPos;
+    /** Copy the dirty ranges of a file, coalescing adjacent dirty pages, and mark them as being written back. Must hold
+     * the lock.
+     */
+    private List<WriteBack> collectDirty(OpenFile file) {
+        List<WriteBack> runs = new ArrayList<>();
+        List<Page> run = new ArrayList<>();
+        long remoteSize = file.remoteSize;
+        for (Page page : file.pages.values()) {
+            if (! page.isDirty())
+                continue;
+            if (! run.isEmpty()) {
+                Page last = run.get(run.size() - 1);
+                boolean contiguous = last.offset + Chunk.MAX_SIZE == page.offset &&
+                        last.dirtyEnd == Chunk.MAX_SIZE && page.dirtyStart == 0;
+                if (! contiguous || run.size() == MAX_COALESCED_CHUNKS) {
+                    runs.add(new WriteBack(run, remoteSize));
+                    remoteSize = Math.max(remoteSize, runs.get(runs.size() - 1).end);
+                    run = new ArrayList<>();
+                }
+            }
+            run.add(page);
+        }
+        if (! run.isEmpty())
+            runs.add(new WriteBack(run, remoteSize));
+        return runs;
+    }
 
-        public CacheEntry(String path, long offset) {
-            this.path = path;
-            this.offset = offset;
-            this.data = new byte[Chunk.MAX_SIZE];
-            //read current data into data view
-            PeergosStat stat = getByPath(path).orElseThrow(() -> new IllegalStateException("missing" + path));
-            byte[] readData = CachingPeergosFS.this.read(stat, data.length, offset)
-                    .orElseThrow(() -> new IllegalStateException("missing: " + path));
-            this.maxDirtyPos = 0;
-            System.arraycopy(readData, 0, data, 0, readData.length);
+    private int upload(OpenFile file, WriteBack run) {
+        if (DEBUG)
+            System.out.printf("writeBack(%s, offset=%d, size=%d)\n", file.path, run.start, run.end - run.start);
+        Path p = Paths.get(file.path);
+        String parentPath = p.getParent().toString();
+        String name = p.getFileName().toString();
+        int res = applyIfPresent(parentPath, parent -> write(parent, name, run.data, run.end - run.start, run.start),
+                -ErrorCodes.ENOENT());
+        invalidate(file.path);
+        return res < 0 ? res : 0;
+    }
 
-        }
+    /** A contiguous range of a file being written back, copied from its pages
+     */
+    private static class WriteBack {
+        private final List<Page> pages;
+        private final int[] dirtyStarts, dirtyEnds;
+        private final long start, end;
+        private final byte[] data;
 
-        private void ensureInBounds(int offset, int length) {
-            if (offset + length > data.length)
-                throw new  IllegalStateException("cannot op with offset "+ offset +" and length "+ length +" with length "+ data.length);
+        /** Must hold the lock
+         *
+         * @param remoteSize the size of the stored file once every earlier range has been written back
+         */
+        public WriteBack(List<Page> run, long remoteSize) {
+            this.pages = run;
+            Page first = run.get(0), last = run.get(run.size() - 1);
+            this.end = last.offset + last.dirtyEnd;
+            // Never leave a gap after the end of the stored file, anything not cached there is zeros
+            this.start = Math.min(first.offset + first.dirtyStart, remoteSize);
+            this.data = new byte[(int) (end - start)];
+            this.dirtyStarts = new int[run.size()];
+            this.dirtyEnds = new int[run.size()];
+            for (int i=0; i < run.size(); i++) {
+                Page page = run.get(i);
+                long from = Math.max(start, page.offset);
+                int length = (int) (Math.min(end, page.offset + Chunk.MAX_SIZE) - from);
+                System.arraycopy(page.data, (int) (from - page.offset), data, (int) (from - start), length);
+                dirtyStarts[i] = page.dirtyStart;
+                dirtyEnds[i] = page.dirtyEnd;
+                page.clean();
+                page.writingBack++;
+            }
         }
 
-        public int read(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.put(pointerOffset, data, chunkOffset, length);
-            return length;
+        /** Must hold the lock
+         */
+        public void written() {
+            for (Page page : pages)
+                page.writingBack--;
+            OpenFile file = pages.get(0).file;
+            file.remoteSize = Math.max(file.remoteSize, end);
         }
 
-        public int write(Pointer pointer, int pointerOffset, int chunkOffset, int length) {
-            ensureInBounds(chunkOffset, length);
-            pointer.get(pointerOffset, data, chunkOffset, length);
-            maxDirtyPos = Math.max(maxDirtyPos, chunkOffset+length);
-            return length;
+        /** Keep the pages dirty so they are written back later. Must hold the lock.
+         */
+        public void failed() {
+            for (int i=0; i < pages.size(); i++) {
+                Page page = pages.get(i);
+                page.writingBack--;
+                page.markDirty(dirtyStarts[i], dirtyEnds[i]);
+            }
         }
+    }
 
-        public void sync() {
-            Path p = Paths.get(path);
+    private int syncAndClear(String path) {
+        while (true) {
+            int res = sync(path);
+            if (res != 0)
+                return res;
+            synchronized (this) {
+                OpenFile file = files.get(path);
+                // pages may have been written to again since the write back
+                if (file == null || file.pages.values().stream().noneMatch(p -> p.isDirty() || p.writingBack > 0)) {
+                    clear(path);
+                    return 0;
+                }
+            }
+        }
+    }
 
-            String parentPath = p.getParent().toString();
-            String name = p.getFileName().toString();
+    /** Drop all cached pages of a file, without writing them back
+     */
+    private synchronized void clear(String path) {
+        OpenFile file = files.remove(path);
+        if (file == null)
+            return;
+        for (Page page : file.pages.values())
+            lru.remove(page);
+        file.pages.clear();
+    }
 
-            if (maxDirtyPos ==0)
-                return;
-            applyIfPresent(parentPath, (parent) -> CachingPeergosFS.this.write(parent, name, data, maxDirtyPos, offset), -ErrorCodes.ENOENT());
+    private static class OpenFile {
+        private final String path;
+        // serialises the write backs of this file, always acquired before the cache lock
+        private final Object writeBackLock = new Object();
+        private final TreeMap<Long, Page> pages = new TreeMap<>();
+        private final Map<Long, CompletableFuture<Void>> loading = new HashMap<>();
+        // the size of the file as stored, and including any cached writes
+        private long remoteSize, size;
+        private long nextReadOffset = -1;
+
+        public OpenFile(String path, long size) {
+            this.path = path;
+            this.remoteSize = size;
+            this.size = size;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+    private static class Page {
+        private final OpenFile file;
+        private final long offset;
+        private final byte[] data = new byte[Chunk.MAX_SIZE];
+        private int dirtyStart = Chunk.MAX_SIZE, dirtyEnd = 0;
+        // the number of write backs of this page in progress, it can't be evicted until they are complete
+        private int writingBack = 0;
 
-            CacheEntry that = (CacheEntry) o;
+        public Page(OpenFile file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
 
-            return Objects.equals(path, that.path);
+        public boolean isDirty() {
+            return dirtyStart < dirtyEnd;
+        }
 
+        public void markDirty(int start, int end) {
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyEnd = Math.max(dirtyEnd, end);
         }
 
-        @Override
-        public int hashCode() {
-            return path != null ? path.hashCode() : 0;
+        public void clean() {
+            dirtyStart = Chunk.MAX_SIZE;
+            dirtyEnd = 0;
         }
     }
 
     @Override
     public void close() throws Exception {
-
+        syncRunner.shutdown();
+        syncAll();
+        loader.shutdownNow();
         super.close();
     }
-}
\ No newline at end of file
+}
@@ -44,9 +44,13 @@ public class FuseProcess implements Runnable, AutoCloseable {
         boolean blocking = false;
         boolean debug = false;
         int transferBufferSize = 5*1024*1024;
+        // let the kernel cache attributes and entries for as long as we do
+        double cacheTimeout = peergosFS.getStatCacheMillis() / 1000.0;
         String[] fuseOpts = new String[]{"-o", "big_writes",
                 "-o", "fsname=Peergos",
-                "-o", "max_read="+transferBufferSize, "-o", "max_write="+transferBufferSize};
+                "-o", "max_read="+transferBufferSize, "-o", "max_write="+transferBufferSize,
+                "-o", "attr_timeout="+cacheTimeout, "-o", "entry_timeout="+cacheTimeout,
+                "-o", "negative_timeout="+cacheTimeout};
         peergosFS.mount(mountPoint, blocking, debug, fuseOpts);
 
         new Thread(this, "Fuse process").start();
@@ -18,6 +18,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 /**
@@ -40,11 +41,48 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     }
 
 
+    private static class CachedStat {
+        public final Optional<PeergosStat> stat;
+        public final long expiry;
+
+        public CachedStat(Optional<PeergosStat> stat, long expiry) {
+            this.stat = stat;
+            this.expiry = expiry;
+        }
+    }
+
+    private static class CachedEntries {
+        public final List<String> names;
+        public final long expiry;
+
+        public CachedEntries(List<String> names, long expiry) {
+            this.names = names;
+            this.expiry = expiry;
+        }
+    }
+
+    protected static final long DEFAULT_STAT_CACHE_MILLIS = 1_000;
+    private static final int MAX_CACHED_STATS = 100_000;
+
     private final UserContext context;
     protected volatile boolean isClosed;
+    // Resolved paths, including missing ones, and directory listings, each valid for statCacheMillis or until we
+    // modify them. The kernel caches attributes and entries for the same time.
+    private final long statCacheMillis;
+    private final Map<String, CachedStat> statCache = new ConcurrentHashMap<>();
+    private final Map<String, CachedEntries> entriesCache = new ConcurrentHashMap<>();
 
     public PeergosFS(UserContext context) {
+        this(context, DEFAULT_STAT_CACHE_MILLIS);
+    }
+
+    public PeergosFS(UserContext context, long statCacheMillis) {
         this.context = context;
+        this.statCacheMillis = statCacheMillis;
+    }
+
+    public long getStatCacheMillis() {
+        return statCacheMillis;
     }
 
     @Override
@@ -130,7 +168,9 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.ENOENT();
 
         PeergosStat parent = parentOpt.get();
-        return mkdir(name, parent.treeNode).isPresent() ? 0 : -ErrorCodes.ENOENT();
+        boolean created = mkdir(name, parent.treeNode).isPresent();
+        invalidate(s);
+        return created ? 0 : -ErrorCodes.ENOENT();
     }
 
     @Override
@@ -147,6 +187,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
                 return -ErrorCodes.ENOENT();
 
             FileWrapper updatedParent = file.get().remove(parent.get(), context).get();
+            invalidate(s);
             return 0;
         } catch (Exception ioe) {
             LOG.log(Level.WARNING, ioe.getMessage(), ioe);
@@ -158,7 +199,9 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rmdir(String s) {
         ensureNotClosed();
         Path dir = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        int res = applyIfPresent(s, (stat) -> applyIfPresent(dir.getParent().toString(), parentStat -> rmdir(stat, parentStat)));
+        invalidateTree(s);
+        return res;
     }
 
     @Override
@@ -183,8 +226,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
                 Optional<FileWrapper> renamedOriginal = context.getByPath(renamedInPlacePath.toString()).get();
                 if (! renamedOriginal.isPresent())
                     return -ErrorCodes.ENOENT();
-                renamedOriginal.get().copyTo(newParent.get(), context).get();
-                FileWrapper updatedParent2 = renamedOriginal.get().remove(parent, context).get();
+                renamedOriginal.get().moveTo(newParent.get(), updatedParent, context).get();
             }
             return 0;
         } catch (Exception ioe) {
@@ -196,7 +238,10 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     public int rename(String s, String s1) {
         ensureNotClosed();
         Path source = Paths.get(s);
-        return applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        int res = applyIfPresent(s, (stat) -> applyIfPresent(source.getParent().toString(), parentStat -> rename(stat, parentStat, s, s1)));
+        invalidateTree(s);
+        invalidateTree(s1);
+        return res;
     }
 
     @Override
@@ -242,7 +287,9 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
         String name = path.getFileName().toString();
-        return applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        int res = applyIfPresent(parentPath, (parent) -> write(parent, name, pointer, size, offset), -ErrorCodes.ENOENT());
+        invalidate(s);
+        return res;
     }
 
     @Override
@@ -298,7 +345,12 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     @Override
     public int readdir(String s, Pointer pointer, FuseFillDir fuseFillDir, @off_t long l, FuseFileInfo fuseFileInfo) {
         ensureNotClosed();
-        return applyIfPresent(s, (stat) ->readdir(stat, fuseFillDir, pointer));
+        CachedEntries cached = entriesCache.get(s);
+        if (cached != null && cached.expiry > System.currentTimeMillis()) {
+            cached.names.forEach(name -> fuseFillDir.apply(pointer, name, null, 0));
+            return 0;
+        }
+        return applyIfPresent(s, (stat) -> readdir(s, stat, fuseFillDir, pointer));
     }
 
     @Override
@@ -339,8 +391,10 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         String name = path.getFileName().toString();
         byte[] emptyData = new byte[0];
 
-        return applyIfPresent(parentPath,
+        int res = applyIfPresent(parentPath,
                 (stat) -> write(stat,  name, emptyData, 0, 0));
+        invalidate(s);
+        return res;
     }
 
     @Override
@@ -348,7 +402,9 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         ensureNotClosed();
         Path path = Paths.get(s);
         String parentPath = path.getParent().toString();
-        return applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        int res = applyIfBothPresent(parentPath, s, (parent, file) -> truncate(parent, file, l));
+        invalidate(s);
+        return res;
     }
 
     @Override
@@ -392,6 +448,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
 
             try {
                 boolean isUpdated = stat.treeNode.setProperties(updated, context.crypto.hasher, context.network, Optional.of(parentOpt.get().treeNode)).get();
+                invalidate(s);
                 return isUpdated ? 0 : -ErrorCodes.ENOENT();
             } catch (Exception ex) {
                 LOG.log(Level.WARNING, ex.getMessage(), ex);
@@ -444,6 +501,17 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
     }
 
     protected Optional<PeergosStat> getByPath(String path) {
+        if (statCacheMillis > 0) {
+            CachedStat cached = statCache.get(path);
+            if (cached != null && cached.expiry > System.currentTimeMillis())
+                return cached.stat;
+        }
+        Optional<PeergosStat> res = lookup(path);
+        cache(path, res);
+        return res;
+    }
+
+    private Optional<PeergosStat> lookup(String path) {
         try {
             Optional<FileWrapper> opt = context.getByPath(path).get();
             ;
@@ -458,6 +526,39 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         }
     }
 
+    private void cache(String path, Optional<PeergosStat> stat) {
+        if (statCacheMillis <= 0)
+            return;
+        if (statCache.size() >= MAX_CACHED_STATS) {
+            long now = System.currentTimeMillis();
+            statCache.values().removeIf(c -> c.expiry <= now);
+            if (statCache.size() >= MAX_CACHED_STATS)
+                statCache.clear();
+        }
+        statCache.put(path, new CachedStat(stat, System.currentTimeMillis() + statCacheMillis));
+    }
+
+    /** Drop anything cached about a path and its parent directory, after we've modified it
+     */
+    protected void invalidate(String path) {
+        statCache.remove(path);
+        entriesCache.remove(path);
+        Path parent = Paths.get(path).getParent();
+        if (parent != null) {
+            statCache.remove(parent.toString());
+            entriesCache.remove(parent.toString());
+        }
+    }
+
+    /** Drop anything cached about a path, its parent directory and everything under it
+     */
+    protected void invalidateTree(String path) {
+        invalidate(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        statCache.keySet().removeIf(p -> p.startsWith(prefix));
+        entriesCache.keySet().removeIf(p -> p.startsWith(prefix));
+    }
+
     private Optional<PeergosStat> getParentByPath(String  path) {
         String parentPath = Paths.get(path).getParent().toString();
         return getByPath(parentPath);
@@ -496,12 +597,22 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         }
     }
 
-    private int readdir(PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
+    private int readdir(String path, PeergosStat stat, FuseFillDir fuseFillDir, Pointer pointer) {
         try {
             Set<FileWrapper> children = stat.treeNode.getChildren(context.crypto.hasher, context.network).get();
-            children.stream()
-                    .map(e -> e.getFileProperties().name)
-                    .forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
+            List<String> names = new ArrayList<>();
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (FileWrapper child : children) {
+                FileProperties props = child.getFileProperties();
+                names.add(props.name);
+                // listings are usually followed by a getattr of each child
+                cache(prefix + props.name, Optional.of(new PeergosStat(child, props)));
+            }
+            if (entriesCache.size() >= MAX_CACHED_STATS)
+                entriesCache.clear();
+            if (statCacheMillis > 0)
+                entriesCache.put(path, new CachedEntries(names, System.currentTimeMillis() + statCacheMillis));
+            names.forEach(e -> fuseFillDir.apply(pointer, e, null, 0));
             return 0;
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
@@ -513,7 +624,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
         long actualSize = stat.properties.size;
 
         if (offset > actualSize) {
-            Optional.empty();
+            return Optional.empty();
         }
 
         long size = Math.min(actualSize - offset, requestedSize);
@@ -547,9 +658,7 @@ public class PeergosFS extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.ENOENT();
 
         byte[] data = dataOpt.get();
-        for (int i = 0; i < data.length; i++) {
-            pointer.putByte(i, data[i]);
-        }
+        pointer.put(0, data, 0, data.length);
         return data.length;
     }
 
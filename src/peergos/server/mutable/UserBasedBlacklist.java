@@ -1,5 +1,6 @@
 package peergos.server.mutable;
 import java.util.logging.*;
+import peergos.server.corenode.*;
 import peergos.server.util.Logging;
 
 import peergos.shared.corenode.*;
@@ -14,19 +15,34 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
 
+/** Ban all the keys owned by the users listed in a file.
+ *
+ *  We keep the owned keys of each banned user, and only recompute them for users who are added to the file, or whose
+ *  keys change (as signalled by mutable pointer and corenode events). Users whose keys couldn't be retrieved are
+ *  retried every minute, and, as mutable pointer events only cover pointers stored on this server, every user is
+ *  recomputed hourly. The banned set is rebuilt on a single thread and swapped in atomically, so there is never a
+ *  window where nothing is banned.
+ */
 public class UserBasedBlacklist implements PublicKeyBlackList {
 	private static final Logger LOG = Logging.LOG();
 
+    private static final long RETRY_PERIOD_MS = 60_000;
     private static final long RELOAD_PERIOD_MS = 3_600_000;
 
-    private Map<PublicKeyHash, Boolean> banned = new ConcurrentHashMap<>();
+    private volatile Set<PublicKeyHash> banned = Collections.emptySet();
+    private final Set<String> listed = new HashSet<>();
+    private final Map<String, Set<PublicKeyHash>> ownedKeys = new HashMap<>();
+    private final Map<PublicKeyHash, String> identities = new ConcurrentHashMap<>();
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final Path source;
-    private final ForkJoinPool pool = new ForkJoinPool(1);
-    private long lastModified, lastReloaded;
+    private final ScheduledExecutorService updater = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Blacklist updater");
+        t.setDaemon(true);
+        return t;
+    });
 
     public UserBasedBlacklist(Path source,
                               CoreNode core,
@@ -38,61 +54,140 @@ public class UserBasedBlacklist implements PublicKeyBlackList {
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
-        pool.submit(() -> {
+        updater.submit(this::updateBlackList);
+        updater.scheduleAtFixedRate(this::updateBlackList, RETRY_PERIOD_MS, RETRY_PERIOD_MS, TimeUnit.MILLISECONDS);
+        updater.scheduleAtFixedRate(this::reloadBlackList, RELOAD_PERIOD_MS, RELOAD_PERIOD_MS, TimeUnit.MILLISECONDS);
+        Thread watcher = new Thread(this::watchFile, "Blacklist file watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watchFile() {
+        Path dir = source.toAbsolutePath().getParent();
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
             while (true) {
-                try {
-                    updateBlackList();
-                } catch (Throwable t) {
-                    LOG.log(Level.WARNING, t.getMessage(), t);
+                WatchKey key = watchService.take();
+                boolean changed = key.pollEvents().stream()
+                        .anyMatch(e -> e.kind() == StandardWatchEventKinds.OVERFLOW ||
+                                source.getFileName().equals(e.context()));
+                if (changed)
+                    updater.submit(this::updateBlackList);
+                if (! key.reset()) {
+                    LOG.warning("Blacklist directory is no longer accessible: " + dir);
+                    return;
                 }
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {}
             }
-        });
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't watch blacklist file: " + e.getMessage(), e);
+        }
     }
 
+    /** Called when the file changes, and periodically, only computes the keys of newly listed users, or of users whose
+     *  keys couldn't be retrieved before.
+     */
     private void updateBlackList() {
-        if (! source.toFile().exists())
-            return;
-        long modified = source.toFile().lastModified();
-        long now = System.currentTimeMillis();
-        if (modified != lastModified || (now - lastReloaded > RELOAD_PERIOD_MS)) {
-            LOG.info("Updating blacklist...");
-            lastModified = modified;
-            lastReloaded = now;
+        try {
             Set<String> usernames = readUsernamesFromFile();
-            Set<PublicKeyHash> updated = buildBlackList(usernames);
-            banned.clear();
-            for (PublicKeyHash hash : updated) {
-                banned.put(hash, true);
+            listed.clear();
+            listed.addAll(usernames);
+            boolean changed = ownedKeys.keySet().retainAll(usernames);
+            identities.values().retainAll(usernames);
+            for (String username : usernames) {
+                if (ownedKeys.containsKey(username))
+                    continue;
+                changed |= tryUpdateUser(username);
             }
+            if (changed) {
+                LOG.info("Updating blacklist...");
+                swapBanned();
+            }
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
         }
     }
 
-    private Set<String> readUsernamesFromFile() {
+    /** Recompute the keys of every listed user, to catch changes to keys stored on other servers.
+     */
+    private void reloadBlackList() {
         try {
-            if (! source.toFile().exists())
-                return Collections.emptySet();
-            return Files.lines(source)
-                    .map(String::trim)
-                    .collect(Collectors.toSet());
-        } catch (IOException e) {
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            return Collections.emptySet();
+            updateBlackList();
+            boolean changed = false;
+            for (String username : listed)
+                changed |= tryUpdateUser(username);
+            if (changed)
+                swapBanned();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    /** If the keys can't be retrieved, any previously retrieved keys stay banned.
+     */
+    private boolean tryUpdateUser(String username) {
+        try {
+            updateUser(username);
+            return true;
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Couldn't retrieve owned keys of blacklisted user " + username, t);
+            return false;
+        }
+    }
+
+    private void updateUser(String username) {
+        Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
+        identity.ifPresent(id -> identities.put(id, username));
+        ownedKeys.put(username, WriterData.getOwnedKeysRecursive(username, core, mutable, dht, hasher).join());
+    }
+
+    private void swapBanned() {
+        banned = ownedKeys.values().stream()
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet());
+    }
+
+    private void updateListedUser(String username) {
+        try {
+            if (! listed.contains(username))
+                return;
+            updateUser(username);
+            swapBanned();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
         }
     }
 
-    private Set<PublicKeyHash> buildBlackList(Set<String> usernames) {
-        Set<PublicKeyHash> res = new HashSet<>();
-        for (String username : usernames) {
-            res.addAll(WriterData.getOwnedKeysRecursive(username, core, mutable, dht, hasher).join());
+    /** A banned user's owned keys may have changed
+     */
+    public void accept(MutableEvent event) {
+        String username = identities.get(event.owner);
+        if (username != null)
+            updater.submit(() -> updateListedUser(username));
+    }
+
+    /** A banned user may have a new identity
+     */
+    public void accept(CorenodeEvent event) {
+        updater.submit(() -> updateListedUser(event.username));
+    }
+
+    private Set<String> readUsernamesFromFile() {
+        if (! source.toFile().exists())
+            return Collections.emptySet();
+        try (Stream<String> lines = Files.lines(source)) {
+            return lines.map(String::trim)
+                    .filter(s -> ! s.isEmpty())
+                    .collect(Collectors.toSet());
+        } catch (IOException e) {
+            // keep the current blacklist rather than unbanning everyone
+            throw new UncheckedIOException(e);
         }
-        return res;
     }
 
     @Override
     public boolean isAllowed(PublicKeyHash keyHash) {
-        return ! banned.containsKey(keyHash);
+        return ! banned.contains(keyHash);
     }
 }
@@ -10,7 +10,9 @@ import peergos.shared.io.ipfs.api.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.logging.*;
 import java.util.zip.*;
 
@@ -20,6 +22,9 @@ public class CoreNodeHandler implements HttpHandler
 
     private final CoreNode coreNode;
     private final boolean isPublicServer;
+    // The gzipped list of all usernames, and how many there were. Usernames are never removed, so the count tells us
+    // when to rebuild it
+    private volatile Pair<Integer, byte[]> allUsernamesGzip = new Pair<>(-1, new byte[0]);
 
     public CoreNodeHandler(CoreNode coreNode, boolean isPublicServer) {
         this.coreNode = coreNode;
@@ -68,7 +73,12 @@ public class CoreNodeHandler implements HttpHandler
                     AggregatedMetrics.GET_ALL_USERNAMES.inc();
                     exchange.getResponseHeaders().set("Content-Encoding", "gzip");
                     exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    getAllUsernamesGzip(subComponents.length > 1 ? subComponents[1] : "", din, dout);
+                    // the prefix and query parameters are url encoded, so decode them after splitting
+                    String[] rawComponents = exchange.getRequestURI().getRawPath()
+                            .substring(Constants.CORE_URL.length()).split("/");
+                    String prefix = rawComponents.length > 1 ? URLDecoder.decode(rawComponents[1], "UTF-8") : "";
+                    Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getRawQuery());
+                    getAllUsernamesGzip(prefix, params, dout);
                     break;
                 default:
                     throw new IOException("Unknown pkinode method!");
@@ -130,15 +140,41 @@ public class CoreNodeHandler implements HttpHandler
         Serialize.serialize(k, dout);
     }
 
-    void getAllUsernamesGzip(String prefix, DataInputStream din, DataOutputStream dout) throws Exception
+    void getAllUsernamesGzip(String prefix, Map<String, List<String>> params, DataOutputStream dout) throws Exception
     {
+        Function<String, String> last = name -> {
+            try {
+                return URLDecoder.decode(params.get(name).get(params.get(name).size() - 1), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        if (params.containsKey("limit")) {
+            int limit = Integer.parseInt(last.apply("limit"));
+            Optional<String> after = params.containsKey("after") ? Optional.of(last.apply("after")) : Optional.empty();
+            dout.write(gzipJson(coreNode.getUsernames(prefix, limit, after).get()));
+            return;
+        }
         List<String> res = coreNode.getUsernames(prefix).get();
+        if (! prefix.isEmpty()) {
+            dout.write(gzipJson(res));
+            return;
+        }
+        Pair<Integer, byte[]> cached = allUsernamesGzip;
+        if (cached.left != res.size()) {
+            cached = new Pair<>(res.size(), gzipJson(res));
+            allUsernamesGzip = cached;
+        }
+        dout.write(cached.right);
+    }
+
+    private static byte[] gzipJson(List<String> usernames) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         GZIPOutputStream gout = new GZIPOutputStream(bout);
-        gout.write(JSONParser.toString(res).getBytes());
+        gout.write(JSONParser.toString(usernames).getBytes());
         gout.flush();
         gout.close();
-        dout.write(bout.toByteArray());
+        return bout.toByteArray();
     }
 
     public void close() throws IOException{
@@ -2,6 +2,7 @@ package peergos.server.net;
 import java.util.logging.*;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -189,6 +190,15 @@ public class DHTHandler implements HttpHandler {
                 case BLOCK_GET:{
                     AggregatedMetrics.DHT_BLOCK_GET.inc();
                     Multihash hash = Cid.decode(args.get(0));
+                    // stream the block where possible, rather than buffering the whole block
+                    if (dht instanceof BlockStreamer) {
+                        Optional<BlockStreamer.BlockStream> block = ((BlockStreamer) dht).streamRaw(hash);
+                        if (block.isPresent())
+                            replyStream(httpExchange, block.get(), hash);
+                        else
+                            replyBytes(httpExchange, new byte[0], Optional.empty());
+                        break;
+                    }
                     (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
                             dht.getRaw(hash) :
                             dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
@@ -271,6 +281,23 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    /** Errors are only logged, as the status has already been sent. The exchange is then closed with the body
+     *  incomplete.
+     */
+    private static void replyStream(HttpExchange exchange, BlockStreamer.BlockStream block, Multihash key) {
+        try (BlockStreamer.BlockStream in = block) {
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
+            exchange.getResponseHeaders().set("ETag", "\"" + key.toString() + "\"");
+            // a length of 0 means a chunked response
+            exchange.sendResponseHeaders(200, in.size >= 0 ? in.size : 0);
+            OutputStream out = exchange.getResponseBody();
+            in.writeTo(out);
+            out.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error streaming block " + key + ": " + e.getMessage(), e);
+        }
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
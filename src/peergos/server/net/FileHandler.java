@@ -2,6 +2,7 @@ package peergos.server.net;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.*;
 
 public class FileHandler extends StaticHandler
 {
@@ -15,7 +16,16 @@ public class FileHandler extends StaticHandler
     public Asset getAsset(String resourcePath) throws IOException {
         String stem = resourcePath.startsWith("/")  ?  resourcePath.substring(1) : resourcePath;
         Path fullPath = root.resolve(stem);
-        byte[] bytes = readResource(new FileInputStream(fullPath.toFile()), isGzip());
-        return new Asset(bytes);
+        byte[] bytes = readResource(new FileInputStream(fullPath.toFile()), false);
+        return buildAsset(bytes, readVariant(fullPath, ".gz"), readVariant(fullPath, ".br"));
+    }
+
+    /** Read a pre-compressed variant of an asset, if one was produced by the build
+     */
+    private static Optional<byte[]> readVariant(Path asset, String suffix) throws IOException {
+        File variant = asset.resolveSibling(asset.getFileName() + suffix).toFile();
+        if (! variant.exists())
+            return Optional.empty();
+        return Optional.of(readResource(new FileInputStream(variant), false));
     }
 }
@@ -2,6 +2,7 @@ package peergos.server.net;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.*;
 
 public class JarHandler extends StaticHandler {
     private final Path root;
@@ -15,7 +16,16 @@ public class JarHandler extends StaticHandler {
     public Asset getAsset(String resourcePath) throws IOException {
         String pathWithinJar = "/" + root.resolve(resourcePath).toString()
                 .replaceAll("\\\\", "/"); // needed for Windows!
-        byte[] data = StaticHandler.readResource(JarHandler.class.getResourceAsStream(pathWithinJar), isGzip());
-        return new Asset(data);
+        byte[] data = StaticHandler.readResource(JarHandler.class.getResourceAsStream(pathWithinJar), false);
+        return buildAsset(data, readVariant(pathWithinJar + ".gz"), readVariant(pathWithinJar + ".br"));
+    }
+
+    /** Read a pre-compressed variant of an asset, if one was produced by the build
+     */
+    private static Optional<byte[]> readVariant(String pathWithinJar) throws IOException {
+        InputStream in = JarHandler.class.getResourceAsStream(pathWithinJar);
+        if (in == null)
+            return Optional.empty();
+        return Optional.of(StaticHandler.readResource(in, false));
     }
 }
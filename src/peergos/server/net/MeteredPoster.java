@@ -0,0 +1,78 @@
+package peergos.server.net;
+
+import peergos.server.*;
+import peergos.server.util.*;
+import peergos.shared.user.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** An HTTP client for calls to the ipfs daemon, and through it to other Peergos servers, which records the latency of
+ *  each call, and sends the trace id of the request being handled, if any.
+ */
+public class MeteredPoster extends JavaPoster {
+
+    private final String name;
+    private final boolean isPublicServer;
+
+    public MeteredPoster(String name, URL target, boolean isPublicServer) {
+        super(target, isPublicServer);
+        this.name = name;
+        this.isPublicServer = isPublicServer;
+    }
+
+    /**
+     *
+     * @return the api of a call, e.g. api/v0/block or peergos/v0/dht, without node ids or arguments
+     */
+    static String api(String url) {
+        String path = url.split("\\?")[0];
+        int proxied = path.indexOf("/http/");
+        if (proxied >= 0)
+            path = path.substring(proxied + "/http/".length());
+        String[] parts = path.split("/");
+        return String.join("/", Arrays.asList(parts).subList(0, Math.min(3, parts.length)));
+    }
+
+    private <V> CompletableFuture<V> time(String url, Supplier<CompletableFuture<V>> call) {
+        String api = api(url);
+        long start = System.currentTimeMillis();
+        CompletableFuture<V> res = call.get();
+        AggregatedMetrics.PROXY_CALL_DURATION.labels(name, api).observe(System.currentTimeMillis() - start);
+        if (res.isCompletedExceptionally())
+            AggregatedMetrics.PROXY_CALL_ERRORS.labels(name, api).inc();
+        return res;
+    }
+
+    @Override
+    protected Map<String, String> headers() {
+        return Trace.current()
+                .map(id -> Collections.singletonMap(Trace.HEADER, id))
+                .orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        return time(url, () -> super.post(url, payload, unzip));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        if (! isPublicServer)
+            return super.get(url); // this is a post, which is already timed
+        return time(url, () -> super.get(url));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        return time(url, () -> super.postMultipart(url, files));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        return time(url, () -> super.put(url, body, headers));
+    }
+}
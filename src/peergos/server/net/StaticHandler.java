@@ -2,16 +2,44 @@ package peergos.server.net;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import peergos.server.util.Logging;
 import peergos.shared.crypto.hash.Hash;
 import peergos.shared.util.ArrayOps;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.*;
 import java.util.zip.GZIPOutputStream;
 
 public abstract class StaticHandler implements HttpHandler
 {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("js", "text/javascript");
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("woff", "application/font-woff");
+    }
+
+    private static final Map<String, String> SECURITY_HEADERS = new LinkedHashMap<>();
+    static {
+        // Only allow assets to be loaded from the original host
+//        SECURITY_HEADERS.put("content-security-policy", "default-src https: 'self'");
+        // Don't anyone to load Peergos site in an iframe
+        SECURITY_HEADERS.put("x-frame-options", "sameorigin");
+        // Enable cross site scripting protection
+        SECURITY_HEADERS.put("x-xss-protection", "1; mode=block");
+        // Don't let browser sniff mime types
+        SECURITY_HEADERS.put("x-content-type-options", "nosniff");
+        // Don't send Peergos referrer to anyone
+        SECURITY_HEADERS.put("referrer-policy", "no-referrer");
+    }
+
     private final boolean isGzip;
 
     public StaticHandler(boolean isGzip) {
@@ -20,21 +48,99 @@ public abstract class StaticHandler implements HttpHandler
 
     public abstract Asset getAsset(String resourcePath) throws IOException;
 
+    /** An asset with any pre-compressed variants of it. The data itself is never compressed.
+     */
     public static class Asset {
         public final byte[] data;
+        public final Optional<byte[]> gzip, brotli;
         public final String hash;
 
-        public Asset(byte[] data) {
+        public Asset(byte[] data, Optional<byte[]> gzip, Optional<byte[]> brotli) {
             this.data = data;
+            this.gzip = gzip;
+            this.brotli = brotli;
             byte[] digest = Hash.sha256(data);
             this.hash = ArrayOps.bytesToHex(Arrays.copyOfRange(digest, 0, 8));
         }
+
+        public Asset(byte[] data) {
+            this(data, Optional.empty(), Optional.empty());
+        }
     }
 
     protected boolean isGzip() {
         return isGzip;
     }
 
+    /** Build an asset, using any supplied pre-compressed variants (e.g. .gz and .br files produced at build time), and
+     *  computing the gzip variant ourselves if we need one.
+     */
+    protected Asset buildAsset(byte[] data, Optional<byte[]> gzip, Optional<byte[]> brotli) throws IOException {
+        if (isGzip && gzip.isEmpty())
+            gzip = Optional.of(gzip(data));
+        return new Asset(data, isGzip ? gzip : Optional.empty(), brotli);
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String accepted : acceptEncoding.split(",")) {
+            String[] parts = accepted.trim().split(";");
+            if (! parts[0].trim().equals(encoding))
+                continue;
+            return quality(parts) > 0;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return the q-value of an Accept-Encoding entry, which defaults to 1, treating a malformed one as 0
+     */
+    private static double quality(String[] entryParts) {
+        for (int i = 1; i < entryParts.length; i++) {
+            String param = entryParts[i].replaceAll(" ", "");
+            if (! param.startsWith("q="))
+                continue;
+            try {
+                double q = Double.parseDouble(param.substring(2));
+                return Double.isNaN(q) ? 0 : q;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     *
+     * @return the start and end (inclusive) of a single satisfiable byte range, or Optional.empty() to send the whole
+     * asset, or null if the range is not satisfiable
+     */
+    private static Optional<long[]> parseRange(String range, long length) {
+        if (range == null || ! range.startsWith("bytes=") || range.contains(","))
+            return Optional.empty();
+        String[] parts = range.substring(6).trim().split("-", -1);
+        if (parts.length != 2)
+            return Optional.empty();
+        try {
+            long start, end;
+            if (parts[0].isEmpty()) {
+                long suffix = Long.parseLong(parts[1]);
+                if (suffix <= 0)
+                    return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(parts[0]);
+                end = parts[1].isEmpty() ? length - 1 : Math.min(Long.parseLong(parts[1]), length - 1);
+            }
+            if (start >= length || start > end)
+                return null;
+            return Optional.of(new long[]{start, end});
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
         String path = httpExchange.getRequestURI().getPath();
@@ -47,59 +153,86 @@ public abstract class StaticHandler implements HttpHandler
             boolean isRoot = path.equals("index.html");
             Asset res = getAsset(path);
 
-            if (isGzip)
+            String extension = path.substring(path.lastIndexOf(".") + 1);
+            String contentType = CONTENT_TYPES.get(extension);
+            if (contentType != null)
+                httpExchange.getResponseHeaders().set("Content-Type", contentType);
+            for (Map.Entry<String, String> header : SECURITY_HEADERS.entrySet())
+                httpExchange.getResponseHeaders().set(header.getKey(), header.getValue());
+
+            // Byte ranges are only served from the uncompressed asset
+            String rangeHeader = httpExchange.getRequestHeaders().getFirst("Range");
+            String ifRange = httpExchange.getRequestHeaders().getFirst("If-Range");
+            boolean isRange = rangeHeader != null && (ifRange == null || ifRange.equals("\"" + res.hash + "\""));
+            String acceptEncoding = Optional.ofNullable(httpExchange.getRequestHeaders().getFirst("Accept-Encoding"))
+                    .orElse("");
+            byte[] body = res.data;
+            String etag = "\"" + res.hash + "\"";
+            if (! isRange && res.brotli.isPresent() && accepts(acceptEncoding, "br")) {
+                body = res.brotli.get();
+                etag = "\"" + res.hash + "-br\"";
+                httpExchange.getResponseHeaders().set("Content-Encoding", "br");
+            } else if (! isRange && res.gzip.isPresent() && accepts(acceptEncoding, "gzip")) {
+                body = res.gzip.get();
+                etag = "\"" + res.hash + "-gzip\"";
                 httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
-            if (path.endsWith(".js"))
-                httpExchange.getResponseHeaders().set("Content-Type", "text/javascript");
-            else if (path.endsWith(".html"))
-                httpExchange.getResponseHeaders().set("Content-Type", "text/html");
-            else if (path.endsWith(".css"))
-                httpExchange.getResponseHeaders().set("Content-Type", "text/css");
-            else if (path.endsWith(".json"))
-                httpExchange.getResponseHeaders().set("Content-Type", "application/json");
-            else if (path.endsWith(".png"))
-                httpExchange.getResponseHeaders().set("Content-Type", "image/png");
-            else if (path.endsWith(".woff"))
-                httpExchange.getResponseHeaders().set("Content-Type", "application/font-woff");
-	    
-            if (httpExchange.getRequestMethod().equals("HEAD")) {
-                httpExchange.getResponseHeaders().set("Content-Length", "" + res.data.length);
-                httpExchange.sendResponseHeaders(200, -1);
-                return;
             }
-            if (! isRoot) {
+            httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            httpExchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            httpExchange.getResponseHeaders().set("ETag", etag);
+            String version = httpExchange.getRequestURI().getQuery();
+            if (isRoot)
+                // always revalidate the root, so clients pick up new versions of the other assets
+                httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            else if (version != null && version.equals("v=" + res.hash))
+                // a fingerprinted url always refers to the same content
+                httpExchange.getResponseHeaders().set("Cache-Control", "public, max-age=31536000, immutable");
+            else
                 httpExchange.getResponseHeaders().set("Cache-Control", "public, max-age=3600");
-                httpExchange.getResponseHeaders().set("ETag", res.hash);
+
+            String previousEtag = httpExchange.getRequestHeaders().getFirst("If-None-Match");
+            if (etag.equals(previousEtag)) {
+                httpExchange.sendResponseHeaders(304, -1); // NOT MODIFIED
+                return;
             }
 
-            // Only allow assets to be loaded from the original host
-//            httpExchange.getResponseHeaders().set("content-security-policy", "default-src https: 'self'");
-            // Don't anyone to load Peergos site in an iframe
-            httpExchange.getResponseHeaders().set("x-frame-options", "sameorigin");
-            // Enable cross site scripting protection
-            httpExchange.getResponseHeaders().set("x-xss-protection", "1; mode=block");
-            // Don't let browser sniff mime types
-            httpExchange.getResponseHeaders().set("x-content-type-options", "nosniff");
-            // Don't send Peergos referrer to anyone
-            httpExchange.getResponseHeaders().set("referrer-policy", "no-referrer");
-            if (! isRoot) {
-                String previousEtag = httpExchange.getRequestHeaders().getFirst("If-None-Match");
-                if (res.hash.equals(previousEtag)) {
-                    httpExchange.sendResponseHeaders(304, -1); // NOT MODIFIED
+            int status = 200;
+            int offset = 0, length = body.length;
+            if (isRange) {
+                Optional<long[]> range = parseRange(rangeHeader, body.length);
+                if (range == null) {
+                    httpExchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                    httpExchange.sendResponseHeaders(416, -1);
                     return;
                 }
+                if (range.isPresent()) {
+                    status = 206;
+                    offset = (int) range.get()[0];
+                    length = (int) (range.get()[1] - range.get()[0] + 1);
+                    httpExchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + range.get()[0] + "-" + range.get()[1] + "/" + body.length);
+                }
+            }
+
+            if (httpExchange.getRequestMethod().equals("HEAD")) {
+                httpExchange.getResponseHeaders().set("Content-Length", "" + length);
+                httpExchange.sendResponseHeaders(status, -1);
+                return;
             }
 
-            httpExchange.sendResponseHeaders(200, res.data.length);
-            httpExchange.getResponseBody().write(res.data);
+            httpExchange.sendResponseHeaders(status, length);
+            httpExchange.getResponseBody().write(body, offset, length);
             httpExchange.getResponseBody().close();
         } catch (Throwable t) {
-            System.err.println("404 FileNotFound: " + path);
+            LOG.warning("404 FileNotFound: " + path);
             httpExchange.sendResponseHeaders(404, 0);
             httpExchange.getResponseBody().close();
         }
     }
 
+    protected static byte[] gzip(byte[] data) throws IOException {
+        return readResource(new ByteArrayInputStream(data), true);
+    }
 
     protected static byte[] readResource(InputStream in, boolean gzip) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -122,9 +255,18 @@ public abstract class StaticHandler implements HttpHandler
         return new StaticHandler(isGzip) {
             @Override
             public Asset getAsset(String resourcePath) throws IOException {
-                if (! cache.containsKey(resourcePath))
-                    cache.put(resourcePath, that.getAsset(resourcePath));
-                return cache.get(resourcePath);
+                // computeIfAbsent ensures each asset is only read and compressed once
+                try {
+                    return cache.computeIfAbsent(resourcePath, p -> {
+                        try {
+                            return that.getAsset(p);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
             }
         };
     }
@@ -0,0 +1,78 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.*;
+import peergos.server.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/** Runs a handler on its own bounded pool of threads, so that slow requests to one endpoint (e.g. blocks from S3 or a
+ *  proxied peer) can't starve the server's threads for other endpoints.
+ *
+ *  The server's threads only parse the request and queue it here. At most maxConcurrency requests are handled at once,
+ *  and when more than maxQueued are waiting, new requests are rejected with a 503, rather than tying up a connection
+ *  indefinitely.
+ *
+ *  Each request is given a trace id (or keeps the one it arrived with), which is returned in the response and sent on
+ *  any proxied calls made while handling it.
+ */
+public class ThrottledHandler implements HttpHandler {
+    private static final Logger LOG = Logging.LOG();
+    private static final long SLOW_REQUEST_MILLIS = 2_000;
+
+    private final String name;
+    private final HttpHandler target;
+    private final ThreadPoolExecutor pool;
+
+    public ThrottledHandler(String name, HttpHandler target, int maxConcurrency, int maxQueued) {
+        this.name = name;
+        this.target = target;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxQueued),
+                r -> {
+                    Thread t = new Thread(r, name + "-handler-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        long queued = System.currentTimeMillis();
+        try {
+            AggregatedMetrics.HTTP_QUEUED_REQUESTS.labels(name).inc();
+            pool.execute(() -> {
+                AggregatedMetrics.HTTP_QUEUED_REQUESTS.labels(name).dec();
+                long start = System.currentTimeMillis();
+                AggregatedMetrics.HTTP_QUEUE_TIME.labels(name).observe(start - queued);
+                String traceId = Trace.begin(Optional.ofNullable(httpExchange.getRequestHeaders().getFirst(Trace.HEADER)));
+                httpExchange.getResponseHeaders().set(Trace.HEADER, traceId);
+                try {
+                    target.handle(httpExchange);
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Trace " + traceId + ": " + t.getMessage(), t);
+                    httpExchange.close();
+                } finally {
+                    Trace.end();
+                    long duration = System.currentTimeMillis() - start;
+                    AggregatedMetrics.HTTP_REQUEST_DURATION.labels(name).observe(duration);
+                    if (duration > SLOW_REQUEST_MILLIS)
+                        LOG.info("Trace " + traceId + ": slow " + name + " request " +
+                                httpExchange.getRequestURI().getPath() + " took " + duration + " mS");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            AggregatedMetrics.HTTP_QUEUED_REQUESTS.labels(name).dec();
+            AggregatedMetrics.HTTP_REJECTED_REQUESTS.labels(name).inc();
+            LOG.warning("Rejecting " + name + " request, too many queued requests: " + pool.getQueue().size());
+            httpExchange.sendResponseHeaders(503, -1);
+            httpExchange.close();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package peergos.server.space;
 import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
+import peergos.server.*;
 import peergos.server.storage.admin.*;
 import peergos.server.util.*;
 
@@ -53,6 +54,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
             while (isRunning.get()) {
                 try {
                     MutableEvent event = mutableQueue.take();
+                    AggregatedMetrics.SPACE_CHECK_BACKLOG.set(mutableQueue.size());
                     processMutablePointerEvent(event);
                 } catch (InterruptedException e) {}
             }
@@ -183,6 +185,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
     public void accept(MutableEvent event) {
         mutableQueue.add(event);
+        AggregatedMetrics.SPACE_CHECK_BACKLOG.set(mutableQueue.size());
         try {
             HashCasPair hashCasPair = dht.getSigningKey(event.writer)
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
@@ -28,6 +28,15 @@ public interface SqlSupplier {
                 "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null);";
     }
 
+    default String createPkiMirrorTablesCommand() {
+        return "CREATE TABLE IF NOT EXISTS pkistate (id INTEGER PRIMARY KEY NOT NULL, state " + getByteArrayType() + " NOT NULL);" +
+                "CREATE TABLE IF NOT EXISTS pkichains (username VARCHAR(64) PRIMARY KEY NOT NULL, " +
+                "chain " + getByteArrayType() + " NOT NULL);" +
+                "CREATE TABLE IF NOT EXISTS pkiowners (owner VARCHAR(128) NOT NULL, username VARCHAR(64) NOT NULL);" +
+                "CREATE INDEX IF NOT EXISTS pkiowners_owner ON pkiowners (owner);" +
+                "CREATE INDEX IF NOT EXISTS pkiowners_username ON pkiowners (username);";
+    }
+
     String insertOrIgnoreCommand(String prefix, String suffix);
 
     default String createUsageTablesCommand() {
@@ -0,0 +1,77 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** A block store which can stream the contents of a block, rather than buffering the whole block in memory.
+ */
+public interface BlockStreamer {
+
+    /**
+     *
+     * @param hash
+     * @return the contents of the block, or Optional.empty() if this store can't find it
+     * @throws IOException
+     */
+    Optional<BlockStream> streamRaw(Multihash hash) throws IOException;
+
+    abstract class BlockStream implements Closeable {
+        /** The size in bytes, or -1 if unknown */
+        public final long size;
+
+        protected BlockStream(long size) {
+            this.size = size;
+        }
+
+        /** Write the full contents of the block to out, without buffering it all in memory.
+         *
+         * @param out
+         * @throws IOException
+         */
+        public abstract void writeTo(OutputStream out) throws IOException;
+
+        public static BlockStream ofFile(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            return new BlockStream(channel.size()) {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long written = 0;
+                    while (written < size) {
+                        long transferred = channel.transferTo(written, size - written, target);
+                        if (transferred <= 0)
+                            throw new EOFException("Block file truncated: " + file);
+                        written += transferred;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        public static BlockStream ofBytes(byte[] data) {
+            return ofStream(data.length, new ByteArrayInputStream(data));
+        }
+
+        public static BlockStream ofStream(long size, InputStream in) {
+            return new BlockStream(size) {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    in.transferTo(out);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+    }
+}
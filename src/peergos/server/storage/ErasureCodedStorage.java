@@ -0,0 +1,307 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.erasure.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A ContentAddressedStorage which spreads each block over several directories (e.g. one per disk) using a
+ *  Reed-Solomon erasure code. Any dataShards of the directories are sufficient to read every block, so this gives the
+ *  redundancy of replication at a fraction of the storage cost.
+ *
+ *  Each shard is stored prefixed with the length of the original block. Reads only need the data shards, unless some
+ *  are missing or unreadable, or the decoded block doesn't match its hash. In that case we fall back to a degraded read
+ *  using the parity shards, and rewrite any missing or corrupt shards.
+ */
+public class ErasureCodedStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private final List<Path> roots;
+    private final ReedSolomon codec;
+    private final TransactionStore transactions;
+
+    public ErasureCodedStorage(List<Path> roots, int dataShards, TransactionStore transactions) {
+        if (roots.size() <= dataShards)
+            throw new IllegalStateException("Erasure coding needs more directories than data shards!");
+        this.roots = roots;
+        this.codec = new ReedSolomon(dataShards, roots.size() - dataShards);
+        this.transactions = transactions;
+        for (Path root : roots) {
+            File rootDir = root.toFile();
+            if (! rootDir.exists() && ! rootDir.mkdirs())
+                throw new IllegalStateException("Unable to create directory " + root);
+            if (! rootDir.isDirectory())
+                throw new IllegalStateException("Block store path must be a directory! " + root);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("ErasureCodedStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return put(blocks, false, tid, owner);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressConsumer) {
+        return put(blocks, true, tid, owner);
+    }
+
+    private CompletableFuture<List<Multihash>> put(List<byte[]> blocks,
+                                                   boolean isRaw,
+                                                   TransactionId tid,
+                                                   PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(blocks.stream()
+                .map(b -> put(b, isRaw, tid, owner))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    private Path getShardPath(int shard, Multihash h) {
+        String name = h.toString();
+        // shard on the next to last two characters, the start of a cid has very little entropy
+        return roots.get(shard).resolve(name.substring(name.length() - 3, name.length() - 1)).resolve(name);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        return Futures.of(read(hash));
+    }
+
+    private Optional<byte[]> read(Multihash hash) {
+        List<Optional<Pair<Integer, byte[]>>> read = IntStream.range(0, codec.dataShards)
+                .mapToObj(i -> readShard(i, hash))
+                .collect(Collectors.toList());
+        if (read.stream().allMatch(Optional::isPresent)) {
+            Optional<byte[]> block = decode(hash, read, -1);
+            if (block.isPresent())
+                return block;
+        }
+        for (int i=codec.dataShards; i < codec.totalShards; i++)
+            read.add(readShard(i, hash));
+        if (read.stream().noneMatch(Optional::isPresent))
+            return Optional.empty();
+        LOG.warning("Degraded read of block " + hash);
+        byte[] block = reconstruct(hash, read);
+        int rewritten = rewrite(hash, block, read);
+        if (rewritten > 0)
+            LOG.info("Repaired " + rewritten + " shards of block " + hash);
+        return Optional.of(block);
+    }
+
+    /** Decode the block from every available shard. If the result doesn't match the hash, one of the shards is corrupt,
+     *  so retry without each shard in turn.
+     */
+    private byte[] reconstruct(Multihash hash, List<Optional<Pair<Integer, byte[]>>> read) {
+        Optional<byte[]> block = decode(hash, read, -1);
+        for (int exclude=0; ! block.isPresent() && exclude < codec.totalShards; exclude++)
+            if (read.get(exclude).isPresent())
+                block = decode(hash, read, exclude);
+        if (! block.isPresent()) {
+            long available = read.stream().filter(Optional::isPresent).count();
+            throw new IllegalStateException("Block " + hash + " is unrecoverable from " + available + " shards, "
+                    + codec.dataShards + " valid shards are required");
+        }
+        return block.get();
+    }
+
+    private Optional<byte[]> decode(Multihash hash, List<Optional<Pair<Integer, byte[]>>> read, int exclude) {
+        byte[][] shards = new byte[codec.totalShards][];
+        int length = -1;
+        int available = 0;
+        for (int i=0; i < read.size(); i++) {
+            if (i == exclude || ! read.get(i).isPresent())
+                continue;
+            Pair<Integer, byte[]> shard = read.get(i).get();
+            if (length >= 0 && length != shard.left) {
+                LOG.warning("Ignoring inconsistent shard " + i + " of " + hash);
+                continue;
+            }
+            length = shard.left;
+            shards[i] = shard.right;
+            available++;
+        }
+        if (available < codec.dataShards)
+            return Optional.empty();
+        byte[] block = codec.decode(shards, length);
+        if (! matches(hash, block))
+            return Optional.empty();
+        return Optional.of(block);
+    }
+
+    private static boolean matches(Multihash hash, byte[] block) {
+        if (hash.type != Multihash.Type.sha2_256)
+            return true;
+        return Arrays.equals(hash.getHash(), RAMStorage.hash(block));
+    }
+
+    private Optional<Pair<Integer, byte[]>> readShard(int shard, Multihash hash) {
+        File file = getShardPath(shard, hash).toFile();
+        if (! file.exists())
+            return Optional.empty();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int length = din.readInt();
+            if (length < 0 || file.length() != 4 + (long) codec.shardSize(length)) {
+                LOG.warning("Ignoring shard with corrupt length " + file);
+                return Optional.empty();
+            }
+            byte[] data = new byte[codec.shardSize(length)];
+            din.readFully(data);
+            return Optional.of(new Pair<>(length, data));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't read shard " + file, e);
+            return Optional.empty();
+        }
+    }
+
+    private void writeShard(int shard, Multihash hash, int length, byte[] data) throws IOException {
+        Path target = getShardPath(shard, hash);
+        File parentDir = target.getParent().toFile();
+        if (! parentDir.exists() && ! parentDir.mkdirs())
+            throw new IllegalStateException("Couldn't create directory: " + parentDir);
+        Path tmp = Files.createTempFile(target.getParent(), "tmp", "");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            dout.writeInt(length);
+            dout.write(data);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
+        transactions.addBlock(cid, tid, owner);
+        byte[][] shards = codec.encode(data);
+        try {
+            for (int i=0; i < shards.length; i++)
+                writeShard(i, cid, data.length, shards[i]);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return cid;
+    }
+
+    /** Rewrite any missing or corrupt shards of a block, e.g. after replacing a disk
+     *
+     * @param hash
+     * @return whether any shards were rewritten
+     */
+    public boolean repair(Multihash hash) {
+        List<Optional<Pair<Integer, byte[]>>> read = IntStream.range(0, codec.totalShards)
+                .mapToObj(i -> readShard(i, hash))
+                .collect(Collectors.toList());
+        if (read.stream().noneMatch(Optional::isPresent))
+            return false;
+        return rewrite(hash, reconstruct(hash, read), read) > 0;
+    }
+
+    /**
+     *
+     * @return the number of shards which were missing or differed from the encoding of block, and were rewritten
+     */
+    private int rewrite(Multihash hash, byte[] block, List<Optional<Pair<Integer, byte[]>>> read) {
+        byte[][] shards = codec.encode(block);
+        int rewritten = 0;
+        try {
+            for (int i=0; i < shards.length; i++) {
+                Optional<Pair<Integer, byte[]>> existing = read.get(i);
+                if (existing.isPresent() && existing.get().left == block.length
+                        && Arrays.equals(existing.get().right, shards[i]))
+                    continue;
+                writeShard(i, hash, block.length, shards[i]);
+                rewritten++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return rewritten;
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        for (int i=0; i < codec.totalShards; i++) {
+            File file = getShardPath(i, h).toFile();
+            if (! file.exists())
+                continue;
+            try (DataInputStream din = new DataInputStream(new FileInputStream(file))) {
+                return Futures.of(Optional.of(din.readInt()));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't read shard " + file, e);
+            }
+        }
+        return Futures.of(Optional.empty());
+    }
+
+    public boolean contains(Multihash h) {
+        return IntStream.range(0, codec.totalShards)
+                .filter(i -> getShardPath(i, h).toFile().exists())
+                .count() >= codec.dataShards;
+    }
+
+    @Override
+    public String toString() {
+        return "ErasureCodedStorage " + codec.dataShards + " of " + roots;
+    }
+}
@@ -0,0 +1,163 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A size bounded, disk backed BlockCache with least recently used eviction.
+ *
+ *  The recency of each block is persisted as its file modification time, so the eviction order survives restarts.
+ */
+public class FileBlockCache implements BlockCache {
+    private static final Logger LOG = Logging.LOG();
+    // Blocks are written to a temporary file with this prefix and then moved into place
+    private static final String TMP_PREFIX = "peergos-block-tmp";
+
+    private final Path root;
+    private final long maxSizeBytes;
+    private final LinkedHashMap<Multihash, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize = 0;
+
+    public FileBlockCache(Path root, long maxSizeBytes) {
+        this.root = root;
+        this.maxSizeBytes = maxSizeBytes;
+        File rootDir = root.toFile();
+        if (! rootDir.exists() && ! rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (! rootDir.isDirectory())
+            throw new IllegalStateException("Block cache path must be a directory! " + root);
+        loadIndex();
+    }
+
+    private void loadIndex() {
+        List<File> files = new ArrayList<>();
+        File[] shards = root.toFile().listFiles(File::isDirectory);
+        if (shards != null)
+            for (File shard : shards) {
+                File[] blocks = shard.listFiles(File::isFile);
+                if (blocks != null)
+                    files.addAll(Arrays.asList(blocks));
+            }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().startsWith(TMP_PREFIX)) {
+                // a partial write
+                if (! file.delete())
+                    LOG.warning("Could not delete " + file);
+                continue;
+            }
+            Optional<Multihash> hash = parseBlockName(file);
+            if (! hash.isPresent()) {
+                // the directory may be shared with other files, so leave anything that isn't ours alone
+                LOG.fine("Ignoring file in block cache which isn't a block: " + file);
+                continue;
+            }
+            sizes.put(hash.get(), file.length());
+            totalSize += file.length();
+        }
+        evict();
+        LOG.info("Loaded block cache with " + sizes.size() + " blocks totalling " + totalSize + " bytes");
+    }
+
+    /**
+     *
+     * @param file
+     * @return the hash of the block in this file, if it is one we wrote
+     */
+    private Optional<Multihash> parseBlockName(File file) {
+        try {
+            Multihash hash = Cid.decode(file.getName());
+            if (! getFilePath(hash).toFile().equals(file))
+                return Optional.empty();
+            return Optional.of(hash);
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    private Path getFilePath(Multihash h) {
+        String name = h.toString();
+        // shard on the next to last two characters, the start of a cid has very little entropy
+        return root.resolve(name.substring(name.length() - 3, name.length() - 1)).resolve(name);
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<Multihash, Long>> lru = sizes.entrySet().iterator();
+        while (totalSize > maxSizeBytes && lru.hasNext()) {
+            Map.Entry<Multihash, Long> oldest = lru.next();
+            File file = getFilePath(oldest.getKey()).toFile();
+            if (file.exists() && ! file.delete())
+                LOG.warning("Could not delete " + file);
+            totalSize -= oldest.getValue();
+            lru.remove();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(Multihash hash, byte[] data) {
+        if (data.length > maxSizeBytes)
+            return Futures.of(false);
+        synchronized (this) {
+            if (sizes.containsKey(hash))
+                return Futures.of(true);
+        }
+        try {
+            Path target = getFilePath(hash);
+            File parentDir = target.getParent().toFile();
+            if (! parentDir.exists() && ! parentDir.mkdirs())
+                throw new IllegalStateException("Couldn't create directory: " + parentDir);
+            Path tmp = Files.createTempFile(target.getParent(), TMP_PREFIX, "");
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                if (! sizes.containsKey(hash)) {
+                    sizes.put(hash, (long) data.length);
+                    totalSize += data.length;
+                }
+            }
+            evict();
+            return Futures.of(true);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't cache block " + hash, e);
+            return Futures.of(false);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Multihash hash) {
+        synchronized (this) {
+            if (sizes.get(hash) == null) // this also marks the block as most recently used
+                return Futures.of(Optional.empty());
+        }
+        File file = getFilePath(hash).toFile();
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return Futures.of(Optional.of(data));
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = sizes.remove(hash);
+                if (size != null)
+                    totalSize -= size;
+            }
+            return Futures.of(Optional.empty());
+        }
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public String toString() {
+        return "FileBlockCache " + root;
+    }
+}
@@ -21,7 +21,7 @@ import java.util.stream.*;
 /** A local directory implementation of ContentAddressedStorage.
  *
  */
-public class FileContentAddressedStorage implements ContentAddressedStorage {
+public class FileContentAddressedStorage implements ContentAddressedStorage, BlockStreamer {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
@@ -151,6 +151,16 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
+    public Optional<BlockStream> streamRaw(Multihash hash) throws IOException {
+        if (hash.isIdentity())
+            return Optional.of(BlockStream.ofBytes(hash.getHash()));
+        Path file = root.resolve(getFilePath(hash));
+        if (! file.toFile().exists())
+            return Optional.empty();
+        return Optional.of(BlockStream.ofFile(file));
+    }
+
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
         try {
             Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
@@ -0,0 +1,154 @@
+package peergos.server.storage;
+
+import peergos.server.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Record the latency and failures of each operation on a layer of the storage stack.
+ *
+ *  Wrapping several layers (e.g. the p2p layer, the local store and the ipfs daemon underneath a cache) shows where the
+ *  time of a slow operation is spent.
+ *
+ *  Blocks are streamed from the given streamer, if any, which must return the same blocks as the target. Blocks the
+ *  streamer doesn't have (e.g. those only reachable through a proxy) are read from the target in full.
+ */
+public class MeteredStorage extends DelegatingStorage implements BlockStreamer {
+
+    private final String layer;
+    private final ContentAddressedStorage target;
+    private final Optional<BlockStreamer> streamer;
+
+    public MeteredStorage(String layer, ContentAddressedStorage target, Optional<BlockStreamer> streamer) {
+        super(target);
+        this.layer = layer;
+        this.target = target;
+        this.streamer = streamer;
+    }
+
+    public MeteredStorage(String layer, ContentAddressedStorage target) {
+        this(layer, target, target instanceof BlockStreamer ? Optional.of((BlockStreamer) target) : Optional.empty());
+    }
+
+    private <V> CompletableFuture<V> time(String op, Supplier<CompletableFuture<V>> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get().whenComplete((r, t) -> {
+                AggregatedMetrics.STORAGE_OP_DURATION.labels(layer, op).observe((System.nanoTime() - start) / 1_000_000.0);
+                if (t != null)
+                    AggregatedMetrics.STORAGE_OP_ERRORS.labels(layer, op).inc();
+            });
+        } catch (RuntimeException e) {
+            AggregatedMetrics.STORAGE_OP_ERRORS.labels(layer, op).inc();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return time("start-transaction", () -> target.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return time("close-transaction", () -> target.closeTransaction(owner, tid));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return time("put", () -> target.put(owner, writer, signedHashes, blocks, tid));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        return time("get", () -> target.get(hash));
+    }
+
+    @Override
+    public Optional<BlockStream> streamRaw(Multihash hash) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (streamer.isPresent()) {
+                Optional<BlockStream> local = streamer.get().streamRaw(hash);
+                if (local.isPresent())
+                    return local;
+            }
+            Optional<byte[]> block = (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
+                    target.getRaw(hash) :
+                    target.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray))).join();
+            return block.map(BlockStream::ofBytes);
+        } catch (IOException | RuntimeException e) {
+            AggregatedMetrics.STORAGE_OP_ERRORS.labels(layer, "stream-raw").inc();
+            throw e;
+        } finally {
+            AggregatedMetrics.STORAGE_OP_DURATION.labels(layer, "stream-raw").observe((System.nanoTime() - start) / 1_000_000.0);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressCounter) {
+        return time("put-raw", () -> target.putRaw(owner, writer, signatures, blocks, tid, progressCounter));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        return time("get-raw", () -> target.getRaw(hash));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return time("pin-update", () -> target.pinUpdate(owner, existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
+        return time("pin", () -> target.recursivePin(owner, hash));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash hash) {
+        return time("unpin", () -> target.recursiveUnpin(owner, hash));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        return time("links", () -> target.getLinks(root));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return time("size", () -> target.getSize(block));
+    }
+
+    @Override
+    public CompletableFuture<List<PresignedUrl>> authReads(List<Multihash> blocks) {
+        return time("auth-reads", () -> target.authReads(blocks));
+    }
+
+    @Override
+    public CompletableFuture<List<PresignedUrl>> authWrites(PublicKeyHash owner,
+                                                            PublicKeyHash writer,
+                                                            List<byte[]> signedHashes,
+                                                            List<Integer> blockSizes,
+                                                            boolean isRaw,
+                                                            TransactionId tid) {
+        return time("auth-writes", () -> target.authWrites(owner, writer, signedHashes, blockSizes, isRaw, tid));
+    }
+}
@@ -26,7 +26,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.*;
 
-public class S3BlockStorage implements ContentAddressedStorage {
+public class S3BlockStorage implements ContentAddressedStorage, BlockStreamer {
 
     private static final Logger LOG = Logger.getGlobal();
 
@@ -155,6 +155,19 @@ public class S3BlockStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
+    public Optional<BlockStream> streamRaw(Multihash hash) {
+        PresignedUrl getUrl = S3Request.preSignGet(folder + hashToKey(hash), Optional.of(600),
+                ZonedDateTime.now(), host, region, accessKeyId, secretKey);
+        try {
+            Pair<Long, InputStream> response = HttpUtil.getStream(getUrl);
+            return Optional.of(BlockStream.ofStream(response.left, response.right));
+        } catch (IOException e) {
+            // try the p2p network directly, as getRaw would request the block from S3 again
+            return p2pFallback.getRaw(hash).join().map(BlockStream::ofBytes);
+        }
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return Futures.of(Collections.singletonList(updated));
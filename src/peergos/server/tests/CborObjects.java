@@ -5,6 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 public class CborObjects {
@@ -106,8 +107,107 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    @Test
+    public void unicodeStrings() {
+        compatibleAndIdempotentSerialization(new CborObject.CborString(""));
+        compatibleAndIdempotentSerialization(new CborObject.CborString("caf\u00e9 \u4e2d\u6587 \uD83D\uDE00"));
+        // an unpaired surrogate is encoded as '?', like String.getBytes
+        CborObject.CborString unpaired = new CborObject.CborString("a\uD83Db");
+        Assert.assertTrue(Arrays.equals(unpaired.toByteArray(), streamEncode(unpaired)));
+    }
+
+    @Test
+    public void randomNestedObjects() {
+        for (int i=0; i < 200; i++)
+            compatibleAndIdempotentSerialization(randomCbor(3));
+    }
+
+    @Test
+    public void lazyMapWithUnsortedAndDuplicateKeys() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CborEncoder encoder = new CborEncoder(bout);
+        encoder.writeMapStart(4);
+        encoder.writeTextString("zz");
+        encoder.writeInt(1);
+        encoder.writeTextString("a");
+        encoder.writeInt(2);
+        encoder.writeTextString("zz");
+        encoder.writeInt(3);
+        encoder.writeTextString("b");
+        encoder.writeTextString("value");
+        byte[] raw = bout.toByteArray();
+
+        CborObject.CborMap parsed = (CborObject.CborMap) CborObject.fromByteArray(raw);
+        CborObject.CborMap streamed = (CborObject.CborMap) streamDecode(raw);
+        Assert.assertTrue(parsed.equals(streamed) && streamed.equals(parsed));
+        Assert.assertTrue(parsed.hashCode() == streamed.hashCode());
+        Assert.assertTrue(parsed.values.size() == 3);
+        Assert.assertTrue(parsed.getLong("zz") == 3);
+        Assert.assertTrue(parsed.getString("b").equals("value"));
+        Assert.assertTrue(parsed.get("missing") == null);
+        Assert.assertTrue(new ArrayList<>(parsed.values.keySet()).equals(new ArrayList<>(streamed.values.keySet())));
+        Assert.assertTrue(Arrays.equals(parsed.toByteArray(), streamed.toByteArray()));
+    }
+
+    @Test
+    public void truncatedInput() {
+        byte[] raw = randomMap(10).toByteArray();
+        for (int len = 0; len < raw.length; len++) {
+            try {
+                CborObject parsed = CborObject.fromByteArray(Arrays.copyOfRange(raw, 0, len));
+                // values of maps are only decoded on access
+                parsed.toByteArray();
+                Assert.fail("Should have failed!");
+            } catch (RuntimeException e) {}
+        }
+    }
+
+    private CborObject.CborMap randomMap(int size) {
+        SortedMap<CborObject, CborObject> map = new TreeMap<>();
+        for (int i=0; i < size; i++)
+            map.put(new CborObject.CborString("key" + rnd.nextInt(1000)), randomCbor(0));
+        return new CborObject.CborMap(map);
+    }
+
+    private CborObject randomCbor(int depth) {
+        int type = rnd.nextInt(depth > 0 ? 9 : 7);
+        switch (type) {
+            case 0: return new CborObject.CborNull();
+            case 1: return new CborObject.CborBoolean(rnd.nextBoolean());
+            case 2: return new CborObject.CborLong(rnd.nextBoolean() ? rnd.nextLong() : rnd.nextInt(70_000) - 35_000);
+            case 3: return new CborObject.CborByteArray(random(rnd.nextInt(300)));
+            case 4: return new CborObject.CborString(new String(random(rnd.nextInt(40)), java.nio.charset.StandardCharsets.UTF_8));
+            case 5: return new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, random(32)));
+            case 6: return randomMap(rnd.nextInt(5));
+            case 7: {
+                List<CborObject> list = new ArrayList<>();
+                for (int i = rnd.nextInt(30); i > 0; i--)
+                    list.add(randomCbor(depth - 1));
+                return new CborObject.CborList(list);
+            }
+            default: {
+                SortedMap<CborObject, CborObject> map = new TreeMap<>();
+                for (int i = rnd.nextInt(30); i > 0; i--)
+                    map.put(new CborObject.CborString("k" + rnd.nextInt(100)), randomCbor(depth - 1));
+                return new CborObject.CborMap(map);
+            }
+        }
+    }
+
+    private static byte[] streamEncode(CborObject value) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        value.serialize(new CborEncoder(bout));
+        return bout.toByteArray();
+    }
+
+    private static CborObject streamDecode(byte[] raw) {
+        return CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(raw)), raw.length);
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
+        Assert.assertTrue("Same encoding as stream encoder", Arrays.equals(raw, streamEncode(value)));
+        Assert.assertTrue("Same decoding as stream decoder", streamDecode(raw).equals(CborObject.fromByteArray(raw)));
         CborObject deserialized = CborObject.fromByteArray(raw);
 
         boolean equals = deserialized.equals(value);
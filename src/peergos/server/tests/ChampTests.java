@@ -89,6 +89,18 @@ public class ChampTests {
                 throw new IllegalStateException("Incorrect state!");
         }
 
+        // check every mapping, and some absent keys, in a single batched lookup
+        List<Pair<ByteArrayWrapper, byte[]>> batch = Stream.concat(state.keySet().stream(),
+                IntStream.range(0, 100).mapToObj(i -> new ByteArrayWrapper(randomHash.get().toBytes())))
+                .map(k -> new Pair<>(k, hasher.apply(k)))
+                .collect(Collectors.toList());
+        Map<ByteArrayWrapper, MaybeMultihash> batchResult = current.getAll(batch, 0, bitWidth, storage).get();
+        for (Pair<ByteArrayWrapper, byte[]> key : batch) {
+            MaybeMultihash expected = state.getOrDefault(key.left, MaybeMultihash.empty());
+            if (! expected.equals(batchResult.get(key.left)))
+                throw new IllegalStateException("Incorrect batched state!");
+        }
+
         long size = current.size(0, storage).get();
         if (size != nKeys)
             throw new IllegalStateException("Incorrect number of mappings! " + size);
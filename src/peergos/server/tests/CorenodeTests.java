@@ -1,9 +1,21 @@
 package peergos.server.tests;
 
 import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.JdbcPkiCache;
+import peergos.server.corenode.UsernameIndex;
 import peergos.server.corenode.UsernameValidator;
+import peergos.server.sql.*;
+import peergos.shared.cbor.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
+import java.sql.*;
+import java.time.*;
 import java.util.*;
+import java.util.function.*;
 
 public class CorenodeTests {
 
@@ -46,4 +58,66 @@ public class CorenodeTests {
         areValid.forEach(username -> Assert.assertTrue(username + " is valid", UsernameValidator.isValidUsername(username)));
         areNotValid.forEach(username -> Assert.assertFalse(username +" is not valid", UsernameValidator.isValidUsername(username)));
     }
+
+    @Test
+    public void usernamePrefixPagination() {
+        UsernameIndex index = new UsernameIndex(Arrays.asList("bob", "alice", "alf", "al", "bert", "alison", "zed"));
+        Assert.assertTrue(index.getByPrefix("al", 10, Optional.empty()).equals(Arrays.asList("al", "alf", "alice", "alison")));
+        Assert.assertTrue(index.getByPrefix("", 10, Optional.empty()).size() == 7);
+        Assert.assertTrue(index.getByPrefix("c", 10, Optional.empty()).isEmpty());
+
+        List<String> firstPage = index.getByPrefix("al", 2, Optional.empty());
+        Assert.assertTrue(firstPage.equals(Arrays.asList("al", "alf")));
+        List<String> secondPage = index.getByPrefix("al", 2, Optional.of(firstPage.get(firstPage.size() - 1)));
+        Assert.assertTrue(secondPage.equals(Arrays.asList("alice", "alison")));
+        Assert.assertTrue(index.getByPrefix("al", 2, Optional.of("alison")).isEmpty());
+        // a cursor before the prefix starts from the prefix
+        Assert.assertTrue(index.getByPrefix("b", 10, Optional.of("a")).equals(Arrays.asList("bert", "bob")));
+
+        Assert.assertFalse(index.add("alice"));
+        Assert.assertTrue(index.add("alicia"));
+        Assert.assertTrue(index.getByPrefix("alic", 10, Optional.empty()).equals(Arrays.asList("alice", "alicia")));
+    }
+
+    private static UserPublicKeyLink link(String username, int owner) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) owner;
+        UserPublicKeyLink.Claim claim = new UserPublicKeyLink.Claim(username, LocalDate.now().plusMonths(2),
+                Collections.emptyList(), new byte[64]);
+        return new UserPublicKeyLink(new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, hash)), claim);
+    }
+
+    @Test
+    public void pkiCacheUpdates() {
+        Supplier<Connection> db = Main.buildEphemeralSqlite();
+        JdbcPkiCache cache = new JdbcPkiCache(db, new SqliteCommands());
+        Assert.assertTrue(cache.getState().isEmpty());
+
+        UserPublicKeyLink alice = link("alice", 1), bob = link("bob", 2);
+        cache.putChains(Arrays.asList(new Pair<>("alice", Arrays.asList(alice)), new Pair<>("bob", Arrays.asList(bob))));
+        cache.setState(new CborObject.CborString("root1"));
+        Assert.assertTrue(cache.getChain("alice").get().equals(Arrays.asList(alice)));
+        Assert.assertTrue(cache.getUsername(bob.owner).get().equals("bob"));
+        Assert.assertTrue(cache.getChain("carol").isEmpty());
+
+        // a key change only rewrites that user's row
+        UserPublicKeyLink newAlice = link("alice", 3);
+        cache.putChains(Arrays.asList(new Pair<>("alice", Arrays.asList(alice, newAlice))));
+        cache.setState(new CborObject.CborString("root2"));
+
+        JdbcPkiCache reopened = new JdbcPkiCache(db, new SqliteCommands());
+        Assert.assertTrue(reopened.getState().get().equals(new CborObject.CborString("root2")));
+        Assert.assertTrue(reopened.getChain("alice").get().equals(Arrays.asList(alice, newAlice)));
+        Assert.assertTrue(reopened.getUsername(newAlice.owner).get().equals("alice"));
+        Assert.assertTrue(reopened.getUsername(alice.owner).get().equals("alice"));
+        Assert.assertTrue(cache.getUsername(alice.owner).get().equals("alice"));
+        Assert.assertTrue(cache.getChain("alice").get().equals(Arrays.asList(alice, newAlice)));
+
+        // a chain's earlier keys are dropped when it is replaced
+        UserPublicKeyLink reclaimedAlice = link("alice", 4);
+        reopened.putChains(Arrays.asList(new Pair<>("alice", Arrays.asList(reclaimedAlice))));
+        Assert.assertTrue(reopened.getUsername(alice.owner).isEmpty());
+        Assert.assertTrue(reopened.getUsername(reclaimedAlice.owner).get().equals("alice"));
+        Assert.assertTrue(new HashSet<>(reopened.getUsernames()).equals(new HashSet<>(Arrays.asList("alice", "bob"))));
+    }
 }
@@ -0,0 +1,50 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class DHTHandlerTests {
+
+    @Test
+    public void getStreamsLocalBlocksAndFallsBackToProxy() throws IOException {
+        RAMStorage local = new RAMStorage();
+        RAMStorage remote = new RAMStorage();
+        byte[] localData = "a local block".getBytes();
+        byte[] proxiedData = "a block only reachable through the proxy".getBytes();
+        Multihash localBlock = local.putRaw(null, null, null, Collections.singletonList(localData), null, x -> {}).join().get(0);
+        remote.putRaw(null, null, null, Collections.singletonList(localData), null, x -> {}).join();
+        Multihash proxiedBlock = remote.putRaw(null, null, null, Collections.singletonList(proxiedData), null, x -> {}).join().get(0);
+
+        BlockStreamer localStreamer = h -> local.getRaw(h).join().map(BlockStreamer.BlockStream::ofBytes);
+        MeteredStorage p2p = new MeteredStorage("p2p", remote, Optional.of(localStreamer));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/api/v0/", new DHTHandler(p2p, new FastHasher(), (h, i) -> true, false));
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/api/v0/"
+                    + ContentAddressedStorage.HTTP.BLOCK_GET + "?arg=";
+            Assert.assertArrayEquals(localData, post(base + localBlock));
+            Assert.assertArrayEquals(proxiedData, post(base + proxiedBlock));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] post(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        Assert.assertEquals(200, conn.getResponseCode());
+        return Serialize.readFully(conn.getInputStream());
+    }
+}
@@ -0,0 +1,69 @@
+package peergos.server.tests;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import peergos.server.crypto.FastSalsa20Poly1305;
+import peergos.shared.crypto.TweetNaCl;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+@RunWith(Parameterized.class)
+public class FastSalsa20Poly1305Tests {
+
+    private static final FastSalsa20Poly1305 fast = new FastSalsa20Poly1305();
+    private static Random random = new Random(1337);
+
+    public final int messageLength;
+
+    public FastSalsa20Poly1305Tests(int messageLength) {
+        this.messageLength = messageLength;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        List<Integer> lengths = new ArrayList<>();
+        // cover every alignment around the 16 byte poly1305 and 64 byte salsa20 block boundaries
+        for (int i=0; i <= 200; i++)
+            lengths.add(i);
+        lengths.add(4096 + 16);
+        lengths.add(1024 * 1024);
+        lengths.add(5 * 1024 * 1024 + 13);
+        return lengths.stream().map(e -> new Object[]{e})
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void compatibleWithTweetNacl() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+
+        byte[] boxed = fast.secretbox(message, nonce, key);
+        Assert.assertArrayEquals(TweetNaCl.secretbox(message, nonce, key), boxed);
+        Assert.assertArrayEquals(message, fast.secretbox_open(boxed, nonce, key));
+        Assert.assertArrayEquals(message, TweetNaCl.secretbox_open(boxed, nonce, key));
+    }
+
+    @Test
+    public void rejectModifiedCipherText() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+
+        byte[] message = new byte[messageLength];
+        random.nextBytes(message);
+
+        byte[] boxed = fast.secretbox(message, nonce, key);
+        boxed[random.nextInt(boxed.length)] ^= 1;
+        try {
+            fast.secretbox_open(boxed, nonce, key);
+            Assert.fail("Modified cipher text should not decrypt");
+        } catch (TweetNaCl.InvalidCipherTextException e) {}
+    }
+}
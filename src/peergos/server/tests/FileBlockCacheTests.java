@@ -0,0 +1,73 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+public class FileBlockCacheTests {
+
+    private static final Random random = new Random(42);
+
+    private static Cid hash(byte[] data) throws Exception {
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(data);
+        return Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, sha256);
+    }
+
+    private static byte[] randomBlock(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-block-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 3000);
+        byte[] a = randomBlock(1000), b = randomBlock(1000), c = randomBlock(1000), d = randomBlock(1000);
+        cache.put(hash(a), a).join();
+        cache.put(hash(b), b).join();
+        cache.put(hash(c), c).join();
+        // touch a so that b is now the least recently used
+        Assert.assertTrue(Arrays.equals(cache.get(hash(a)).join().get(), a));
+        cache.put(hash(d), d).join();
+
+        Assert.assertTrue("Evicted LRU block", cache.get(hash(b)).join().isEmpty());
+        Assert.assertTrue(cache.get(hash(a)).join().isPresent());
+        Assert.assertTrue(cache.get(hash(c)).join().isPresent());
+        Assert.assertTrue(cache.get(hash(d)).join().isPresent());
+        Assert.assertTrue(cache.getTotalSize() <= 3000);
+    }
+
+    @Test
+    public void persistAcrossRestart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-block-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 10_000);
+        byte[] a = randomBlock(1000), b = randomBlock(2000);
+        cache.put(hash(a), a).join();
+        cache.put(hash(b), b).join();
+        // leave a partial write behind, which should be cleaned up
+        Path shard = Files.list(dir).findFirst().get();
+        Files.write(shard.resolve("peergos-block-tmp12345"), new byte[10]);
+        // and some files which aren't ours, which should be left alone
+        Files.write(shard.resolve("notes.txt"), new byte[10]);
+        Path otherDir = Files.createDirectory(dir.resolve("other"));
+        Files.write(otherDir.resolve(hash(a).toString()), new byte[10]);
+
+        FileBlockCache restarted = new FileBlockCache(dir, 10_000);
+        Assert.assertTrue(Arrays.equals(restarted.get(hash(a)).join().get(), a));
+        Assert.assertTrue(Arrays.equals(restarted.get(hash(b)).join().get(), b));
+        Assert.assertTrue(restarted.getTotalSize() == 3000);
+        Assert.assertTrue("Partial write removed", ! shard.resolve("peergos-block-tmp12345").toFile().exists());
+        Assert.assertTrue("Other files kept", shard.resolve("notes.txt").toFile().exists());
+        Assert.assertTrue("Other files kept", otherDir.resolve(hash(a).toString()).toFile().exists());
+
+        // a smaller limit on restart evicts down to size
+        FileBlockCache smaller = new FileBlockCache(dir, 2500);
+        Assert.assertTrue(smaller.getTotalSize() <= 2500);
+    }
+}
@@ -4,10 +4,17 @@ import org.junit.Test;
 import  peergos.server.net.FileHandler;
 import peergos.server.net.StaticHandler;
 
+import com.sun.net.httpserver.HttpServer;
+import peergos.shared.util.Serialize;
+
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 public class FileHandlerTests {
     static final Path TEST_ROOT = Paths.get("test", "resources", "static_handler");
@@ -22,4 +29,41 @@ public class FileHandlerTests {
         StaticHandler.Asset hello = fileHandler.getAsset("test/hello.txt");
         Assert.assertEquals(new String(hello.data), "Hello, Peergos!");
     }
+
+    @Test
+    public void negotiateEncodingAndRanges() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/", new FileHandler(TEST_ROOT, true).withCache());
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort();
+            HttpURLConnection plain = (HttpURLConnection) new URL(base + "/something.txt").openConnection();
+            Assert.assertEquals(plain.getHeaderField("Content-Encoding"), null);
+            Assert.assertEquals(new String(Serialize.readFully(plain.getInputStream())), "The thing!");
+
+            HttpURLConnection gzipped = (HttpURLConnection) new URL(base + "/something.txt").openConnection();
+            gzipped.setRequestProperty("Accept-Encoding", "br;q=0, gzip");
+            Assert.assertEquals(gzipped.getHeaderField("Content-Encoding"), "gzip");
+            Assert.assertEquals(new String(Serialize.readFully(new GZIPInputStream(gzipped.getInputStream()))), "The thing!");
+
+            String etag = gzipped.getHeaderField("ETag");
+            HttpURLConnection cached = (HttpURLConnection) new URL(base + "/something.txt").openConnection();
+            cached.setRequestProperty("Accept-Encoding", "gzip");
+            cached.setRequestProperty("If-None-Match", etag);
+            Assert.assertEquals(cached.getResponseCode(), 304);
+
+            HttpURLConnection range = (HttpURLConnection) new URL(base + "/something.txt").openConnection();
+            range.setRequestProperty("Accept-Encoding", "gzip");
+            range.setRequestProperty("Range", "bytes=4-8");
+            Assert.assertEquals(range.getResponseCode(), 206);
+            Assert.assertEquals(range.getHeaderField("Content-Range"), "bytes 4-8/10");
+            Assert.assertEquals(new String(Serialize.readFully(range.getInputStream())), "thing");
+
+            HttpURLConnection unsatisfiable = (HttpURLConnection) new URL(base + "/something.txt").openConnection();
+            unsatisfiable.setRequestProperty("Range", "bytes=20-");
+            Assert.assertEquals(unsatisfiable.getResponseCode(), 416);
+        } finally {
+            server.stop(0);
+        }
+    }
 }
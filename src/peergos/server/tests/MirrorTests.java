@@ -0,0 +1,54 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class MirrorTests {
+
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+    private static final TransactionId tid = new TransactionId("mirror");
+
+    private static Multihash raw(ContentAddressedStorage storage, String contents) {
+        return storage.putRaw(owner, owner, new byte[0], contents.getBytes(), tid, x -> {}).join();
+    }
+
+    private static Multihash node(ContentAddressedStorage storage, Multihash... children) {
+        CborObject.CborList block = new CborObject.CborList(Arrays.stream(children)
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList()));
+        return storage.put(owner, owner, new byte[0], block.toByteArray(), tid).join();
+    }
+
+    @Test
+    public void onlyCopyChangedBlocks() {
+        RAMStorage source = new RAMStorage();
+        RAMStorage target = new RAMStorage();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        Multihash a = node(source, raw(source, "fragment 1"), raw(source, "fragment 2"));
+        Multihash root = node(source, a, node(source, raw(source, "fragment 3")));
+        Pair<Long, Long> initial = Mirror.copyDiff(owner, owner, MaybeMultihash.empty(), root, source, target, tid, pool);
+        Assert.assertTrue(initial.left == 6);
+        Assert.assertTrue(target.equals(source));
+
+        // change a single fragment
+        Multihash updatedRoot = node(source, a, node(source, raw(source, "fragment 4")));
+        Pair<Long, Long> diff = Mirror.copyDiff(owner, owner, MaybeMultihash.of(root), updatedRoot, source, target, tid, pool);
+        Assert.assertTrue("Only the changed path is copied", diff.left == 3);
+        Assert.assertTrue(target.equals(source));
+
+        Pair<Long, Long> unchanged = Mirror.copyDiff(owner, owner, MaybeMultihash.of(updatedRoot), updatedRoot, source, target, tid, pool);
+        Assert.assertTrue(unchanged.left == 0);
+    }
+}
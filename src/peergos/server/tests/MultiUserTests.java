@@ -259,6 +259,73 @@ public class MultiUserTests {
         shareTwoFilesWithSameName(writeAccessSharingFunction);
     }
 
+    @Test
+    public void newSharesSeenWithinRecheckInterval() throws Exception {
+        UserContext u1 = PeergosNetworkUtils.ensureSignedUp(random(), "a", network.clear(), crypto);
+        UserContext u2 = getUserContexts(1, Arrays.asList(PeergosNetworkUtils.generatePassword())).get(0);
+        PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(u1), Arrays.asList(u2));
+
+        byte[] data = "Hello Peergos friend!".getBytes();
+        u1.getUserRoot().join().uploadOrReplaceFile("first.txt", new AsyncReader.ArrayBacked(data), data.length,
+                u1.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+        u1.shareReadAccessWith(Paths.get(u1.username, "first.txt"), Collections.singleton(u2.username)).join();
+        Assert.assertTrue(u2.getByPath(Paths.get(u1.username, "first.txt")).join().isPresent());
+
+        FriendSourcedTrieNode.setRecheckInterval(3_600_000);
+        try {
+            u1.getUserRoot().join().uploadOrReplaceFile("second.txt", new AsyncReader.ArrayBacked(data), data.length,
+                    u1.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+            u1.shareReadAccessWith(Paths.get(u1.username, "second.txt"), Collections.singleton(u2.username)).join();
+
+            // concurrent lookups of a known capability don't need to check for new ones
+            List<CompletableFuture<Optional<FileWrapper>>> lookups = IntStream.range(0, 10)
+                    .mapToObj(i -> u2.getByPath(Paths.get(u1.username, "first.txt")))
+                    .collect(Collectors.toList());
+            Assert.assertTrue(lookups.stream().allMatch(f -> f.join().isPresent()));
+
+            // a miss checks for new capabilities
+            Assert.assertTrue("new share present", u2.getByPath(Paths.get(u1.username, "second.txt")).join().isPresent());
+        } finally {
+            FriendSourcedTrieNode.setRecheckInterval(FriendSourcedTrieNode.DEFAULT_RECHECK_INTERVAL_MILLIS);
+        }
+    }
+
+    @Test
+    public void capabilityCacheKeepsEarlierShares() throws Exception {
+        UserContext u1 = PeergosNetworkUtils.ensureSignedUp(random(), "a", network.clear(), crypto);
+        String password = PeergosNetworkUtils.generatePassword();
+        UserContext u2 = getUserContexts(1, Arrays.asList(password)).get(0);
+        PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(u1), Arrays.asList(u2));
+
+        String dirName = "folder";
+        u1.getUserRoot().join().mkdir(dirName, u1.network, false, crypto).join();
+        byte[] data = "Hello Peergos friend!".getBytes();
+        for (String filename : Arrays.asList("a.txt", "b.txt")) {
+            FileWrapper dir = u1.getByPath(Paths.get(u1.username, dirName)).join().get();
+            dir.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length,
+                    u1.network, crypto, l -> {}, crypto.random.randomBytes(32)).join();
+            u1.shareReadAccessWith(Paths.get(u1.username, dirName, filename), Collections.singleton(u2.username)).join();
+            // each lookup adds the new capability to the friend's cache
+            Assert.assertTrue(u2.getByPath(Paths.get(u1.username, dirName, filename)).join().isPresent());
+        }
+
+        CapabilitiesFromUser cached = CapabilityStore.loadCachedReadOnlyLinks(
+                () -> u2.getByPath(Paths.get(u2.username)).thenApply(Optional::get), u1.username, u2.network, crypto).join();
+        Set<String> paths = cached.getRetrievedCapabilities().stream()
+                .map(c -> c.path)
+                .collect(Collectors.toSet());
+        Assert.assertTrue("cache has both shares", paths.equals(new HashSet<>(Arrays.asList(
+                "/" + u1.username + "/" + dirName + "/a.txt",
+                "/" + u1.username + "/" + dirName + "/b.txt"))));
+
+        UserContext u2Again = UserContext.signIn(u2.username, password, network.clear(), crypto).join();
+        Set<String> children = u2Again.getByPath(Paths.get(u1.username, dirName)).join().get()
+                .getChildren(crypto.hasher, u2Again.network).join().stream()
+                .map(FileWrapper::getName)
+                .collect(Collectors.toSet());
+        Assert.assertTrue("both shares seen after login", children.equals(new HashSet<>(Arrays.asList("a.txt", "b.txt"))));
+    }
+
     private void shareTwoFilesWithSameName(TriFunction<UserContext, List<UserContext>, Path, CompletableFuture<Boolean>> sharingFunction) throws Exception {
         UserContext u1 = PeergosNetworkUtils.ensureSignedUp(random(), "a", network.clear(), crypto);
 
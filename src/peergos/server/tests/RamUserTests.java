@@ -4,6 +4,7 @@ import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 import peergos.server.*;
+import peergos.server.fuse.*;
 import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.social.*;
@@ -43,6 +44,64 @@ public class RamUserTests extends UserTests {
         deleteFiles(peergosDir.toFile());
     }
 
+    @Test
+    public void cachingFsWriteBackAndEviction() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().join();
+
+        // a file of three pages, cached two at a time, which is only written back on eviction or flush
+        String filename = "cached.bin";
+        Random random = new Random(666);
+        byte[] expected = new byte[2 * Chunk.MAX_SIZE + 1000];
+        random.nextBytes(expected);
+        userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(expected), expected.length,
+                context.network, context.crypto, l -> {}, context.crypto.random.randomBytes(32)).join();
+        String path = "/" + username + "/" + filename;
+        CachingPeergosFS fs = new CachingPeergosFS(context, 2, 0, 3600_000, 0);
+        jnr.ffi.Runtime runtime = jnr.ffi.Runtime.getSystemRuntime();
+
+        // dirty every page, evicting the first two
+        for (long offset : new long[] {10, Chunk.MAX_SIZE + 10, 2L * Chunk.MAX_SIZE + 10}) {
+            byte[] update = new byte[500];
+            random.nextBytes(update);
+            System.arraycopy(update, 0, expected, (int) offset, update.length);
+            jnr.ffi.Pointer in = jnr.ffi.Memory.allocate(runtime, update.length);
+            in.put(0, update, 0, update.length);
+            Assert.assertEquals(update.length, fs.write(path, in, update.length, offset, null));
+        }
+        // the first page was written back when it was evicted
+        FileWrapper evicted = context.getByPath(Paths.get(username, filename).toString()).join().get();
+        byte[] firstPage = Serialize.readFully(evicted.getInputStream(context.network, context.crypto, l -> {}).join(),
+                Chunk.MAX_SIZE).join();
+        Assert.assertArrayEquals("Evicted page written back", Arrays.copyOfRange(expected, 0, Chunk.MAX_SIZE), firstPage);
+
+        // extend the file within the cache
+        byte[] tail = new byte[2000];
+        random.nextBytes(tail);
+        jnr.ffi.Pointer tailIn = jnr.ffi.Memory.allocate(runtime, tail.length);
+        tailIn.put(0, tail, 0, tail.length);
+        Assert.assertEquals(tail.length, fs.write(path, tailIn, tail.length, expected.length, null));
+        expected = ArrayOps.concat(expected, tail);
+
+        // read after write, from both evicted and cached pages
+        jnr.ffi.Pointer out = jnr.ffi.Memory.allocate(runtime, expected.length);
+        Assert.assertEquals(expected.length, fs.read(path, out, expected.length, 0, null));
+        byte[] read = new byte[expected.length];
+        out.get(0, read, 0, read.length);
+        Assert.assertArrayEquals("Read after write", expected, read);
+
+        // evicted pages were written back, the rest are written back on flush
+        Assert.assertEquals(0, fs.flush(path, null));
+        FileWrapper stored = context.getByPath(Paths.get(username, filename).toString()).join().get();
+        Assert.assertEquals(expected.length, stored.getSize());
+        byte[] storedData = Serialize.readFully(stored.getInputStream(context.network, context.crypto, l -> {}).join(),
+                stored.getSize()).join();
+        Assert.assertArrayEquals("Written back", expected, storedData);
+        fs.close();
+    }
+
     @Test
     public void bufferedReaderTest() throws Exception {
 
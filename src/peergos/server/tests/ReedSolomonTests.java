@@ -0,0 +1,136 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class ReedSolomonTests {
+    private static Random random = new Random(666);
+
+    private static void deleteRandom(byte[][] shards, int count) {
+        List<Integer> indices = IntStream.range(0, shards.length).boxed().collect(Collectors.toList());
+        Collections.shuffle(indices, random);
+        for (int i=0; i < count; i++)
+            shards[indices.get(i)] = null;
+    }
+
+    @Test
+    public void recoverFromAnyDataShards() {
+        for (int[] params : new int[][] {{1, 1}, {4, 2}, {10, 4}, {40, 20}, {200, 56}}) {
+            ReedSolomon codec = new ReedSolomon(params[0], params[1]);
+            for (int length : Arrays.asList(0, 1, params[0] - 1, params[0], 1000, 5 * 1024 * 1024 + 7)) {
+                byte[] input = new byte[length];
+                random.nextBytes(input);
+                for (int lost : new int[] {0, 1, params[1] / 2, params[1]}) {
+                    byte[][] shards = codec.encode(input);
+                    Assert.assertEquals(params[0] + params[1], shards.length);
+                    deleteRandom(shards, lost);
+                    byte[] decoded = codec.decode(shards, length);
+                    Assert.assertArrayEquals("Lost " + lost + " of " + params[0] + "+" + params[1], input, decoded);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tooManyMissingShards() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[] input = new byte[1000];
+        random.nextBytes(input);
+        byte[][] shards = codec.encode(input);
+        deleteRandom(shards, 3);
+        try {
+            codec.decode(shards, input.length);
+            Assert.fail("Shouldn't be able to decode with only 3 of 4 required shards");
+        } catch (IllegalStateException e) {}
+    }
+
+    @Test
+    public void degradedStorageReads() throws IOException {
+        Path base = Files.createTempDirectory("peergos-erasure");
+        List<Path> dirs = IntStream.range(0, 6)
+                .mapToObj(i -> base.resolve("disk" + i))
+                .collect(Collectors.toList());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        ErasureCodedStorage storage = new ErasureCodedStorage(dirs, 4, transactions);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+        TransactionId tid = storage.startTransaction(owner).join();
+
+        byte[] block = new byte[200 * 1024];
+        random.nextBytes(block);
+        Multihash hash = storage.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block), tid, x -> {})
+                .join().get(0);
+        Assert.assertArrayEquals(block, storage.getRaw(hash).join().get());
+        Assert.assertEquals(block.length, (int) storage.getSize(hash).join().get());
+
+        // lose two disks, including a data disk
+        deleteRecursively(dirs.get(1).toFile());
+        deleteRecursively(dirs.get(5).toFile());
+        Assert.assertTrue(storage.contains(hash));
+        Assert.assertArrayEquals(block, storage.getRaw(hash).join().get());
+
+        // the degraded read rewrote the lost shards
+        Assert.assertFalse(storage.repair(hash));
+        deleteRecursively(dirs.get(0).toFile());
+        deleteRecursively(dirs.get(2).toFile());
+        Assert.assertArrayEquals(block, storage.getRaw(hash).join().get());
+
+        deleteRecursively(dirs.get(3).toFile());
+        Assert.assertTrue(storage.repair(hash));
+        Assert.assertFalse(storage.repair(hash));
+
+        Assert.assertTrue(storage.getRaw(new Multihash(Multihash.Type.sha2_256, new byte[32])).join().isEmpty());
+    }
+
+    @Test
+    public void corruptShardsAreDetectedAndRepaired() throws IOException {
+        Path base = Files.createTempDirectory("peergos-erasure");
+        List<Path> dirs = IntStream.range(0, 6)
+                .mapToObj(i -> base.resolve("disk" + i))
+                .collect(Collectors.toList());
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        ErasureCodedStorage storage = new ErasureCodedStorage(dirs, 4, transactions);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, new byte[32]));
+        TransactionId tid = storage.startTransaction(owner).join();
+
+        byte[] block = new byte[200 * 1024];
+        random.nextBytes(block);
+        Multihash hash = storage.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block), tid, x -> {})
+                .join().get(0);
+
+        // flip a bit in a data shard, keeping its length
+        Path shard = findShard(dirs.get(1));
+        byte[] original = Files.readAllBytes(shard);
+        byte[] rotted = Arrays.copyOf(original, original.length);
+        rotted[rotted.length / 2] ^= 1;
+        Files.write(shard, rotted);
+
+        Assert.assertArrayEquals(block, storage.getRaw(hash).join().get());
+        Assert.assertArrayEquals("Corrupt shard rewritten", original, Files.readAllBytes(shard));
+        Assert.assertFalse(storage.repair(hash));
+    }
+
+    private static Path findShard(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).findFirst().get();
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        f.delete();
+    }
+}
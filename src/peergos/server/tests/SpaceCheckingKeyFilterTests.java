@@ -2,13 +2,17 @@ package peergos.server.tests;
 import org.junit.*;
 import peergos.server.*;
 import peergos.server.space.*;
+import peergos.server.storage.*;
 import peergos.shared.Crypto;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.cbor.CborObject;
+import peergos.shared.crypto.SigningPrivateKeyAndPublicHash;
 import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.io.ipfs.multihash.Multihash;
+import peergos.shared.storage.TransactionId;
 import peergos.server.space.*;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,4 +47,25 @@ public class SpaceCheckingKeyFilterTests {
         //check that deserialize(serialize(object)) == object
         Assert.assertEquals(deserialized, state);
     }
+
+    @Test
+    public void sharedBlocksAreCountedPerLink() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        PublicKeyHash owner = user.publicKeyHash;
+        TransactionId tid = storage.startTransaction(owner).get();
+        byte[] fragment = new byte[10_000];
+        RANDOM.nextBytes(fragment);
+        Multihash shared = storage.putRaw(owner, owner, new byte[0], fragment, tid, x -> {}).get();
+
+        Multihash once = storage.put(owner, user, new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(shared))).serialize(), crypto.hasher, tid).get();
+        Multihash twice = storage.put(owner, user, new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(shared), new CborObject.CborMerkleLink(shared))).serialize(), crypto.hasher, tid).get();
+
+        long onceSize = storage.getRecursiveBlockSize(once).get();
+        long twiceSize = storage.getRecursiveBlockSize(twice).get();
+        Assert.assertEquals(twiceSize - onceSize, (long) storage.getChangeInContainedSize(once, twice).get());
+        Assert.assertEquals(onceSize - twiceSize, (long) storage.getChangeInContainedSize(twice, once).get());
+    }
 }
@@ -485,6 +485,83 @@ public abstract class UserTests {
         checkFileContents(data, updatedFile, context);
     }
 
+    @Test
+    public void lookupByNameAfterRename() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        byte[] data = "Some data".getBytes();
+        userRoot.uploadOrReplaceFile("a.txt", new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper parent = context.getUserRoot().get();
+        FileWrapper file = context.getByPath(Paths.get(username, "a.txt").toString()).get().get();
+        file.rename("b.txt", parent, context).get();
+
+        Assert.assertTrue(context.getByPath(Paths.get(username, "b.txt").toString()).get().isPresent());
+        Assert.assertFalse(context.getByPath(Paths.get(username, "a.txt").toString()).get().isPresent());
+
+        // rename the way an older client does, only changing the child's properties, which leaves a stale name hash
+        FileWrapper renamed = context.getByPath(Paths.get(username, "b.txt").toString()).get().get();
+        WritableAbsoluteCapability cap = renamed.writableFilePointer();
+        FileProperties props = renamed.getFileProperties();
+        FileProperties newProps = new FileProperties("c.txt", props.isDirectory, props.isLink, props.mimeType,
+                props.size, props.modified, props.isHidden, props.thumbnail, props.streamSecret);
+        context.network.synchronizer.applyComplexUpdate(renamed.owner(), renamed.signingPair(),
+                (s, committer) -> renamed.getPointer().fileAccess.updateProperties(s, committer, cap,
+                        Optional.of(renamed.signingPair()), newProps, context.network)).join();
+
+        // the child is still listed, and updating its properties with this client refreshes the parent's link
+        FileWrapper root = context.getUserRoot().get();
+        FileWrapper stale = root.getChildren(crypto.hasher, context.network).join().stream()
+                .filter(f -> f.getName().equals("c.txt"))
+                .findFirst().get();
+        FileProperties staleProps = stale.getFileProperties();
+        FileProperties hidden = new FileProperties(staleProps.name, staleProps.isDirectory, staleProps.isLink,
+                staleProps.mimeType, staleProps.size, staleProps.modified, true, staleProps.thumbnail,
+                staleProps.streamSecret);
+        stale.setProperties(hidden, crypto.hasher, context.network, Optional.of(root)).join();
+
+        root = context.getUserRoot().get();
+        Assert.assertTrue(context.getByPath(Paths.get(username, "c.txt").toString()).get().isPresent());
+        Assert.assertTrue(root.getChild("c.txt", crypto.hasher, context.network).join().isPresent());
+        Assert.assertFalse(root.getChild("b.txt", crypto.hasher, context.network).join().isPresent());
+
+        // a rename with this client also refreshes it
+        FileWrapper c = context.getByPath(Paths.get(username, "c.txt").toString()).get().get();
+        c.rename("d.txt", root, context).join();
+        Assert.assertTrue(context.getByPath(Paths.get(username, "d.txt").toString()).get().isPresent());
+        Assert.assertFalse(context.getByPath(Paths.get(username, "c.txt").toString()).get().isPresent());
+    }
+
+    @Test
+    public void lookupByNameAfterKeyRotation() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String dirname = "somedir";
+        userRoot.mkdir(dirname, context.network, false, crypto).join();
+        FileWrapper dir = context.getByPath(Paths.get(username, dirname).toString()).get().get();
+        byte[] data = "Some data".getBytes();
+        dir.uploadOrReplaceFile("a.txt", new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        AbsoluteCapability originalCap = context.getByPath(Paths.get(username, dirname).toString()).get().get()
+                .getPointer().capability;
+
+        // unsharing rotates the keys of the directory and everything in it
+        context.unShareReadAccess(Paths.get(username, dirname), Collections.emptySet()).join();
+
+        FileWrapper rotated = context.getByPath(Paths.get(username, dirname).toString()).get().get();
+        Assert.assertNotEquals("Rotated key", originalCap.rBaseKey, rotated.getPointer().capability.rBaseKey);
+        Optional<FileWrapper> child = context.getByPath(Paths.get(username, dirname, "a.txt").toString()).get();
+        Assert.assertTrue(child.isPresent());
+        checkFileContents(data, child.get(), context);
+        Assert.assertTrue(rotated.getChild("a.txt", crypto.hasher, context.network).join().isPresent());
+    }
+
     @Test
     public void directoryEncryptionKey() throws Exception {
         // ensure that a directory's child links are encrypted with the base key, not the parent key
@@ -712,23 +789,28 @@ public abstract class UserTests {
         FileWrapper userRoot = context.getUserRoot().get();
 
         String filename = "small.txt";
-        byte[] data = new byte[2*5*1024*1024];
-        ThrowingStream throwingReader = new ThrowingStream(data, 5 * 1024 * 1024);
+        byte[] data = new byte[4*5*1024*1024];
+        // fail reading the last chunk, after the second and third chunks have been written (the first is written last)
+        ThrowingStream throwingReader = new ThrowingStream(data, 3 * 5 * 1024 * 1024);
         Path filePath = Paths.get(username, filename);
+        byte[] streamSecret = context.crypto.random.randomBytes(32);
+        List<Location> locations = userRoot.generateChildLocationsFromSize(data.length, streamSecret,
+                context.crypto.random.randomBytes(32), context.crypto.hasher).join();
         FileUploadTransaction transaction = Transaction.buildFileUploadTransaction(filePath.toString(), data.length,
-                AsyncReader.build(data), userRoot.signingPair(), userRoot.generateChildLocationsFromSize(data.length,
-                        context.crypto.random)).join();
+                AsyncReader.build(data), userRoot.signingPair(), locations).join();
         int prior = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
 
         TransactionService transactions = context.getTransactionService();
         context.network.synchronizer.applyComplexUpdate(userRoot.owner(), transactions.getSigner(),
                 (s, committer) -> transactions.open(s, committer, transaction)).join();
         try {
-            userRoot.uploadOrReplaceFile(filename, throwingReader, data.length, context.network,
-                    context.crypto, l -> {}, transaction.getLocations().get(0).getMapKey()).get();
+            context.network.synchronizer.applyComplexUpdate(userRoot.owner(), userRoot.signingPair(),
+                    (s, committer) -> userRoot.uploadFileSection(s, committer, filename, throwingReader, false, 0,
+                            data.length, Optional.empty(), false, false, context.network, context.crypto, l -> {},
+                            locations.get(0).getMapKey(), Optional.of(streamSecret))).get();
         } catch (Exception e) {}
         int during = context.getTotalSpaceUsed(context.signer.publicKeyHash, context.signer.publicKeyHash).get().intValue();
-        Assert.assertTrue("One chunk uploaded", during > 5 * 1024*1024);
+        Assert.assertTrue("Two chunks uploaded", during > prior + 2 * 5 * 1024*1024);
 
         context.network.synchronizer.applyComplexUpdate(userRoot.owner(), transactions.getSigner(),
                 (current, committer) -> {
@@ -761,6 +843,42 @@ public abstract class UserTests {
                     context.crypto, l -> {}, transactions).join();
     }
 
+    @Test
+    public void uploadTransactionsShareOneJournal() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        TransactionService transactions = context.getTransactionService();
+
+        byte[] data = "G'day mate!".getBytes();
+        for (int i = 0; i < 3; i++) {
+            FileWrapper userRoot = context.getUserRoot().get();
+            userRoot.uploadFileJS("file" + i, AsyncReader.build(data), 0, data.length, false, false, context.network,
+                    context.crypto, l -> {}, transactions).join();
+        }
+        String txnDirPath = Paths.get(username, UserContext.TRANSACTIONS_DIR_NAME).toString();
+        Set<String> txnFiles = context.getByPath(txnDirPath).join().get()
+                .getChildren(crypto.hasher, context.network).join().stream()
+                .map(FileWrapper::getName)
+                .collect(Collectors.toSet());
+        Assert.assertEquals("Only a journal", Collections.singleton(TransactionServiceImpl.JOURNAL_NAME), txnFiles);
+
+        // an unclosed transaction is still found after the journal has been written and closed repeatedly
+        FileWrapper userRoot = context.getUserRoot().get();
+        FileUploadTransaction transaction = Transaction.buildFileUploadTransaction(Paths.get(username, "partial").toString(),
+                data.length, AsyncReader.build(data), userRoot.signingPair(),
+                userRoot.generateChildLocationsFromSize(data.length, context.crypto.random)).join();
+        Snapshot opened = context.network.synchronizer.applyComplexUpdate(userRoot.owner(), transactions.getSigner(),
+                (s, committer) -> transactions.open(s, committer, transaction)).join();
+        Set<Transaction> open = transactions.getOpenTransactions(opened).join();
+        Assert.assertEquals("One open transaction", 1, open.size());
+        Assert.assertEquals("Open transaction", transaction.name(), open.iterator().next().name());
+
+        Snapshot closed = context.network.synchronizer.applyComplexUpdate(userRoot.owner(), transactions.getSigner(),
+                (s, committer) -> transactions.close(s, committer, transaction)).join();
+        Assert.assertTrue("Closed", transactions.getOpenTransactions(closed).join().isEmpty());
+    }
+
     @Test
     public void javaThumbnail() throws Exception {
         String username = generateUsername();
@@ -777,6 +895,33 @@ public abstract class UserTests {
         Assert.assertTrue("Has thumbnail", thumbnail.length() > 0);
     }
 
+    @Test
+    public void javaThumbnailOfMultiChunkImage() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        // random pixels don't compress, so this spans several chunks
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(1600, 1200, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        Random rnd = new Random(42);
+        for (int x = 0; x < image.getWidth(); x++)
+            for (int y = 0; y < image.getHeight(); y++)
+                image.setRGB(x, y, rnd.nextInt());
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        javax.imageio.ImageIO.write(image, "png", bout);
+        byte[] data = bout.toByteArray();
+        Assert.assertTrue("Multiple chunks", data.length > Chunk.MAX_SIZE);
+
+        String filename = "big.png";
+        userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper file = context.getByPath(Paths.get(username, filename).toString()).get().get();
+        Assert.assertTrue("Correct mimetype", file.getFileProperties().mimeType.equals("image/png"));
+        Assert.assertTrue("Has thumbnail", file.getBase64Thumbnail().length() > 0);
+        checkFileContents(data, file, context);
+    }
+
     @Ignore // until we figure out how to manage javafx in tests
     @Test
     public void javaVideoThumbnail() throws Exception {
@@ -1091,6 +1236,46 @@ public abstract class UserTests {
         FileWrapper renamed = theDir.rename("subdir2", userRoot2, context).get();
     }
 
+    @Test
+    public void moveWithoutCopying() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+        String source = "source", target = "target";
+        userRoot.mkdir(source, context.network, false, context.crypto).get();
+        context.getUserRoot().get().mkdir(target, context.network, false, context.crypto).get();
+
+        String dirName = "subdir", filename = "somefile.bin";
+        FileWrapper sourceDir = context.getByPath("/" + username + "/" + source).get().get();
+        sourceDir.mkdir(dirName, context.network, false, context.crypto).get();
+        byte[] data = randomData(6*1024*1024);
+        context.getByPath("/" + username + "/" + source + "/" + dirName).get().get()
+                .uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                        context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+
+        FileWrapper dir = context.getByPath("/" + username + "/" + source + "/" + dirName).get().get();
+        AbsoluteCapability originalCap = dir.getPointer().capability;
+        dir.moveTo(context.getByPath("/" + username + "/" + target).get().get(),
+                context.getByPath("/" + username + "/" + source).get().get(), context).get();
+
+        Assert.assertTrue("Removed from source",
+                ! context.getByPath("/" + username + "/" + source + "/" + dirName).get().isPresent());
+        String newPath = "/" + username + "/" + target + "/" + dirName;
+        FileWrapper moved = context.getByPath(newPath).get().get();
+        Assert.assertTrue("Same cryptree node", moved.getPointer().capability.equals(originalCap));
+        Assert.assertTrue("Parent link updated", moved.getPath(context.network).get().equals(newPath));
+        checkFileContents(data, context.getByPath(newPath + "/" + filename).get().get(), context);
+
+        // a directory can't be moved into itself
+        try {
+            moved.moveTo(context.getByPath(newPath).get().get(),
+                    context.getByPath("/" + username + "/" + target).get().get(), context).get();
+            Assert.fail("Moved a directory into itself");
+        } catch (ExecutionException e) {}
+        Assert.assertTrue("Still present", context.getByPath(newPath).get().isPresent());
+    }
+
     // This one takes a while, so disable most of the time
 //    @Test
     public void hugeFolder() throws Exception {
@@ -1277,8 +1462,20 @@ public abstract class UserTests {
         FileWrapper copy = context.getByPath(home.resolve(foldername).resolve(filename)).join().get();
         Assert.assertTrue("Different base key", ! copy.getPointer().capability.rBaseKey.equals(original.getPointer().capability.rBaseKey));
         Assert.assertTrue("Different metadata key", ! getMetaKey(copy).equals(getMetaKey(original)));
-        Assert.assertTrue("Different data key", ! getDataKey(copy).equals(getDataKey(original)));
+        // our own unshared files are copied without re-encrypting their contents
+        Assert.assertTrue("Same data key", getDataKey(copy).equals(getDataKey(original)));
+        Assert.assertTrue("Same fragments", copy.getPointer().fileAccess.toCbor().links()
+                .equals(original.getPointer().fileAccess.toCbor().links()));
         checkFileContents(data, copy, context);
+
+        // modifying the copy leaves the original alone
+        byte[] section = randomData(1024);
+        copy.overwriteSectionJS(AsyncReader.build(section), 0, 5*1024*1024, 0, 5*1024*1024 + section.length,
+                context.network, crypto, x -> {}).join();
+        byte[] modified = Arrays.copyOf(data, data.length);
+        System.arraycopy(section, 0, modified, 5*1024*1024, section.length);
+        checkFileContents(modified, context.getByPath(home.resolve(foldername).resolve(filename)).join().get(), context);
+        checkFileContents(data, context.getByPath(home.resolve(filename)).join().get(), context);
     }
 
     @Test
@@ -1466,6 +1663,36 @@ public abstract class UserTests {
 
     }
 
+    @Test
+    public void overwriteContentsOfFileWithEmpty() throws Exception {
+        String username = generateUsername();
+        String password = "test";
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        FileWrapper userRoot = context.getUserRoot().get();
+
+        String filename = "somedata.txt";
+        Path filePath = Paths.get(username, filename);
+        byte[] data = randomData(6000);
+        userRoot = userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        checkFileContents(data, context.getByPath(filePath).join().get(), context);
+
+        // truncate to 0
+        byte[] empty = new byte[0];
+        userRoot = userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(empty), empty.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper truncated = context.getByPath(filePath).join().get();
+        Assert.assertTrue("File is empty", truncated.getSize() == 0);
+        checkFileContents(empty, truncated, context);
+
+        // empty over empty
+        userRoot.uploadOrReplaceFile(filename, new AsyncReader.ArrayBacked(empty), empty.length, context.network,
+                context.crypto, l -> {}, context.crypto.random.randomBytes(32)).get();
+        FileWrapper replaced = context.getByPath(filePath).join().get();
+        Assert.assertTrue("File is empty", replaced.getSize() == 0);
+        checkFileContents(empty, replaced, context);
+    }
+
     public static String randomString() {
         return UUID.randomUUID().toString();
     }
@@ -0,0 +1,130 @@
+package peergos.server.tests.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/** A minimal benchmark harness, for when we can't pull in JMH.
+ *
+ *  Each benchmark is run for a number of warmup iterations and then measured over a number of fixed duration
+ *  iterations in the same JVM. The results are the average time per operation, and are written in the same JSON format
+ *  as JMH (mode avgt), so they can be compared between releases with the usual JMH tooling.
+ */
+public class BenchmarkRunner {
+
+    public interface Op {
+        Object run() throws Exception;
+    }
+
+    private static class Result {
+        public final String name;
+        public final double[] microsPerOp;
+
+        public Result(String name, double[] microsPerOp) {
+            this.name = name;
+            this.microsPerOp = microsPerOp;
+        }
+
+        public double mean() {
+            return Arrays.stream(microsPerOp).average().orElse(0);
+        }
+
+        /** The half width of the 99.9% confidence interval, using the normal approximation */
+        public double error() {
+            int n = microsPerOp.length;
+            if (n < 2)
+                return Double.NaN;
+            double mean = mean();
+            double variance = Arrays.stream(microsPerOp).map(x -> (x - mean) * (x - mean)).sum() / (n - 1);
+            return 3.291 * Math.sqrt(variance / n);
+        }
+    }
+
+    // Results are published here so the JIT can't eliminate the benchmarked code
+    public static volatile Object sink;
+
+    private final int warmupIterations, iterations;
+    private final long iterationNanos;
+    private final Pattern filter;
+    private final List<Result> results = new ArrayList<>();
+
+    public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis, Pattern filter) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+        this.filter = filter;
+    }
+
+    public boolean isIncluded(String name) {
+        return filter.matcher(name).find();
+    }
+
+    /** Use this to skip building the fixtures for a group of benchmarks which are all filtered out
+     */
+    public boolean anyIncluded(Collection<String> names) {
+        return names.stream().anyMatch(this::isIncluded);
+    }
+
+    public void run(String name, Op op) {
+        if (! isIncluded(name))
+            return;
+        try {
+            for (int i=0; i < warmupIterations; i++)
+                iteration(op);
+            double[] microsPerOp = new double[iterations];
+            for (int i=0; i < iterations; i++)
+                microsPerOp[i] = iteration(op);
+            Result res = new Result(name, microsPerOp);
+            results.add(res);
+            System.out.printf("%-40s %12.3f +/- %.3f us/op\n", name, res.mean(), res.error());
+        } catch (Exception e) {
+            throw new RuntimeException("Benchmark " + name + " failed", e);
+        }
+    }
+
+    private double iteration(Op op) throws Exception {
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long ops = 0;
+        long now;
+        do {
+            sink = op.run();
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return (now - start) / 1000.0 / ops;
+    }
+
+    private static String number(double d) {
+        return Double.isNaN(d) ? "\"NaN\"" : Double.toString(d);
+    }
+
+    public void writeJson(String prefix, Path out) throws IOException {
+        String json = results.stream()
+                .map(r -> "  {\n" +
+                        "    \"benchmark\": \"" + prefix + "." + r.name + "\",\n" +
+                        "    \"mode\": \"avgt\",\n" +
+                        "    \"threads\": 1,\n" +
+                        "    \"forks\": 1,\n" +
+                        "    \"jvm\": \"" + System.getProperty("java.home").replace("\\", "\\\\") + "\",\n" +
+                        "    \"jdkVersion\": \"" + System.getProperty("java.version") + "\",\n" +
+                        "    \"warmupIterations\": " + warmupIterations + ",\n" +
+                        "    \"warmupTime\": \"" + iterationNanos / 1_000_000 + " ms\",\n" +
+                        "    \"measurementIterations\": " + iterations + ",\n" +
+                        "    \"measurementTime\": \"" + iterationNanos / 1_000_000 + " ms\",\n" +
+                        "    \"primaryMetric\": {\n" +
+                        "      \"score\": " + number(r.mean()) + ",\n" +
+                        "      \"scoreError\": " + number(r.error()) + ",\n" +
+                        "      \"scoreUnit\": \"us/op\",\n" +
+                        "      \"rawData\": [[" + Arrays.stream(r.microsPerOp)
+                                .mapToObj(Double::toString)
+                                .collect(Collectors.joining(", ")) + "]]\n" +
+                        "    },\n" +
+                        "    \"secondaryMetrics\": {}\n" +
+                        "  }")
+                .collect(Collectors.joining(",\n", "[\n", "\n]\n"));
+        Files.write(out, json.getBytes());
+        System.out.println("Wrote " + results.size() + " results to " + out);
+    }
+}
@@ -0,0 +1,234 @@
+package peergos.server.tests.bench;
+
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multibase.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/** Micro benchmarks of the hot paths in reading and writing files, and meso benchmarks of whole file uploads and
+ *  downloads against in memory storage.
+ *
+ *  Run with "ant bench", optionally with -Dbench.filter=regex to select benchmarks. Results are written to
+ *  bench-results.json in JMH's JSON format.
+ *
+ *  Arguments: -filter regex -out file -warmups n -iterations n -iteration-millis n
+ */
+public class HotPathBenchmarks {
+
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random random = new Random(42);
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static Multihash randomHash() {
+        return new Multihash(Multihash.Type.sha2_256, randomBytes(32));
+    }
+
+    private static String size(int bytes) {
+        return bytes >= 1024 * 1024 ? bytes / 1024 / 1024 + "MiB" : bytes / 1024 + "KiB";
+    }
+
+    private static void cbor(BenchmarkRunner bench) {
+        // roughly the shape of a cryptree node: a nonce, fragment links and some properties
+        Map<String, Cborable> values = new TreeMap<>();
+        values.put("n", new CborObject.CborByteArray(randomBytes(24)));
+        values.put("f", new CborObject.CborList(IntStream.range(0, 40)
+                .mapToObj(i -> new CborObject.CborMerkleLink(randomHash()))
+                .collect(Collectors.toList())));
+        values.put("p", new FileProperties("a-file-name.txt", false, false, "text/plain", 12345, LocalDateTime.now(),
+                false, Optional.empty(), Optional.empty()).toCbor());
+        values.put("s", new CborObject.CborLong(1234567890L));
+        CborObject.CborMap map = CborObject.CborMap.build(values);
+        byte[] encoded = map.toByteArray();
+
+        bench.run("cborEncode", map::toByteArray);
+        bench.run("cborDecode", () -> CborObject.fromByteArray(encoded));
+        bench.run("cborDecodeOneField", () -> ((CborObject.CborMap) CborObject.fromByteArray(encoded)).getLong("s"));
+        // the stream based codec, for comparison
+        bench.run("cborEncodeStream", () -> {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            map.serialize(new CborEncoder(bout));
+            return bout.toByteArray();
+        });
+        bench.run("cborDecodeStream", () -> CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(encoded)),
+                encoded.length));
+    }
+
+    private static void champ(BenchmarkRunner bench) throws Exception {
+        if (! bench.anyIncluded(Arrays.asList("champGet", "champPut")))
+            return;
+        RAMStorage storage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        Function<ByteArrayWrapper, byte[]> keyHasher = IpfsCoreNode::keyHash;
+        int bitWidth = 5, maxCollisions = 3;
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Champ champ = Champ.empty();
+        Multihash root = storage.put(user.publicKeyHash, user, champ.serialize(), crypto.hasher, tid).join();
+        List<ByteArrayWrapper> keys = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomBytes(32));
+            keys.add(key);
+            Pair<Champ, Multihash> updated = champ.put(user.publicKeyHash, user, key, keyHasher.apply(key), 0,
+                    MaybeMultihash.empty(), MaybeMultihash.of(randomHash()), bitWidth, maxCollisions, keyHasher, tid,
+                    storage, crypto.hasher, root).join();
+            champ = updated.left;
+            root = updated.right;
+        }
+        Champ base = champ;
+        Multihash baseRoot = root;
+
+        bench.run("champGet", () -> {
+            ByteArrayWrapper key = keys.get(random.nextInt(keys.size()));
+            return base.get(key, keyHasher.apply(key), 0, bitWidth, storage).join();
+        });
+        bench.run("champPut", () -> {
+            ByteArrayWrapper key = new ByteArrayWrapper(randomBytes(32));
+            return base.put(user.publicKeyHash, user, key, keyHasher.apply(key), 0, MaybeMultihash.empty(),
+                    MaybeMultihash.of(randomHash()), bitWidth, maxCollisions, keyHasher, tid, storage, crypto.hasher,
+                    baseRoot).join();
+        });
+    }
+
+    private static void crypto(BenchmarkRunner bench) {
+        byte[] key = randomBytes(32);
+        byte[] nonce = randomBytes(24);
+        for (int size : new int[]{4 * 1024, Chunk.MAX_SIZE}) {
+            byte[] data = randomBytes(size);
+            bench.run("secretbox_" + size(size), () -> TweetNaCl.secretbox(data, nonce, key));
+        }
+        byte[] publicSigningKey = new byte[32];
+        byte[] secretSigningKey = new byte[64];
+        TweetNaCl.crypto_sign_keypair(publicSigningKey, secretSigningKey, false);
+        byte[] hash = randomBytes(64);
+        bench.run("crypto_sign", () -> TweetNaCl.crypto_sign(hash, secretSigningKey));
+    }
+
+    private static void hashing(BenchmarkRunner bench) {
+        for (int size : new int[]{4 * 1024, Chunk.MAX_SIZE}) {
+            byte[] data = randomBytes(size);
+            bench.run("blake2b_" + size(size), () -> Blake2b.Digest.newInstance(32).digest(data));
+            bench.run("sha256_" + size(size), () -> crypto.hasher.sha256(data).join());
+        }
+    }
+
+    private static void fragments(BenchmarkRunner bench) {
+        SymmetricKey key = SymmetricKey.random();
+        for (int size : new int[]{4 * 1024, Chunk.MAX_SIZE}) {
+            CborObject.CborByteArray chunk = new CborObject.CborByteArray(randomBytes(size));
+            bench.run("fragmentedCipherText_" + size(size), () -> FragmentedPaddedCipherText.build(key, chunk,
+                    4096, Fragment.MAX_LENGTH, crypto.hasher, false).join());
+        }
+    }
+
+    private static void multipart(BenchmarkRunner bench) {
+        String boundary = "peergosbenchmarkboundary0123456789";
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(bout), true);
+        for (int i = 0; i < 40; i++) {
+            writer.append("--" + boundary).append("\r\n");
+            writer.append("Content-Disposition: file; name=\"file\";").append("\r\n");
+            writer.append("Content-Type: application/octet-stream").append("\r\n");
+            writer.append("Content-Transfer-Encoding: binary").append("\r\n");
+            writer.append("\r\n");
+            writer.flush();
+            bout.writeBytes(randomBytes(Fragment.MAX_LENGTH));
+            writer.append("\r\n");
+        }
+        writer.append("--" + boundary + "--").append("\r\n");
+        writer.flush();
+        byte[] body = bout.toByteArray();
+        bench.run("multipartReceive_" + size(body.length),
+                () -> MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary));
+    }
+
+    private static void cid(BenchmarkRunner bench) {
+        String v0 = Cid.buildV0(randomHash()).toString();
+        String v1 = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, randomBytes(32)).toString();
+        byte[] raw = randomHash().toBytes();
+        String base58 = Base58.encode(raw);
+        bench.run("cidDecodeV0", () -> Cid.decode(v0));
+        bench.run("cidDecodeV1", () -> Cid.decode(v1));
+        bench.run("base58Encode", () -> Base58.encode(raw));
+        bench.run("base58Decode", () -> Base58.decode(base58));
+    }
+
+    /** Upload and download whole files through the full FileWrapper stack. All writes go to RAM, on top of a local
+     *  server which holds the user's identity.
+     */
+    private static void files(BenchmarkRunner bench) {
+        int[] sizes = {10 * 1024, Chunk.MAX_SIZE, 3 * Chunk.MAX_SIZE};
+        List<String> names = Arrays.stream(sizes)
+                .boxed()
+                .flatMap(size -> Stream.of("upload_" + size(size), "download_" + size(size)))
+                .collect(Collectors.toList());
+        if (! bench.anyIncluded(names))
+            return;
+        Args args = UserTests.buildArgs().with("useIPFS", "false");
+        UserService service = Main.PKI_INIT.main(args);
+        WriteSynchronizer synchronizer = new WriteSynchronizer(service.mutable, service.storage, crypto.hasher);
+        MutableTree mutableTree = new MutableTreeImpl(service.mutable, service.storage, crypto.hasher, synchronizer);
+        NetworkAccess network = new NetworkAccess(service.coreNode, service.social, service.storage,
+                service.mutable, mutableTree, synchronizer, service.controller, service.usage, Arrays.asList("peergos"), false);
+        String username = "bench", password = "benchpassword";
+        PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+
+        NetworkAccess ram = NonWriteThroughNetwork.build(network);
+        UserContext context = UserContext.signIn(username, password, ram, crypto).join();
+        FileWrapper root = context.getUserRoot().join();
+        for (int size : sizes) {
+            byte[] data = randomBytes(size);
+            String name = "file-" + size;
+            bench.run("upload_" + size(size), () -> root.uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data),
+                    data.length, ram, crypto, x -> {}, crypto.random.randomBytes(32)).join());
+            root.uploadOrReplaceFile(name, new AsyncReader.ArrayBacked(data), data.length, ram, crypto, x -> {},
+                    crypto.random.randomBytes(32)).join();
+            FileWrapper file = context.getByPath("/" + username + "/" + name).join().get();
+            bench.run("download_" + size(size), () -> Serialize.readFully(
+                    file.getInputStream(ram, crypto, x -> {}).join(), size).join());
+        }
+    }
+
+    public static void main(String[] params) throws Exception {
+        Args args = Args.parse(params, Optional.empty(), false);
+        BenchmarkRunner bench = new BenchmarkRunner(args.getInt("warmups", 3), args.getInt("iterations", 5),
+                args.getInt("iteration-millis", 1_000), Pattern.compile(args.getArg("filter", "")));
+        cbor(bench);
+        champ(bench);
+        crypto(bench);
+        hashing(bench);
+        fragments(bench);
+        multipart(bench);
+        cid(bench);
+        files(bench);
+        bench.writeJson(HotPathBenchmarks.class.getName(), Paths.get(args.getArg("out", "bench-results.json")));
+        // the local server has non daemon threads
+        System.exit(0);
+    }
+}
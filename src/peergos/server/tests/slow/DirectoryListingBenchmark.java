@@ -0,0 +1,173 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+import peergos.server.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+@RunWith(Parameterized.class)
+public class DirectoryListingBenchmark {
+
+    private static int RANDOM_SEED = 666;
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Args args = UserTests.buildArgs().with("useIPFS", "false");
+    private static final UserService service = Main.PKI_INIT.main(args);
+
+    private static Random random = new Random(RANDOM_SEED);
+    private final int nChildren;
+
+    public DirectoryListingBenchmark(int nChildren) {
+        this.nChildren = nChildren;
+    }
+
+    @Parameterized.Parameters()
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                {1_000},
+                {10_000},
+                {100_000}
+        });
+    }
+
+    private static NetworkAccess buildNetwork(ContentAddressedStorage storage) {
+        WriteSynchronizer synchronizer = new WriteSynchronizer(service.mutable, storage, crypto.hasher);
+        MutableTree mutableTree = new MutableTreeImpl(service.mutable, storage, crypto.hasher, synchronizer);
+        return new NetworkAccess(service.coreNode, service.social, storage, service.mutable, mutableTree,
+                synchronizer, service.controller, service.usage, Arrays.asList("peergos"), false);
+    }
+
+    private static class CountingStorage extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        public final AtomicLong gets = new AtomicLong(0);
+
+        public CountingStorage(ContentAddressedStorage target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+            gets.incrementAndGet();
+            return target.get(hash);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+            gets.incrementAndGet();
+            return target.getRaw(hash);
+        }
+    }
+
+    private String generateUsername() {
+        return "test" + (random.nextInt() % 10000);
+    }
+
+    /** Add empty subdirectories in bulk, committing the writer data and all the child links in one go. This avoids
+     *  both the quadratic cost of checking for name clashes on every mkdir and a pointer update per child.
+     */
+    private static Snapshot addSubdirs(FileWrapper dir, int count, List<String> names, NetworkAccess network) {
+        WritableAbsoluteCapability us = dir.writableFilePointer();
+        SigningPrivateKeyAndPublicHash signer = dir.signingPair();
+        CryptreeNode dirNode = dir.getPointer().fileAccess;
+        SymmetricKey ourParentKey = dirNode.getParentKey(us.rBaseKey);
+        RelativeCapability ourCap = new RelativeCapability(Optional.empty(), us.getMapKey(), ourParentKey, Optional.empty());
+        return network.synchronizer.applyComplexUpdate(dir.owner(), signer, (base, committer) -> {
+            // Only the final champ root needs to be committed to the mutable pointer
+            Committer uncommitted = (owner, w, wd, existing, tid) ->
+                    Futures.of(new Snapshot(w.publicKeyHash, new CommittedWriterData(existing.hash, wd)));
+            List<RelativeCapability> childLinks = new ArrayList<>();
+            return Futures.reduceAll(IntStream.range(0, count).boxed().collect(Collectors.toList()), base, (v, i) -> {
+                SymmetricKey dirReadKey = SymmetricKey.random();
+                SymmetricKey dirWriteKey = SymmetricKey.random();
+                WritableAbsoluteCapability childCap = us.withBaseKey(dirReadKey)
+                        .withBaseWriteKey(dirWriteKey)
+                        .withMapKey(crypto.random.randomBytes(32));
+                String name = UUID.randomUUID().toString();
+                names.add(name);
+                childLinks.add(us.relativise(childCap).withName(name, us.rBaseKey, crypto.hasher));
+                RelativeCapability nextChunk = new RelativeCapability(Optional.empty(), crypto.random.randomBytes(32),
+                        dirReadKey, Optional.empty());
+                return CryptreeNode.createEmptyDir(MaybeMultihash.empty(), dirReadKey, dirWriteKey, Optional.empty(),
+                        new FileProperties(name, true, false, "", 0, LocalDateTime.now(),
+                                false, Optional.empty(), Optional.empty()),
+                        Optional.of(ourCap), SymmetricKey.random(), nextChunk, crypto.hasher)
+                        .thenCompose(child -> IpfsTransaction.call(us.owner,
+                                tid -> child.commit(v, uncommitted, childCap, Optional.of(signer), network, tid),
+                                network.dhtClient));
+            }, (a, b) -> b).thenCompose(v -> dirNode.addChildrenAndCommit(v, committer, childLinks, us, signer, network, crypto));
+        }).join();
+    }
+
+    // Listing a directory with a cold cache, counting the block retrievals
+    // LIST(1000 children) duration: 222 mS, block gets: 1116
+    @Test
+    public void listHugeFolder() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        NetworkAccess network = buildNetwork(service.storage);
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        String dirName = "dir" + nChildren;
+        context.getUserRoot().join().mkdir(dirName, network, false, crypto).join();
+        FileWrapper dir = context.getByPath("/" + username + "/" + dirName).join().get();
+        long t0 = System.currentTimeMillis();
+        Snapshot version = addSubdirs(dir, nChildren, new ArrayList<>(), network);
+        System.err.printf("Populated %d children in %d mS\n", nChildren, System.currentTimeMillis() - t0);
+
+        for (int i=0; i < 5; i++) {
+            CountingStorage counter = new CountingStorage(service.storage);
+            NetworkAccess cold = buildNetwork(counter);
+            FileWrapper coldDir = cold.getFile(version, dir.getPointer().capability.readOnly(), Optional.empty(), username)
+                    .join().get();
+            long t1 = System.currentTimeMillis();
+            Set<FileWrapper> children = coldDir.getChildren(crypto.hasher, cold).join();
+            long duration = System.currentTimeMillis() - t1;
+            Assert.assertTrue("Correct number of children", children.size() == nChildren);
+            System.err.printf("LIST(%d children) duration: %d mS, block gets: %d\n", nChildren, duration, counter.gets.get());
+        }
+    }
+
+    // Finding a single child by name with a cold cache, counting the block retrievals
+    @Test
+    public void lookupInHugeFolder() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        NetworkAccess network = buildNetwork(service.storage);
+        UserContext context = PeergosNetworkUtils.ensureSignedUp(username, password, network, crypto);
+        String dirName = "dir" + nChildren;
+        context.getUserRoot().join().mkdir(dirName, network, false, crypto).join();
+        FileWrapper dir = context.getByPath("/" + username + "/" + dirName).join().get();
+        List<String> names = new ArrayList<>();
+        Snapshot version = addSubdirs(dir, nChildren, names, network);
+
+        for (int i=0; i < 5; i++) {
+            CountingStorage counter = new CountingStorage(service.storage);
+            NetworkAccess cold = buildNetwork(counter);
+            FileWrapper coldDir = cold.getFile(version, dir.getPointer().capability.readOnly(), Optional.empty(), username)
+                    .join().get();
+            String name = names.get(random.nextInt(names.size()));
+            long t1 = System.currentTimeMillis();
+            Optional<FileWrapper> child = coldDir.getDescendentByPath(name, crypto.hasher, cold).join();
+            long duration = System.currentTimeMillis() - t1;
+            Assert.assertTrue("Found child", child.isPresent() && child.get().getName().equals(name));
+            System.err.printf("LOOKUP(%d children) duration: %d mS, block gets: %d\n", nChildren, duration, counter.gets.get());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package peergos.server.tests.slow;
+
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Measure the encode and decode throughput of the erasure codes on a full chunk
+ *
+ *  ReedSolomon(10+4) encode: 381.9 MiB/s
+ *  ReedSolomon(10+4) degraded decode: 375.3 MiB/s
+ *  ReedSolomon(40+20) encode: 71.0 MiB/s
+ *  Erasure(40+20) encode: 4.6 MiB/s
+ */
+public class ErasureBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random r = new Random(42);
+        byte[] chunk = new byte[5 * 1024 * 1024];
+        r.nextBytes(chunk);
+
+        for (int[] params : new int[][] {{4, 2}, {10, 4}, {40, 20}}) {
+            ReedSolomon codec = new ReedSolomon(params[0], params[1]);
+            String name = "ReedSolomon(" + params[0] + "+" + params[1] + ")";
+            report(name + " encode", chunk.length, () -> codec.encode(chunk));
+            byte[][] shards = codec.encode(chunk);
+            report(name + " decode", chunk.length, () -> codec.decode(shards.clone(), chunk.length));
+            report(name + " degraded decode", chunk.length, () -> {
+                byte[][] degraded = shards.clone();
+                for (int i=0; i < params[1]; i++)
+                    degraded[i] = null;
+                return codec.decode(degraded, chunk.length);
+            });
+        }
+
+        // The original polynomial based codec, 40 original + 20 extra fragments
+        report("Erasure(40+20) encode", chunk.length, () -> Erasure.split(chunk, 40, 10));
+    }
+
+    private static void report(String name, int size, Supplier<Object> op) {
+        for (int i=0; i < ROUNDS; i++)
+            op.get();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ROUNDS; i++)
+            op.get();
+        long duration = System.nanoTime() - t0;
+        System.out.printf("%s: %.1f MiB/s\n", name, (double) size * ROUNDS / 1024 / 1024 / (duration / 1e9));
+    }
+}
@@ -8,9 +8,12 @@ import peergos.server.tests.*;
 import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
 
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.stream.*;
 
 @RunWith(Parameterized.class)
 public class LoginBenchmark {
@@ -65,4 +68,36 @@ public class LoginBenchmark {
                     duration, best, worst, (t1 + duration - start) / (i + 1));
         }
     }
+
+    // Login with friends, each of whom has shared a file with us, then read one of the shared files
+    @Test
+    public void loginWithManyFriends() throws Exception {
+        int nFriends = 20;
+        String password = "test01";
+        UserContext us = ensureSignedUp(generateUsername(), password, network, crypto);
+        List<UserContext> friends = PeergosNetworkUtils.getUserContextsForNode(network, random, nFriends,
+                Collections.nCopies(nFriends, password));
+        PeergosNetworkUtils.friendBetweenGroups(Arrays.asList(us), friends);
+        for (UserContext friend : friends) {
+            byte[] data = ("Hi from " + friend.username).getBytes();
+            friend.getUserRoot().join().uploadOrReplaceFile("hello.txt", AsyncReader.build(data), data.length,
+                    friend.network, crypto, x -> {}, crypto.random.randomBytes(32)).join();
+            friend.shareReadAccessWith(Paths.get(friend.username, "hello.txt"),
+                    Stream.of(us.username).collect(Collectors.toSet())).join();
+        }
+        String lastFriend = friends.get(nFriends - 1).username;
+
+        long worst = 0, best = Long.MAX_VALUE, start = System.currentTimeMillis();
+        for (int i=0; i < 10; i++) {
+            long t1 = System.currentTimeMillis();
+            UserContext context = ensureSignedUp(us.username, password, network, crypto);
+            long loggedIn = System.currentTimeMillis();
+            Assert.assertTrue(context.getByPath(Paths.get(lastFriend, "hello.txt")).join().isPresent());
+            long duration = System.currentTimeMillis() - t1;
+            worst = Math.max(worst, duration);
+            best = Math.min(best, duration);
+            System.err.printf("LOGIN+READ(%d) with %d friends duration: %d mS (login %d mS), best: %d mS, worst: %d mS, av: %d mS\n",
+                    i, nFriends, duration, loggedIn - t1, best, worst, (t1 + duration - start) / (i + 1));
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package peergos.server.tests.slow;
+
+import peergos.server.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Compare the throughput of the available secretbox and sha256 implementations on chunk sized inputs
+ *
+ *  To use the native implementation run with -Djava.library.path=native-lib
+ *
+ *  secretbox TweetNaCl(5242880 bytes): 16.4 MiB/s
+ *  secretbox Fast(5242880 bytes): 201.4 MiB/s
+ *  secretbox JNI(5242880 bytes): 27.0 MiB/s
+ */
+public class SymmetricEncryptionBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random r = new Random(42);
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[24];
+        r.nextBytes(key);
+        r.nextBytes(nonce);
+
+        Map<String, Salsa20Poly1305> symmetric = new LinkedHashMap<>();
+        symmetric.put("TweetNaCl", new Salsa20Poly1305.Java());
+        symmetric.put("Fast", new FastSalsa20Poly1305());
+        try {
+            symmetric.put("JNI", new JniTweetNacl.Symmetric(JniTweetNacl.build()));
+        } catch (Throwable t) {
+            System.out.println("Native library unavailable, skipping JNI");
+        }
+        ScryptJava lookupHasher = new ScryptJava();
+        FastHasher fastHasher = new FastHasher();
+
+        for (int size : new int[] {4 * 1024, 128 * 1024, 5 * 1024 * 1024}) {
+            byte[] data = new byte[size];
+            r.nextBytes(data);
+            for (Map.Entry<String, Salsa20Poly1305> e : symmetric.entrySet()) {
+                Salsa20Poly1305 impl = e.getValue();
+                byte[] cipherText = impl.secretbox(data, nonce, key);
+                report("secretbox " + e.getKey(), size, () -> impl.secretbox(data, nonce, key));
+                report("secretbox_open " + e.getKey(), size, () -> impl.secretbox_open(cipherText, nonce, key));
+            }
+            report("sha256 ScryptJava", size, () -> lookupHasher.sha256(data).join());
+            report("sha256 FastHasher", size, () -> fastHasher.sha256(data).join());
+        }
+    }
+
+    private static void report(String name, int size, Supplier<byte[]> op) {
+        int reps = Math.max(1, 8 * 1024 * 1024 / size);
+        for (int i=0; i < WARMUP_ROUNDS; i++)
+            for (int j=0; j < reps; j++)
+                op.get();
+        long t0 = System.nanoTime();
+        for (int i=0; i < ROUNDS; i++)
+            for (int j=0; j < reps; j++)
+                op.get();
+        long duration = System.nanoTime() - t0;
+        double mbPerSec = (double) size * reps * ROUNDS / 1024 / 1024 / (duration / 1e9);
+        System.out.printf("%s(%d bytes): %.1f MiB/s\n", name, size, mbPerSec);
+    }
+}
@@ -80,6 +80,32 @@ public class HttpUtil {
         }
     }
 
+    /** Start a GET request, returning the content length (or -1 if unknown) and a stream of the body, which the
+     *  caller must close
+     */
+    public static Pair<Long, InputStream> getStream(PresignedUrl url) throws IOException {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URI(url.base).toURL().openConnection();
+            conn.setConnectTimeout(10_000);
+            conn.setReadTimeout(60_000);
+            conn.setRequestMethod("GET");
+            for (Map.Entry<String, String> e : url.fields.entrySet()) {
+                conn.setRequestProperty(e.getKey(), e.getValue());
+            }
+
+            try {
+                InputStream in = conn.getInputStream();
+                return new Pair<>(conn.getContentLengthLong(), in);
+            } catch (IOException e) {
+                InputStream err = conn.getErrorStream();
+                byte[] errBody = Serialize.readFully(err);
+                throw new IOException(new String(errBody), e);
+            }
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static Map<String, List<String>> head(PresignedUrl head) throws Exception {
         HttpURLConnection conn = (HttpURLConnection) new URI(head.base).toURL().openConnection();
         conn.setRequestMethod("HEAD");
@@ -0,0 +1,60 @@
+package peergos.server.util;
+
+import peergos.server.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.function.*;
+
+/** Wraps database connections to record the time taken to execute each statement.
+ */
+public class MeteredConnection {
+
+    @SuppressWarnings("unchecked")
+    public static Supplier<Connection> wrap(String db, Supplier<Connection> source) {
+        return () -> proxy(Connection.class, source.get(), (target, method, args) -> {
+            Object res = invoke(target, method, args);
+            if (res instanceof Statement)
+                return proxy((Class<? extends Statement>) statementType(method.getReturnType()), (Statement) res,
+                        (stmt, m, a) -> m.getName().startsWith("execute") ?
+                                time(db, stmt, m, a) :
+                                invoke(stmt, m, a));
+            return res;
+        });
+    }
+
+    private static Class<?> statementType(Class<?> returned) {
+        if (CallableStatement.class.isAssignableFrom(returned))
+            return CallableStatement.class;
+        if (PreparedStatement.class.isAssignableFrom(returned))
+            return PreparedStatement.class;
+        return Statement.class;
+    }
+
+    private interface Handler<T> {
+        Object invoke(T target, Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<? extends T> type, T target, Handler<T> handler) {
+        return (T) Proxy.newProxyInstance(MeteredConnection.class.getClassLoader(), new Class<?>[]{type},
+                (p, method, args) -> handler.invoke(target, method, args));
+    }
+
+    private static Object time(String db, Object target, Method method, Object[] args) throws Throwable {
+        long start = System.nanoTime();
+        try {
+            return invoke(target, method, args);
+        } finally {
+            AggregatedMetrics.JDBC_STATEMENT_DURATION.labels(db).observe((System.nanoTime() - start) / 1_000_000.0);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
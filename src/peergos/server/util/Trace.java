@@ -0,0 +1,48 @@
+package peergos.server.util;
+
+import peergos.shared.util.*;
+
+import java.security.*;
+import java.util.*;
+
+/** The trace id of the request being handled on the current thread.
+ *
+ *  A trace id is taken from the incoming request if present, or else generated, and is sent on any HTTP calls made
+ *  while handling the request (e.g. proxied calls to another server), so the hops of a single user request can be
+ *  matched up in the logs of each server.
+ */
+public class Trace {
+    public static final String HEADER = "X-Peergos-Trace";
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<String> current = new ThreadLocal<>();
+
+    public static Optional<String> current() {
+        return Optional.ofNullable(current.get());
+    }
+
+    /**
+     *
+     * @param incoming the trace id from the request, if any
+     * @return the trace id for the current thread
+     */
+    public static String begin(Optional<String> incoming) {
+        String id = incoming.filter(Trace::isValid).orElseGet(Trace::newId);
+        current.set(id);
+        return id;
+    }
+
+    public static void end() {
+        current.remove();
+    }
+
+    private static boolean isValid(String id) {
+        return id.length() <= 64 && id.matches("[0-9a-zA-Z-]+");
+    }
+
+    private static String newId() {
+        byte[] id = new byte[8];
+        random.nextBytes(id);
+        return ArrayOps.bytesToHex(id);
+    }
+}
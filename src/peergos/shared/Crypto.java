@@ -7,12 +7,16 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
 
+import java.util.concurrent.*;
 import java.util.function.*;
 
 public class Crypto {
 
     private static Crypto INSTANCE;
     private static boolean isJava;
+    // Runs cpu bound crypto which is independent across items, like hashing and signing fragments. Defaults to
+    // running inline on the calling thread, which is all we can do in Javascript
+    private static volatile Executor cryptoPool = Runnable::run;
 
     @JsProperty
     public final SafeRandom random;
@@ -45,6 +49,35 @@ public class Crypto {
         return instance;
     }
 
+    /** Use the given executor to parallelise independent crypto operations, e.g. a ForkJoinPool
+     *
+     * @param pool
+     */
+    public static synchronized void setCryptoPool(Executor pool) {
+        cryptoPool = pool;
+    }
+
+    /** Run some crypto work in the crypto pool
+     *
+     * @param work
+     * @return the result of work
+     */
+    public static <T> CompletableFuture<T> inCryptoPool(Supplier<CompletableFuture<T>> work) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        cryptoPool.execute(() -> {
+            try {
+                work.get().thenAccept(res::complete)
+                        .exceptionally(t -> {
+                            res.completeExceptionally(t);
+                            return null;
+                        });
+            } catch (Throwable t) {
+                res.completeExceptionally(t);
+            }
+        });
+        return res;
+    }
+
     @JsMethod
     public static Crypto initJS() {
         SafeRandom.Javascript random = new SafeRandom.Javascript();
@@ -63,7 +96,11 @@ public class Crypto {
     }
 
     public static Crypto initNative(Salsa20Poly1305 symmetric, Ed25519 signer, Curve25519 boxer) {
+        return initNative(symmetric, signer, boxer, new ScryptJava());
+    }
+
+    public static Crypto initNative(Salsa20Poly1305 symmetric, Ed25519 signer, Curve25519 boxer, Hasher hasher) {
         SafeRandom.Java random = new SafeRandom.Java();
-        return init(() -> new Crypto(random, new ScryptJava(), symmetric, signer, boxer), true);
+        return init(() -> new Crypto(random, hasher, symmetric, signer, boxer), true);
     }
 }
@@ -159,6 +159,16 @@ public class NetworkAccess {
                                                          ContentAddressedStorage localDht,
                                                          Hasher hasher,
                                                          boolean isJavascript) {
+        return build(apiPoster, p2pPoster, pkiServerNodeId, localDht, hasher, Optional.empty(), isJavascript);
+    }
+
+    public static CompletableFuture<NetworkAccess> build(HttpPoster apiPoster,
+                                                         HttpPoster p2pPoster,
+                                                         Multihash pkiServerNodeId,
+                                                         ContentAddressedStorage localDht,
+                                                         Hasher hasher,
+                                                         Optional<BlockCache> blockCache,
+                                                         boolean isJavascript) {
         CoreNode direct = buildDirectCorenode(apiPoster);
         CompletableFuture<NetworkAccess> result = new CompletableFuture<>();
         direct.getUsernames("")
@@ -166,7 +176,7 @@ public class NetworkAccess {
                     // We are on a Peergos server
                     CoreNode core = direct;
                     buildDirectS3Blockstore(localDht, core, apiPoster, true)
-                            .thenCompose(dht -> build(core, dht, apiPoster, p2pPoster, usernames, true, isJavascript))
+                            .thenCompose(dht -> build(core, dht, apiPoster, p2pPoster, usernames, true, blockCache, isJavascript))
                             .thenApply(result::complete)
                             .exceptionally(t -> {
                                 result.completeExceptionally(t);
@@ -183,7 +193,7 @@ public class NetworkAccess {
                     ContentAddressedStorage localIpfs = buildLocalDht(apiPoster, false);
                     CoreNode core = buildProxyingCorenode(p2pPoster, pkiServerNodeId);
                     core.getUsernames("").thenCompose(usernames ->
-                            build(core, localIpfs, apiPoster, p2pPoster, usernames, false, isJavascript)
+                            build(core, localIpfs, apiPoster, p2pPoster, usernames, false, blockCache, isJavascript)
                                     .thenApply(result::complete))
                             .exceptionally(t2 -> {
                                 result.completeExceptionally(t2);
@@ -200,6 +210,7 @@ public class NetworkAccess {
                                                           HttpPoster p2pPoster,
                                                           List<String> usernames,
                                                           boolean isPeergosServer,
+                                                          Optional<BlockCache> blockCache,
                                                           boolean isJavascript) {
         return localDht.id()
                 .exceptionally(t -> new Multihash(Multihash.Type.sha2_256, new byte[32]))
@@ -209,7 +220,10 @@ public class NetworkAccess {
                             localDht :
                             new ContentAddressedStorage.Proxying(localDht, proxingDht, nodeId, core);
                     HashVerifyingStorage verifyingStorage = new HashVerifyingStorage(new RetryStorage(storage, 3), isJavascript ? new ScryptJS() : new ScryptJava());
-                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 1_000, 50 * 1024);
+                    ContentAddressedStorage persistentlyCached = blockCache
+                            .<ContentAddressedStorage>map(cache -> new BlockCachingStorage(verifyingStorage, cache))
+                            .orElse(verifyingStorage);
+                    ContentAddressedStorage p2pDht = new CachingStorage(persistentlyCached, 1_000, 50 * 1024);
                     MutablePointersProxy httpMutable = new HttpMutablePointers(apiPoster, p2pPoster);
                     MutablePointers p2pMutable =
                             isPeergosServer ?
@@ -247,11 +261,29 @@ public class NetworkAccess {
                 .thenApply(e -> e.withMutablePointerCache(7_000));
     }
 
+    /**
+     *
+     * @param target
+     * @param isPublicServer
+     * @param blockCache A persistent cache for metadata blocks, which survives restarts
+     * @return
+     */
+    public static CompletableFuture<NetworkAccess> buildJava(URL target, boolean isPublicServer, BlockCache blockCache) {
+        return buildNonCachingJava(target, isPublicServer, Optional.of(blockCache))
+                .thenApply(e -> e.withMutablePointerCache(7_000));
+    }
+
     public static CompletableFuture<NetworkAccess> buildNonCachingJava(URL target, boolean isPublicServer) {
+        return buildNonCachingJava(target, isPublicServer, Optional.empty());
+    }
+
+    private static CompletableFuture<NetworkAccess> buildNonCachingJava(URL target,
+                                                                        boolean isPublicServer,
+                                                                        Optional<BlockCache> blockCache) {
         JavaPoster poster = new JavaPoster(target, isPublicServer);
         Multihash pkiNodeId = null; // This is not required when talking to a Peergos server
         ContentAddressedStorage localDht = buildLocalDht(poster, true);
-        return build(poster, poster, pkiNodeId, localDht, new ScryptJava(), false);
+        return build(poster, poster, pkiNodeId, localDht, new ScryptJava(), blockCache, false);
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(int targetPort) {
@@ -277,31 +309,74 @@ public class NetworkAccess {
                 .thenApply(res -> res.isEmpty() ? Optional.empty() : Optional.of(res.get(0)));
     }
 
+    /** Retrieve the cryptree nodes for many capabilities at once. The champ lookups for each writer are done in a
+     * single traversal, so champ nodes on shared prefixes are only retrieved once, and the cryptree nodes are then
+     * all retrieved concurrently.
+     *
+     * @param links
+     * @param current
+     * @return the retrieved capabilities that were present, in the same order as the links
+     */
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
-                .map(link -> {
-                    PublicKeyHash owner = link.owner;
-                    PublicKeyHash writer = link.writer;
-                    byte[] mapKey = link.getMapKey();
-                    return current.withWriter(owner, writer, this).thenCompose(version ->
-                            tree.get(version.get(writer).props, owner, writer, mapKey))
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
+        if (links.isEmpty())
+            return Futures.of(Collections.emptyList());
+        Map<Pair<PublicKeyHash, PublicKeyHash>, List<AbsoluteCapability>> byWriter = links.stream()
+                .collect(Collectors.groupingBy(link -> new Pair<>(link.owner, link.writer),
+                        LinkedHashMap::new, Collectors.toList()));
+
+        List<CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>>> champLookups = byWriter.entrySet().stream()
+                .map(e -> {
+                    PublicKeyHash owner = e.getKey().left;
+                    PublicKeyHash writer = e.getKey().right;
+                    List<byte[]> mapKeys = e.getValue().stream()
+                            .map(AbsoluteCapability::getMapKey)
+                            .collect(Collectors.toList());
+                    return current.withWriter(owner, writer, this)
+                            .thenCompose(version -> tree.getAll(version.get(writer).props, owner, writer, mapKeys));
                 }).collect(Collectors.toList());
 
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+        return inOrder(champLookups).thenCompose(champResults -> {
+            Map<Pair<PublicKeyHash, PublicKeyHash>, Map<ByteArrayWrapper, MaybeMultihash>> blobHashes = new HashMap<>();
+            Iterator<Map<ByteArrayWrapper, MaybeMultihash>> champResult = champResults.iterator();
+            for (Pair<PublicKeyHash, PublicKeyHash> ownerAndWriter : byWriter.keySet())
+                blobHashes.put(ownerAndWriter, champResult.next());
+
+            List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
+                    .map(link -> {
+                        MaybeMultihash key = blobHashes.get(new Pair<>(link.owner, link.writer))
+                                .getOrDefault(new ByteArrayWrapper(link.getMapKey()), MaybeMultihash.empty());
+                        if (key.isPresent())
+                            return dhtClient.get(key.get())
+                                    .thenApply(dataOpt ->  dataOpt
+                                            .map(cbor -> new RetrievedCapability(
+                                                    link,
+                                                    CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
+                        LOG.severe("Couldn't download link at: " + new Location(link.owner, link.writer, link.getMapKey()));
+                        Optional<RetrievedCapability> result = Optional.empty();
+                        return CompletableFuture.completedFuture(result);
+                    }).collect(Collectors.toList());
+
+            return inOrder(all).thenApply(optList -> optList.stream()
+                    .filter(Optional::isPresent)
+                    .map(Optional::get)
+                    .collect(Collectors.toList()));
+        });
+    }
+
+    /** Combine independent futures, keeping their order. Each result is written to its index, so unlike
+     * Futures.combineAllInOrder this doesn't copy the partial list on every step.
+     */
+    private static <T> CompletableFuture<List<T>> inOrder(List<CompletableFuture<T>> futures) {
+        List<T> results = new ArrayList<>(Collections.nCopies(futures.size(), null));
+        List<CompletableFuture<Boolean>> placed = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            int index = i;
+            placed.add(futures.get(i).thenApply(res -> {
+                results.set(index, res);
+                return true;
+            }));
+        }
+        return Futures.combineAll(placed).thenApply(x -> results);
     }
 
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
@@ -425,7 +500,16 @@ public class NetworkAccess {
                 .collect(Collectors.toList()), tid, progressCounter);
     }
 
-    public CompletableFuture<List<Multihash>> uploadFragments(List<Fragment> fragments,
+    /**
+     *
+     * @param fragments The fragments to upload, with the hashes computed when they were encrypted
+     * @param owner
+     * @param writer
+     * @param progressCounter
+     * @param tid
+     * @return The hashes of the uploaded fragments
+     */
+    public CompletableFuture<List<Multihash>> uploadFragments(List<FragmentWithHash> fragments,
                                                               PublicKeyHash owner,
                                                               SigningPrivateKeyAndPublicHash writer,
                                                               ProgressConsumer<Long> progressCounter,
@@ -433,16 +517,17 @@ public class NetworkAccess {
         if (fragments.isEmpty())
             return CompletableFuture.completedFuture(Collections.emptyList());
 
+        // sign the fragment hashes in parallel
         return Futures.combineAllInOrder(fragments.stream()
-                .map(f -> hasher.sha256(f.data))
+                .map(f -> Crypto.inCryptoPool(() -> Futures.of(writer.secret.signMessage(f.hash.getHash()))))
                 .collect(Collectors.toList()))
-                .thenCompose(hashes -> bulkUploadFragments(
-                        fragments,
+                .thenCompose(signatures -> bulkUploadFragments(
+                        fragments.stream()
+                                .map(f -> f.fragment)
+                                .collect(Collectors.toList()),
                         owner,
                         writer.publicKeyHash,
-                        hashes.stream()
-                                .map(writer.secret::signMessage)
-                                .collect(Collectors.toList()),
+                        signatures,
                         tid,
                         progressCounter
                 ));
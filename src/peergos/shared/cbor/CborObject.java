@@ -18,10 +18,7 @@ public interface CborObject extends Cborable {
     List<Multihash> links();
 
     default byte[] toByteArray() {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        CborEncoder encoder = new CborEncoder(bout);
-        serialize(encoder);
-        return bout.toByteArray();
+        return CborWriter.toByteArray(this);
     }
 
     @Override
@@ -32,7 +29,7 @@ public interface CborObject extends Cborable {
     int LINK_TAG = 42;
 
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return CborParser.parse(cbor);
     }
 
     static CborObject read(InputStream in, int maxBytes) {
@@ -0,0 +1,370 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** Decodes cbor directly from a byte[], by offset, rather than through a stream.
+ *
+ *  Maps are decoded lazily: their keys are decoded up front, but each value is only decoded the first time it is
+ *  accessed. Most readers only look at some fields of a map (or only the keys of a champ node), so the rest are never
+ *  decoded. The resulting objects are the same as those from CborObject.deserialize.
+ */
+public final class CborParser {
+    private final byte[] data;
+    private int pos;
+
+    private CborParser(byte[] data, int pos) {
+        this.data = data;
+        this.pos = pos;
+    }
+
+    public static CborObject parse(byte[] cbor) {
+        return new CborParser(cbor, 0).next();
+    }
+
+    private int readByte() {
+        if (pos >= data.length)
+            throw new RuntimeException(new EOFException());
+        return data[pos++] & 0xff;
+    }
+
+    /**
+     *
+     * @return the unsigned argument of the current item, or -1 for an indefinite length
+     */
+    private long readArgument(int info, boolean breakAllowed) {
+        if (info < ONE_BYTE)
+            return info;
+        long result = -1;
+        if (info == ONE_BYTE) {
+            result = readByte();
+        } else if (info == TWO_BYTES) {
+            result = readFixed(2);
+        } else if (info == FOUR_BYTES) {
+            result = readFixed(4);
+        } else if (info == EIGHT_BYTES) {
+            result = readFixed(8);
+        } else if (breakAllowed && info == BREAK)
+            return -1;
+        if (result < 0)
+            throw new RuntimeException(new IOException("Not well-formed CBOR integer found, invalid length: " + result));
+        return result;
+    }
+
+    private long readFixed(int bytes) {
+        if (pos + bytes > data.length)
+            throw new RuntimeException(new EOFException());
+        long result = 0;
+        for (int i=0; i < bytes; i++)
+            result = result << 8 | (data[pos++] & 0xff);
+        return result;
+    }
+
+    private int readLength(int info, String type) {
+        long len = readArgument(info, true);
+        if (len < 0)
+            throw new RuntimeException(new IOException("Infinite-length " + type + " strings not supported!"));
+        if (len > data.length - pos)
+            throw new RuntimeException(new IOException("Invalid cbor: " + type + " string longer than original bytes!"));
+        return (int) len;
+    }
+
+    private long readGroupSize(int info, String type) {
+        long n = readArgument(info, true);
+        if (n > data.length)
+            throw new IllegalStateException("Invalid cbor: more " + type + " elements than original bytes!");
+        return n;
+    }
+
+    private CborObject next() {
+        int initial = readByte();
+        int info = initial & 0x1f;
+        switch (initial >>> 5) {
+            case TYPE_UNSIGNED_INTEGER:
+                return new CborObject.CborLong(readArgument(info, false));
+            case TYPE_NEGATIVE_INTEGER:
+                return new CborObject.CborLong(-1 - readArgument(info, false));
+            case TYPE_BYTE_STRING: {
+                int len = readLength(info, "byte");
+                byte[] value = Arrays.copyOfRange(data, pos, pos + len);
+                pos += len;
+                return new CborObject.CborByteArray(value);
+            }
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info, "text");
+                try {
+                    String value = new String(data, pos, len, "UTF-8");
+                    pos += len;
+                    return new CborObject.CborString(value);
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            case TYPE_ARRAY: {
+                long nItems = readGroupSize(info, "array");
+                List<CborObject> res = new ArrayList<>((int) nItems);
+                for (long i=0; i < nItems; i++)
+                    res.add(next());
+                return new CborObject.CborList(res);
+            }
+            case TYPE_MAP: {
+                long nValues = readGroupSize(info, "map");
+                if (nValues <= 0)
+                    return new CborObject.CborMap(new TreeMap<>());
+                CborObject[] keys = new CborObject[(int) nValues];
+                int[] valueOffsets = new int[(int) nValues];
+                for (int i=0; i < nValues; i++) {
+                    keys[i] = next();
+                    valueOffsets[i] = pos;
+                    skip();
+                }
+                return new CborObject.CborMap(new LazyValues(data, keys, valueOffsets));
+            }
+            case TYPE_TAG: {
+                long tag = readArgument(info, false);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + info);
+                CborObject value = next();
+                if (value instanceof CborObject.CborString)
+                    return new CborObject.CborMerkleLink(Cid.decode(((CborObject.CborString) value).value));
+                if (value instanceof CborObject.CborByteArray) {
+                    byte[] bytes = ((CborObject.CborByteArray) value).value;
+                    if (bytes[0] == 0) // multibase for binary
+                        return new CborObject.CborMerkleLink(Cid.cast(Arrays.copyOfRange(bytes, 1, bytes.length)));
+                    throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + bytes[0]);
+                }
+                throw new IllegalStateException("Invalid type for merkle link: " + value);
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL)
+                    return new CborObject.CborNull();
+                if (info == TRUE)
+                    return new CborObject.CborBoolean(true);
+                if (info == FALSE)
+                    return new CborObject.CborBoolean(false);
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + initial);
+        }
+    }
+
+    /** Move past the current item, checking its structure, without decoding it.
+     */
+    private void skip() {
+        int initial = readByte();
+        int info = initial & 0x1f;
+        switch (initial >>> 5) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                readArgument(info, false);
+                return;
+            case TYPE_BYTE_STRING: {
+                // readLength moves pos, so it must be called before pos is read
+                int len = readLength(info, "byte");
+                pos += len;
+                return;
+            }
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info, "text");
+                pos += len;
+                return;
+            }
+            case TYPE_ARRAY: {
+                long nItems = readGroupSize(info, "array");
+                for (long i=0; i < nItems; i++)
+                    skip();
+                return;
+            }
+            case TYPE_MAP: {
+                long nValues = readGroupSize(info, "map");
+                for (long i=0; i < 2 * nValues; i++)
+                    skip();
+                return;
+            }
+            case TYPE_TAG:
+                if (readArgument(info, false) != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + info);
+                skip();
+                return;
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL || info == TRUE || info == FALSE)
+                    return;
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + initial);
+        }
+    }
+
+    /** The values of a decoded map, in key order, which are each decoded on first access.
+     */
+    private static final class LazyValues extends AbstractMap<CborObject, Cborable> implements SortedMap<CborObject, Cborable> {
+        private final byte[] data;
+        private final CborObject[] keys;
+        private final int[] offsets;
+        private final CborObject[] values;
+
+        LazyValues(byte[] data, CborObject[] keys, int[] offsets) {
+            this.data = data;
+            if (isStrictlyAscending(keys)) {
+                this.keys = keys;
+                this.offsets = offsets;
+            } else {
+                // Sort the keys, keeping the last value for a duplicated key, like a TreeMap would
+                Integer[] order = new Integer[keys.length];
+                for (int i=0; i < order.length; i++)
+                    order[i] = i;
+                Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+                List<Integer> unique = new ArrayList<>();
+                for (int i=0; i < order.length; i++) {
+                    if (i + 1 < order.length && compare(keys[order[i]], keys[order[i + 1]]) == 0)
+                        continue;
+                    unique.add(order[i]);
+                }
+                this.keys = new CborObject[unique.size()];
+                this.offsets = new int[unique.size()];
+                for (int i=0; i < unique.size(); i++) {
+                    this.keys[i] = keys[unique.get(i)];
+                    this.offsets[i] = offsets[unique.get(i)];
+                }
+            }
+            this.values = new CborObject[this.keys.length];
+        }
+
+        @SuppressWarnings("unchecked")
+        private static int compare(Object a, Object b) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        private static boolean isStrictlyAscending(CborObject[] keys) {
+            for (int i=1; i < keys.length; i++)
+                if (compare(keys[i - 1], keys[i]) >= 0)
+                    return false;
+            return true;
+        }
+
+        private int indexOf(Object key) {
+            int low = 0, high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int diff = compare(keys[mid], key);
+                if (diff < 0)
+                    low = mid + 1;
+                else if (diff > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private CborObject value(int index) {
+            CborObject value = values[index];
+            if (value == null) {
+                // decoding is idempotent, so a racing decode is harmless
+                value = new CborParser(data, offsets[index]).next();
+                values[index] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Cborable get(Object key) {
+            int index = indexOf(key);
+            return index < 0 ? null : value(index);
+        }
+
+        @Override
+        public Set<CborObject> keySet() {
+            return new AbstractSet<CborObject>() {
+                @Override
+                public Iterator<CborObject> iterator() {
+                    return Arrays.asList(keys).iterator();
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<CborObject, Cborable>> entrySet() {
+            return new AbstractSet<Entry<CborObject, Cborable>>() {
+                @Override
+                public Iterator<Entry<CborObject, Cborable>> iterator() {
+                    return new Iterator<Entry<CborObject, Cborable>>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < keys.length;
+                        }
+
+                        @Override
+                        public Entry<CborObject, Cborable> next() {
+                            if (index >= keys.length)
+                                throw new NoSuchElementException();
+                            Entry<CborObject, Cborable> entry = new SimpleImmutableEntry<>(keys[index], value(index));
+                            index++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super CborObject> comparator() {
+            return null;
+        }
+
+        private SortedMap<CborObject, Cborable> toTreeMap() {
+            return new TreeMap<>(this);
+        }
+
+        @Override
+        public SortedMap<CborObject, Cborable> subMap(CborObject fromKey, CborObject toKey) {
+            return toTreeMap().subMap(fromKey, toKey);
+        }
+
+        @Override
+        public SortedMap<CborObject, Cborable> headMap(CborObject toKey) {
+            return toTreeMap().headMap(toKey);
+        }
+
+        @Override
+        public SortedMap<CborObject, Cborable> tailMap(CborObject fromKey) {
+            return toTreeMap().tailMap(fromKey);
+        }
+
+        @Override
+        public CborObject firstKey() {
+            return keys[0];
+        }
+
+        @Override
+        public CborObject lastKey() {
+            return keys[keys.length - 1];
+        }
+    }
+}
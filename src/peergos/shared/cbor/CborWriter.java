@@ -0,0 +1,226 @@
+package peergos.shared.cbor;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** Encodes cbor into a single exactly sized byte[].
+ *
+ *  The encoded size is computed in a first pass, and the bytes are written directly into the result in a second pass,
+ *  without going through a stream. The output is identical to CborObject.serialize(CborEncoder).
+ */
+public final class CborWriter {
+    private static final int LINK_TAG_SIZE = headerSize(CborObject.LINK_TAG);
+
+    // Values computed in the sizing pass which are needed again to write, in traversal order
+    private final List<Object> computed = new ArrayList<>();
+    private int computedIndex = 0;
+    private byte[] out;
+    private int pos;
+
+    private CborWriter() {}
+
+    public static byte[] toByteArray(CborObject value) {
+        CborWriter writer = new CborWriter();
+        int size = writer.size(value);
+        writer.out = new byte[size];
+        writer.write(value);
+        if (writer.pos != size)
+            throw new IllegalStateException("Incorrect cbor size calculation: " + writer.pos + " != " + size);
+        return writer.out;
+    }
+
+    private static int headerSize(long value) {
+        if (value < 0x18L)
+            return 1;
+        if (value < 0x100L)
+            return 2;
+        if (value < 0x10000L)
+            return 3;
+        if (value < 0x100000000L)
+            return 5;
+        return 9;
+    }
+
+    /** The length of the UTF-8 encoding of a string, as produced by String.getBytes("UTF-8") */
+    private static int utf8Length(String s) {
+        int len = s.length();
+        int res = len;
+        for (int i=0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800) {
+                res += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                res += 2;
+                i++;
+            } else if (! Character.isSurrogate(c))
+                res += 2;
+            // an unpaired surrogate is encoded as a single '?'
+        }
+        return res;
+    }
+
+    private CborObject toCbor(Cborable value) {
+        if (value instanceof CborObject)
+            return (CborObject) value;
+        CborObject cbor = value.toCbor();
+        computed.add(cbor);
+        return cbor;
+    }
+
+    private CborObject nextCbor(Cborable value) {
+        if (value instanceof CborObject)
+            return (CborObject) value;
+        return (CborObject) computed.get(computedIndex++);
+    }
+
+    private static byte[] linkBytes(CborObject.CborMerkleLink link) {
+        byte[] cid = link.target.toBytes();
+        byte[] withMultibaseHeader = new byte[cid.length + 1];
+        System.arraycopy(cid, 0, withMultibaseHeader, 1, cid.length);
+        return withMultibaseHeader;
+    }
+
+    private int size(CborObject value) {
+        if (value instanceof CborObject.CborMap) {
+            SortedMap<CborObject, ? extends Cborable> values = ((CborObject.CborMap) value).values;
+            int res = headerSize(values.size());
+            for (Map.Entry<CborObject, ? extends Cborable> e : values.entrySet())
+                res += size(e.getKey()) + size(toCbor(e.getValue()));
+            return res;
+        }
+        if (value instanceof CborObject.CborList) {
+            List<? extends Cborable> values = ((CborObject.CborList) value).value;
+            int res = headerSize(values.size());
+            for (Cborable c : values)
+                res += size(toCbor(c));
+            return res;
+        }
+        if (value instanceof CborObject.CborString) {
+            int len = utf8Length(((CborObject.CborString) value).value);
+            return headerSize(len) + len;
+        }
+        if (value instanceof CborObject.CborByteArray) {
+            int len = ((CborObject.CborByteArray) value).value.length;
+            return headerSize(len) + len;
+        }
+        if (value instanceof CborObject.CborLong) {
+            long val = ((CborObject.CborLong) value).value;
+            return headerSize(val < 0 ? ~val : val);
+        }
+        if (value instanceof CborObject.CborMerkleLink) {
+            byte[] bytes = linkBytes((CborObject.CborMerkleLink) value);
+            computed.add(bytes);
+            return LINK_TAG_SIZE + headerSize(bytes.length) + bytes.length;
+        }
+        if (value instanceof CborObject.CborBoolean || value instanceof CborObject.CborNull)
+            return 1;
+        byte[] raw = streamed(value);
+        computed.add(raw);
+        return raw.length;
+    }
+
+    /** Fall back to the stream encoder for any other implementation */
+    private static byte[] streamed(CborObject value) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        value.serialize(new CborEncoder(bout));
+        return bout.toByteArray();
+    }
+
+    private void writeHeader(int majorType, long value) {
+        int mt = majorType << 5;
+        if (value < 0x18L) {
+            out[pos++] = (byte) (mt | value);
+        } else if (value < 0x100L) {
+            out[pos++] = (byte) (mt | ONE_BYTE);
+            out[pos++] = (byte) value;
+        } else if (value < 0x10000L) {
+            out[pos++] = (byte) (mt | TWO_BYTES);
+            writeFixed(value, 2);
+        } else if (value < 0x100000000L) {
+            out[pos++] = (byte) (mt | FOUR_BYTES);
+            writeFixed(value, 4);
+        } else {
+            out[pos++] = (byte) (mt | EIGHT_BYTES);
+            writeFixed(value, 8);
+        }
+    }
+
+    private void writeFixed(long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--)
+            out[pos++] = (byte) (value >> (8 * i));
+    }
+
+    private void writeBytes(byte[] bytes) {
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeUtf8(String s) {
+        int len = s.length();
+        for (int i=0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[pos++] = (byte) '?';
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void write(CborObject value) {
+        if (value instanceof CborObject.CborMap) {
+            SortedMap<CborObject, ? extends Cborable> values = ((CborObject.CborMap) value).values;
+            writeHeader(TYPE_MAP, values.size());
+            for (Map.Entry<CborObject, ? extends Cborable> e : values.entrySet()) {
+                write(e.getKey());
+                write(nextCbor(e.getValue()));
+            }
+        } else if (value instanceof CborObject.CborList) {
+            List<? extends Cborable> values = ((CborObject.CborList) value).value;
+            writeHeader(TYPE_ARRAY, values.size());
+            for (Cborable c : values)
+                write(nextCbor(c));
+        } else if (value instanceof CborObject.CborString) {
+            String s = ((CborObject.CborString) value).value;
+            writeHeader(TYPE_TEXT_STRING, utf8Length(s));
+            writeUtf8(s);
+        } else if (value instanceof CborObject.CborByteArray) {
+            byte[] bytes = ((CborObject.CborByteArray) value).value;
+            writeHeader(TYPE_BYTE_STRING, bytes.length);
+            writeBytes(bytes);
+        } else if (value instanceof CborObject.CborLong) {
+            long val = ((CborObject.CborLong) value).value;
+            if (val < 0)
+                writeHeader(TYPE_NEGATIVE_INTEGER, ~val);
+            else
+                writeHeader(TYPE_UNSIGNED_INTEGER, val);
+        } else if (value instanceof CborObject.CborMerkleLink) {
+            byte[] bytes = (byte[]) computed.get(computedIndex++);
+            writeHeader(TYPE_TAG, CborObject.LINK_TAG);
+            writeHeader(TYPE_BYTE_STRING, bytes.length);
+            writeBytes(bytes);
+        } else if (value instanceof CborObject.CborBoolean) {
+            out[pos++] = (byte) ((TYPE_FLOAT_SIMPLE << 5) | (((CborObject.CborBoolean) value).value ? TRUE : FALSE));
+        } else if (value instanceof CborObject.CborNull) {
+            out[pos++] = (byte) ((TYPE_FLOAT_SIMPLE << 5) | NULL);
+        } else
+            writeBytes((byte[]) computed.get(computedIndex++));
+    }
+}
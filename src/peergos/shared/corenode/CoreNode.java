@@ -6,6 +6,7 @@ import peergos.shared.social.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface CoreNode {
     int MAX_USERNAME_SIZE = 64;
@@ -40,6 +41,22 @@ public interface CoreNode {
      */
     CompletableFuture<List<String>> getUsernames(String prefix);
 
+    /** Get a page of the usernames starting with a prefix
+     *
+     * @param prefix
+     * @param limit the maximum number of usernames to return
+     * @param after if present, only return usernames that sort after this, i.e. the last username of the previous page
+     * @return up to limit usernames starting with prefix, in sorted order
+     */
+    default CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return getUsernames(prefix).thenApply(all -> all.stream()
+                .filter(u -> u.startsWith(prefix))
+                .filter(u -> ! after.isPresent() || u.compareTo(after.get()) > 0)
+                .sorted()
+                .limit(limit)
+                .collect(Collectors.toList()));
+    }
+
     /** This is only implemented by caching corenodes
      *
      * @param username
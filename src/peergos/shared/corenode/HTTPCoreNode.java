@@ -10,6 +10,7 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
@@ -149,8 +150,30 @@ public class HTTPCoreNode implements CoreNode {
 
     @Override
     public CompletableFuture<List<String>> getUsernames(String prefix) {
-        return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesGzip/"+prefix, new byte[0])
-                .thenApply(raw -> (List) JSONParser.parse(new String(raw)));
+        return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesGzip/" + encode(prefix), new byte[0])
+                .thenApply(HTTPCoreNode::parseUsernames);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return poster.postUnzip(urlPrefix + Constants.CORE_URL + "getUsernamesGzip/" + encode(prefix) + "?limit=" + limit
+                + after.map(a -> "&after=" + encode(a)).orElse(""), new byte[0])
+                .thenApply(HTTPCoreNode::parseUsernames);
+    }
+
+    private static List<String> parseUsernames(byte[] raw) {
+        List<?> json = (List<?>) JSONParser.parse(new String(raw));
+        return json.stream()
+                .map(username -> (String) username)
+                .collect(Collectors.toList());
+    }
+
+    private static String encode(String component) {
+        try {
+            return URLEncoder.encode(component, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override public void close() {}
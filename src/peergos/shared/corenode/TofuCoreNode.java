@@ -117,6 +117,11 @@ public class TofuCoreNode implements CoreNode {
         return source.getUsernames(prefix);
     }
 
+    @Override
+    public CompletableFuture<List<String>> getUsernames(String prefix, int limit, Optional<String> after) {
+        return source.getUsernames(prefix, limit, after);
+    }
+
     @Override
     public void close() throws IOException {}
 }
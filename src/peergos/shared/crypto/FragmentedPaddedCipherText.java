@@ -77,8 +77,10 @@ public class FragmentedPaddedCipherText implements Cborable {
 
         byte[][] split = split(cipherText, maxFragmentSize, allowArrayCache);
 
+        // hash the fragments in parallel
         return Futures.combineAllInOrder(Arrays.stream(split)
-                .map(d -> hasher.hash(d, true).thenApply(h -> new FragmentWithHash(new Fragment(d), h)))
+                .map(d -> Crypto.inCryptoPool(() -> hasher.hash(d, true))
+                        .thenApply(h -> new FragmentWithHash(new Fragment(d), h)))
                 .collect(Collectors.toList()))
                 .thenApply(frags -> {
                     List<Multihash> hashes = frags.stream()
@@ -181,6 +181,61 @@ public class Champ implements Cborable {
         return CompletableFuture.completedFuture(MaybeMultihash.empty());
     }
 
+    /** Lookup many keys in a single traversal. Keys which share a hash prefix share the retrieval of the champ nodes
+     * along that prefix, so each node is retrieved at most once.
+     *
+     * @param keys The keys to get the values for, paired with their hashes
+     * @param depth The current depth in the champ (top = 0)
+     * @param bitWidth The champ bitwidth
+     * @param storage The storage
+     * @return The value, if any, that each key maps to
+     */
+    public CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>> getAll(List<Pair<ByteArrayWrapper, byte[]>> keys,
+                                                                          int depth,
+                                                                          int bitWidth,
+                                                                          ContentAddressedStorage storage) {
+        Map<ByteArrayWrapper, MaybeMultihash> results = new HashMap<>();
+        Map<Integer, List<Pair<ByteArrayWrapper, byte[]>>> byChild = new TreeMap<>();
+        for (Pair<ByteArrayWrapper, byte[]> key : keys) {
+            final int bitpos = mask(key.right, depth, bitWidth);
+
+            if (dataMap.get(bitpos)) { // local value
+                int index = getIndex(this.dataMap, bitpos);
+                MaybeMultihash value = MaybeMultihash.empty();
+                for (KeyElement candidate : contents[index].mappings) {
+                    if (candidate.key.equals(key.left)) {
+                        value = candidate.valueHash;
+                        break;
+                    }
+                }
+                results.put(key.left, value);
+            } else if (nodeMap.get(bitpos)) { // child node
+                byChild.computeIfAbsent(bitpos, b -> new ArrayList<>()).add(key);
+            } else
+                results.put(key.left, MaybeMultihash.empty());
+        }
+        if (byChild.isEmpty())
+            return CompletableFuture.completedFuture(results);
+
+        List<CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>>> children = byChild.entrySet().stream()
+                .map(e -> {
+                    int index = contents.length - 1 - getIndex(this.nodeMap, e.getKey());
+                    Multihash childHash = contents[index].link.get();
+                    List<Pair<ByteArrayWrapper, byte[]>> childKeys = e.getValue();
+                    return storage.get(childHash)
+                            .thenCompose(x -> x.map(Champ::fromCbor)
+                                    .map(c -> c.getAll(childKeys, depth + 1, bitWidth, storage))
+                                    .orElseGet(() -> CompletableFuture.completedFuture(childKeys.stream()
+                                            .collect(Collectors.toMap(k -> k.left, k -> MaybeMultihash.empty())))));
+                }).collect(Collectors.toList());
+        return Futures.combineAllInOrder(children)
+                .thenApply(childResults -> {
+                    for (Map<ByteArrayWrapper, MaybeMultihash> childResult : childResults)
+                        results.putAll(childResult);
+                    return results;
+                });
+    }
+
     /**
      *
      * @param writer The writer key with permission to write
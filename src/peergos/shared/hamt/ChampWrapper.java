@@ -9,8 +9,10 @@ import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper implements ImmutableTree
 {
@@ -72,6 +74,19 @@ public class ChampWrapper implements ImmutableTree
         return root.left.get(key, hasher.apply(key), 0, BIT_WIDTH, storage);
     }
 
+    /**
+     *
+     * @param rawKeys
+     * @return values stored under each of rawKeys, retrieving shared champ nodes only once
+     */
+    public CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>> getAll(List<byte[]> rawKeys) {
+        List<Pair<ByteArrayWrapper, byte[]>> keys = rawKeys.stream()
+                .map(ByteArrayWrapper::new)
+                .map(key -> new Pair<>(key, hasher.apply(key)))
+                .collect(Collectors.toList());
+        return root.left.getAll(keys, 0, BIT_WIDTH, storage);
+    }
+
     /**
      *
      * @param rawKey
@@ -0,0 +1,16 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A cache of blocks keyed by their hash. Blocks are immutable and content addressed, so entries never go stale, they
+ *  can only be evicted.
+ */
+public interface BlockCache {
+
+    CompletableFuture<Boolean> put(Multihash hash, byte[] data);
+
+    CompletableFuture<Optional<byte[]>> get(Multihash hash);
+}
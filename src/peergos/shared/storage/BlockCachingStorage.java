@@ -0,0 +1,50 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Cache the cbor (metadata) blocks we read or write in a BlockCache. This includes champ nodes, cryptree nodes and
+ *  writer data, but not raw file fragments.
+ */
+public class BlockCachingStorage extends DelegatingStorage {
+    private final ContentAddressedStorage target;
+    private final BlockCache cache;
+
+    public BlockCachingStorage(ContentAddressedStorage target, BlockCache cache) {
+        super(target);
+        this.target = target;
+        this.cache = cache;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return target.put(owner, writer, signedHashes, blocks, tid)
+                .thenApply(res -> {
+                    for (int i=0; i < blocks.size(); i++)
+                        cache.put(res.get(i), blocks.get(i));
+                    return res;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        if (key.isIdentity())
+            return target.get(key);
+        return cache.get(key).thenCompose(cached -> {
+            if (cached.isPresent())
+                return CompletableFuture.completedFuture(cached.map(CborObject::fromByteArray));
+            return target.get(key).thenApply(cborOpt -> {
+                cborOpt.ifPresent(cbor -> cache.put(key, cbor.toByteArray()));
+                return cborOpt;
+            });
+        });
+    }
+}
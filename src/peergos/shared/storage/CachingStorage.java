@@ -7,6 +7,7 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class CachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
@@ -14,6 +15,7 @@ public class CachingStorage extends DelegatingStorage {
     private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
     private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
     private final int maxValueSize;
+    private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0);
 
     public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
         super(target);
@@ -24,6 +26,22 @@ public class CachingStorage extends DelegatingStorage {
         this.pendingRaw = new LRUCache<>(100);
     }
 
+    /**
+     *
+     * @return the number of gets served from the cache, or from an identical in flight get
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return the number of gets that went to the underlying storage
+     */
+    public long misses() {
+        return misses.get();
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
                                                   PublicKeyHash writer,
@@ -43,11 +61,16 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
+        if (cache.containsKey(key)) {
+            hits.incrementAndGet();
             return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
+        }
 
-        if (pending.containsKey(key))
+        if (pending.containsKey(key)) {
+            hits.incrementAndGet();
             return pending.get(key);
+        }
+        misses.incrementAndGet();
 
         CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
         pending.put(key, pipe);
@@ -91,11 +114,16 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
+        if (cache.containsKey(key)) {
+            hits.incrementAndGet();
             return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
+        }
 
-        if (pendingRaw.containsKey(key))
+        if (pendingRaw.containsKey(key)) {
+            hits.incrementAndGet();
             return pendingRaw.get(key);
+        }
+        misses.incrementAndGet();
 
         CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
         pendingRaw.put(key, pipe);
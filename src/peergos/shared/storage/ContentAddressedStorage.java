@@ -268,10 +268,14 @@ public interface ContentAddressedStorage {
         return getLinksAndSize(original)
                 .thenCompose(before -> getLinksAndSize(updated).thenCompose(after -> {
                     int objectDelta = after.left - before.left;
-                    List<Multihash> onlyBefore = new ArrayList<>(before.right);
-                    onlyBefore.removeAll(after.right);
+                    // Blocks can be linked more than once (e.g. fragments shared between copies of a file), and
+                    // each link is counted, so only cancel out as many links as are common to both
+                    List<Multihash> onlyBefore = new ArrayList<>();
                     List<Multihash> onlyAfter = new ArrayList<>(after.right);
-                    onlyAfter.removeAll(before.right);
+                    for (Multihash link : before.right) {
+                        if (! onlyAfter.remove(link))
+                            onlyBefore.add(link);
+                    }
 
                     int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
                     List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
@@ -7,16 +7,30 @@ import peergos.shared.user.fs.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.logging.*;
 
 public class FriendSourcedTrieNode implements TrieNode {
+    private static final Logger LOG = Logger.getGlobal();
+    // How long to trust our capabilities from a friend, before checking their writer pointer again. A lookup which
+    // misses always checks again.
+    public static final long DEFAULT_RECHECK_INTERVAL_MILLIS = 30_000;
+    private static volatile long recheckIntervalMillis = DEFAULT_RECHECK_INTERVAL_MILLIS;
+    // Given the duration in milliseconds of each lookup in a friend's shared files
+    private static volatile Consumer<Long> lookupTimer = millis -> {};
 
     private final String ownerName;
     private final Supplier<CompletableFuture<FileWrapper>> homeDirSupplier;
     private final EntryPoint sharedDir;
     private final Crypto crypto;
-    private TrieNode root;
+    private volatile TrieNode root;
     private long byteOffsetReadOnly;
     private long byteOffsetWrite;
+    // loads our cache of the friend's capabilities, if this node was built lazily
+    private CompletableFuture<Boolean> cacheLoaded;
+    // the friend's signed writer pointer when we last read their capability files, and when we last checked it
+    private volatile Optional<byte[]> checkedPointer = Optional.empty();
+    private volatile long lastCheckedMillis = 0;
+    private CompletableFuture<Boolean> pendingCheck;
 
     public FriendSourcedTrieNode(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
                                  String ownerName,
@@ -25,6 +39,18 @@ public class FriendSourcedTrieNode implements TrieNode {
                                  long byteOffsetReadOnly,
                                  long byteOffsetWrite,
                                  Crypto crypto) {
+        this(homeDirSupplier, ownerName, sharedDir, root, byteOffsetReadOnly, byteOffsetWrite, crypto,
+                CompletableFuture.completedFuture(true));
+    }
+
+    private FriendSourcedTrieNode(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
+                                  String ownerName,
+                                  EntryPoint sharedDir,
+                                  TrieNode root,
+                                  long byteOffsetReadOnly,
+                                  long byteOffsetWrite,
+                                  Crypto crypto,
+                                  CompletableFuture<Boolean> cacheLoaded) {
         this.homeDirSupplier = homeDirSupplier;
         this.ownerName = ownerName;
         this.sharedDir = sharedDir;
@@ -32,29 +58,56 @@ public class FriendSourcedTrieNode implements TrieNode {
         this.byteOffsetReadOnly = byteOffsetReadOnly;
         this.byteOffsetWrite = byteOffsetWrite;
         this.crypto = crypto;
+        this.cacheLoaded = cacheLoaded;
+    }
+
+    /**
+     *
+     * @return a node which loads the capabilities cached from the friend on first use
+     */
+    public static FriendSourcedTrieNode buildLazily(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
+                                                    EntryPoint e,
+                                                    Crypto crypto) {
+        return new FriendSourcedTrieNode(homeDirSupplier, e.ownerName, e, TrieNodeImpl.empty(), 0, 0, crypto, null);
     }
 
     public static CompletableFuture<Optional<FriendSourcedTrieNode>> build(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
                                                                            EntryPoint e,
                                                                            NetworkAccess network,
                                                                            Crypto crypto) {
-        return CapabilityStore.loadCachedReadOnlyLinks(homeDirSupplier, e.ownerName, network, crypto)
-                .thenCompose(readCaps -> {
-                    return CapabilityStore.loadCachedWriteableLinks(homeDirSupplier, e.ownerName, network, crypto)
-                            .thenApply(writeCaps -> {
-                                List<CapabilityWithPath> allCaps = new ArrayList<>();
-                                allCaps.addAll(readCaps.getRetrievedCapabilities());
-                                allCaps.addAll(writeCaps.getRetrievedCapabilities());
-                                return Optional.of(new FriendSourcedTrieNode(homeDirSupplier,
-                                        e.ownerName,
-                                        e,
-                                        allCaps.stream()
-                                                .reduce(TrieNodeImpl.empty(),
-                                                        (root, cap) -> root.put(trimOwner(cap.path), new EntryPoint(cap.cap, e.ownerName)),
-                                                        (a, b) -> a),
-                                        readCaps.getBytesRead(), writeCaps.getBytesRead(), crypto));
-                            });
-                });
+        FriendSourcedTrieNode node = buildLazily(homeDirSupplier, e, crypto);
+        return node.ensureLoaded(network).thenApply(x -> Optional.of(node));
+    }
+
+    /** Load the capabilities we have already cached from this friend, if we haven't yet. The read only and writable
+     *  capabilities are loaded concurrently.
+     */
+    public synchronized CompletableFuture<Boolean> ensureLoaded(NetworkAccess network) {
+        if (cacheLoaded != null)
+            return cacheLoaded;
+        CompletableFuture<CapabilitiesFromUser> readCapsFut =
+                CapabilityStore.loadCachedReadOnlyLinks(homeDirSupplier, ownerName, network, crypto);
+        CompletableFuture<CapabilitiesFromUser> writeCapsFut =
+                CapabilityStore.loadCachedWriteableLinks(homeDirSupplier, ownerName, network, crypto);
+        cacheLoaded = readCapsFut.thenCompose(readCaps -> writeCapsFut.thenApply(writeCaps -> {
+            synchronized (this) {
+                List<CapabilityWithPath> allCaps = new ArrayList<>();
+                allCaps.addAll(readCaps.getRetrievedCapabilities());
+                allCaps.addAll(writeCaps.getRetrievedCapabilities());
+                root = allCaps.stream()
+                        .reduce(root,
+                                (root, cap) -> root.put(trimOwner(cap.path), new EntryPoint(cap.cap, ownerName)),
+                                (a, b) -> a);
+                byteOffsetReadOnly = readCaps.getBytesRead();
+                byteOffsetWrite = writeCaps.getBytesRead();
+                return true;
+            }
+        })).exceptionally(t -> {
+            // Fall back to reading everything from the friend's sharing directory
+            LOG.log(Level.WARNING, "Couldn't load cached capabilities from friend: " + ownerName, t);
+            return false;
+        });
+        return cacheLoaded;
     }
 
     public static CompletableFuture<Optional<FriendSourcedTrieNode>> buildAndUpdate(Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
@@ -65,11 +118,13 @@ public class FriendSourcedTrieNode implements TrieNode {
                 .thenCompose(sharedDirOpt -> {
                     if (!sharedDirOpt.isPresent())
                         return CompletableFuture.completedFuture(Optional.empty());
-                    return CapabilityStore.loadReadOnlyLinks(homeDirSupplier, sharedDirOpt.get(), e.ownerName,
-                            network, crypto, true)
+                    CompletableFuture<CapabilitiesFromUser> readCapsFut = CapabilityStore.loadReadOnlyLinks(
+                            homeDirSupplier, sharedDirOpt.get(), e.ownerName, network, crypto, true);
+                    CompletableFuture<CapabilitiesFromUser> writeCapsFut = CapabilityStore.loadWriteableLinks(
+                            homeDirSupplier, sharedDirOpt.get(), e.ownerName, network, crypto, true);
+                    return readCapsFut
                             .thenCompose(readCaps -> {
-                                return CapabilityStore.loadWriteableLinks(homeDirSupplier, sharedDirOpt.get(), e.ownerName,
-                                        network, crypto, true)
+                                return writeCapsFut
                                         .thenApply(writeCaps -> {
                                             List<CapabilityWithPath> allCaps = new ArrayList<>();
                                             allCaps.addAll(readCaps.getRetrievedCapabilities());
@@ -87,50 +142,129 @@ public class FriendSourcedTrieNode implements TrieNode {
                 });
     }
 
-    private synchronized CompletableFuture<Boolean> ensureUptodate(Crypto crypto, NetworkAccess network) {
-        // check there are no new capabilities in the friend's shared directory
-        return NetworkAccess.getLatestEntryPoint(sharedDir, network)
-                .thenCompose(sharedDir -> {
-                    return CapabilityStore.getReadOnlyCapabilityFileSize(sharedDir.file, crypto, network)
-                            .thenCompose(bytes -> {
-                                if (bytes == byteOffsetReadOnly) {
-                                    return addEditableCapabilities(Optional.of(sharedDir.file), crypto, network);
-                                } else {
-                                    return CapabilityStore.loadReadAccessSharingLinksFromIndex(homeDirSupplier, sharedDir.file,
-                                            ownerName, network, crypto, byteOffsetReadOnly, true)
-                                            .thenCompose(newReadCaps -> {
-                                                byteOffsetReadOnly += newReadCaps.getBytesRead();
-                                                root = newReadCaps.getRetrievedCapabilities().stream()
-                                                        .reduce(root,
-                                                                (root, cap) -> root.put(trimOwner(cap.path), new EntryPoint(cap.cap, ownerName)),
-                                                                (a, b) -> a);
-                                                return addEditableCapabilities(Optional.of(sharedDir.file), crypto, network);
-                                            });
-                                }
+    /** Set how long capabilities from a friend are trusted before checking for new ones
+     *
+     * @param millis
+     */
+    public static void setRecheckInterval(long millis) {
+        recheckIntervalMillis = millis;
+    }
+
+    /** Set a consumer for the duration of every lookup in a friend's shared files, e.g. to export it as a metric
+     *
+     * @param timer
+     */
+    public static void setLookupTimer(Consumer<Long> timer) {
+        lookupTimer = timer;
+    }
+
+    /** Make sure we have any new capabilities from the friend. Concurrent callers share a single check, and nothing
+     * is checked within the recheck interval of the previous check unless forced.
+     *
+     * @return
+     */
+    private CompletableFuture<Boolean> ensureUptodate(boolean force, Crypto crypto, NetworkAccess network) {
+        CompletableFuture<Boolean> check;
+        synchronized (this) {
+            if (pendingCheck != null)
+                return pendingCheck;
+            if (! force && System.currentTimeMillis() - lastCheckedMillis < recheckIntervalMillis)
+                return ensureLoaded(network);
+            long started = System.currentTimeMillis();
+            check = ensureLoaded(network)
+                    .thenCompose(x -> checkForNewCapabilities(crypto, network))
+                    .thenApply(x -> {
+                        lastCheckedMillis = started;
+                        return x;
+                    });
+            pendingCheck = check;
+        }
+        check.whenComplete((res, t) -> {
+            synchronized (this) {
+                if (pendingCheck == check)
+                    pendingCheck = null;
+            }
+        });
+        return check;
+    }
+
+    private CompletableFuture<Boolean> checkForNewCapabilities(Crypto crypto, NetworkAccess network) {
+        // Capability files are only modified by a write to the friend's sharing directory, which changes its writer's
+        // pointer, so only look at the files if that has changed
+        return network.mutable.getPointer(sharedDir.pointer.owner, sharedDir.pointer.writer)
+                .thenCompose(pointer -> {
+                    if (pointer.isPresent() && checkedPointer.isPresent() &&
+                            Arrays.equals(pointer.get(), checkedPointer.get()))
+                        return CompletableFuture.completedFuture(true);
+                    return NetworkAccess.getLatestEntryPoint(sharedDir, network)
+                            .thenCompose(sharedDir -> addReadOnlyCapabilities(sharedDir.file, crypto, network)
+                                    .thenCompose(x -> addEditableCapabilities(sharedDir.file, crypto, network)))
+                            .thenApply(x -> {
+                                checkedPointer = pointer;
+                                return x;
+                            });
+                });
+    }
+
+    private CompletableFuture<Boolean> addReadOnlyCapabilities(FileWrapper sharedDir,
+                                                               Crypto crypto,
+                                                               NetworkAccess network) {
+        return CapabilityStore.getReadOnlyCapabilityFileSize(sharedDir, crypto, network)
+                .thenCompose(bytes -> {
+                    if (bytes == byteOffsetReadOnly)
+                        return CompletableFuture.completedFuture(true);
+                    return CapabilityStore.loadReadAccessSharingLinksFromIndex(homeDirSupplier, sharedDir,
+                            ownerName, network, crypto, byteOffsetReadOnly, true)
+                            .thenApply(newReadCaps -> {
+                                byteOffsetReadOnly += newReadCaps.getBytesRead();
+                                addCapabilities(newReadCaps.getRetrievedCapabilities());
+                                return true;
                             });
                 });
     }
 
-    private synchronized CompletableFuture<Boolean> addEditableCapabilities(Optional<FileWrapper> sharedDirOpt,
-                                                                            Crypto crypto,
-                                                                            NetworkAccess network) {
-        return CapabilityStore.getEditableCapabilityFileSize(sharedDirOpt.get(), crypto, network)
+    private CompletableFuture<Boolean> addEditableCapabilities(FileWrapper sharedDir,
+                                                               Crypto crypto,
+                                                               NetworkAccess network) {
+        return CapabilityStore.getEditableCapabilityFileSize(sharedDir, crypto, network)
                 .thenCompose(editFilesize -> {
                     if (editFilesize == byteOffsetWrite)
                         return CompletableFuture.completedFuture(true);
-                    return CapabilityStore.loadWriteAccessSharingLinksFromIndex(homeDirSupplier, sharedDirOpt.get(),
+                    return CapabilityStore.loadWriteAccessSharingLinksFromIndex(homeDirSupplier, sharedDir,
                             ownerName, network, crypto, byteOffsetWrite, true)
                             .thenApply(newWriteCaps -> {
                                 byteOffsetWrite += newWriteCaps.getBytesRead();
-                                root = newWriteCaps.getRetrievedCapabilities().stream()
-                                        .reduce(root,
-                                                (root, cap) -> root.put(trimOwner(cap.path), new EntryPoint(cap.cap, ownerName)),
-                                                (a, b) -> a);
+                                addCapabilities(newWriteCaps.getRetrievedCapabilities());
                                 return true;
                             });
                 });
     }
 
+    private synchronized void addCapabilities(List<CapabilityWithPath> caps) {
+        root = caps.stream()
+                .reduce(root,
+                        (root, cap) -> root.put(trimOwner(cap.path), new EntryPoint(cap.cap, ownerName)),
+                        (a, b) -> a);
+    }
+
+    /** Look something up in our capabilities from the friend, checking for new capabilities if it isn't there
+     *
+     */
+    private <T> CompletableFuture<T> lookup(Function<TrieNode, CompletableFuture<T>> getter,
+                                            Predicate<T> found,
+                                            NetworkAccess network) {
+        long start = System.currentTimeMillis();
+        return ensureUptodate(false, crypto, network)
+                .thenCompose(x -> getter.apply(root))
+                .thenCompose(res -> found.test(res) || recheckIntervalMillis == 0 ?
+                        CompletableFuture.completedFuture(res) :
+                        ensureUptodate(true, crypto, network).thenCompose(x -> getter.apply(root)))
+                .thenApply(res -> {
+                    lookupTimer.accept(System.currentTimeMillis() - start);
+                    return res;
+                });
+    }
+
     private CompletableFuture<Optional<FileWrapper>> getFriendRoot(NetworkAccess network) {
         return NetworkAccess.getLatestEntryPoint(sharedDir, network)
                 .thenCompose(sharedDir -> {
@@ -154,34 +288,34 @@ public class FriendSourcedTrieNode implements TrieNode {
     }
 
     @Override
-    public synchronized CompletableFuture<Optional<FileWrapper>> getByPath(String path, Hasher hasher, NetworkAccess network) {
+    public CompletableFuture<Optional<FileWrapper>> getByPath(String path, Hasher hasher, NetworkAccess network) {
         FileProperties.ensureValidPath(path);
         if (path.isEmpty() || path.equals("/"))
             return getFriendRoot(network)
                     .thenApply(opt -> opt.map(f -> f.withTrieNode(this)));
-        return ensureUptodate(crypto, network).thenCompose(x -> root.getByPath(path, hasher, network));
+        return lookup(r -> r.getByPath(path, hasher, network), Optional::isPresent, network);
     }
 
     @Override
-    public synchronized CompletableFuture<Optional<FileWrapper>> getByPath(String path, Snapshot version, Hasher hasher, NetworkAccess network) {
+    public CompletableFuture<Optional<FileWrapper>> getByPath(String path, Snapshot version, Hasher hasher, NetworkAccess network) {
         FileProperties.ensureValidPath(path);
         if (path.isEmpty() || path.equals("/"))
             return getFriendRoot(network)
                     .thenApply(opt -> opt.map(f -> f.withTrieNode(this)));
-        return ensureUptodate(crypto, network).thenCompose(x -> root.getByPath(path, version, hasher, network));
+        return lookup(r -> r.getByPath(path, version, hasher, network), Optional::isPresent, network);
     }
 
     @Override
-    public synchronized CompletableFuture<Set<FileWrapper>> getChildren(String path, Hasher hasher, NetworkAccess network) {
+    public CompletableFuture<Set<FileWrapper>> getChildren(String path, Hasher hasher, NetworkAccess network) {
         FileProperties.ensureValidPath(path);
-        return ensureUptodate(crypto, network)
-                .thenCompose(x -> root.getChildren(path, hasher, network));
+        return lookup(r -> r.getChildren(path, hasher, network), kids -> ! kids.isEmpty(), network);
     }
 
     @Override
-    public synchronized CompletableFuture<Set<FileWrapper>> getChildren(String path, Hasher hasher, Snapshot version, NetworkAccess network) {
+    public CompletableFuture<Set<FileWrapper>> getChildren(String path, Hasher hasher, Snapshot version, NetworkAccess network) {
         FileProperties.ensureValidPath(path);
-        return root.getChildren(path, hasher, version, network);
+        return ensureLoaded(network)
+                .thenCompose(x -> root.getChildren(path, hasher, version, network));
     }
 
     @Override
@@ -210,7 +344,8 @@ public class FriendSourcedTrieNode implements TrieNode {
     }
 
     @Override
-    public boolean isEmpty() {
-        return root.isEmpty();
+    public synchronized boolean isEmpty() {
+        // a node which hasn't loaded yet may still have capabilities
+        return cacheLoaded != null && cacheLoaded.isDone() && root.isEmpty();
     }
 }
@@ -27,6 +27,19 @@ public class JavaPoster implements HttpPoster {
         }
     }
 
+    /** Subclasses can override this to add headers to every request.
+     */
+    protected Map<String, String> headers() {
+        return Collections.emptyMap();
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+        for (Map.Entry<String, String> e : headers().entrySet())
+            conn.setRequestProperty(e.getKey(), e.getValue());
+        return conn;
+    }
+
     @Override
     public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
         return post(url, payload, true);
@@ -38,7 +51,7 @@ public class JavaPoster implements HttpPoster {
         CompletableFuture<byte[]> res = new CompletableFuture<>();
         try
         {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
+            conn = openConnection(url);
             conn.setReadTimeout(15000);
             conn.setDoInput(true);
             conn.setDoOutput(true);
@@ -70,7 +83,7 @@ public class JavaPoster implements HttpPoster {
     @Override
     public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
         try {
-            Multipart mPost = new Multipart(buildURL(url).toString(), "UTF-8");
+            Multipart mPost = new Multipart(buildURL(url).toString(), "UTF-8", headers());
             for (byte[] file : files)
                 mPost.addFilePart("file", new NamedStreamable.ByteArrayWrapper(file));
             return CompletableFuture.completedFuture(mPost.finish().getBytes());
@@ -83,7 +96,7 @@ public class JavaPoster implements HttpPoster {
     public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
         HttpURLConnection conn = null;
         try {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
+            conn = openConnection(url);
             conn.setRequestMethod("PUT");
             for (Map.Entry<String, String> e : headers.entrySet()) {
                 conn.setRequestProperty(e.getKey(), e.getValue());
@@ -130,7 +143,7 @@ public class JavaPoster implements HttpPoster {
         HttpURLConnection conn = null;
         try
         {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
+            conn = openConnection(url);
             conn.setReadTimeout(15000);
             conn.setDoInput(true);
 
@@ -5,8 +5,10 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -40,6 +42,19 @@ public interface MutableTree {
      */
     CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey);
 
+    /**
+     *
+     * @param base The WriterData at the current mutable pointer for the writer
+     * @param owner
+     * @param writer
+     * @param mapKeys
+     * @return  the values stored under each of mapKeys for writer
+     */
+    CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>> getAll(WriterData base,
+                                                                    PublicKeyHash owner,
+                                                                    PublicKeyHash writer,
+                                                                    List<byte[]> mapKeys);
+
     /**
      *
      * @param owner
@@ -10,6 +10,7 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
@@ -65,6 +66,18 @@ public class MutableTreeImpl implements MutableTree {
                                 + ", root="+base.tree.get()+" => " + maybe) : maybe);
     }
 
+    @Override
+    public CompletableFuture<Map<ByteArrayWrapper, MaybeMultihash>> getAll(WriterData base,
+                                                                           PublicKeyHash owner,
+                                                                           PublicKeyHash writer,
+                                                                           List<byte[]> mapKeys) {
+        if (! base.tree.isPresent())
+            throw new IllegalStateException("Tree root not present for " + writer);
+        return ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher).thenCompose(tree -> tree.getAll(mapKeys))
+                .thenApply(res -> LOGGING ?
+                        log(res, "TREE.getAll (" + mapKeys.size() + " keys, root="+base.tree.get()+")") : res);
+    }
+
     @Override
     public CompletableFuture<WriterData> remove(WriterData base,
                                                 PublicKeyHash owner,
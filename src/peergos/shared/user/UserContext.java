@@ -26,6 +26,7 @@ import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -47,6 +48,7 @@ public class UserContext {
     public static final String ENTRY_POINTS_FROM_FRIENDS_FILENAME = ".from-friends.cborstream";
     public static final String ENTRY_POINTS_FROM_US_FILENAME = ".from-us.cborstream";
     public static final String BLOCKED_USERNAMES_FILE = ".blocked-usernames.txt";
+    private static final int FRIEND_LOAD_CONCURRENCY = 8;
 
     @JsProperty
     public final String username;
@@ -165,11 +167,14 @@ public class UserContext {
             progressCallback.accept("Logging in");
             WriterData userData = WriterData.fromCbor(pair.right);
             return createOurFileTreeOnly(username, userWithRoot.getRoot(), userData, network, crypto)
-                    .thenCompose(root -> TofuCoreNode.load(username, root, network, crypto)
+                    .thenCompose(root -> {
+                        // the key store and transaction service are independent, so load them concurrently
+                        CompletableFuture<TransactionService> transactionsFut = buildTransactionService(root, username, network, crypto);
+                        return TofuCoreNode.load(username, root, network, crypto)
                             .thenCompose(keystore -> {
                                 TofuCoreNode tofu = new TofuCoreNode(network.coreNode, keystore);
                                 SigningPrivateKeyAndPublicHash signer = new SigningPrivateKeyAndPublicHash(userData.controller, userWithRoot.getUser().secretSigningKey);
-                                return buildTransactionService(root, username, network, crypto).thenCompose(transactions -> {
+                                return transactionsFut.thenCompose(transactions -> {
                                     UserContext result = new UserContext(username,
                                             signer,
                                             userWithRoot.getBoxingPair(),
@@ -189,7 +194,8 @@ public class UserContext {
                                                 return result.init(progressCallback);
                                             }).exceptionally(Futures::logAndThrow);
                                 });
-                            }));
+                            });
+                    });
         } catch (Throwable t) {
             throw new IllegalStateException("Incorrect password");
         }
@@ -471,7 +477,7 @@ public class UserContext {
     private CompletableFuture<UserContext> init(Consumer<String> progressCallback) {
         progressCallback.accept("Retrieving Friends");
         return writeSynchronizer.getValue(signer.publicKeyHash, signer.publicKeyHash)
-                .thenCompose(wd -> createFileTree(entrie, username, network, crypto)
+                .thenCompose(wd -> createFileTree(entrie, username, network, crypto, progressCallback)
                         .thenCompose(root -> {
                             this.entrie = root;
                             return getByPath("/" + username + "/" + "shared")
@@ -1695,19 +1701,38 @@ public class UserContext {
     }
 
     /**
+     * Friends are added to the tree without any network access, and each loads the capabilities it has cached from the
+     * friend on first use. Those caches are also loaded in the background, a few friends at a time.
+     *
      * @return TrieNode for root of filesystem
      */
     private CompletableFuture<TrieNode> createFileTree(TrieNode ourRoot,
                                                        String ourName,
                                                        NetworkAccess network,
-                                                       Crypto crypto) {
+                                                       Crypto crypto,
+                                                       Consumer<String> progressCallback) {
         // need to to retrieve all the entry points of our friends
+        Supplier<CompletableFuture<FileWrapper>> homeDirSupplier =
+                () -> ourRoot.getByPath(Paths.get(ourName).toString(), crypto.hasher, network).thenApply(opt -> opt.get());
         return getFriendsEntryPoints()
-                .thenCompose(friendEntries -> Futures.reduceAll(friendEntries, ourRoot,
-                        (t, e) -> addRetrievedEntryPointToTrie(ourName, t, e,
-                                "/" + e.ownerName + "/" + SHARED_DIR_NAME + "/" + ourName, false, network, crypto)
-                                .exceptionally(ex -> t),
-                        (a, b) -> a))
+                .thenApply(friendEntries -> {
+                    TrieNode root = ourRoot;
+                    List<FriendSourcedTrieNode> friends = new ArrayList<>();
+                    for (EntryPoint e : friendEntries) {
+                        if (e.ownerName.endsWith(ourName)) // This is a sharing directory of ours for a friend
+                            continue;
+                        FriendSourcedTrieNode friend = FriendSourcedTrieNode.buildLazily(homeDirSupplier, e, crypto);
+                        friends.add(friend);
+                        root = root.putNode(e.ownerName, friend);
+                    }
+                    AtomicInteger loaded = new AtomicInteger(0);
+                    Futures.mapConcurrently(friends, FRIEND_LOAD_CONCURRENCY, friend -> friend.ensureLoaded(network)
+                            .thenApply(x -> {
+                                progressCallback.accept("Retrieved friend " + loaded.incrementAndGet() + " of " + friends.size());
+                                return x;
+                            }));
+                    return root;
+                })
                 .exceptionally(Futures::logAndThrow);
     }
 
@@ -6,6 +6,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.user.EntryPoint;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.*;
@@ -21,7 +22,8 @@ import java.util.stream.*;
  *
  * To avoid reparsing the entire capability list at every login, the capabilities and their retrieved paths are stored
  * in a cache for each source user located at /recipient_user/.capabilitycache/source_user
- * Each of these cache files is just a serialized CapabilitiesFromUser
+ * Each of these cache files is an append only sequence of serialized CapabilitiesFromUser, one for each time new
+ * capabilities were read, each with the byte offset reached in the source user's capability list
  */
 public class CapabilityStore {
     private static final String CAPABILITY_CACHE_DIR = ".capabilitycache";
@@ -153,7 +155,7 @@ public class CapabilityStore {
                             return readSharingFile(friendSharedDir.getName(), friendSharedDir.owner(), capFile.get(), network, crypto)
                                     .thenCompose(res -> {
                                         if(saveCache && res.size() > 0) {
-                                            return saveRetrievedCapabilityCache(capFilesize, homeDirSupplier, friendName,
+                                            return appendToCapabilityCache(capFilesize, homeDirSupplier, friendName,
                                                     network, crypto, res, capStoreFilename);
                                         } else {
                                             return CompletableFuture.completedFuture(new CapabilitiesFromUser(capFilesize, res));
@@ -166,14 +168,13 @@ public class CapabilityStore {
                                     return CompletableFuture.completedFuture(cache);
                                 return readSharingFile(cache.getBytesRead(), friendSharedDir.getName(),
                                         friendSharedDir.owner(), capFile.get(), network, crypto)
-                                        .thenCompose(res -> {
-                                            if (saveCache) {
-                                                return saveRetrievedCapabilityCache(capFilesize, homeDirSupplier, friendName,
-                                                        network, crypto, res, capStoreFilename);
-                                            } else {
-                                                return CompletableFuture.completedFuture(new CapabilitiesFromUser(capFilesize, res));
-                                            }
-                                        });
+                                        .thenCompose(res -> (saveCache ?
+                                                appendToCapabilityCache(capFilesize, homeDirSupplier, friendName,
+                                                        network, crypto, res, capStoreFilename) :
+                                                CompletableFuture.completedFuture(new CapabilitiesFromUser(capFilesize, res)))
+                                                .thenApply(x -> new CapabilitiesFromUser(capFilesize,
+                                                        Stream.concat(cache.getRetrievedCapabilities().stream(), res.stream())
+                                                                .collect(Collectors.toList()))));
                             });
                         }
                     });
@@ -236,14 +237,11 @@ public class CapabilityStore {
                         return CompletableFuture.completedFuture(new CapabilitiesFromUser(0, Collections.emptyList()));
                     long capFileSize = file.get().getSize();
                     return readSharingFile(startOffset, friendSharedDir.getName(), friendSharedDir.owner(), file.get(), network, crypto)
-                            .thenCompose(res -> {
-                                if (saveCache) {
-                                    return saveRetrievedCapabilityCache(capFileSize - startOffset, homeDirSupplier, friendName,
-                                            network, crypto, res, capFilename);
-                                } else {
-                                    return CompletableFuture.completedFuture(new CapabilitiesFromUser(capFileSize - startOffset, res));
-                                }
-                            });
+                            .thenCompose(res -> (saveCache ?
+                                    appendToCapabilityCache(capFileSize, homeDirSupplier, friendName,
+                                            network, crypto, res, capFilename) :
+                                    CompletableFuture.completedFuture(new CapabilitiesFromUser(capFileSize, res)))
+                                    .thenApply(x -> new CapabilitiesFromUser(capFileSize - startOffset, res)));
                 });
     }
 
@@ -281,15 +279,17 @@ public class CapabilityStore {
                                                                               FileWrapper file,
                                                                               NetworkAccess network,
                                                                               Crypto crypto) {
+        PathCache paths = new PathCache(network);
         return file.getInputStream(network, crypto, x -> {})
                 .thenCompose(reader -> reader.seek(startOffset))
-                .thenCompose(seeked -> readSharingRecords(ownerName, owner, seeked, file.getSize() - startOffset, network));
+                .thenCompose(seeked -> readSharingRecords(ownerName, owner, seeked, file.getSize() - startOffset, paths, network));
     }
 
     private static CompletableFuture<List<CapabilityWithPath>> readSharingRecords(String ownerName,
                                                                                   PublicKeyHash owner,
                                                                                   AsyncReader reader,
                                                                                   long maxBytesToRead,
+                                                                                  PathCache paths,
                                                                                   NetworkAccess network) {
         if (maxBytesToRead == 0)
             return CompletableFuture.completedFuture(Collections.emptyList());
@@ -302,7 +302,7 @@ public class CapabilityStore {
                         return network.retrieveEntryPoint(entry).thenCompose(fileOpt -> {
                             if (fileOpt.isPresent()) {
                                 try {
-                                    CompletableFuture<List<CapabilityWithPath>> res = fileOpt.get().getPath(network)
+                                    CompletableFuture<List<CapabilityWithPath>> res = paths.getPath(fileOpt.get())
                                             .thenApply(path -> Collections.singletonList(new CapabilityWithPath(path, pointer)));
                                     return res;
                                 } catch (NoSuchElementException nsee) {
@@ -315,12 +315,55 @@ public class CapabilityStore {
                     }).collect(Collectors.toList()))
                             .thenApply(res -> res.stream().flatMap(x -> x.stream()).collect(Collectors.toList()))
                             .thenCompose(results -> readSharingRecords(ownerName, owner, reader,
-                                    maxBytesToRead - bytesRead, network)
+                                    maxBytesToRead - bytesRead, paths, network)
                                     .thenApply(recurse -> Stream.concat(results.stream(), recurse.stream())
                                             .collect(Collectors.toList())));
                 });
     }
 
+    /** Resolves the paths of many files from one owner, retrieving each ancestor directory at most once. The paths
+     * of parents are cached by the location of their cryptree node, which a child's parent link gives us without
+     * retrieving the parent.
+     */
+    private static class PathCache {
+        private final NetworkAccess network;
+        private final Map<Location, CompletableFuture<String>> parentPaths = new HashMap<>();
+
+        public PathCache(NetworkAccess network) {
+            this.network = network;
+        }
+
+        public CompletableFuture<String> getPath(FileWrapper file) {
+            Optional<Location> parent = file.getParentLocation();
+            if (! parent.isPresent())
+                return CompletableFuture.completedFuture("/" + file.getName());
+            return getParentPath(parent.get(), file)
+                    .thenApply(parentPath -> parentPath + "/" + file.getName());
+        }
+
+        /**
+         *
+         * @return the path of the child's parent, or the empty string if the parent is the root
+         */
+        private CompletableFuture<String> getParentPath(Location parent, FileWrapper child) {
+            CompletableFuture<String> res;
+            synchronized (parentPaths) {
+                CompletableFuture<String> cached = parentPaths.get(parent);
+                if (cached != null)
+                    return cached;
+                res = new CompletableFuture<>();
+                parentPaths.put(parent, res);
+            }
+            child.retrieveParent(network)
+                    .thenCompose(parentOpt -> ! parentOpt.isPresent() || parentOpt.get().isRoot() ?
+                            CompletableFuture.completedFuture("") :
+                            getPath(parentOpt.get()))
+                    .thenApply(res::complete)
+                    .exceptionally(res::completeExceptionally);
+            return res;
+        }
+    }
+
     private static CompletableFuture<Optional<FileWrapper>> getSharingCacheFile(String friendName,
                                                                                 Supplier<CompletableFuture<FileWrapper>> getHome,
                                                                                 NetworkAccess network,
@@ -341,21 +384,29 @@ public class CapabilityStore {
                                                 .thenCompose(x -> getCapabilityCacheDir(getHome, network, crypto)))));
     }
 
-    public static CompletableFuture<CapabilitiesFromUser> saveRetrievedCapabilityCache(long recordsRead,
-                                                                                       Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
-                                                                                       String friendName,
-                                                                                       NetworkAccess network,
-                                                                                       Crypto crypto,
-                                                                                       List<CapabilityWithPath> retrievedCapabilities,
-                                                                                       String capabilityType) {
-        CapabilitiesFromUser capabilitiesFromUser = new CapabilitiesFromUser(recordsRead, retrievedCapabilities);
+    /** Append the newly read capabilities to the cache, rather than rewriting those already there
+     *
+     * @param bytesRead the offset in the capability list reached, including these capabilities
+     */
+    public static CompletableFuture<CapabilitiesFromUser> appendToCapabilityCache(long bytesRead,
+                                                                                  Supplier<CompletableFuture<FileWrapper>> homeDirSupplier,
+                                                                                  String friendName,
+                                                                                  NetworkAccess network,
+                                                                                  Crypto crypto,
+                                                                                  List<CapabilityWithPath> retrievedCapabilities,
+                                                                                  String capabilityType) {
+        CapabilitiesFromUser capabilitiesFromUser = new CapabilitiesFromUser(bytesRead, retrievedCapabilities);
         byte[] data = capabilitiesFromUser.serialize();
-        AsyncReader.ArrayBacked dataReader = new AsyncReader.ArrayBacked(data);
+        String cacheFilename = friendName + capabilityType;
         return getCapabilityCacheDir(homeDirSupplier, network, crypto)
-                .thenCompose(cacheDir -> cacheDir.uploadOrReplaceFile(friendName + capabilityType, dataReader,
-                        (long) data.length, network, crypto, x-> {},
-                        crypto.random.randomBytes(32))
-                        .thenApply(x -> capabilitiesFromUser));
+                .thenCompose(cacheDir -> cacheDir.getChild(cacheFilename, crypto.hasher, network)
+                        .thenCompose(cacheFile -> {
+                            long startIndex = cacheFile.map(f -> f.getSize()).orElse(0L);
+                            return cacheDir.uploadFileSection(cacheFilename, new AsyncReader.ArrayBacked(data), false,
+                                    startIndex, startIndex + data.length, Optional.empty(), true,
+                                    network, crypto, x -> {}, crypto.random.randomBytes(32));
+                        }))
+                .thenApply(x -> capabilitiesFromUser);
     }
 
     private static CompletableFuture<CapabilitiesFromUser> readRetrievedCapabilityCache(FileWrapper cacheFile,
@@ -365,7 +416,17 @@ public class CapabilityStore {
                 .thenCompose(reader -> {
                     byte[] storeData = new byte[(int) cacheFile.getSize()];
                     return reader.readIntoArray(storeData, 0, storeData.length)
-                            .thenApply(x -> CapabilitiesFromUser.fromCbor(CborObject.fromByteArray(storeData)));
+                            .thenApply(x -> {
+                                ByteArrayInputStream in = new ByteArrayInputStream(storeData);
+                                List<CapabilityWithPath> caps = new ArrayList<>();
+                                long bytesRead = 0;
+                                while (in.available() > 0) {
+                                    CapabilitiesFromUser update = CapabilitiesFromUser.fromCbor(CborObject.read(in, storeData.length));
+                                    caps.addAll(update.getRetrievedCapabilities());
+                                    bytesRead = Math.max(bytesRead, update.getBytesRead());
+                                }
+                                return new CapabilitiesFromUser(bytesRead, caps);
+                            });
                 });
     }
 }
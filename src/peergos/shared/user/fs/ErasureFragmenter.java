@@ -2,7 +2,7 @@ package peergos.shared.user.fs;
 
 
 import peergos.shared.cbor.*;
-import peergos.shared.user.fs.erasure.Erasure;
+import peergos.shared.user.fs.erasure.ReedSolomon;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -12,10 +12,12 @@ public class ErasureFragmenter implements Fragmenter {
 
     private final int nOriginalFragments;
     private final int nAllowedFailures;
+    private final ReedSolomon codec;
 
     public ErasureFragmenter(int nOriginalFragments, int nAllowedFailures) {
         this.nOriginalFragments = nOriginalFragments;
         this.nAllowedFailures = nAllowedFailures;
+        this.codec = new ReedSolomon(nOriginalFragments, 2 * nAllowedFailures);
     }
 
     @Override
@@ -24,12 +26,21 @@ public class ErasureFragmenter implements Fragmenter {
     }
 
     public byte[][] split(byte[] input) {
-        return Erasure.split(input, nOriginalFragments, nAllowedFailures);
+        return codec.encode(input);
     }
 
+    /**
+     *
+     * @param encoded The fragments, where missing fragments are null or empty
+     * @param startOffset
+     * @param truncateLength the length of the original input
+     * @return
+     */
     public byte[] recombine(byte[][] encoded, int startOffset, int truncateLength) {
-        // truncateTo should be  input.length
-        byte[] withoutPrefix = Erasure.recombine(encoded, truncateLength, nOriginalFragments, nAllowedFailures);
+        byte[][] shards = new byte[encoded.length][];
+        for (int i=0; i < encoded.length; i++)
+            shards[i] = encoded[i] == null || encoded[i].length == 0 ? null : encoded[i];
+        byte[] withoutPrefix = codec.decode(shards, truncateLength);
         byte[] withPrefix = new byte[startOffset + withoutPrefix.length];
         System.arraycopy(withoutPrefix, 0, withPrefix, startOffset, withoutPrefix.length);
         return withPrefix;
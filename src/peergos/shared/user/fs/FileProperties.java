@@ -153,6 +153,10 @@ public class FileProperties implements Cborable {
         return new FileProperties(name, isDirectory, isLink, mimeType, newSize, modified, isHidden, thumbnail, streamSecret);
     }
 
+    public FileProperties withMimeType(String newMimeType) {
+        return new FileProperties(name, isDirectory, isLink, newMimeType, size, modified, isHidden, thumbnail, streamSecret);
+    }
+
     public FileProperties withThumbnail(byte[] newThumbnail) {
         return new FileProperties(name, isDirectory, isLink, mimeType, size, modified, isHidden, Optional.of(newThumbnail), streamSecret);
     }
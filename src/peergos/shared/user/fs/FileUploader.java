@@ -81,28 +81,45 @@ public class FileUploader implements AutoCloseable {
                                                    MaybeMultihash ourExistingHash,
                                                    ProgressConsumer<Long> monitor,
                                                    Hasher hasher) {
-        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        return readChunk(chunkIndex).thenCompose(data -> uploadChunk(current, committer, network, owner, writer,
+                chunkIndex, data, props, ourExistingHash, monitor, hasher));
+    }
+
+    private CompletableFuture<byte[]> readChunk(long chunkIndex) {
         long position = chunkIndex * Chunk.MAX_SIZE;
 
         long fileLength = length;
         boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
         int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
         byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
-            byte[] nonce = baseKey.createNonce();
-            return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation,
-                    chunkIndex * Chunk.MAX_SIZE, hasher)
-                    .thenCompose(mapKey -> {
-                        Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
-                        LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-                        return FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
-                                .thenCompose(nextMapKey -> {
-                                    Location nextLocation = new Location(owner, writer.publicKeyHash, nextMapKey);
-                                    return uploadChunk(current, committer, writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                                            nextLocation, Optional.empty(), hasher, network, monitor);
-                                });
-                    });
-        });
+        return reader.readIntoArray(data, 0, data.length).thenApply(b -> data);
+    }
+
+    private CompletableFuture<Snapshot> uploadChunk(Snapshot current,
+                                                    Committer committer,
+                                                    NetworkAccess network,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    long chunkIndex,
+                                                    byte[] data,
+                                                    FileProperties props,
+                                                    MaybeMultihash ourExistingHash,
+                                                    ProgressConsumer<Long> monitor,
+                                                    Hasher hasher) {
+        LOG.info("uploading chunk: "+chunkIndex + " of "+name);
+        byte[] nonce = baseKey.createNonce();
+        return FileProperties.calculateMapKey(props.streamSecret.get(), firstLocation,
+                chunkIndex * Chunk.MAX_SIZE, hasher)
+                .thenCompose(mapKey -> {
+                    Chunk chunk = new Chunk(data, dataKey, mapKey, nonce);
+                    LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
+                    return FileProperties.calculateNextMapKey(props.streamSecret.get(), mapKey, hasher)
+                            .thenCompose(nextMapKey -> {
+                                Location nextLocation = new Location(owner, writer.publicKeyHash, nextMapKey);
+                                return uploadChunk(current, committer, writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                                        nextLocation, Optional.empty(), hasher, network, monitor);
+                            });
+                });
     }
 
     public CompletableFuture<Snapshot> upload(Snapshot current,
@@ -122,6 +139,38 @@ public class FileUploader implements AutoCloseable {
                 });
     }
 
+    /** Upload the file in a single pass over its data, with the sink observing the plaintext of every chunk.
+     *  The first chunk is held back and uploaded last, with the properties the sink derives from the whole file,
+     *  so these don't need a separate commit. The chunks' locations don't depend on their contents, so the order
+     *  they are written in doesn't matter, and nothing links to the file until it is complete.
+     */
+    public CompletableFuture<Snapshot> upload(Snapshot current,
+                                              Committer committer,
+                                              NetworkAccess network,
+                                              PublicKeyHash owner,
+                                              SigningPrivateKeyAndPublicHash writer,
+                                              UploadSink sink,
+                                              Hasher hasher) {
+        long t1 = System.currentTimeMillis();
+
+        return readChunk(0).thenCompose(first -> {
+            sink.accept(first);
+            FileProperties chunkProps = sink.chunkProperties(props);
+            List<Integer> rest = IntStream.range(1, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
+            return Futures.reduceAll(rest, current, (cwd, i) -> readChunk(i).thenCompose(data -> {
+                        sink.accept(data);
+                        return uploadChunk(cwd, committer, network, owner, writer, i, data, chunkProps,
+                                MaybeMultihash.empty(), monitor, hasher);
+                    }), (a, b) -> b)
+                    .thenCompose(cwd -> sink.complete(chunkProps)
+                            .thenCompose(firstProps -> uploadChunk(cwd, committer, network, owner, writer, 0, first,
+                                    firstProps, MaybeMultihash.empty(), monitor, hasher)));
+        }).thenApply(x -> {
+            LOG.info("File encryption, upload took: " +(System.currentTimeMillis()-t1) + " mS");
+            return x;
+        });
+    }
+
     public static CompletableFuture<Snapshot> uploadChunk(Snapshot current,
                                                           Committer committer,
                                                           SigningPrivateKeyAndPublicHash writer,
@@ -145,9 +194,8 @@ public class FileUploader implements AutoCloseable {
                 .thenCompose(file -> {
                     CryptreeNode metadata = file.left.withWriterLink(baseKey, writerLink);
 
-                    List<Fragment> fragments = file.right.stream()
+                    List<FragmentWithHash> fragments = file.right.stream()
                             .filter(f -> !f.hash.isIdentity())
-                            .map(f -> f.fragment)
                             .collect(Collectors.toList());
 
                     if (fragments.size() < file.right.size())
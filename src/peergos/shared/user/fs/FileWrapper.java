@@ -14,11 +14,6 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.user.fs.transaction.*;
 import peergos.shared.util.*;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.awt.Graphics2D;
-import java.awt.AlphaComposite;
-import java.awt.RenderingHints;
 import java.io.*;
 import java.time.*;
 import java.util.*;
@@ -34,7 +29,6 @@ import java.util.stream.*;
 public class FileWrapper {
 	private static final Logger LOG = Logger.getGlobal();
 
-    private final static int THUMBNAIL_SIZE = 100;
     private static final NativeJSThumbnail thumbnail = new NativeJSThumbnail();
 
     private final RetrievedCapability pointer;
@@ -186,11 +180,9 @@ public class FileWrapper {
         int slash = path.indexOf("/");
         String prefix = slash > 0 ? path.substring(0, slash) : path;
         String suffix = slash > 0 ? path.substring(slash + 1) : "";
-        return getChildren(version, hasher, network).thenCompose(children -> {
-            for (FileWrapper child : children)
-                if (child.getFileProperties().name.equals(prefix)) {
-                    return child.getDescendentByPath(suffix, hasher, network);
-                }
+        return getChild(version, prefix, hasher, network).thenCompose(child -> {
+            if (child.isPresent())
+                return child.get().getDescendentByPath(suffix, hasher, network);
             return CompletableFuture.completedFuture(Optional.empty());
         });
     }
@@ -220,8 +212,8 @@ public class FileWrapper {
 
     public CompletableFuture<Boolean> hasChildWithName(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
         ensureUnmodified();
-        return getChildren(version, hasher, network)
-                .thenApply(children -> children.stream().anyMatch(c -> c.props.name.equals(name)));
+        return getChild(version, name, hasher, network)
+                .thenApply(Optional::isPresent);
     }
 
     /**
@@ -284,6 +276,19 @@ public class FileWrapper {
         return pointer.fileAccess.getAllChildrenCapabilities(version, pointer.capability, hasher, network);
     }
 
+    /**
+     *
+     * @return the location of the cryptree node our parent link points to, without retrieving it
+     */
+    public Optional<Location> getParentLocation() {
+        RetrievedCapability us = linkPointer.orElse(pointer);
+        if (us == null)
+            return Optional.empty();
+        AbsoluteCapability cap = us.capability;
+        return us.fileAccess.getParentCapability(cap.rBaseKey)
+                .map(parent -> parent.getLocation(cap.owner, cap.writer));
+    }
+
     public CompletableFuture<Optional<FileWrapper>> retrieveParent(NetworkAccess network) {
         ensureUnmodified();
         return retrieveParent(linkPointer.orElse(pointer), ownername, version, network);
@@ -399,7 +404,13 @@ public class FileWrapper {
     }
 
     private CompletableFuture<Optional<FileWrapper>> getChild(Snapshot version, String name, Hasher hasher, NetworkAccess network) {
-        return getChildren(version, hasher, network)
+        if (capTrie.isPresent() || ! isReadable())
+            return getChildren(version, hasher, network)
+                    .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
+        // Only retrieve the children whose link has a matching name hash (or no name hash)
+        Optional<SigningPrivateKeyAndPublicHash> childsEntryWriter = getChildsEntryWriter();
+        return pointer.fileAccess.getChildCapabilitiesByName(version, pointer.capability, name, hasher, network)
+                .thenCompose(candidates -> getFiles(owner(), candidates, childsEntryWriter, ownername, network, version))
                 .thenApply(children -> children.stream().filter(f -> f.getName().equals(name)).findAny());
     }
 
@@ -527,6 +538,29 @@ public class FileWrapper {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @return the locations of the chunks of a new file, which are derived from its stream secret and first map key
+     */
+    public CompletableFuture<List<Location>> generateChildLocationsFromSize(long fileSize,
+                                                                            byte[] streamSecret,
+                                                                            byte[] firstMapKey,
+                                                                            Hasher hasher) {
+        List<Integer> later = IntStream.range(0, getNumberOfChunks(fileSize)) //have to have one extra location
+                .boxed()
+                .collect(Collectors.toList());
+        return Futures.reduceAll(later, Collections.singletonList(firstMapKey),
+                (keys, i) -> FileProperties.calculateNextMapKey(streamSecret, keys.get(keys.size() - 1), hasher)
+                        .thenApply(next -> {
+                            List<byte[]> res = new ArrayList<>(keys);
+                            res.add(next);
+                            return res;
+                        }),
+                (a, b) -> b)
+                .thenApply(keys -> keys.stream()
+                        .map(mapKey -> new Location(owner(), writer(), mapKey))
+                        .collect(Collectors.toList()));
+    }
+
     @JsMethod
     public CompletableFuture<FileWrapper> uploadFileJS(String filename,
                                                        AsyncReader fileData,
@@ -545,14 +579,18 @@ public class FileWrapper {
                             false, 0, fileSize, Optional.empty(), overwriteExisting, truncateExisting,
                             network, crypto, monitor, crypto.random.randomBytes(32))
             ).thenCompose(finished -> getUpdated(finished, network));
-        return getPath(network).thenCompose(path ->
-                Transaction.buildFileUploadTransaction(Paths.get(path).resolve(filename).toString(), fileSize, fileData, signingPair(),
-                        generateChildLocationsFromSize(fileSize, crypto.random)))
+        // the chunk locations are derived from the stream secret, so it is chosen here to record them in the transaction
+        byte[] streamSecret = crypto.random.randomBytes(32);
+        return getPath(network).thenCompose(path -> generateChildLocationsFromSize(fileSize, streamSecret,
+                crypto.random.randomBytes(32), crypto.hasher)
+                .thenCompose(locations -> Transaction.buildFileUploadTransaction(Paths.get(path).resolve(filename).toString(),
+                        fileSize, fileData, signingPair(), locations)))
                 .thenCompose(txn -> network.synchronizer.applyComplexUpdate(owner(), transactions.getSigner(),
                         (s, committer) -> transactions.open(s, committer, txn).thenCompose(v -> fileData.reset()
                                 .thenCompose(reset -> uploadFileSection(v, committer, filename, reset,
                                         false, 0, fileSize, Optional.empty(), overwriteExisting, truncateExisting,
-                                        network, crypto, monitor, txn.getLocations().get(0).getMapKey()))
+                                        network, crypto, monitor, txn.getLocations().get(0).getMapKey(),
+                                        Optional.of(streamSecret)))
                                 .thenCompose(uploaded -> transactions.close(uploaded, committer, txn))
                         ))
                         .exceptionally(t -> {
@@ -739,6 +777,9 @@ public class FileWrapper {
                                     // update file size
                                     if (props.size >= endIndex)
                                         return CompletableFuture.completedFuture(updatedBase);
+                                    // the new size was written with the first chunk
+                                    if (inputStartIndex < endIndex && endIndex <= Chunk.MAX_SIZE)
+                                        return CompletableFuture.completedFuture(updatedBase);
                                     WritableAbsoluteCapability cap = us.writableFilePointer();
                                     FileProperties newProps = props.withSize(endIndex);
                                     return network.getFile(updatedBase, cap, entryWriter, ownername)
@@ -828,6 +869,29 @@ public class FileWrapper {
                                                          Crypto crypto,
                                                          ProgressConsumer<Long> monitor,
                                                          byte[] firstChunkMapKey) {
+        return uploadFileSection(intialVersion, committer, filename, fileData, isHidden, startIndex, endIndex, baseKey,
+                overwriteExisting, truncateExisting, network, crypto, monitor, firstChunkMapKey, Optional.empty());
+    }
+
+    /**
+     * @param streamSecret The stream secret for a new file, which determines the locations of its later chunks.
+     *                     If absent a random secret is generated.
+     */
+    public CompletableFuture<Snapshot> uploadFileSection(Snapshot intialVersion,
+                                                         Committer committer,
+                                                         String filename,
+                                                         AsyncReader fileData,
+                                                         boolean isHidden,
+                                                         long startIndex,
+                                                         long endIndex,
+                                                         Optional<SymmetricKey> baseKey,
+                                                         boolean overwriteExisting,
+                                                         boolean truncateExisting,
+                                                         NetworkAccess network,
+                                                         Crypto crypto,
+                                                         ProgressConsumer<Long> monitor,
+                                                         byte[] firstChunkMapKey,
+                                                         Optional<byte[]> streamSecret) {
         if (!isLegalName(filename)) {
             CompletableFuture<Snapshot> res = new CompletableFuture<>();
             res.completeExceptionally(new IllegalStateException("Illegal filename: " + filename));
@@ -887,14 +951,15 @@ public class FileWrapper {
                                             SymmetricKey dirParentKey = dirAccess.getParentKey(rootRKey);
                                             Location parentLocation = getLocation();
 
-                                            return calculateMimeType(fileData, endIndex, filename).thenCompose(mimeType -> fileData.reset()
-                                                    .thenCompose(resetReader -> {
-                                                        Optional<byte[]> streamSecret = Optional.of(crypto.random.randomBytes(32));
+                                            return thumbnailSink(fileData, endIndex, filename, network)
+                                                    .thenCompose(readerAndSink -> {
+                                                        UploadSink sink = readerAndSink.right;
                                                         FileProperties fileProps = new FileProperties(filename,
-                                                                false, false, mimeType, endIndex,
-                                                                LocalDateTime.now(), isHidden, Optional.empty(), streamSecret);
+                                                                false, false, "", endIndex,
+                                                                LocalDateTime.now(), isHidden, Optional.empty(),
+                                                                Optional.of(streamSecret.orElseGet(() -> crypto.random.randomBytes(32))));
 
-                                                        FileUploader chunks = new FileUploader(filename, mimeType, resetReader,
+                                                        FileUploader chunks = new FileUploader(filename, "", readerAndSink.left,
                                                                 startIndex, endIndex, fileKey, dataKey, parentLocation,
                                                                 dirParentKey, monitor, fileProps, firstChunkMapKey);
 
@@ -905,58 +970,75 @@ public class FileWrapper {
                                                                 firstChunkMapKey, fileKey,
                                                                 fileWriteKey);
 
-                                                        return chunks.upload(current, committer, network, parentLocation.owner, signer, crypto.hasher)
-                                                                .thenCompose(updatedWD -> latest.addChildPointer(updatedWD, committer, fileWriteCap, network, crypto))
-                                                                .thenCompose(cwd -> fileData.reset().thenCompose(resetAgain ->
-                                                                        generateThumbnailAndUpdate(cwd, committer, fileWriteCap, filename, resetAgain,
-                                                                                network, isHidden, mimeType,
-                                                                                endIndex, LocalDateTime.now(), streamSecret)));
-                                                    }));
+                                                        return chunks.upload(current, committer, network, parentLocation.owner, signer, sink, crypto.hasher)
+                                                                .thenCompose(updatedWD -> latest.addChildPointer(updatedWD, committer, filename, fileWriteCap, network, crypto))
+                                                                .whenComplete((res, err) -> sink.close());
+                                                    });
                                         })
                         )
                 );
     }
 
+    /** On the JVM the thumbnail is generated from the data as it is uploaded. In the browser it is generated natively
+     * from the whole file first, and the returned reader has been reset.
+     */
+    private static CompletableFuture<Pair<AsyncReader, UploadSink>> thumbnailSink(AsyncReader fileData,
+                                                                                  long fileSize,
+                                                                                  String filename,
+                                                                                  NetworkAccess network) {
+        if (! network.isJavascript())
+            return Futures.of(new Pair<>(fileData, ThumbnailSink.streaming(filename, fileSize)));
+        return generateThumbnail(fileData, (int) Math.min(fileSize, Integer.MAX_VALUE), filename)
+                .thenCompose(thumb -> fileData.reset()
+                        .thenApply(reset -> new Pair<>(reset, ThumbnailSink.withThumbnail(filename, fileSize, thumb))));
+    }
+
     private CompletableFuture<Snapshot> recalculateThumbnail(Snapshot snapshot, Committer committer, String filename, AsyncReader fileData
              , boolean isHidden, long fileSize, NetworkAccess network, WritableAbsoluteCapability fileWriteCap, Optional<byte[]> streamSecret
     ) {
         return fileData.reset()
-                .thenCompose(fileData2 -> calculateMimeType(fileData2, fileSize, filename)
-                        .thenCompose(mimeType -> fileData.reset()
-                                .thenCompose(resetAgain ->
-                                    generateThumbnailAndUpdate(snapshot, committer, fileWriteCap, filename, resetAgain,
-                                            network, isHidden, mimeType, fileSize, LocalDateTime.now(), streamSecret))));
-    }
-
-    private CompletableFuture<Snapshot> generateThumbnailAndUpdate(Snapshot base,
-                                                                   Committer committer,
-                                                                   WritableAbsoluteCapability cap,
-                                                                   String fileName,
-                                                                   AsyncReader fileData,
-                                                                   NetworkAccess network,
-                                                                   Boolean isHidden,
-                                                                   String mimeType,
-                                                                   long fileSize,
-                                                                   LocalDateTime updatedDateTime,
-                                                                   Optional<byte[]> streamSecret) {
-        return generateThumbnail(network, fileData, (int) Math.min(fileSize, Integer.MAX_VALUE), fileName)
-                .thenCompose(thumbData -> {
-                    FileProperties fileProps = new FileProperties(fileName, false, props.isLink, mimeType, fileSize,
-                            updatedDateTime, isHidden, thumbData, streamSecret);
-
-                    return network.getFile(base, cap, getChildsEntryWriter(), ownername)
-                            .thenCompose(child -> child.get()
-                                    .getPointer().fileAccess.updateProperties(base, committer, cap,
-                                            getChildsEntryWriter(), fileProps, network));
+                .thenCompose(reset -> thumbnailSink(reset, fileSize, filename, network))
+                .thenCompose(readerAndSink -> {
+                    UploadSink sink = readerAndSink.right;
+                    // a sink with a native thumbnail only needs the first chunk to derive the mime type
+                    long toRead = network.isJavascript() ? Math.min(fileSize, Chunk.MAX_SIZE) : fileSize;
+                    return readInto(sink, readerAndSink.left, 0, toRead)
+                            .thenCompose(done -> sink.complete(sink.chunkProperties(new FileProperties(filename, false,
+                                    props.isLink, "", fileSize, LocalDateTime.now(), isHidden, Optional.empty(), streamSecret))))
+                            .thenCompose(fileProps -> network.getFile(snapshot, fileWriteCap, getChildsEntryWriter(), ownername)
+                                    .thenCompose(child -> child.get()
+                                            .getPointer().fileAccess.updateProperties(snapshot, committer, fileWriteCap,
+                                                    getChildsEntryWriter(), fileProps, network)))
+                            .whenComplete((res, err) -> sink.close());
                 });
     }
 
+    /** Pass the data to the sink a chunk at a time, so that it is never all in memory at once. The sink is always
+     * given a first chunk, even if it is empty.
+     */
+    private static CompletableFuture<Boolean> readInto(UploadSink sink, AsyncReader fileData, long offset, long length) {
+        if (length == 0) {
+            sink.accept(new byte[0]);
+            return Futures.of(true);
+        }
+        if (offset >= length)
+            return Futures.of(true);
+        byte[] chunk = new byte[(int) Math.min(Chunk.MAX_SIZE, length - offset)];
+        return fileData.readIntoArray(chunk, 0, chunk.length).thenCompose(read -> {
+            sink.accept(chunk);
+            return readInto(sink, fileData, offset + chunk.length, length);
+        });
+    }
+
     private CompletableFuture<Snapshot> addChildPointer(Snapshot current,
                                                         Committer committer,
+                                                        String childName,
                                                         WritableAbsoluteCapability childPointer,
                                                         NetworkAccess network,
                                                         Crypto crypto) {
-        List<RelativeCapability> childCaps = Collections.singletonList(writableFilePointer().relativise(childPointer));
+        WritableAbsoluteCapability us = writableFilePointer();
+        List<RelativeCapability> childCaps = Collections.singletonList(us.relativise(childPointer)
+                .withName(childName, us.rBaseKey, crypto.hasher));
         return pointer.fileAccess.addChildrenAndCommit(current, committer,
                 childCaps, writableFilePointer(), signingPair(), network, crypto)
                 .thenApply(newBase -> {
@@ -1132,8 +1214,10 @@ public class FileWrapper {
                         SigningPrivateKeyAndPublicHash signer = isLink ? parent.signingPair() : signingPair();
                         return userContext.network.synchronizer.applyComplexUpdate(owner(), signer,
                                 (s, committer) -> nodeToUpdate.updateProperties(s, committer, us,
-                                            entryWriter, newProps, userContext.network))
-                                .thenApply(newVersion -> res.withVersion(newVersion));
+                                            entryWriter, newProps, userContext.network)
+                                        .thenCompose(updated -> updateNameInParent(updated, committer, res, us,
+                                                newFilename, userContext.crypto.hasher, userContext.network)))
+                                .thenCompose(newVersion -> res.getUpdated(newVersion, userContext.network));
                     });
                 });
     }
@@ -1151,25 +1235,43 @@ public class FileWrapper {
                 (s, comitter) -> (! parent.isPresent() ?
                         CompletableFuture.completedFuture(s) :
                         s.withWriter(owner(), parent.get().writer(), network)
-                ).thenCompose(withParent -> parent.get().hasChildWithName(withParent, newName, hasher, network))
-                        .thenCompose(hasChild -> ! hasChild ?
-                                CompletableFuture.completedFuture(true) :
-                                parent.get().getChildrenCapabilities(hasher, network)
-                                        .thenApply(childCaps -> {
-                                            if (! childCaps.stream()
-                                                    .map(l -> new ByteArrayWrapper(l.getMapKey()))
-                                                    .collect(Collectors.toSet())
-                                                    .contains(new ByteArrayWrapper(pointer.capability.getMapKey())))
-                                                throw new IllegalStateException("Cannot rename to same name as an existing file");
-                                            return true;
-                                        })).thenCompose(x -> {
+                ).thenCompose(withParent -> parent.get().getChild(withParent, newName, hasher, network))
+                        .thenApply(existing -> {
+                            if (! existing.isPresent())
+                                return true;
+                            if (! Arrays.equals(existing.get().pointer.capability.getMapKey(), pointer.capability.getMapKey()))
+                                throw new IllegalStateException("Cannot rename to same name as an existing file");
+                            return false;
+                        }).thenCompose(needsRelink -> {
                             CryptreeNode fileAccess = pointer.fileAccess;
+                            // we weren't found under our name, so our name hash is out of date, either because of a
+                            // rename, or a rename by an older client which didn't update the parent's link
                             return fileAccess.updateProperties(s, comitter, writableFilePointer(),
-                                    entryWriter, updatedProperties, network);
+                                    entryWriter, updatedProperties, network)
+                                    .thenCompose(updated -> parent.isPresent() && ! linkPointer.isPresent() && needsRelink ?
+                                            updateNameInParent(updated, comitter, parent.get(), pointer.capability, newName, hasher, network) :
+                                            CompletableFuture.completedFuture(updated));
                         }))
                 .thenApply(fa -> true);
     }
 
+    /** Update the name hash in the parent's link to a renamed child
+     */
+    private static CompletableFuture<Snapshot> updateNameInParent(Snapshot current,
+                                                                  Committer committer,
+                                                                  FileWrapper parent,
+                                                                  AbsoluteCapability child,
+                                                                  String newName,
+                                                                  Hasher hasher,
+                                                                  NetworkAccess network) {
+        WritableAbsoluteCapability parentCap = parent.writableFilePointer();
+        return current.withWriter(parentCap.owner, parentCap.writer, network)
+                .thenCompose(withParent -> network.getMetadata(withParent.get(parentCap.writer).props, parentCap)
+                        .thenCompose(parentNode -> parentNode.get().updateChildLinks(withParent, committer, parentCap,
+                                parent.signingPair(), Collections.singletonList(new Pair<>(child, child)),
+                                Collections.singletonMap(child.getLocation(), newName), network, hasher)));
+    }
+
     /**
      *
      * @return A capability based on the parent key
@@ -1195,13 +1297,84 @@ public class FileWrapper {
                 .orElseGet(entryWriter::get);
     }
 
+    /** Move this file or directory into another directory.
+     *
+     *  When we own it, and the source and target parents are in the same writing space, this just moves the link to us from our
+     *  parent to the target and updates our parent link. No data or descendant cryptree nodes are touched. Otherwise,
+     *  or if anything in or above us is shared (which a move must revoke), we are copied and then removed.
+     *
+     * @param target
+     * @param parent
+     * @param context
+     * @return
+     */
     @JsMethod
     public CompletableFuture<Boolean> moveTo(FileWrapper target, FileWrapper parent, UserContext context) {
+        ensureUnmodified();
+        if (! target.isDirectory())
+            return Futures.errored(new IllegalStateException("MoveTo target " + target + " must be a directory"));
+        // we can only see our own shares, so only do this for our own files
+        boolean sameWritingSpace = target.isWritable() && parent.isWritable() &&
+                owner().equals(context.signer.publicKeyHash) &&
+                owner().equals(target.owner()) && owner().equals(parent.owner()) &&
+                target.writer().equals(parent.writer());
+        if (! sameWritingSpace)
+            return copyAndRemove(target, parent, context);
+        NetworkAccess network = context.network;
+        return getPath(network).thenCompose(ourPath -> target.getPath(network).thenCompose(targetPath -> {
+            if (Paths.get(targetPath).startsWith(Paths.get(ourPath)))
+                return Futures.errored(new IllegalStateException("Cannot move " + ourPath + " into itself"));
+            if (isSharedAt(Paths.get(ourPath), context.sharedWithCache))
+                return copyAndRemove(target, parent, context);
+            return network.synchronizer.applyComplexUpdate(owner(), target.signingPair(),
+                    (version, committer) -> version.withWriter(owner(), writer(), network)
+                            .thenCompose(both -> moveLink(target, parent, network, context.crypto, both, committer)))
+                    .thenApply(newVersion -> true);
+        }));
+    }
+
+    private CompletableFuture<Boolean> copyAndRemove(FileWrapper target, FileWrapper parent, UserContext context) {
         return copyTo(target, context)
                 .thenCompose(fw -> remove(parent, context))
                 .thenApply(newAccess -> true);
     }
 
+    private static boolean isSharedAt(Path path, SharedWithCache cache) {
+        Path root = Paths.get("/");
+        return Stream.concat(cache.getAllReadShares(root).keySet().stream(), cache.getAllWriteShares(root).keySet().stream())
+                .anyMatch(shared -> shared.startsWith(path) || path.startsWith(shared));
+    }
+
+    private CompletableFuture<Snapshot> moveLink(FileWrapper target,
+                                                 FileWrapper parent,
+                                                 NetworkAccess network,
+                                                 Crypto crypto,
+                                                 Snapshot version,
+                                                 Committer committer) {
+        String name = getName();
+        RetrievedCapability ourPointer = linkPointer.orElse(pointer);
+        WritableAbsoluteCapability us = (WritableAbsoluteCapability) ourPointer.capability;
+        WritableAbsoluteCapability targetCap = target.writableFilePointer();
+        // a link node is in the writing space of its parent
+        SigningPrivateKeyAndPublicHash ourSigner = isLink() ? parent.signingPair() : signingPair();
+        return target.hasChildWithName(version, name, crypto.hasher, network).thenCompose(childExists -> {
+            if (childExists)
+                return Futures.errored(new IllegalStateException("MoveTo target " + target + " already has child with name " + name));
+            // Only the first chunk's parent link is used, so leave any subsequent chunks alone
+            RelativeCapability newParentLink = new RelativeCapability(
+                    us.writer.equals(targetCap.writer) ? Optional.empty() : Optional.of(targetCap.writer),
+                    targetCap.getMapKey(), target.getParentKey(), Optional.empty());
+            CryptreeNode moved = ourPointer.fileAccess.withParentLink(ourPointer.getParentKey(), newParentLink);
+            RelativeCapability toUs = targetCap.relativise(us).withName(name, targetCap.rBaseKey, crypto.hasher);
+            return IpfsTransaction.call(owner(),
+                    tid -> moved.commit(version, committer, us, ourSigner, network, tid), network.dhtClient)
+                    .thenCompose(s -> target.pointer.fileAccess.addChildrenAndCommit(s, committer,
+                            Collections.singletonList(toUs), targetCap, target.signingPair(), network, crypto))
+                    .thenCompose(s -> parent.pointer.fileAccess.removeChildren(s, committer, Collections.singletonList(us),
+                            parent.writableFilePointer(), parent.entryWriter, network, crypto.hasher));
+        });
+    }
+
     @JsMethod
     public CompletableFuture<Boolean> copyTo(FileWrapper target, UserContext context) {
         ensureUnmodified();
@@ -1211,9 +1384,15 @@ public class FileWrapper {
             return Futures.errored(new IllegalStateException("CopyTo target " + target + " must be a directory"));
         }
 
-        return context.network.synchronizer.applyComplexUpdate(target.owner(), target.signingPair(),
-                (version, committer) -> version.withWriter(owner(), writer(), network)
-                        .thenCompose(both -> copyTo(target, network, crypto, both, committer)))
+        // Only reuse the encrypted fragments of our own files which nobody else can read, as the copy shares the
+        // data key of the original
+        boolean sameOwner = owner().equals(context.signer.publicKeyHash) && target.owner().equals(owner());
+        return (sameOwner ?
+                getPath(network).thenApply(path -> ! isSharedAt(Paths.get(path), context.sharedWithCache)) :
+                Futures.of(false))
+                .thenCompose(reuseFragments -> context.network.synchronizer.applyComplexUpdate(target.owner(), target.signingPair(),
+                        (version, committer) -> version.withWriter(owner(), writer(), network)
+                                .thenCompose(both -> copyTo(target, reuseFragments, network, crypto, both, committer))))
                 .thenApply(newAccess -> true);
     }
 
@@ -1222,6 +1401,21 @@ public class FileWrapper {
                                               Crypto crypto,
                                               Snapshot version,
                                               Committer committer) {
+        return copyTo(target, false, network, crypto, version, committer);
+    }
+
+    /**
+     *
+     * @param reuseFragments whether copied files should link to the existing encrypted fragments rather than
+     *                       re-encrypting and uploading their contents
+     * @return
+     */
+    public CompletableFuture<Snapshot> copyTo(FileWrapper target,
+                                              boolean reuseFragments,
+                                              NetworkAccess network,
+                                              Crypto crypto,
+                                              Snapshot version,
+                                              Committer committer) {
         if (! target.isDirectory()) {
             return Futures.errored(new IllegalStateException("CopyTo target " + target + " must be a directory"));
         }
@@ -1248,9 +1442,11 @@ public class FileWrapper {
                                                     return Futures.reduceAll(children, versionWithDir,
                                                             (s, child) -> newTarget.getUpdated(s, network)
                                                                     .thenCompose(updated ->
-                                                                            child.copyTo(updated, network, crypto, s, committer)),
+                                                                            child.copyTo(updated, reuseFragments, network, crypto, s, committer)),
                                                             (a, b) -> a.merge(b));
                                                 })));
+            } else if (reuseFragments && target.owner().equals(owner())) {
+                return copyFragmentsTo(target, network, crypto, version, committer);
             } else {
                 return version.withWriter(owner(), writer(), network).thenCompose(snapshot ->
                         getInputStream(snapshot.get(writer()).props, network, crypto, x -> {})
@@ -1262,6 +1458,65 @@ public class FileWrapper {
         });
     }
 
+    /** Copy this file into a directory without re-encrypting its contents. Every chunk gets a new cryptree node, with
+     *  fresh keys and location, which links to the existing encrypted fragments. So the cost is proportional to the
+     *  size of the metadata rather than the file.
+     */
+    private CompletableFuture<Snapshot> copyFragmentsTo(FileWrapper target,
+                                                        NetworkAccess network,
+                                                        Crypto crypto,
+                                                        Snapshot version,
+                                                        Committer committer) {
+        FileProperties props = getFileProperties();
+        WritableAbsoluteCapability targetCap = target.writableFilePointer();
+        WritableAbsoluteCapability newCap = targetCap
+                .withMapKey(crypto.random.randomBytes(32))
+                .withBaseKey(SymmetricKey.random())
+                .withBaseWriteKey(SymmetricKey.random());
+        FileProperties newProps = props
+                .withNewStreamSecret(crypto.random.randomBytes(32))
+                .withModified(LocalDateTime.now());
+        RelativeCapability toParent = new RelativeCapability(Optional.empty(), targetCap.getMapKey(),
+                target.getParentKey(), Optional.empty());
+        int nChunks = (int) Math.max(1, (props.size + Chunk.MAX_SIZE - 1) / Chunk.MAX_SIZE);
+        RelativeCapability toUs = targetCap.relativise(newCap).withName(props.name, targetCap.rBaseKey, crypto.hasher);
+        return copyFragmentChunks(pointer.capability, props.streamSecret, newCap, newProps, toParent, nChunks,
+                target.signingPair(), network, crypto.hasher, version, committer)
+                .thenCompose(s -> target.pointer.fileAccess.addChildrenAndCommit(s, committer,
+                        Collections.singletonList(toUs), targetCap, target.signingPair(), network, crypto));
+    }
+
+    private static CompletableFuture<Snapshot> copyFragmentChunks(AbsoluteCapability from,
+                                                                  Optional<byte[]> streamSecret,
+                                                                  WritableAbsoluteCapability to,
+                                                                  FileProperties newProps,
+                                                                  RelativeCapability toParent,
+                                                                  int remainingChunks,
+                                                                  SigningPrivateKeyAndPublicHash signer,
+                                                                  NetworkAccess network,
+                                                                  Hasher hasher,
+                                                                  Snapshot version,
+                                                                  Committer committer) {
+        if (remainingChunks == 0)
+            return CompletableFuture.completedFuture(version);
+        return network.getMetadata(version.get(from.writer).props, from).thenCompose(mOpt -> {
+            if (! mOpt.isPresent())
+                return Futures.errored(new IllegalStateException("Missing chunk of file being copied!"));
+            CryptreeNode chunk = mOpt.get();
+            return chunk.getNextChunkLocation(from.rBaseKey, streamSecret, from.getMapKey(), hasher)
+                    .thenCompose(nextFrom -> FileProperties.calculateNextMapKey(newProps.streamSecret.get(), to.getMapKey(), hasher)
+                            .thenCompose(nextTo -> {
+                                CryptreeNode copy = chunk.copyFileChunk(from.rBaseKey, to.rBaseKey, newProps, toParent,
+                                        RelativeCapability.buildSubsequentChunk(nextTo, to.rBaseKey));
+                                return IpfsTransaction.call(to.owner, tid -> network.uploadChunk(version, committer, copy,
+                                        to.owner, to.getMapKey(), signer, tid), network.dhtClient)
+                                        .thenCompose(updated -> copyFragmentChunks(from.withMapKey(nextFrom), streamSecret,
+                                                to.withMapKey(nextTo), newProps, toParent, remainingChunks - 1, signer,
+                                                network, hasher, updated, committer));
+                            }));
+        });
+    }
+
     @JsMethod
     public CompletableFuture<Boolean> hasChild(String fileName, Hasher hasher, NetworkAccess network) {
         if (!isLegalName(fileName)) {
@@ -1556,107 +1811,61 @@ public class FileWrapper {
         return new FileWrapper(Optional.of(root), null, Optional.empty(), Optional.empty(), null, new Snapshot(new HashMap<>()));
     }
 
-    public static Optional<byte[]> generateThumbnail(byte[] imageBlob) {
-        try {
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBlob));
-            BufferedImage thumbnailImage = new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE, image.getType());
-            Graphics2D g = thumbnailImage.createGraphics();
-            g.setComposite(AlphaComposite.Src);
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g.drawImage(image, 0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE, null);
-            g.dispose();
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(thumbnailImage, "JPG", baos);
-            baos.close();
-            return Optional.of(baos.toByteArray());
-        } catch (IOException ioe) {
-            LOG.log(Level.WARNING, ioe.getMessage(), ioe);
-        }
-        return Optional.empty();
-    }
-
-    public static byte[] generateVideoThumbnail(byte[] videoBlob) {
-        File tempFile = null;
-        try {
-            tempFile = File.createTempFile(UUID.randomUUID().toString(), ".mp4");
-            Files.write(tempFile.toPath(), videoBlob, StandardOpenOption.WRITE);
-            return VideoThumbnail.create(tempFile.getAbsolutePath(), THUMBNAIL_SIZE, THUMBNAIL_SIZE);
-        } catch (IOException ioe) {
-            LOG.log(Level.WARNING, ioe.getMessage(), ioe);
-        } finally {
-            if(tempFile != null) {
-                try {
-                    Files.delete(tempFile.toPath());
-                }catch(IOException ioe){
-
-                }
-            }
-        }
-        return new byte[0];
-    }
-
-    private CompletableFuture<Optional<byte[]>> generateThumbnail(NetworkAccess network, AsyncReader fileData, int fileSize, String filename) {
+    /** Generate a thumbnail natively in the browser
+     */
+    private static CompletableFuture<Optional<byte[]>> generateThumbnail(AsyncReader fileData, int fileSize, String filename) {
         CompletableFuture<Optional<byte[]>> fut = new CompletableFuture<>();
         if (fileSize > MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE) {
             getFileType(fileData, filename).thenAccept(mimeType -> {
                 if (mimeType.startsWith("image")) {
-                    if (network.isJavascript()) {
-                        thumbnail.generateThumbnail(fileData, fileSize, filename).thenAccept(base64Str -> {
-                            byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
-                            if (bytesOfData.length == 0)
-                                fut.complete(Optional.empty());
-                            else
-                                fut.complete(Optional.of(bytesOfData));
-                        });
-                    } else {
-                        byte[] bytes = new byte[fileSize];
-                        fileData.readIntoArray(bytes, 0, fileSize).thenAccept(data -> {
-                            fut.complete(generateThumbnail(bytes));
-                        });
-                    }
+                    thumbnail.generateThumbnail(fileData, fileSize, filename).thenAccept(base64Str -> {
+                        byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
+                        if (bytesOfData.length == 0)
+                            fut.complete(Optional.empty());
+                        else
+                            fut.complete(Optional.of(bytesOfData));
+                    });
                 } else if (mimeType.startsWith("video")) {
-                    if (network.isJavascript()) {
-                        thumbnail.generateVideoThumbnail(fileData, fileSize, filename, mimeType).thenAccept(base64Str -> {
-                            if(base64Str == null) {
-                                fut.complete(Optional.empty());
-                            }
-                            byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
-                            if (bytesOfData.length == 0)
-                                fut.complete(Optional.empty());
-                            else
-                                fut.complete(Optional.of(bytesOfData));
-                        });
-                    } else {
-                        byte[] bytes = new byte[fileSize];
-                        fileData.readIntoArray(bytes, 0, fileSize).thenAccept(data -> {
-                            fut.complete(Optional.of(generateVideoThumbnail(bytes)));
-                        });
-                    }
+                    thumbnail.generateVideoThumbnail(fileData, fileSize, filename, mimeType).thenAccept(base64Str -> {
+                        if(base64Str == null) {
+                            fut.complete(Optional.empty());
+                        }
+                        byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
+                        if (bytesOfData.length == 0)
+                            fut.complete(Optional.empty());
+                        else
+                            fut.complete(Optional.of(bytesOfData));
+                    });
                 } else if (mimeType.startsWith("audio/mpeg")) {
-                    byte[] mp3Data = new byte[fileSize];
-                    fileData.readIntoArray(mp3Data, 0, fileSize).thenAccept(read -> {
+                    byte[] start = new byte[MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE];
+                    fileData.readIntoArray(start, 0, start.length).thenCompose(x -> {
+                        try {
+                            // only the ID3 tag at the start of the file can hold the cover art
+                            byte[] tag = Arrays.copyOf(start, Math.min(fileSize, Mp3CoverImage.tagLength(start)));
+                            return fileData.readIntoArray(tag, start.length, tag.length - start.length)
+                                    .thenApply(read -> tag);
+                        } catch (Exception e) {
+                            return Futures.errored(e);
+                        }
+                    }).thenAccept(tag -> {
                         try {
-                            Mp3CoverImage mp3CoverImage = Mp3CoverImage.extractCoverArt(mp3Data);
+                            Mp3CoverImage mp3CoverImage = Mp3CoverImage.extractCoverArt(tag);
                             if (mp3CoverImage.imageData == null) {
                                 fut.complete(Optional.empty());
                             } else {
-                                if (network.isJavascript()) {
-                                    AsyncReader.ArrayBacked imageBlob = new AsyncReader.ArrayBacked(mp3CoverImage.imageData);
-                                    thumbnail.generateThumbnail(imageBlob, mp3CoverImage.imageData.length, filename)
-                                            .thenAccept(base64Str -> {
-                                                byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
-                                                fut.complete(Optional.of(bytesOfData));
-                                            });
-                                } else {
-                                    fut.complete(generateThumbnail(mp3CoverImage.imageData));
-                                }
+                                AsyncReader.ArrayBacked imageBlob = new AsyncReader.ArrayBacked(mp3CoverImage.imageData);
+                                thumbnail.generateThumbnail(imageBlob, mp3CoverImage.imageData.length, filename)
+                                        .thenAccept(base64Str -> {
+                                            byte[] bytesOfData = Base64.getDecoder().decode(base64Str);
+                                            fut.complete(Optional.of(bytesOfData));
+                                        });
                             }
                         } catch(Exception ex) {
                             fut.complete(Optional.empty());
                         }
+                    }).exceptionally(e -> {
+                        fut.complete(Optional.empty());
+                        return null;
                     });
                 } else {
                     fut.complete(Optional.empty());
@@ -17,16 +17,25 @@ public class Mp3CoverImage {
         this.mimeType = mimeType;
     }
 
-    public static Mp3CoverImage extractCoverArt(byte[] rawMp3) throws  NoSuchTagException, UnsupportedTagException, InvalidDataException {
-        byte[] bytes = Arrays.copyOfRange(rawMp3, 0, 10);
+    /**
+     *
+     * @param start at least the first 10 bytes of an mp3
+     * @return the number of bytes at the start of the mp3 taken by its ID3v2 tag, which holds any cover art
+     */
+    public static int tagLength(byte[] start) throws NoSuchTagException, UnsupportedTagException {
+        byte[] bytes = Arrays.copyOfRange(start, 0, AbstractID3v2Tag.HEADER_LENGTH);
 
         sanityCheckTag(bytes);
-        int fileStart = AbstractID3v2Tag.HEADER_LENGTH +
+        return AbstractID3v2Tag.HEADER_LENGTH +
                 unpackSynchsafeInteger(
                         bytes[AbstractID3v2Tag.DATA_LENGTH_OFFSET],
                         bytes[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 1],
                         bytes[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 2],
                         bytes[AbstractID3v2Tag.DATA_LENGTH_OFFSET + 3]);
+    }
+
+    public static Mp3CoverImage extractCoverArt(byte[] rawMp3) throws  NoSuchTagException, UnsupportedTagException, InvalidDataException {
+        int fileStart = tagLength(rawMp3);
 
         byte[] headers = Arrays.copyOfRange(rawMp3, 0, fileStart);
         AbstractID3v2Tag tag = createTag(headers);
@@ -7,6 +7,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.SymmetricKey;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 /** This provides a relative cryptographic capability (read only or read and write) for a file or folder.
@@ -16,24 +17,76 @@ import java.util.*;
  */
 public class RelativeCapability implements Cborable {
     public static final int MAP_KEY_LENGTH = 32;
+    public static final int NAME_HASH_LENGTH = 8;
 
     // writer is only present when it is not implicit (an entry point, or a child link to a different writing key)
     public final Optional<PublicKeyHash> writer;
     private final byte[] mapKey;
     public final SymmetricKey rBaseKey;
     public final Optional<SymmetricLink> wBaseKeyLink;
+    // Only on links from a directory to its children, a hash of the child's name, to find a child without retrieving
+    // all of them. A link without one could have any name.
+    private final Optional<byte[]> nameHash;
 
     @JsConstructor
     public RelativeCapability(Optional<PublicKeyHash> writer,
                               byte[] mapKey,
                               SymmetricKey rBaseKey,
                               Optional<SymmetricLink> wBaseKeyLink) {
+        this(writer, mapKey, rBaseKey, wBaseKeyLink, Optional.empty());
+    }
+
+    public RelativeCapability(Optional<PublicKeyHash> writer,
+                              byte[] mapKey,
+                              SymmetricKey rBaseKey,
+                              Optional<SymmetricLink> wBaseKeyLink,
+                              Optional<byte[]> nameHash) {
         this.writer = writer;
         if (mapKey.length != Location.MAP_KEY_LENGTH)
             throw new IllegalStateException("Invalid map key length: " + mapKey.length);
         this.mapKey = mapKey;
         this.rBaseKey = rBaseKey;
         this.wBaseKeyLink = wBaseKeyLink;
+        this.nameHash = nameHash;
+    }
+
+    /**
+     *
+     * @param name
+     * @param dirKey the read base key of the directory containing the link
+     * @return a hash of the name, keyed so it can't be linked across directories
+     */
+    public static byte[] hashName(String name, SymmetricKey dirKey, Hasher hasher) {
+        try {
+            byte[] key = dirKey.getKey();
+            byte[] nameBytes = name.getBytes("UTF-8");
+            byte[] input = new byte[key.length + nameBytes.length];
+            System.arraycopy(key, 0, input, 0, key.length);
+            System.arraycopy(nameBytes, 0, input, key.length, nameBytes.length);
+            return hasher.blake2b(input, NAME_HASH_LENGTH);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @return whether the target of this link could have the name with the given hash
+     */
+    public boolean mayHaveName(byte[] hashedName) {
+        return ! nameHash.isPresent() || Arrays.equals(nameHash.get(), hashedName);
+    }
+
+    public Optional<byte[]> getNameHash() {
+        return nameHash;
+    }
+
+    public RelativeCapability withNameHash(Optional<byte[]> nameHash) {
+        return new RelativeCapability(writer, mapKey, rBaseKey, wBaseKeyLink, nameHash);
+    }
+
+    public RelativeCapability withName(String name, SymmetricKey dirKey, Hasher hasher) {
+        return withNameHash(Optional.of(hashName(name, dirKey, hasher)));
     }
 
     @JsMethod
@@ -58,15 +111,15 @@ public class RelativeCapability implements Cborable {
     }
 
     public RelativeCapability withBaseKey(SymmetricKey newReadBaseKey) {
-        return new RelativeCapability(writer, mapKey, newReadBaseKey, wBaseKeyLink);
+        return new RelativeCapability(writer, mapKey, newReadBaseKey, wBaseKeyLink, nameHash);
     }
 
     public RelativeCapability withWritingKey(PublicKeyHash writingKey) {
-        return new RelativeCapability(Optional.of(writingKey), mapKey, rBaseKey, wBaseKeyLink);
+        return new RelativeCapability(Optional.of(writingKey), mapKey, rBaseKey, wBaseKeyLink, nameHash);
     }
 
     public RelativeCapability withWritingKey(Optional<PublicKeyHash> writingKey) {
-        return new RelativeCapability(writingKey, mapKey, rBaseKey, wBaseKeyLink);
+        return new RelativeCapability(writingKey, mapKey, rBaseKey, wBaseKeyLink, nameHash);
     }
 
     public static RelativeCapability buildSubsequentChunk(byte[] mapkey, SymmetricKey baseKey) {
@@ -80,6 +133,7 @@ public class RelativeCapability implements Cborable {
         cbor.put("m", new CborObject.CborByteArray(mapKey));
         cbor.put("k", rBaseKey.toCbor());
         wBaseKeyLink.ifPresent(w -> cbor.put("l", w.toCbor()));
+        nameHash.ifPresent(h -> cbor.put("n", new CborObject.CborByteArray(h)));
         return CborObject.CborMap.build(cbor);
     }
 
@@ -97,7 +151,8 @@ public class RelativeCapability implements Cborable {
         byte[] mapKey = ((CborObject.CborByteArray)map.get("m")).value;
         SymmetricKey baseKey = SymmetricKey.fromCbor(map.get("k"));
         Optional<SymmetricLink> writerLink = Optional.ofNullable(map.get("l")).map(SymmetricLink::fromCbor);
-        return new RelativeCapability(writer, mapKey, baseKey, writerLink);
+        Optional<byte[]> nameHash = Optional.ofNullable(map.get("n")).map(h -> ((CborObject.CborByteArray) h).value);
+        return new RelativeCapability(writer, mapKey, baseKey, writerLink, nameHash);
     }
 
     @Override
@@ -0,0 +1,206 @@
+package peergos.shared.user.fs;
+
+import java.util.logging.*;
+
+import peergos.shared.util.*;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.Graphics2D;
+import java.awt.AlphaComposite;
+import java.awt.RenderingHints;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Derives the mime type and thumbnail of a file from its plaintext as it is uploaded, without holding the file in
+ *  memory. Images are spooled to a temporary file and decoded with subsampling, mp3 cover art is read from the ID3 tag
+ *  at the start of the file, and videos are thumbnailed from a bounded prefix.
+ */
+public class ThumbnailSink implements UploadSink {
+    private static final Logger LOG = Logger.getGlobal();
+
+    public static final int THUMBNAIL_SIZE = 100;
+    private static final int MAX_MP3_TAG_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_VIDEO_PREFIX = 4L * Chunk.MAX_SIZE;
+
+    private final String filename;
+    private final long fileSize;
+    private final boolean generate;
+    private Optional<byte[]> thumbnail;
+    private String mimeType = "";
+    private boolean started = false;
+    // the ID3 tag of an mp3
+    private byte[] tag;
+    private int tagRead;
+    // the start of an image or video
+    private File spool;
+    private RandomAccessFile spoolOut;
+    private long spoolLimit, spooled;
+
+    private ThumbnailSink(String filename, long fileSize, boolean generate, Optional<byte[]> thumbnail) {
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.generate = generate;
+        this.thumbnail = thumbnail;
+    }
+
+    /** A sink which generates the thumbnail itself from the data it is given. This is only supported on the JVM.
+     */
+    public static ThumbnailSink streaming(String filename, long fileSize) {
+        return new ThumbnailSink(filename, fileSize, true, Optional.empty());
+    }
+
+    /** A sink which only derives the mime type, for a thumbnail that has already been generated
+     */
+    public static ThumbnailSink withThumbnail(String filename, long fileSize, Optional<byte[]> thumbnail) {
+        return new ThumbnailSink(filename, fileSize, false, thumbnail);
+    }
+
+    @Override
+    public synchronized void accept(byte[] chunk) {
+        if (! started) {
+            started = true;
+            start(chunk);
+        }
+        try {
+            if (spoolOut != null && spooled < spoolLimit) {
+                int toWrite = (int) Math.min(chunk.length, spoolLimit - spooled);
+                spoolOut.write(toWrite == chunk.length ? chunk : Arrays.copyOfRange(chunk, 0, toWrite));
+                spooled += toWrite;
+            } else if (tag != null && tagRead < tag.length) {
+                int toCopy = Math.min(chunk.length, tag.length - tagRead);
+                System.arraycopy(chunk, 0, tag, tagRead, toCopy);
+                tagRead += toCopy;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            close();
+        }
+    }
+
+    private void start(byte[] first) {
+        byte[] header = Arrays.copyOfRange(first, 0, Math.min(first.length, MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE));
+        mimeType = MimeTypes.calculateMimeType(header, filename);
+        if (! generate || fileSize <= MimeTypes.HEADER_BYTES_TO_IDENTIFY_MIME_TYPE)
+            return;
+        try {
+            if (mimeType.startsWith("image"))
+                startSpool(fileSize);
+            else if (mimeType.startsWith("video"))
+                startSpool(Math.min(fileSize, MAX_VIDEO_PREFIX));
+            else if (mimeType.startsWith("audio/mpeg"))
+                tag = new byte[(int) Math.min(fileSize, Math.min(Mp3CoverImage.tagLength(first), MAX_MP3_TAG_SIZE))];
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            close();
+        }
+    }
+
+    private void startSpool(long limit) throws IOException {
+        spool = File.createTempFile(UUID.randomUUID().toString(), mimeType.startsWith("video") ? ".mp4" : ".tmp");
+        spool.deleteOnExit();
+        spoolOut = new RandomAccessFile(spool, "rw");
+        spoolLimit = limit;
+    }
+
+    @Override
+    public synchronized FileProperties chunkProperties(FileProperties props) {
+        return props.withMimeType(mimeType);
+    }
+
+    @Override
+    public synchronized CompletableFuture<FileProperties> complete(FileProperties props) {
+        if (generate)
+            thumbnail = generateThumbnail();
+        close();
+        return Futures.of(thumbnail.map(props::withThumbnail).orElse(props));
+    }
+
+    private Optional<byte[]> generateThumbnail() {
+        try {
+            if (tag != null) {
+                Mp3CoverImage cover = Mp3CoverImage.extractCoverArt(tag);
+                if (cover.imageData == null)
+                    return Optional.empty();
+                return generateThumbnail(cover.imageData);
+            }
+            if (spoolOut == null)
+                return Optional.empty();
+            spoolOut.close();
+            spoolOut = null;
+            if (mimeType.startsWith("video")) {
+                byte[] thumb = VideoThumbnail.create(spool.getAbsolutePath(), THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                return thumb.length == 0 ? Optional.empty() : Optional.of(thumb);
+            }
+            try (ImageInputStream in = ImageIO.createImageInputStream(spool)) {
+                return generateThumbnail(in);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        tag = null;
+        if (spoolOut != null) {
+            try {
+                spoolOut.close();
+            } catch (IOException e) {}
+            spoolOut = null;
+        }
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+    }
+
+    public static Optional<byte[]> generateThumbnail(byte[] imageBlob) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBlob))) {
+            return generateThumbnail(in);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, ioe.getMessage(), ioe);
+        }
+        return Optional.empty();
+    }
+
+    /** Decode the image at the lowest resolution which still fills a thumbnail, rather than at full size
+     */
+    private static Optional<byte[]> generateThumbnail(ImageInputStream in) throws IOException {
+        if (in == null)
+            return Optional.empty();
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (! readers.hasNext())
+            return Optional.empty();
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int smallestSide = Math.min(reader.getWidth(0), reader.getHeight(0));
+            int subsampling = Math.max(1, smallestSide / (2 * THUMBNAIL_SIZE));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage image = reader.read(0, param);
+
+            BufferedImage thumbnailImage = new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE, image.getType());
+            Graphics2D g = thumbnailImage.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.drawImage(image, 0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE, null);
+            g.dispose();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ImageIO.write(thumbnailImage, "JPG", baos);
+            baos.close();
+            return Optional.of(baos.toByteArray());
+        } finally {
+            reader.dispose();
+        }
+    }
+}
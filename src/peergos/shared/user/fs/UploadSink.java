@@ -0,0 +1,31 @@
+package peergos.shared.user.fs;
+
+import java.util.concurrent.*;
+
+/** Observes the plaintext of a file as it is read for upload, so that properties derived from its contents can be
+ *  written with the file itself, in the same pass over the data.
+ */
+public interface UploadSink extends AutoCloseable {
+
+    /** Consume the next chunk of plaintext. Chunks are given in order, starting with the first.
+     */
+    void accept(byte[] chunk);
+
+    /**
+     *
+     * @param props
+     * @return the properties to write with every chunk after the first, once the first has been consumed
+     */
+    FileProperties chunkProperties(FileProperties props);
+
+    /**
+     *
+     * @param props
+     * @return the properties to write with the first chunk, once every chunk has been consumed
+     */
+    CompletableFuture<FileProperties> complete(FileProperties props);
+
+    /** Release anything held by this sink, whether or not the upload completed
+     */
+    void close();
+}
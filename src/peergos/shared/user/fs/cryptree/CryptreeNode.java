@@ -187,9 +187,8 @@ public class CryptreeNode implements Cborable {
                                                                       SigningPrivateKeyAndPublicHash signer,
                                                                       NetworkAccess network,
                                                                       TransactionId tid) {
-            List<Fragment> frags = childData.stream()
+            List<FragmentWithHash> frags = childData.stream()
                     .filter(f -> ! f.hash.isIdentity())
-                    .map(f -> f.fragment)
                     .collect(Collectors.toList());
             return network.uploadFragments(frags, us.owner, signer, l -> {}, tid);
         }
@@ -328,24 +327,37 @@ public class CryptreeNode implements Cborable {
                                                                    Hasher hasher,
                                                                    NetworkAccess network,
                                                                    AbsoluteCapability us) {
-        CompletableFuture<Set<RetrievedCapability>> childrenFuture = getDirectChildren(network, us, version);
+        // Collect the child links from every chunk first so all the children can be retrieved in a single batch
+        return getAllChildrenCapabilities(version, us, hasher, network)
+                .thenCompose(caps -> network.retrieveAllMetadata(new ArrayList<>(caps), version))
+                .thenApply(HashSet::new);
+    }
 
+    /** Find the links to children which could have the given name, using the name hashes in the links, without
+     * retrieving any children. Links without a name hash are always included.
+     *
+     * @return the capabilities of the candidate children, from every chunk of this directory
+     */
+    public CompletableFuture<Set<AbsoluteCapability>> getChildCapabilitiesByName(Snapshot version,
+                                                                                 AbsoluteCapability us,
+                                                                                 String name,
+                                                                                 Hasher hasher,
+                                                                                 NetworkAccess network) {
+        if (! isDirectory)
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        byte[] nameHash = RelativeCapability.hashName(name, us.rBaseKey, hasher);
         CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
                 Optional.empty(), hasher);
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    CompletableFuture<Set<RetrievedCapability>> moreChildren = moreChildrenSource
-                            .map(d -> d.fileAccess.getChildren(version, hasher, network, d.capability))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<RetrievedCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
-                    });
-                })
-        );
+        return getDirectChildren(us.rBaseKey, network).thenCompose(links -> moreChildrenFuture.thenCompose(next -> {
+            Set<AbsoluteCapability> candidates = links.stream()
+                    .filter(link -> link.mayHaveName(nameHash))
+                    .map(link -> link.toAbsolute(us))
+                    .collect(Collectors.toSet());
+            if (! next.isPresent())
+                return CompletableFuture.completedFuture(candidates);
+            return next.get().fileAccess.getChildCapabilitiesByName(version, next.get().capability, name, hasher, network)
+                    .thenApply(more -> Stream.concat(candidates.stream(), more.stream()).collect(Collectors.toSet()));
+        }));
     }
 
     public CompletableFuture<Snapshot> updateProperties(Snapshot base,
@@ -607,7 +619,7 @@ public class CryptreeNode implements Cborable {
                                             committer);
                                 })).thenCompose(nextChunk -> {
                             if (isDirectory()) {
-                                Set<WritableAbsoluteCapability> empty = Collections.emptySet();
+                                List<RelativeCapability> empty = Collections.emptyList();
                                 return getDirectChildren(network, us.cap, version)
                                         .thenCompose(children -> Futures.reduceAll(children,
                                                 new Pair<>(nextChunk.left, empty),
@@ -633,11 +645,12 @@ public class CryptreeNode implements Cborable {
                                                                     newChild.left,
                                                                     committer)
                                                                     .thenApply(updatedChild -> new Pair<>(updatedChild.left,
-                                                                            Stream.concat(p.right.stream(), Stream.of(updatedChild.right))
-                                                                                    .collect(Collectors.toSet()))));
+                                                                            Stream.concat(p.right.stream(), Stream.of(newUs.cap.relativise(updatedChild.right)
+                                                                                    .withName(c.getProperties().name, newUs.cap.rBaseKey, crypto.hasher)))
+                                                                                    .collect(Collectors.toList()))));
                                                 },
                                                 (x, y) -> new Pair<>(x.left.merge(y.left),
-                                                        Stream.concat(x.right.stream(), y.right.stream()).collect(Collectors.toSet()))))
+                                                        Stream.concat(x.right.stream(), y.right.stream()).collect(Collectors.toList()))))
                                         .thenCompose(newChildCaps -> {
                                             // Now rotate the current chunk, with the new child pointers
                                             Optional<SigningPrivateKeyAndPublicHash> signer = !isFirstChunk |
@@ -646,9 +659,7 @@ public class CryptreeNode implements Cborable {
                                                     Optional.of(newUs.signer);
                                             RelativeCapability nextChunkRel = RelativeCapability.buildSubsequentChunk(
                                                     nextChunk.right.getMapKey(), newUs.cap.rBaseKey);
-                                            List<RelativeCapability> relativeChildLinks = newChildCaps.right.stream()
-                                                    .map(newUs.cap::relativise)
-                                                    .collect(Collectors.toList());
+                                            List<RelativeCapability> relativeChildLinks = newChildCaps.right;
                                             return createDir(MaybeMultihash.empty(), newUs.cap.rBaseKey,
                                                     newUs.cap.wBaseKey.get(), signer, props, newParentCap, newParentKey,
                                                     nextChunkRel, new ChildrenLinks(relativeChildLinks), crypto.hasher)
@@ -844,7 +855,8 @@ public class CryptreeNode implements Cborable {
                     return IpfsTransaction.call(us.owner,
                             tid -> child.commit(base, committer, childCap, entryWriter, network, tid), network.dhtClient)
                             .thenCompose(updatedBase -> {
-                                RelativeCapability subdirPointer = new RelativeCapability(Optional.empty(), dirMapKey, dirReadKey, Optional.of(toChildWriteKey));
+                                RelativeCapability subdirPointer = new RelativeCapability(Optional.empty(), dirMapKey,
+                                        dirReadKey, Optional.of(toChildWriteKey)).withName(name, us.rBaseKey, crypto.hasher);
                                 SigningPrivateKeyAndPublicHash signer = getSigner(us.rBaseKey, us.wBaseKey.get(), entryWriter);
                                 return addChildrenAndCommit(updatedBase, committer, Arrays.asList(subdirPointer), us, signer, network, crypto);
                             });
@@ -882,27 +894,48 @@ public class CryptreeNode implements Cborable {
                                                         Collection<Pair<AbsoluteCapability, AbsoluteCapability>> childCasPairs,
                                                         NetworkAccess network,
                                                         Hasher hasher) {
+        return updateChildLinks(base, committer, ourPointer, signer, childCasPairs, Collections.emptyMap(), network, hasher);
+    }
+
+    /**
+     *
+     * @param newNames the new names of any renamed children, keyed by their original location
+     * @return
+     */
+    public CompletableFuture<Snapshot> updateChildLinks(Snapshot base,
+                                                        Committer committer,
+                                                        WritableAbsoluteCapability ourPointer,
+                                                        SigningPrivateKeyAndPublicHash signer,
+                                                        Collection<Pair<AbsoluteCapability, AbsoluteCapability>> childCasPairs,
+                                                        Map<Location, String> newNames,
+                                                        NetworkAccess network,
+                                                        Hasher hasher) {
         Set<Location> locsToRemove = childCasPairs.stream()
                 .map(p -> p.left.getLocation())
                 .collect(Collectors.toSet());
-        return getDirectChildren(network, ourPointer, base).thenCompose(children -> {
+        // Work on the links themselves, rather than the retrieved children, to keep their name hashes
+        return getDirectChildren(ourPointer.rBaseKey, network).thenCompose(children -> {
 
-            Set<Location> existingChildLocs = children.stream()
-                    .map(r -> r.capability.getLocation())
-                    .collect(Collectors.toSet());
+            Map<Location, RelativeCapability> existingChildren = children.stream()
+                    .collect(Collectors.toMap(r -> r.getLocation(ourPointer.owner, ourPointer.writer), r -> r, (a, b) -> a));
 
             List<RelativeCapability> withRemoval = children.stream()
-                    .filter(e -> ! locsToRemove.contains(e.capability.getLocation()))
-                    .map(c -> ourPointer.relativise(c.capability))
+                    .filter(e -> ! locsToRemove.contains(e.getLocation(ourPointer.owner, ourPointer.writer)))
                     .collect(Collectors.toList());
 
             List<RelativeCapability> toAdd = childCasPairs.stream()
-                    .filter(p -> existingChildLocs.contains(p.left.getLocation()))
-                    .map(p -> ourPointer.relativise(p.right))
+                    .filter(p -> existingChildren.containsKey(p.left.getLocation()))
+                    .map(p -> {
+                        RelativeCapability updated = ourPointer.relativise(p.right);
+                        String newName = newNames.get(p.left.getLocation());
+                        if (newName != null)
+                            return updated.withName(newName, ourPointer.rBaseKey, hasher);
+                        return updated.withNameHash(existingChildren.get(p.left.getLocation()).getNameHash());
+                    })
                     .collect(Collectors.toList());
 
             Collection<Pair<AbsoluteCapability, AbsoluteCapability>> remaining = childCasPairs.stream()
-                    .filter(p -> ! existingChildLocs.contains(p.left.getLocation()))
+                    .filter(p -> ! existingChildren.containsKey(p.left.getLocation()))
                     .collect(Collectors.toSet());
 
             return (! toAdd.isEmpty() ?
@@ -922,7 +955,7 @@ public class CryptreeNode implements Cborable {
                                                     if (! nextOpt.isPresent())
                                                         throw new IllegalStateException("Child link not present!");
                                                     return nextOpt.get().fileAccess.updateChildLinks(updated, committer,
-                                                            writableNextPointer, signer, remaining, network, hasher);
+                                                            writableNextPointer, signer, remaining, newNames, network, hasher);
                                                 });
                                     }));
         });
@@ -938,10 +971,9 @@ public class CryptreeNode implements Cborable {
         Set<Location> locsToRemove = childrenToRemove.stream()
                 .map(r -> r.getLocation())
                 .collect(Collectors.toSet());
-        return getDirectChildren(network, ourPointer, current).thenCompose(children -> {
+        return getDirectChildren(ourPointer.rBaseKey, network).thenCompose(children -> {
             List<RelativeCapability> withRemoval = children.stream()
-                    .filter(e -> ! locsToRemove.contains(e.capability.getLocation()))
-                    .map(c -> ourPointer.relativise(c.capability))
+                    .filter(e -> ! locsToRemove.contains(e.getLocation(ourPointer.owner, ourPointer.writer)))
                     .collect(Collectors.toList());
 
             return IpfsTransaction.call(ourPointer.owner,
@@ -1034,6 +1066,18 @@ public class CryptreeNode implements Cborable {
         return createFile(existingHash, signerLink, parentKey, dataKey, props, data, Optional.of(toParentDir), nextChunk);
     }
 
+    /** Create a copy of this file chunk under a new base key, which links to the same encrypted fragments.
+     *  The data key, including whether it is dirty, is kept so the fragments don't need to be re-encrypted.
+     */
+    public CryptreeNode copyFileChunk(SymmetricKey baseKey,
+                                      SymmetricKey newBaseKey,
+                                      FileProperties newProps,
+                                      RelativeCapability toParentDir,
+                                      RelativeCapability nextChunk) {
+        return createFile(MaybeMultihash.empty(), Optional.empty(), newBaseKey, getDataKey(baseKey), newProps,
+                childrenOrData, Optional.of(toParentDir), nextChunk);
+    }
+
     public static CryptreeNode createSubsequentFileChunk(MaybeMultihash existingHash,
                                                          Optional<SymmetricLinkToSigner> signerLink,
                                                          SymmetricKey parentKey,
@@ -0,0 +1,206 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+
+/** A systematic Reed-Solomon erasure code over GF(256).
+ *
+ *  The first dataShards shards are the input itself, followed by parityShards parity shards. The original data can be
+ *  reconstructed from any dataShards of the shards. The parity rows of the encoding matrix form a Cauchy matrix, so
+ *  every square sub matrix of the full encoding matrix is invertible.
+ *
+ *  All arithmetic is done with a full 256 x 256 multiplication table over byte arrays, without any intermediate
+ *  conversions or buffers.
+ */
+public class ReedSolomon {
+
+    private static final GaloisField256 field = new GaloisField256();
+    private static final byte[][] MUL = new byte[256][256];
+    static {
+        for (int i=0; i < 256; i++)
+            for (int j=0; j < 256; j++)
+                MUL[i][j] = (byte) field.mul(i, j);
+    }
+
+    public final int dataShards, parityShards, totalShards;
+    private final byte[][] parityRows;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0)
+            throw new IllegalStateException("Invalid shard counts: " + dataShards + " + " + parityShards);
+        if (dataShards + parityShards > 256)
+            throw new IllegalStateException("At most 256 shards are possible in GF(256)!");
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.totalShards = dataShards + parityShards;
+        this.parityRows = new byte[parityShards][dataShards];
+        for (int i=0; i < parityShards; i++)
+            for (int j=0; j < dataShards; j++)
+                parityRows[i][j] = (byte) field.div(1, (dataShards + i) ^ j);
+    }
+
+    /** The size of each shard required to encode an input of the given length
+     *
+     * @param inputLength
+     * @return
+     */
+    public int shardSize(int inputLength) {
+        return Math.max(1, (inputLength + dataShards - 1) / dataShards);
+    }
+
+    /** Split the input into data shards and compute the parity shards
+     *
+     * @param input
+     * @return all the shards, each of size shardSize(input.length)
+     */
+    public byte[][] encode(byte[] input) {
+        int shardSize = shardSize(input.length);
+        byte[][] shards = new byte[totalShards][shardSize];
+        for (int i=0; i < dataShards; i++) {
+            int start = i * shardSize;
+            if (start < input.length)
+                System.arraycopy(input, start, shards[i], 0, Math.min(shardSize, input.length - start));
+        }
+        encodeParity(shards, shardSize);
+        return shards;
+    }
+
+    /** Compute the parity shards from the data shards, in place
+     *
+     * @param shards
+     * @param shardSize
+     */
+    public void encodeParity(byte[][] shards, int shardSize) {
+        for (int p=0; p < parityShards; p++)
+            Arrays.fill(shards[dataShards + p], 0, shardSize, (byte) 0);
+        for (int j=0; j < dataShards; j++) {
+            byte[] input = shards[j];
+            for (int p=0; p < parityShards; p++)
+                mulAdd(parityRows[p][j], input, shards[dataShards + p], shardSize);
+        }
+    }
+
+    /** Concatenate the data shards and truncate to the original length
+     *
+     * @param shards
+     * @param length
+     * @return
+     */
+    public byte[] join(byte[][] shards, int length) {
+        byte[] res = new byte[length];
+        int shardSize = shardSize(length);
+        for (int i=0; i < dataShards; i++) {
+            int start = i * shardSize;
+            if (start < length)
+                System.arraycopy(shards[i], 0, res, start, Math.min(shardSize, length - start));
+        }
+        return res;
+    }
+
+    /** Reconstruct the original input from shards, where a missing shard is null
+     *
+     * @param shards
+     * @param length the length of the original input
+     * @return
+     */
+    public byte[] decode(byte[][] shards, int length) {
+        reconstructData(shards, shardSize(length));
+        return join(shards, length);
+    }
+
+    /** Fill in any missing (null) data shards in place. Parity shards are left untouched.
+     *
+     * @param shards
+     * @param shardSize
+     */
+    public void reconstructData(byte[][] shards, int shardSize) {
+        if (shards.length != totalShards)
+            throw new IllegalStateException("Expected " + totalShards + " shards, but got " + shards.length);
+        int missingData = 0;
+        for (int i=0; i < dataShards; i++)
+            if (shards[i] == null)
+                missingData++;
+        if (missingData == 0)
+            return;
+
+        // pick the first dataShards available shards and invert the corresponding rows of the encoding matrix
+        int[] used = new int[dataShards];
+        int found = 0;
+        for (int i=0; i < totalShards && found < dataShards; i++)
+            if (shards[i] != null)
+                used[found++] = i;
+        if (found < dataShards)
+            throw new IllegalStateException("Not enough shards to reconstruct: " + found + " < " + dataShards);
+
+        byte[][] sub = new byte[dataShards][];
+        for (int r=0; r < dataShards; r++)
+            sub[r] = encodingRow(used[r]);
+        byte[][] decoding = invert(sub);
+
+        for (int d=0; d < dataShards; d++) {
+            if (shards[d] != null)
+                continue;
+            byte[] out = new byte[shardSize];
+            for (int c=0; c < dataShards; c++)
+                mulAdd(decoding[d][c], shards[used[c]], out, shardSize);
+            shards[d] = out;
+        }
+    }
+
+    private byte[] encodingRow(int shard) {
+        if (shard >= dataShards)
+            return parityRows[shard - dataShards].clone();
+        byte[] row = new byte[dataShards];
+        row[shard] = 1;
+        return row;
+    }
+
+    /** out ^= coefficient * input over the first len bytes
+     */
+    private static void mulAdd(byte coefficient, byte[] input, byte[] out, int len) {
+        if (coefficient == 0)
+            return;
+        if (coefficient == 1) {
+            for (int b=0; b < len; b++)
+                out[b] ^= input[b];
+            return;
+        }
+        byte[] table = MUL[coefficient & 0xff];
+        for (int b=0; b < len; b++)
+            out[b] ^= table[input[b] & 0xff];
+    }
+
+    /** Gauss-Jordan inversion of a square matrix over GF(256)
+     */
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] inv = new byte[n][n];
+        for (int i=0; i < n; i++)
+            inv[i][i] = 1;
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && m[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular matrix!");
+            byte[] tmp = m[col]; m[col] = m[pivot]; m[pivot] = tmp;
+            tmp = inv[col]; inv[col] = inv[pivot]; inv[pivot] = tmp;
+
+            byte scale = (byte) field.div(1, m[col][col] & 0xff);
+            byte[] scaleTable = MUL[scale & 0xff];
+            for (int c=0; c < n; c++) {
+                m[col][c] = scaleTable[m[col][c] & 0xff];
+                inv[col][c] = scaleTable[inv[col][c] & 0xff];
+            }
+            for (int r=0; r < n; r++) {
+                if (r == col || m[r][col] == 0)
+                    continue;
+                byte[] factor = MUL[m[r][col] & 0xff];
+                for (int c=0; c < n; c++) {
+                    m[r][c] ^= factor[m[col][c] & 0xff];
+                    inv[r][c] ^= factor[inv[col][c] & 0xff];
+                }
+            }
+        }
+        return inv;
+    }
+}
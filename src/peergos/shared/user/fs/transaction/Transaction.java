@@ -25,8 +25,10 @@ public interface Transaction extends Cborable {
     CompletableFuture<Snapshot> clear(Snapshot version, Committer committer, NetworkAccess network);
 
     static Transaction deserialize(byte[] data) {
-        CborObject cborObject = CborObject.fromByteArray(data);
-        CborObject.CborMap map =  (CborObject.CborMap) cborObject;
+        return fromCbor((CborObject.CborMap) CborObject.fromByteArray(data));
+    }
+
+    static Transaction fromCbor(CborObject.CborMap map) {
         Type type = Type.valueOf(map.getString("type"));
         switch (type)  {
             case FILE_UPLOAD:
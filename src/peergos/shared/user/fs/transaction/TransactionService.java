@@ -43,7 +43,7 @@ public interface TransactionService {
                             .collect(Collectors.toList());
 
                     return Futures.reduceAll(toClose, version,
-                            (s, t) -> clearAndClose(version, committer, t),
+                            (s, t) -> clearAndClose(s, committer, t),
                             (a, b) -> b);
                 });
     }
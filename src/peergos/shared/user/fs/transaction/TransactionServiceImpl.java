@@ -1,21 +1,31 @@
 package peergos.shared.user.fs.transaction;
 
 import peergos.shared.*;
+import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.random.SafeRandom;
 import peergos.shared.user.*;
 import peergos.shared.user.fs.*;
-import peergos.shared.util.Futures;
-import peergos.shared.util.ProgressConsumer;
-import peergos.shared.util.Serialize;
+import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+/** Open transactions are recorded in a journal file in the transactions directory. Opening or closing a transaction
+ *  appends a record to the journal, which only modifies the journal's first chunk, rather than adding or removing a
+ *  file in the directory. Once no transactions are open the journal is truncated back to its header.
+ *
+ *  Transactions opened by earlier versions, as a file each, are still listed and closed.
+ */
 public class TransactionServiceImpl implements TransactionService {
     private static ProgressConsumer<Long> VOID_PROGRESS = l -> {};
+    public static final String JOURNAL_NAME = "journal";
+    private static final int COMPACTION_SIZE = 16 * 1024;
+    private static final String JOURNAL = "JOURNAL";
+    private static final String CLOSE = "CLOSE";
 
     private final FileWrapperUpdater transactionDirUpdater;
     private final SigningPrivateKeyAndPublicHash signer;
@@ -38,23 +48,31 @@ public class TransactionServiceImpl implements TransactionService {
 
     @Override
     public CompletableFuture<Snapshot> open(Snapshot version, Committer committer, Transaction transaction) {
-        byte[] data = transaction.serialize();
-        AsyncReader asyncReader = AsyncReader.build(data);
         return transactionDirUpdater.updated(version).thenCompose(dir ->
-                dir.uploadFileSection(version, committer, transaction.name(), asyncReader, false,
-                        0, data.length, Optional.empty(), false, false, networkAccess,
-                        crypto, VOID_PROGRESS, crypto.random.randomBytes(32)));
+                dir.getChild(JOURNAL_NAME, crypto.hasher, networkAccess).thenCompose(journal -> {
+                    byte[] record = transaction.serialize();
+                    if (journal.isPresent())
+                        return append(version, committer, dir, journal.get(), record);
+                    // the header means that later appends never start at 0, which would recalculate the mime type
+                    byte[] data = ArrayOps.concat(header(), record);
+                    return dir.uploadFileSection(version, committer, JOURNAL_NAME, AsyncReader.build(data), false,
+                            0, data.length, Optional.empty(), false, false, networkAccess,
+                            crypto, VOID_PROGRESS, crypto.random.randomBytes(32));
+                }));
     }
 
     @Override
     public CompletableFuture<Snapshot> close(Snapshot version, Committer committer, Transaction transaction) {
         return transactionDirUpdater.updated(version).thenCompose(dir ->
                 dir.getChild(transaction.name(), crypto.hasher, networkAccess).thenCompose(fileOpt -> {
-                    boolean hasChild = fileOpt.isPresent();
-                    if (!hasChild)
-                        return CompletableFuture.completedFuture(version);
-                    FileWrapper fileWrapper = fileOpt.get();
-                    return dir.removeChild(version, committer, fileWrapper, networkAccess, crypto.hasher);
+                    if (fileOpt.isPresent())
+                        return dir.removeChild(version, committer, fileOpt.get(), networkAccess, crypto.hasher);
+                    return dir.getChild(JOURNAL_NAME, crypto.hasher, networkAccess).thenCompose(journal -> {
+                        if (! journal.isPresent())
+                            return CompletableFuture.completedFuture(version);
+                        return append(version, committer, dir, journal.get(), closeRecord(transaction).serialize())
+                                .thenCompose(appended -> compact(appended, committer));
+                    });
                 }));
     }
 
@@ -63,6 +81,75 @@ public class TransactionServiceImpl implements TransactionService {
         return transaction.clear(version, committer, networkAccess);
     }
 
+    private CompletableFuture<Snapshot> append(Snapshot version,
+                                               Committer committer,
+                                               FileWrapper dir,
+                                               FileWrapper journal,
+                                               byte[] record) {
+        long size = journal.getSize();
+        return dir.uploadFileSection(version, committer, JOURNAL_NAME, AsyncReader.build(record), false,
+                size, size + record.length, Optional.empty(), true, false, networkAccess,
+                crypto, VOID_PROGRESS, crypto.random.randomBytes(32));
+    }
+
+    /** Truncate the journal back to its header if it has grown large and no transactions are open
+     */
+    private CompletableFuture<Snapshot> compact(Snapshot version, Committer committer) {
+        return transactionDirUpdater.updated(version).thenCompose(dir ->
+                dir.getChild(JOURNAL_NAME, crypto.hasher, networkAccess).thenCompose(journalOpt -> {
+                    if (! journalOpt.isPresent() || journalOpt.get().getSize() < COMPACTION_SIZE)
+                        return CompletableFuture.completedFuture(version);
+                    FileWrapper journal = journalOpt.get();
+                    return readJournal(version, journal).thenCompose(open -> {
+                        if (! open.isEmpty())
+                            return CompletableFuture.completedFuture(version);
+                        return journal.truncate(version, committer, header().length, networkAccess, crypto);
+                    });
+                }));
+    }
+
+    private static byte[] header() {
+        Map<String, Cborable> map = new HashMap<>();
+        map.put("type", new CborObject.CborString(JOURNAL));
+        return CborObject.CborMap.build(map).serialize();
+    }
+
+    private static CborObject closeRecord(Transaction transaction) {
+        Map<String, Cborable> map = new HashMap<>();
+        map.put("type", new CborObject.CborString(CLOSE));
+        map.put("name", new CborObject.CborString(transaction.name()));
+        map.put("startTimeEpochMs", new CborObject.CborLong(transaction.startTimeEpochMillis()));
+        return CborObject.CborMap.build(map);
+    }
+
+    private static String key(String name, long startTimeEpochMillis) {
+        return name + ":" + startTimeEpochMillis;
+    }
+
+    private CompletableFuture<Collection<Transaction>> readJournal(Snapshot version, FileWrapper journal) {
+        byte[] data = new byte[(int) journal.getSize()];
+        CommittedWriterData cwd = version.get(journal.writer());
+        return journal.getInputStream(cwd.props, networkAccess, crypto, VOID_PROGRESS)
+                .thenCompose(reader -> Serialize.readFullArray(reader, data))
+                .thenApply(done -> {
+                    Map<String, Transaction> open = new LinkedHashMap<>();
+                    ByteArrayInputStream in = new ByteArrayInputStream(data);
+                    while (in.available() > 0) {
+                        CborObject.CborMap record = (CborObject.CborMap) CborObject.read(in, data.length);
+                        String type = record.getString("type");
+                        if (type.equals(JOURNAL))
+                            continue;
+                        if (type.equals(CLOSE)) {
+                            open.remove(key(record.getString("name"), record.getLong("startTimeEpochMs")));
+                            continue;
+                        }
+                        Transaction transaction = Transaction.fromCbor(record);
+                        open.put(key(transaction.name(), transaction.startTimeEpochMillis()), transaction);
+                    }
+                    return open.values();
+                });
+    }
+
     private CompletableFuture<Transaction> read(Snapshot version, FileWrapper txnFile) {
         FileProperties props = txnFile.getFileProperties();
         int size = (int) props.size;
@@ -70,7 +157,7 @@ public class TransactionServiceImpl implements TransactionService {
 
         CommittedWriterData cwd = version.get(txnFile.writer());
         return txnFile.getInputStream(cwd.props, networkAccess, crypto, VOID_PROGRESS)
-                .thenApply(reader -> Serialize.readFullArray(reader, data))
+                .thenCompose(reader -> Serialize.readFullArray(reader, data))
                 .thenApply(done -> Transaction.deserialize(data));
     }
 
@@ -79,10 +166,15 @@ public class TransactionServiceImpl implements TransactionService {
         return transactionDirUpdater.updated(version)
                 .thenCompose(dir -> dir.getChildren(crypto.hasher, networkAccess)
                         .thenCompose(children -> {
-                            List<CompletableFuture<Transaction>> collect = children.stream()
-                                    .map(c -> read(version, c))
+                            List<CompletableFuture<Collection<Transaction>>> collect = children.stream()
+                                    .map(c -> c.getName().equals(JOURNAL_NAME) ?
+                                            readJournal(version, c) :
+                                            read(version, c).<Collection<Transaction>>thenApply(Collections::singletonList))
                                     .collect(Collectors.toList());
-                            return Futures.combineAll(collect);
+                            return Futures.combineAllInOrder(collect)
+                                    .thenApply(all -> all.stream()
+                                            .flatMap(Collection::stream)
+                                            .collect(Collectors.toSet()));
                         })
                 );
     }
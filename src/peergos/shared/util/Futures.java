@@ -4,6 +4,7 @@ import jsinterop.annotations.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -71,6 +72,72 @@ public class Futures {
         );
     }
 
+    /*** Asynchronously map a list of input values to output values, with at most maxConcurrency mappings in progress
+     * at any time
+     *
+     * @param input the values to map
+     * @param maxConcurrency the maximum number of mappings in progress at once
+     * @param mapper maps an input value to a completable future of the return type
+     * @param <X> input type
+     * @param <V> return type
+     * @return the results in the same order as the input
+     */
+    public static <X, V> CompletableFuture<List<V>> mapConcurrently(List<X> input,
+                                                                    int maxConcurrency,
+                                                                    Function<X, CompletableFuture<V>> mapper) {
+        List<V> results = new ArrayList<>(Collections.nCopies(input.size(), null));
+        AtomicInteger next = new AtomicInteger(0);
+        List<CompletableFuture<Boolean>> workers = IntStream.range(0, Math.min(maxConcurrency, input.size()))
+                .mapToObj(i -> mapRemaining(input, next, results, mapper))
+                .collect(Collectors.toList());
+        return combineAll(workers).thenApply(x -> results);
+    }
+
+    private static <X, V> CompletableFuture<Boolean> mapRemaining(List<X> input,
+                                                                  AtomicInteger next,
+                                                                  List<V> results,
+                                                                  Function<X, CompletableFuture<V>> mapper) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        try {
+            mapRemaining(input, next, results, mapper, done);
+        } catch (Throwable t) {
+            done.completeExceptionally(t);
+        }
+        return done;
+    }
+
+    /** Mappings which complete synchronously are handled in a loop, rather than by recursing, to not overflow the stack
+     */
+    private static <X, V> void mapRemaining(List<X> input,
+                                            AtomicInteger next,
+                                            List<V> results,
+                                            Function<X, CompletableFuture<V>> mapper,
+                                            CompletableFuture<Boolean> done) {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= input.size()) {
+                done.complete(true);
+                return;
+            }
+            CompletableFuture<Boolean> stored = mapper.apply(input.get(index)).thenApply(res -> {
+                synchronized (results) {
+                    results.set(index, res);
+                }
+                return true;
+            });
+            if (stored.isDone() && ! stored.isCompletedExceptionally())
+                continue;
+            stored.thenApply(x -> {
+                mapRemaining(input, next, results, mapper, done);
+                return true;
+            }).exceptionally(t -> {
+                done.completeExceptionally(t);
+                return false;
+            });
+            return;
+        }
+    }
+
     /*** Asynchronously map a set of input values to output values until one matches a predicate
      *
      * @param input the values to reduce